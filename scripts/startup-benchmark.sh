@@ -0,0 +1,47 @@
+#!/usr/bin/env sh
+# Замер time-to-first-request: запускает приложение несколько раз и считает время
+# от старта JVM до первого HTTP-ответа. Нужна доступная PostgreSQL (docker compose up postgres).
+#
+#   gradle cdsArchive            # обычная сборка + CDS
+#   gradle -Paot cdsArchive      # Spring AOT + CDS
+#   scripts/startup-benchmark.sh [число запусков]
+set -eu
+
+RUNS=${1:-5}
+DIR=${CDS_DIR:-build/cds}
+PORT=${PORT:-8081}
+JAR=$(cd "$DIR" && ls *.jar | head -n 1)
+URL="http://localhost:$PORT/actuator/health"
+
+measure() {
+    name=$1
+    shift
+    total=0
+    i=0
+    while [ "$i" -lt "$RUNS" ]; do
+        start=$(date +%s%N)
+        (cd "$DIR" && exec java "$@" -jar "$JAR" --server.port="$PORT" > /dev/null 2>&1) &
+        pid=$!
+        until curl -s -o /dev/null "$URL"; do
+            if ! kill -0 "$pid" 2> /dev/null; then
+                echo "$name: приложение завершилось при запуске" >&2
+                exit 1
+            fi
+            sleep 0.05
+        done
+        end=$(date +%s%N)
+        kill "$pid"
+        wait "$pid" 2> /dev/null || true
+        total=$((total + (end - start) / 1000000))
+        i=$((i + 1))
+    done
+    echo "$name: $((total / RUNS)) мс до первого ответа (среднее по $RUNS запускам)"
+}
+
+measure "без CDS" -Xshare:auto
+if [ -f "$DIR/application.jsa" ]; then
+    measure "CDS" -XX:SharedArchiveFile=application.jsa
+    if unzip -l "$DIR/$JAR" 2> /dev/null | grep -q '__ApplicationContextInitializer'; then
+        measure "CDS + AOT" -XX:SharedArchiveFile=application.jsa -Dspring.aot.enabled=true
+    fi
+fi
@@ -0,0 +1,250 @@
+package ru.netology.filestorage.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import ru.netology.filestorage.dto.ErrorResponse;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.UserRepository;
+import ru.netology.filestorage.service.ClusterService;
+import ru.netology.filestorage.service.PresignedUrlService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Принимает запрос пользователя на любом узле кластера: запросы своих пользователей обслуживает сам,
+ * остальные потоково пересылает узлу-владельцу и возвращает его ответ без буферизации тела.
+ * Меняющие данные запросы выполняются под блокировкой пользователя, чтобы перенос его файлов
+ * на другой узел не начался посреди загрузки. Работает после Spring Security и до ReadYourWritesFilter.
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE - 10)
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "true")
+public class ClusterForwardingFilter extends OncePerRequestFilter {
+
+    public static final String FORWARDED_HEADER = "X-Cluster-Forwarded";
+    private static final Logger log = LoggerFactory.getLogger(ClusterForwardingFilter.class);
+    private static final String API_PREFIX = "/cloud/";
+    private static final Set<String> LOCAL_PATHS = Set.of("/cloud/login", "/cloud/logout");
+    private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE");
+    private static final Set<String> SKIPPED_REQUEST_HEADERS = Set.of("connection", "keep-alive", "te", "trailer",
+            "transfer-encoding", "upgrade", "host", "content-length", "expect", "proxy-authorization",
+            "proxy-connection");
+    private static final Set<String> SKIPPED_RESPONSE_HEADERS = Set.of("connection", "keep-alive", "te", "trailer",
+            "transfer-encoding", "upgrade", "content-length", "date", ":status");
+    private final ClusterService clusterService;
+    private final UserRepository userRepository;
+    private final PresignedUrlService presignedUrlService;
+    private final ClusterProperties properties;
+    private final ObjectMapper objectMapper;
+    private final HttpClient httpClient;
+    private final Counter forwarded;
+
+    public ClusterForwardingFilter(ClusterService clusterService,
+                                   UserRepository userRepository,
+                                   PresignedUrlService presignedUrlService,
+                                   ClusterProperties properties,
+                                   ObjectMapper objectMapper,
+                                   MeterRegistry meterRegistry) {
+        this.clusterService = clusterService;
+        this.userRepository = userRepository;
+        this.presignedUrlService = presignedUrlService;
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(properties.getConnectTimeout())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        this.forwarded = Counter.builder("filestorage.cluster.forwarded").register(meterRegistry);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String path = request.getServletPath();
+        if (path.startsWith(PresignedUrlService.PATH_PREFIX)) {
+            forwardShared(request, response, filterChain, path.substring(PresignedUrlService.PATH_PREFIX.length()));
+            return;
+        }
+        if (authentication == null || !authentication.isAuthenticated()
+                || authentication instanceof AnonymousAuthenticationToken
+                || !path.startsWith(API_PREFIX) || LOCAL_PATHS.contains(path)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        Optional<User> user = userRepository.findByUsername(authentication.getName());
+        if (user.isEmpty()) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        String owner = clusterService.ownerOf(user.get());
+        if (owner == null || owner.equals(clusterService.nodeId())) {
+            serveLocally(request, response, filterChain, user.get());
+        } else if (request.getHeader(FORWARDED_HEADER) != null) {
+            log.warn("Запрос пользователя {} повторно переслан, владелец {}", user.get().getUsername(), owner);
+            unavailable(response, "Данные пользователя переносятся на другой узел, повторите запрос позже");
+        } else {
+            forward(request, response, owner);
+        }
+    }
+
+    /**
+     * Ссылку на скачивание обслуживает узел, который ее выдал: узел записан в подписанной ссылке,
+     * поэтому владельца не нужно искать в БД.
+     */
+    private void forwardShared(HttpServletRequest request,
+                               HttpServletResponse response,
+                               FilterChain filterChain,
+                               String token) throws ServletException, IOException {
+        String node = presignedUrlService.nodeOf(token);
+        if (node == null || node.equals(clusterService.nodeId()) || request.getHeader(FORWARDED_HEADER) != null) {
+            filterChain.doFilter(request, response);
+        } else {
+            forward(request, response, node);
+        }
+    }
+
+    private void serveLocally(HttpServletRequest request,
+                              HttpServletResponse response,
+                              FilterChain filterChain,
+                              User user) throws ServletException, IOException {
+        if (SAFE_METHODS.contains(request.getMethod())) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        Lock lock = clusterService.mutationLock(user.getUsername());
+        if (!lock.tryLock()) {
+            unavailable(response, "Данные пользователя переносятся на другой узел, повторите запрос позже");
+            return;
+        }
+        try {
+            // перенос мог завершиться, пока запрос ждал блокировку
+            String owner = clusterService.ownerOf(user);
+            if (owner == null || owner.equals(clusterService.nodeId())) {
+                filterChain.doFilter(request, response);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (request.getHeader(FORWARDED_HEADER) != null) {
+            unavailable(response, "Данные пользователя переносятся на другой узел, повторите запрос позже");
+        } else {
+            forward(request, response, clusterService.ownerOf(user));
+        }
+    }
+
+    private void forward(HttpServletRequest request, HttpServletResponse response, String owner) throws IOException {
+        String baseUrl = clusterService.urlOf(owner);
+        if (baseUrl == null) {
+            log.warn("Узел {} недоступен", owner);
+            unavailable(response, "Узел с данными пользователя недоступен");
+            return;
+        }
+
+        String query = request.getQueryString();
+        URI uri = URI.create(baseUrl + request.getRequestURI() + (query != null ? "?" + query : ""));
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(properties.getForwardTimeout())
+                .method(request.getMethod(), bodyOf(request))
+                .header(FORWARDED_HEADER, clusterService.nodeId());
+        for (String name : Collections.list(request.getHeaderNames())) {
+            if (SKIPPED_REQUEST_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            for (String value : Collections.list(request.getHeaders(name))) {
+                builder.header(name, value);
+            }
+        }
+
+        HttpResponse<InputStream> upstream;
+        try {
+            upstream = httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (ConnectException | HttpTimeoutException e) {
+            log.error("Ошибка пересылки запроса на узел {}", owner, e);
+            error(response, HttpStatus.BAD_GATEWAY, "Узел с данными пользователя недоступен");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Пересылка запроса прервана", e);
+        }
+        forwarded.increment();
+
+        response.setStatus(upstream.statusCode());
+        for (Map.Entry<String, List<String>> header : upstream.headers().map().entrySet()) {
+            if (SKIPPED_RESPONSE_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                response.addHeader(header.getKey(), value);
+            }
+        }
+        upstream.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).ifPresent(response::setContentLengthLong);
+        try (InputStream body = upstream.body()) {
+            body.transferTo(response.getOutputStream());
+        }
+    }
+
+    private static HttpRequest.BodyPublisher bodyOf(HttpServletRequest request) {
+        long length = request.getContentLengthLong();
+        if (SAFE_METHODS.contains(request.getMethod()) || length == 0) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return request.getInputStream();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        return length > 0 ? HttpRequest.BodyPublishers.fromPublisher(publisher, length) : publisher;
+    }
+
+    private void unavailable(HttpServletResponse response, String message) throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        error(response, HttpStatus.SERVICE_UNAVAILABLE, message);
+    }
+
+    private void error(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        objectMapper.writeValue(response.getWriter(), new ErrorResponse(message, status.value()));
+    }
+}
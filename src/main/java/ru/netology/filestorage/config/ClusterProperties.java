@@ -0,0 +1,100 @@
+package ru.netology.filestorage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.cluster")
+public class ClusterProperties {
+
+    private boolean enabled = false;
+    private String nodeId = "local";
+    private String url;
+    private String secret;
+    private int virtualNodes = 128;
+    private boolean leaving = false;
+    private Duration nodeTimeout = Duration.ofSeconds(30);
+    private Duration connectTimeout = Duration.ofSeconds(5);
+    private Duration forwardTimeout = Duration.ofSeconds(120);
+    private Duration migrationLockTimeout = Duration.ofSeconds(30);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getSecret() {
+        return secret;
+    }
+
+    public void setSecret(String secret) {
+        this.secret = secret;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    public boolean isLeaving() {
+        return leaving;
+    }
+
+    public void setLeaving(boolean leaving) {
+        this.leaving = leaving;
+    }
+
+    public Duration getNodeTimeout() {
+        return nodeTimeout;
+    }
+
+    public void setNodeTimeout(Duration nodeTimeout) {
+        this.nodeTimeout = nodeTimeout;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Duration getForwardTimeout() {
+        return forwardTimeout;
+    }
+
+    public void setForwardTimeout(Duration forwardTimeout) {
+        this.forwardTimeout = forwardTimeout;
+    }
+
+    public Duration getMigrationLockTimeout() {
+        return migrationLockTimeout;
+    }
+
+    public void setMigrationLockTimeout(Duration migrationLockTimeout) {
+        this.migrationLockTimeout = migrationLockTimeout;
+    }
+}
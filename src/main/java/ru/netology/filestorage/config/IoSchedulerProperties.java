@@ -0,0 +1,97 @@
+package ru.netology.filestorage.config;
+
+import jakarta.validation.constraints.Positive;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.annotation.Validated;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Веса должны быть положительными: пользователь с нулевым весом никогда не набрал бы дефицит на порцию,
+ * и выбор следующей порции не завершился бы.
+ */
+@Validated
+@ConfigurationProperties(prefix = "app.io")
+public class IoSchedulerProperties {
+
+    private boolean enabled = true;
+    private int maxInFlight = 16;
+    private DataSize maxThroughput = DataSize.ofBytes(0);
+    private DataSize quantum = DataSize.ofKilobytes(64);
+    private DataSize interactiveThreshold = DataSize.ofMegabytes(1);
+    @Positive
+    private double defaultWeight = 1.0;
+    @Positive
+    private double backgroundWeight = 0.25;
+    private Map<Long, @Positive Double> weights = new HashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public DataSize getMaxThroughput() {
+        return maxThroughput;
+    }
+
+    public void setMaxThroughput(DataSize maxThroughput) {
+        this.maxThroughput = maxThroughput;
+    }
+
+    public DataSize getQuantum() {
+        return quantum;
+    }
+
+    public void setQuantum(DataSize quantum) {
+        this.quantum = quantum;
+    }
+
+    public DataSize getInteractiveThreshold() {
+        return interactiveThreshold;
+    }
+
+    public void setInteractiveThreshold(DataSize interactiveThreshold) {
+        this.interactiveThreshold = interactiveThreshold;
+    }
+
+    public double getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    public void setDefaultWeight(double defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    public double getBackgroundWeight() {
+        return backgroundWeight;
+    }
+
+    public void setBackgroundWeight(double backgroundWeight) {
+        this.backgroundWeight = backgroundWeight;
+    }
+
+    public Map<Long, @Positive Double> getWeights() {
+        return weights;
+    }
+
+    public void setWeights(Map<Long, Double> weights) {
+        this.weights = weights;
+    }
+
+    public double weightOf(Long userId) {
+        return weights.getOrDefault(userId, defaultWeight);
+    }
+}
@@ -6,10 +6,12 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 import ru.netology.filestorage.service.AuthService;
+import ru.netology.filestorage.service.RequestPhaseEvent;
 
 import java.io.IOException;
 
@@ -40,15 +42,46 @@ public class JwtFilter extends OncePerRequestFilter {
         log.debug("Запрос на обработку фильтром JWT: {} с присутствием токена: {}",
                 request.getRequestURI(), token != null);
 
-        if (token != null && authService.validateToken(token)) {
+        if (token != null && validate(token)) {
             log.debug("Токен успешно подтвержден для запроса: {}", request.getRequestURI());
-            SecurityContextHolder.getContext().setAuthentication(
-                    authService.getAuthentication(token)
-            );
+            SecurityContextHolder.getContext().setAuthentication(resolve(token));
         } else if (token != null) {
             log.warn("Недопустимый токен для запроса: {}", request.getRequestURI());
         }
 
         filterChain.doFilter(request, response);
     }
+
+    private boolean validate(String token) {
+        RequestPhaseEvent event = RequestPhaseEvent.start(RequestPhaseEvent.AUTH, RequestPhaseEvent.TOKEN_VALIDATION,
+                null, -1);
+        try {
+            boolean valid = authService.validateToken(token);
+            if (valid) {
+                event.succeed();
+            } else {
+                event.fail("invalid");
+            }
+            return valid;
+        } finally {
+            event.finish();
+        }
+    }
+
+    private Authentication resolve(String token) {
+        RequestPhaseEvent event = RequestPhaseEvent.start(RequestPhaseEvent.AUTH, RequestPhaseEvent.USER_RESOLUTION,
+                null, -1);
+        try {
+            Authentication authentication = authService.getAuthentication(token);
+            if (authentication != null) {
+                event.setUsername(authentication.getName());
+                event.succeed();
+            } else {
+                event.fail("not-found");
+            }
+            return authentication;
+        } finally {
+            event.finish();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,62 @@
+package ru.netology.filestorage.config;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import ru.netology.filestorage.service.ReplicaRouter;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Разрешает чтение с реплик только безопасным запросам (GET, HEAD) аутентифицированного пользователя,
+ * который не менял данные в течение read-your-writes окна: иначе он мог бы не увидеть на отстающей
+ * реплике собственную запись. Запросы, меняющие данные, целиком обслуживает первичный узел.
+ * Регистрируется обычным servlet-фильтром после цепочки Spring Security, поэтому пользователь уже известен.
+ */
+@Component
+@ConditionalOnProperty(name = "app.datasource.routing.enabled", havingValue = "true")
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+
+    private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE");
+    private final ReplicaRouter replicaRouter;
+
+    public ReadYourWritesFilter(ReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String username = authentication != null && authentication.isAuthenticated()
+                && !(authentication instanceof AnonymousAuthenticationToken) ? authentication.getName() : null;
+        if (username == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        if (!SAFE_METHODS.contains(request.getMethod())) {
+            replicaRouter.markWrite(username);
+            try {
+                filterChain.doFilter(request, response);
+            } finally {
+                replicaRouter.markWrite(username);
+            }
+        } else if (replicaRouter.requiresPrimary(username)) {
+            filterChain.doFilter(request, response);
+        } else {
+            try (ReplicaRouter.Scope ignored = ReplicaRouter.readFromReplicas()) {
+                filterChain.doFilter(request, response);
+            }
+        }
+    }
+}
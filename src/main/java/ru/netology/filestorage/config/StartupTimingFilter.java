@@ -0,0 +1,53 @@
+package ru.netology.filestorage.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Замеряет время от запуска JVM до первого обслуженного запроса (time-to-first-request)
+ * и публикует его как метрику filestorage.startup.first_request.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class StartupTimingFilter extends OncePerRequestFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupTimingFilter.class);
+    private final AtomicLong firstRequestMillis = new AtomicLong(-1);
+
+    public StartupTimingFilter(MeterRegistry meterRegistry) {
+        TimeGauge.builder("filestorage.startup.first_request", firstRequestMillis, TimeUnit.MILLISECONDS, AtomicLong::get)
+                .description("Время от запуска JVM до завершения первого запроса")
+                .register(meterRegistry);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (firstRequestMillis.get() < 0) {
+                long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+                if (firstRequestMillis.compareAndSet(-1, uptime)) {
+                    log.info("Первый запрос обслужен через {} мс после запуска JVM", uptime);
+                }
+            }
+        }
+    }
+}
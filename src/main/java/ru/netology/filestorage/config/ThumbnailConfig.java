@@ -0,0 +1,28 @@
+package ru.netology.filestorage.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class ThumbnailConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService thumbnailExecutor(
+            @Value("${app.thumbnails.pool-size:2}") int poolSize,
+            @Value("${app.thumbnails.queue-capacity:200}") int queueCapacity) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("thumbnail-");
+        threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+        return new ThreadPoolExecutor(poolSize, poolSize,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+}
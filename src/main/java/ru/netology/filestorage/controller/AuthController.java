@@ -2,6 +2,7 @@ package ru.netology.filestorage.controller;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -9,6 +10,7 @@ import ru.netology.filestorage.dto.AuthRequest;
 import ru.netology.filestorage.dto.AuthResponse;
 import ru.netology.filestorage.dto.ErrorResponse;
 import ru.netology.filestorage.exception.InvalidCredentialsException;
+import ru.netology.filestorage.exception.ServiceOverloadedException;
 import ru.netology.filestorage.exception.UserNotFoundException;
 import ru.netology.filestorage.service.AuthService;
 
@@ -40,6 +42,11 @@ public class AuthController {
             log.warn("Неверные учетные данные пользователя: {}", request.getLogin());
             return ResponseEntity.status(HttpStatus.BAD_REQUEST)
                     .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (ServiceOverloadedException e) {
+            log.warn("Вход пользователя {} отклонен: {}", request.getLogin(), e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .body(new ErrorResponse(e.getMessage(), 503));
         } catch (Exception e) {
             log.error("Не удалось войти пользователю: {}", request.getLogin(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -0,0 +1,88 @@
+package ru.netology.filestorage.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import ru.netology.filestorage.dto.ErrorResponse;
+import ru.netology.filestorage.exception.ChecksumMismatchException;
+import ru.netology.filestorage.exception.FileNotFoundException;
+import ru.netology.filestorage.service.ClusterRebalancer;
+import ru.netology.filestorage.service.ClusterService;
+
+/**
+ * Внутренний API кластера: прием файлов и их сохраненных версий, переносимых на этот узел
+ * при перебалансировке.
+ * Доступен только узлам, знающим общий app.cluster.secret.
+ */
+@RestController
+@RequestMapping("/cluster")
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "true")
+public class ClusterController {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterController.class);
+    private final ClusterService clusterService;
+    private final ClusterRebalancer clusterRebalancer;
+
+    public ClusterController(ClusterService clusterService, ClusterRebalancer clusterRebalancer) {
+        this.clusterService = clusterService;
+        this.clusterRebalancer = clusterRebalancer;
+    }
+
+    @PutMapping("/files/{id}")
+    public ResponseEntity<?> acceptFile(
+            @RequestHeader(value = ClusterRebalancer.SECRET_HEADER, required = false) String secret,
+            @PathVariable("id") Long id,
+            HttpServletRequest request) {
+        if (!clusterService.isTrusted(secret)) {
+            log.warn("Отклонен перенос файла {} без секрета кластера", id);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(new ErrorResponse("Доступ запрещен", 403));
+        }
+        try {
+            return ResponseEntity.ok(clusterRebalancer.accept(id, request.getInputStream()));
+        } catch (FileNotFoundException e) {
+            log.warn("Переносимый файл не найден: {}", id);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(new ErrorResponse(e.getMessage(), 404));
+        } catch (ChecksumMismatchException e) {
+            log.warn("Переносимый файл поврежден: {} - {}", id, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (Exception e) {
+            log.error("Не удалось принять переносимый файл: {}", id, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Не удалось принять файл", 500));
+        }
+    }
+
+    @PutMapping("/versions/{id}")
+    public ResponseEntity<?> acceptVersion(
+            @RequestHeader(value = ClusterRebalancer.SECRET_HEADER, required = false) String secret,
+            @PathVariable("id") Long id,
+            HttpServletRequest request) {
+        if (!clusterService.isTrusted(secret)) {
+            log.warn("Отклонен перенос версии {} без секрета кластера", id);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(new ErrorResponse("Доступ запрещен", 403));
+        }
+        try {
+            return ResponseEntity.ok(clusterRebalancer.acceptVersion(id, request.getInputStream()));
+        } catch (FileNotFoundException e) {
+            log.warn("Переносимая версия не найдена: {}", id);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(new ErrorResponse(e.getMessage(), 404));
+        } catch (ChecksumMismatchException e) {
+            log.warn("Переносимая версия повреждена: {} - {}", id, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (Exception e) {
+            log.error("Не удалось принять переносимую версию: {}", id, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Не удалось принять версию файла", 500));
+        }
+    }
+}
@@ -2,23 +2,35 @@ package ru.netology.filestorage.controller;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.Resource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import ru.netology.filestorage.dto.CopyFileRequest;
+import ru.netology.filestorage.dto.DeltaRequest;
 import ru.netology.filestorage.dto.ErrorResponse;
+import ru.netology.filestorage.dto.FileDownload;
 import ru.netology.filestorage.dto.FileListResponse;
+import ru.netology.filestorage.dto.FileSearchRequest;
+import ru.netology.filestorage.dto.FileSearchResponse;
 import ru.netology.filestorage.dto.RenameFileRequest;
-import ru.netology.filestorage.entity.File;
 import ru.netology.filestorage.exception.*;
 import ru.netology.filestorage.service.FileService;
+import ru.netology.filestorage.service.ThumbnailService;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HexFormat;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/cloud")
@@ -37,11 +49,8 @@ public class FileController {
             @RequestParam(value = "limit", required = false) Integer limit) {
         log.debug("Запрос списка файлов с ограничением: {}", limit);
         try {
-            List<File> files = fileService.getUserFiles(limit);
-            List<FileListResponse> response = files.stream()
-                    .map(file -> new FileListResponse(file.getFilename(), file.getSize()))
-                    .collect(Collectors.toList());
-            log.info("Извлеченные {} файлы", files.size());
+            List<FileListResponse> response = fileService.listFiles(limit);
+            log.info("Извлеченные {} файлы", response.size());
             return ResponseEntity.ok(response);
         } catch (Exception e) {
             log.error("Ошибка при получении списка файлов", e);
@@ -50,20 +59,50 @@ public class FileController {
         }
     }
 
+    @GetMapping("/search")
+    public ResponseEntity<?> searchFiles(
+            @RequestHeader("auth-token") String token,
+            FileSearchRequest request) {
+        log.debug("Запрос поиска файлов: {}", request);
+        try {
+            FileSearchResponse response = fileService.searchFiles(request);
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный запрос поиска: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (Exception e) {
+            log.error("Ошибка поиска файлов", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка поиска файлов", 500));
+        }
+    }
+
     @PostMapping(value = "/file", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public ResponseEntity<?> uploadFile(
             @RequestHeader("auth-token") String token,
             @RequestParam("filename") String filename,
-            @RequestParam("file") MultipartFile file) {
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "sha256", required = false) String sha256,
+            @RequestParam(value = "overwrite", defaultValue = "false") boolean overwrite) {
         log.info("Запрос на загрузку файла: {} (size: {} bytes)", filename, file.getSize());
         try {
-            fileService.uploadFile(filename, file);
+            fileService.uploadFile(filename, file, sha256, overwrite);
             log.info("Файл {} успешно загружен", filename);
             return ResponseEntity.ok().build();
-        } catch (FileAlreadyExistsException | EmptyFileException e) {
+        } catch (FileAlreadyExistsException | EmptyFileException | ChecksumMismatchException
+                 | IllegalArgumentException e) {
             log.warn("Загрузка файла отклонена: {} - {}", filename, e.getMessage());
             return ResponseEntity.status(HttpStatus.BAD_REQUEST)
                     .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (QuotaExceededException e) {
+            log.warn("Загрузка файла отклонена по квоте: {}", filename);
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(new ErrorResponse(e.getMessage(), 413));
+        } catch (InsufficientStorageException e) {
+            log.error("Загрузка файла отклонена, нет места на диске: {}", filename);
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE)
+                    .body(new ErrorResponse(e.getMessage(), 507));
         } catch (IOException e) {
             log.error("Не удалось загрузить файл: {}", filename, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -77,12 +116,17 @@ public class FileController {
             @RequestParam("filename") String filename) {
         log.info("Запрос на загрузку файла: {}", filename);
         try {
-            Resource resource = fileService.downloadFile(filename);
+            FileDownload download = fileService.openFile(filename);
             log.info("Файл {} успешно подготовлен для загрузки", filename);
-            return ResponseEntity.ok()
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(resource);
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM);
+            if (download.sha256() != null) {
+                String digest = Base64.getEncoder().encodeToString(HexFormat.of().parseHex(download.sha256()));
+                response.header("Repr-Digest", "sha-256=:" + digest + ":")
+                        .header("Digest", "sha-256=" + digest);
+            }
+            return response.body(download.resource());
         } catch (IOException e) {
             log.error("Не удалось загрузить файл: {}", filename, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -94,6 +138,128 @@ public class FileController {
         }
     }
 
+    @PostMapping("/file/link")
+    public ResponseEntity<?> createLink(
+            @RequestHeader("auth-token") String token,
+            @RequestParam("filename") String filename,
+            @RequestParam(value = "expiresIn", required = false) Long expiresIn) {
+        log.info("Запрос ссылки на файл: {} (срок {} с)", filename, expiresIn);
+        try {
+            Duration ttl = expiresIn != null ? Duration.ofSeconds(expiresIn) : null;
+            return ResponseEntity.ok(fileService.createPresignedUrl(filename, ttl));
+        } catch (FileNotFoundException | IllegalArgumentException e) {
+            log.warn("Ссылка на файл не выдана: {} - {}", filename, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (Exception e) {
+            log.error("Ошибка выдачи ссылки на файл: {}", filename, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка выдачи ссылки на файл", 500));
+        }
+    }
+
+    @GetMapping("/file/signature")
+    public ResponseEntity<?> getSignature(
+            @RequestHeader("auth-token") String token,
+            @RequestParam("filename") String filename,
+            @RequestParam(value = "blockSize", required = false) Integer blockSize) {
+        log.info("Запрос сигнатуры файла: {}", filename);
+        try {
+            return ResponseEntity.ok(fileService.getSignature(filename, blockSize));
+        } catch (FileNotFoundException | IllegalArgumentException e) {
+            log.warn("Ошибка получения сигнатуры: {} - {}", filename, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (Exception e) {
+            log.error("Ошибка получения сигнатуры файла: {}", filename, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка получения сигнатуры файла", 500));
+        }
+    }
+
+    @PostMapping(value = "/file/delta", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<?> applyDelta(
+            @RequestHeader("auth-token") String token,
+            @RequestParam("filename") String filename,
+            @RequestPart("delta") DeltaRequest delta,
+            @RequestPart(value = "data", required = false) MultipartFile data) {
+        log.info("Запрос на обновление файла по дельте: {} ({} bytes данных)", filename,
+                data != null ? data.getSize() : 0);
+        try {
+            fileService.applyDelta(filename, delta,
+                    data != null ? data.getInputStream() : InputStream.nullInputStream());
+            log.info("Файл {} успешно обновлен по дельте", filename);
+            return ResponseEntity.ok().build();
+        } catch (FileNotFoundException | ChecksumMismatchException | IllegalArgumentException e) {
+            log.warn("Обновление файла по дельте отклонено: {} - {}", filename, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (QuotaExceededException e) {
+            log.warn("Обновление файла по дельте отклонено по квоте: {}", filename);
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(new ErrorResponse(e.getMessage(), 413));
+        } catch (InsufficientStorageException e) {
+            log.error("Обновление файла по дельте отклонено, нет места на диске: {}", filename);
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE)
+                    .body(new ErrorResponse(e.getMessage(), 507));
+        } catch (Exception e) {
+            log.error("Ошибка обновления файла по дельте: {}", filename, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка обновления файла", 500));
+        }
+    }
+
+    @GetMapping("/changes")
+    public CompletableFuture<ResponseEntity<?>> getChanges(
+            @RequestHeader("auth-token") String token,
+            @RequestParam(value = "cursor", required = false) Long cursor,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "wait", required = false) Integer waitSeconds) {
+        log.debug("Запрос журнала изменений с позиции: {}", cursor);
+        try {
+            Duration wait = Duration.ofSeconds(waitSeconds != null ? waitSeconds : 0);
+            return fileService.watchChanges(cursor, limit, wait)
+                    .thenApply(ResponseEntity::ok);
+        } catch (Exception e) {
+            log.error("Ошибка получения журнала изменений", e);
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка получения журнала изменений", 500)));
+        }
+    }
+
+    @GetMapping("/thumbnail")
+    public ResponseEntity<?> getThumbnail(
+            @RequestHeader("auth-token") String token,
+            @RequestParam("filename") String filename,
+            @RequestParam(value = "size", required = false) Integer size,
+            @RequestParam(value = "v", required = false) String version,
+            WebRequest webRequest) {
+        log.debug("Запрос превью файла: {} размера {}", filename, size);
+        try {
+            ThumbnailService.Thumbnail thumbnail = fileService.getThumbnail(filename, size);
+            String etag = "\"" + thumbnail.version() + "\"";
+            if (webRequest.checkNotModified(etag)) {
+                return null;
+            }
+            CacheControl cacheControl = thumbnail.version().equals(version)
+                    ? CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable()
+                    : CacheControl.noCache().cachePrivate();
+            return ResponseEntity.ok()
+                    .cacheControl(cacheControl)
+                    .eTag(etag)
+                    .contentType(MediaType.parseMediaType(thumbnail.contentType()))
+                    .body(new FileSystemResource(thumbnail.path()));
+        } catch (ThumbnailNotAvailableException e) {
+            log.debug("Превью недоступно: {} - {}", filename, e.getMessage());
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(new ErrorResponse(e.getMessage(), 404));
+        } catch (FileNotFoundException e) {
+            log.warn("Файл не найден для превью: {}", filename);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        }
+    }
+
     @DeleteMapping("/file")
     public ResponseEntity<?> deleteFile(
             @RequestHeader("auth-token") String token,
@@ -114,6 +280,102 @@ public class FileController {
         }
     }
 
+    @PostMapping("/file/restore")
+    public ResponseEntity<?> restoreFile(
+            @RequestHeader("auth-token") String token,
+            @RequestParam("filename") String filename) {
+        log.info("Запрос на восстановление файла: {}", filename);
+        try {
+            fileService.restoreFile(filename);
+            log.info("Файл {} успешно восстановлен", filename);
+            return ResponseEntity.ok().build();
+        } catch (FileNotFoundException | FileAlreadyExistsException e) {
+            log.warn("Ошибка восстановления файла: {} - {}", filename, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (QuotaExceededException e) {
+            log.warn("Восстановление файла отклонено по квоте: {}", filename);
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(new ErrorResponse(e.getMessage(), 413));
+        } catch (Exception e) {
+            log.error("Ошибка восстановления файла: {}", filename, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка восстановления файла", 500));
+        }
+    }
+
+    @GetMapping("/file/versions")
+    public ResponseEntity<?> listVersions(
+            @RequestHeader("auth-token") String token,
+            @RequestParam("filename") String filename) {
+        log.debug("Запрос версий файла: {}", filename);
+        try {
+            return ResponseEntity.ok(fileService.listVersions(filename));
+        } catch (FileNotFoundException e) {
+            log.warn("Не найден файл для списка версий: {}", filename);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (Exception e) {
+            log.error("Ошибка получения версий файла: {}", filename, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка получения версий файла", 500));
+        }
+    }
+
+    @PostMapping("/file/versions/restore")
+    public ResponseEntity<?> restoreVersion(
+            @RequestHeader("auth-token") String token,
+            @RequestParam("filename") String filename,
+            @RequestParam("version") Long versionId) {
+        log.info("Запрос на восстановление версии {} файла: {}", versionId, filename);
+        try {
+            fileService.restoreVersion(filename, versionId);
+            log.info("Версия {} файла {} восстановлена", versionId, filename);
+            return ResponseEntity.ok().build();
+        } catch (FileNotFoundException | ChecksumMismatchException e) {
+            log.warn("Ошибка восстановления версии файла: {} - {}", filename, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (QuotaExceededException e) {
+            log.warn("Восстановление версии файла отклонено по квоте: {}", filename);
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(new ErrorResponse(e.getMessage(), 413));
+        } catch (Exception e) {
+            log.error("Ошибка восстановления версии файла: {}", filename, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка восстановления версии файла", 500));
+        }
+    }
+
+    @PostMapping("/file/copy")
+    public ResponseEntity<?> copyFile(
+            @RequestHeader("auth-token") String token,
+            @RequestParam("filename") String filename,
+            @RequestBody CopyFileRequest copyRequest) {
+        log.info("Запрос на копирование файла: {} -> {}", filename, copyRequest.getName());
+        try {
+            fileService.copyFile(filename, copyRequest.getName());
+            log.info("Файл {} успешно скопирован в {}", filename, copyRequest.getName());
+            return ResponseEntity.ok().build();
+        } catch (FileNotFoundException | FileAlreadyExistsException e) {
+            log.warn("Ошибка копирования файла: {} - {}", filename, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(new ErrorResponse(e.getMessage(), 400));
+        } catch (QuotaExceededException e) {
+            log.warn("Копирование файла отклонено по квоте: {}", filename);
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(new ErrorResponse(e.getMessage(), 413));
+        } catch (InsufficientStorageException e) {
+            log.error("Копирование файла отклонено, нет места на диске: {}", filename);
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE)
+                    .body(new ErrorResponse(e.getMessage(), 507));
+        } catch (Exception e) {
+            log.error("Ошибка копирования файла: {}", filename, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Ошибка копирования файла", 500));
+        }
+    }
+
     @PutMapping("/file")
     public ResponseEntity<?> renameFile(
             @RequestHeader("auth-token") String token,
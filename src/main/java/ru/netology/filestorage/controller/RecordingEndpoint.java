@@ -0,0 +1,49 @@
+package ru.netology.filestorage.controller;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import ru.netology.filestorage.dto.RecordingInfo;
+import ru.netology.filestorage.service.RecordingService;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Записи Java Flight Recorder через actuator (JMX или отдельный порт управления);
+ * по HTTP на основном порту не публикуется, пока не включено в management.endpoints.web.exposure.
+ */
+@Component
+@Endpoint(id = "recordings")
+public class RecordingEndpoint {
+
+    private final RecordingService recordingService;
+
+    public RecordingEndpoint(RecordingService recordingService) {
+        this.recordingService = recordingService;
+    }
+
+    @ReadOperation
+    public List<RecordingInfo> recordings() {
+        return recordingService.list();
+    }
+
+    @WriteOperation
+    public RecordingInfo start(@Nullable String name, @Nullable String settings, @Nullable Duration duration)
+            throws IOException {
+        return recordingService.start(name, settings, duration);
+    }
+
+    /**
+     * Останавливает запись и сохраняет ее в app.jfr.dump-dir.
+     */
+    @DeleteOperation
+    public RecordingInfo stop(@Selector long id) {
+        return recordingService.stop(id);
+    }
+}
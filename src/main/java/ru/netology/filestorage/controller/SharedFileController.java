@@ -0,0 +1,91 @@
+package ru.netology.filestorage.controller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import ru.netology.filestorage.dto.ErrorResponse;
+import ru.netology.filestorage.exception.FileNotFoundException;
+import ru.netology.filestorage.exception.LinkExpiredException;
+import ru.netology.filestorage.exception.TokenValidationException;
+import ru.netology.filestorage.service.PresignedUrlService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HexFormat;
+
+/**
+ * Скачивание по подписанной ссылке: без токена и без обращений к БД.
+ */
+@RestController
+@RequestMapping("/cloud/shared")
+public class SharedFileController {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedFileController.class);
+    private final PresignedUrlService presignedUrlService;
+
+    public SharedFileController(PresignedUrlService presignedUrlService) {
+        this.presignedUrlService = presignedUrlService;
+    }
+
+    @GetMapping("/{token}")
+    public ResponseEntity<?> downloadSharedFile(@PathVariable("token") String token) {
+        try {
+            PresignedUrlService.SharedFile shared = presignedUrlService.open(token);
+            log.debug("Скачивание по ссылке: {}", shared.filename());
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .header(HttpHeaders.CONTENT_DISPOSITION,
+                            ContentDisposition.inline().filename(shared.filename(), StandardCharsets.UTF_8).build().toString())
+                    .contentType(mediaType(shared.contentType()))
+                    // загруженный пользователем HTML не должен выполняться в контексте приложения
+                    .header("Content-Security-Policy", "sandbox")
+                    .cacheControl(CacheControl.maxAge(Duration.between(Instant.now(), shared.expiresAt())).cachePrivate());
+            if (shared.sha256() != null) {
+                String digest = Base64.getEncoder().encodeToString(HexFormat.of().parseHex(shared.sha256()));
+                response.eTag("\"" + shared.sha256() + "\"")
+                        .header("Repr-Digest", "sha-256=:" + digest + ":")
+                        .header("Digest", "sha-256=" + digest);
+            }
+            return response.body(shared.resource());
+        } catch (TokenValidationException e) {
+            log.warn("Отклонена ссылка на скачивание: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(new ErrorResponse(e.getMessage(), 403));
+        } catch (LinkExpiredException e) {
+            log.debug("Ссылка на скачивание недействительна: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.GONE)
+                    .body(new ErrorResponse(e.getMessage(), 410));
+        } catch (FileNotFoundException e) {
+            log.debug("Файл по ссылке не найден: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(new ErrorResponse(e.getMessage(), 404));
+        } catch (IOException e) {
+            log.error("Не удалось отдать файл по ссылке", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorResponse("Не удалось загрузить файл", 500));
+        }
+    }
+
+    private static MediaType mediaType(String contentType) {
+        if (contentType != null) {
+            try {
+                return MediaType.parseMediaType(contentType);
+            } catch (InvalidMediaTypeException e) {
+                log.debug("Некорректный тип содержимого: {}", contentType);
+            }
+        }
+        return MediaType.APPLICATION_OCTET_STREAM;
+    }
+}
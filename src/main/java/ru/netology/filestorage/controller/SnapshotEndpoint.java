@@ -0,0 +1,46 @@
+package ru.netology.filestorage.controller;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import ru.netology.filestorage.dto.SnapshotInfo;
+import ru.netology.filestorage.service.SnapshotService;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Управление снимками для администратора через actuator (JMX или отдельный порт управления);
+ * по HTTP на основном порту не публикуется, пока не включено в management.endpoints.web.exposure.
+ */
+@Component
+@Endpoint(id = "snapshots")
+public class SnapshotEndpoint {
+
+    private final SnapshotService snapshotService;
+
+    public SnapshotEndpoint(SnapshotService snapshotService) {
+        this.snapshotService = snapshotService;
+    }
+
+    @ReadOperation
+    public List<SnapshotInfo> snapshots() throws IOException {
+        return snapshotService.list();
+    }
+
+    @WriteOperation
+    public SnapshotInfo create() throws IOException {
+        return snapshotService.create();
+    }
+
+    /**
+     * Выгружает снимок в app.snapshots.export-dir; с base - инкрементальный архив относительно снимка base.
+     */
+    @WriteOperation
+    public String export(@Selector String id, @Nullable String base) throws IOException, InterruptedException {
+        return snapshotService.exportTo(id, base).toString();
+    }
+}
@@ -0,0 +1,4 @@
+package ru.netology.filestorage.dto;
+
+public record BlockSignature(long index, long weak, String strong) {
+}
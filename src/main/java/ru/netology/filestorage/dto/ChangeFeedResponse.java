@@ -0,0 +1,10 @@
+package ru.netology.filestorage.dto;
+
+import java.util.List;
+
+/**
+ * Порция журнала изменений. resync = true означает, что курсор устарел (журнал уже урезан)
+ * и клиенту нужно перечитать список файлов целиком, продолжив с нового cursor.
+ */
+public record ChangeFeedResponse(List<FileChangeResponse> changes, long cursor, boolean hasMore, boolean resync) {
+}
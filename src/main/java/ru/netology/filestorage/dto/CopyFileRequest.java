@@ -0,0 +1,20 @@
+package ru.netology.filestorage.dto;
+
+public class CopyFileRequest {
+    private String name;
+
+    public CopyFileRequest() {
+    }
+
+    public CopyFileRequest(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
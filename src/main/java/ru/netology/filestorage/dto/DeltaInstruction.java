@@ -0,0 +1,16 @@
+package ru.netology.filestorage.dto;
+
+/**
+ * Одна операция сборки новой версии: либо count блоков исходного файла начиная с block,
+ * либо length байт из присланных клиентом данных.
+ */
+public record DeltaInstruction(Long block, Integer count, Long length) {
+
+    public static DeltaInstruction copy(long block, int count) {
+        return new DeltaInstruction(block, count, null);
+    }
+
+    public static DeltaInstruction data(long length) {
+        return new DeltaInstruction(null, null, length);
+    }
+}
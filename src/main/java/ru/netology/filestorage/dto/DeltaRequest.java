@@ -0,0 +1,6 @@
+package ru.netology.filestorage.dto;
+
+import java.util.List;
+
+public record DeltaRequest(int blockSize, String baseSha256, String sha256, List<DeltaInstruction> instructions) {
+}
@@ -0,0 +1,7 @@
+package ru.netology.filestorage.dto;
+
+import java.time.LocalDateTime;
+
+public record FileChangeResponse(long seq, String type, Long fileId, String filename, String previousFilename,
+                                 Long size, String sha256, LocalDateTime changedAt) {
+}
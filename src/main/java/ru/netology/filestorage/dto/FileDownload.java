@@ -0,0 +1,6 @@
+package ru.netology.filestorage.dto;
+
+import org.springframework.core.io.Resource;
+
+public record FileDownload(Resource resource, String sha256) {
+}
@@ -5,6 +5,7 @@ import java.time.LocalDateTime;
 public class FileResponse {
     private String filename;
     private Long size;
+    private String contentType;
     private LocalDateTime uploadedAt;
 
     public FileResponse() {}
@@ -15,6 +16,13 @@ public class FileResponse {
         this.uploadedAt = uploadedAt;
     }
 
+    public FileResponse(String filename, Long size, String contentType, LocalDateTime uploadedAt) {
+        this.filename = filename;
+        this.size = size;
+        this.contentType = contentType;
+        this.uploadedAt = uploadedAt;
+    }
+
     public String getFilename() {
         return filename;
     }
@@ -31,6 +39,14 @@ public class FileResponse {
         this.size = size;
     }
 
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
     public LocalDateTime getUploadedAt() {
         return uploadedAt;
     }
@@ -44,6 +60,7 @@ public class FileResponse {
         return "FileResponse{" +
                "filename='" + filename + '\'' +
                ", size=" + size +
+               ", contentType='" + contentType + '\'' +
                ", uploadedAt=" + uploadedAt +
                '}';
     }
@@ -0,0 +1,124 @@
+package ru.netology.filestorage.dto;
+
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.LocalDateTime;
+
+public class FileSearchRequest {
+    private String query;
+    private String match = "substring";
+    private String contentType;
+    private Long minSize;
+    private Long maxSize;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime uploadedFrom;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime uploadedTo;
+    private String sort = "uploadedAt";
+    private String direction = "desc";
+    private Integer limit;
+    private String cursor;
+
+    public FileSearchRequest() {
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public String getMatch() {
+        return match;
+    }
+
+    public void setMatch(String match) {
+        this.match = match;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public Long getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(Long minSize) {
+        this.minSize = minSize;
+    }
+
+    public Long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(Long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public LocalDateTime getUploadedFrom() {
+        return uploadedFrom;
+    }
+
+    public void setUploadedFrom(LocalDateTime uploadedFrom) {
+        this.uploadedFrom = uploadedFrom;
+    }
+
+    public LocalDateTime getUploadedTo() {
+        return uploadedTo;
+    }
+
+    public void setUploadedTo(LocalDateTime uploadedTo) {
+        this.uploadedTo = uploadedTo;
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public void setSort(String sort) {
+        this.sort = sort;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public void setDirection(String direction) {
+        this.direction = direction;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    @Override
+    public String toString() {
+        return "FileSearchRequest{" +
+               "query='" + query + '\'' +
+               ", match='" + match + '\'' +
+               ", contentType='" + contentType + '\'' +
+               ", sort='" + sort + '\'' +
+               ", direction='" + direction + '\'' +
+               ", limit=" + limit +
+               '}';
+    }
+}
@@ -0,0 +1,32 @@
+package ru.netology.filestorage.dto;
+
+import java.util.List;
+
+public class FileSearchResponse {
+    private List<FileResponse> files;
+    private String nextCursor;
+
+    public FileSearchResponse() {
+    }
+
+    public FileSearchResponse(List<FileResponse> files, String nextCursor) {
+        this.files = files;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<FileResponse> getFiles() {
+        return files;
+    }
+
+    public void setFiles(List<FileResponse> files) {
+        this.files = files;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
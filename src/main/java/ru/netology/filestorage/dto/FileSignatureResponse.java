@@ -0,0 +1,6 @@
+package ru.netology.filestorage.dto;
+
+import java.util.List;
+
+public record FileSignatureResponse(int blockSize, long size, String sha256, List<BlockSignature> blocks) {
+}
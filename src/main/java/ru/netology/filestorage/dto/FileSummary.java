@@ -0,0 +1,6 @@
+package ru.netology.filestorage.dto;
+
+import java.time.LocalDateTime;
+
+public record FileSummary(Long id, String filename, Long size, LocalDateTime uploadedAt) {
+}
@@ -0,0 +1,7 @@
+package ru.netology.filestorage.dto;
+
+import java.time.LocalDateTime;
+
+public record FileVersionResponse(Long id, long size, String sha256, LocalDateTime uploadedAt,
+                                  LocalDateTime replacedAt) {
+}
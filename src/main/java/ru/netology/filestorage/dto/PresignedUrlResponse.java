@@ -0,0 +1,6 @@
+package ru.netology.filestorage.dto;
+
+import java.time.Instant;
+
+public record PresignedUrlResponse(String url, Instant expiresAt) {
+}
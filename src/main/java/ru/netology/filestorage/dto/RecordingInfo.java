@@ -0,0 +1,8 @@
+package ru.netology.filestorage.dto;
+
+import java.time.Duration;
+import java.time.Instant;
+
+public record RecordingInfo(long id, String name, String state, Instant startedAt, Duration maxDuration,
+                            long bytes, String destination) {
+}
@@ -0,0 +1,6 @@
+package ru.netology.filestorage.dto;
+
+import java.time.Instant;
+
+public record SnapshotInfo(String id, Instant createdAt, int users, int files, long bytes) {
+}
@@ -0,0 +1,30 @@
+package ru.netology.filestorage.dto;
+
+import ru.netology.filestorage.service.EncryptionService;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Метаданные снимка хранилища: пользователи с позицией их журнала изменений (change_seq)
+ * и живые файлы на момент снимка. base - снимок, относительно которого выгружен инкрементальный архив;
+ * у снимка на диске и полного архива он пустой.
+ */
+public record SnapshotManifest(String id, String base, Instant createdAt, List<Owner> users, List<Entry> files) {
+
+    public record Owner(Long id, String username, String password, Long quotaBytes, long changeSeq) {
+    }
+
+    public record Entry(Long id, Long userId, String filename, Long size, String contentType, String sha256,
+                        LocalDateTime uploadedAt, boolean encrypted, Long volumeId, Long volumeOffset) {
+
+        public boolean packed() {
+            return volumeId != null;
+        }
+
+        public long storedSize() {
+            return encrypted && packed() ? size + EncryptionService.BLOB_OVERHEAD : size;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+package ru.netology.filestorage.dto;
+
+public record VolumeEntry(Long offset, Long size) {
+}
@@ -0,0 +1,4 @@
+package ru.netology.filestorage.dto;
+
+public record VolumeUsage(Long volumeId, Long liveBytes) {
+}
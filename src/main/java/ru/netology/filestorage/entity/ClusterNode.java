@@ -0,0 +1,66 @@
+package ru.netology.filestorage.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "cluster_nodes")
+public class ClusterNode {
+    @Id
+    @Column(length = 64)
+    private String id;
+
+    @Column(nullable = false)
+    private String url;
+
+    @Column(name = "heartbeat_at", nullable = false)
+    private LocalDateTime heartbeatAt;
+
+    /**
+     * Узел выводится из кластера: он продолжает обслуживать своих пользователей, но не получает новых,
+     * а перебалансировка переносит его пользователей на остальные узлы.
+     */
+    @Column(nullable = false)
+    private boolean leaving;
+
+    public ClusterNode() {}
+
+    public ClusterNode(String id, String url, LocalDateTime heartbeatAt, boolean leaving) {
+        this.id = id;
+        this.url = url;
+        this.heartbeatAt = heartbeatAt;
+        this.leaving = leaving;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public LocalDateTime getHeartbeatAt() {
+        return heartbeatAt;
+    }
+
+    public void setHeartbeatAt(LocalDateTime heartbeatAt) {
+        this.heartbeatAt = heartbeatAt;
+    }
+
+    public boolean isLeaving() {
+        return leaving;
+    }
+
+    public void setLeaving(boolean leaving) {
+        this.leaving = leaving;
+    }
+}
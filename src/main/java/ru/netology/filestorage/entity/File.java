@@ -1,13 +1,22 @@
 package ru.netology.filestorage.entity;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "files")
+@Table(name = "files", indexes = {
+        @Index(name = "idx_files_user_uploaded", columnList = "user_id, uploaded_at DESC, id DESC"),
+        @Index(name = "idx_files_user_size", columnList = "user_id, size, id"),
+        @Index(name = "idx_files_user_filename", columnList = "user_id, filename, id"),
+        @Index(name = "idx_files_user_content_type", columnList = "user_id, content_type, id"),
+        @Index(name = "idx_files_deleted", columnList = "deleted_at, id"),
+        @Index(name = "idx_files_volume", columnList = "volume_id, volume_offset")
+})
 public class File {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "files_seq")
+    @SequenceGenerator(name = "files_seq", sequenceName = "files_id_seq", allocationSize = 50)
     private Long id;
 
     @Column(nullable = false)
@@ -25,6 +34,22 @@ public class File {
 
     private LocalDateTime uploadedAt;
 
+    @Column(length = 64)
+    private String sha256;
+
+    private LocalDateTime deletedAt;
+
+    private Long volumeId;
+
+    private Long volumeOffset;
+
+    /**
+     * Данные на диске зашифрованы EncryptionService; ключ файла хранится в заголовке данных.
+     */
+    @Column(nullable = false)
+    @ColumnDefault("false")
+    private boolean encrypted;
+
     public File() {}
 
     public File(String filename, Long size, String contentType, User user) {
@@ -83,6 +108,50 @@ public class File {
         this.uploadedAt = uploadedAt;
     }
 
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    public LocalDateTime getDeletedAt() {
+        return deletedAt;
+    }
+
+    public void setDeletedAt(LocalDateTime deletedAt) {
+        this.deletedAt = deletedAt;
+    }
+
+    public Long getVolumeId() {
+        return volumeId;
+    }
+
+    public void setVolumeId(Long volumeId) {
+        this.volumeId = volumeId;
+    }
+
+    public Long getVolumeOffset() {
+        return volumeOffset;
+    }
+
+    public void setVolumeOffset(Long volumeOffset) {
+        this.volumeOffset = volumeOffset;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public void setEncrypted(boolean encrypted) {
+        this.encrypted = encrypted;
+    }
+
+    public boolean isPacked() {
+        return volumeId != null;
+    }
+
     @Override
     public String toString() {
         return "File{" +
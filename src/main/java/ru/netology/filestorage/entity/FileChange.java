@@ -0,0 +1,100 @@
+package ru.netology.filestorage.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "file_changes",
+        uniqueConstraints = @UniqueConstraint(name = "uk_file_changes_user_seq", columnNames = {"user_id", "seq"}),
+        indexes = @Index(name = "idx_file_changes_created", columnList = "created_at, id"))
+public class FileChange {
+
+    public enum Type {
+        UPLOAD, UPDATE, RENAME, DELETE
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "file_changes_seq")
+    @SequenceGenerator(name = "file_changes_seq", sequenceName = "file_changes_id_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    @Column(nullable = false)
+    private long seq;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Type type;
+
+    @Column(name = "file_id")
+    private Long fileId;
+
+    private String filename;
+
+    @Column(name = "previous_filename")
+    private String previousFilename;
+
+    private Long size;
+
+    @Column(length = 64)
+    private String sha256;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    public FileChange() {}
+
+    public FileChange(Long userId, long seq, Type type, File file, String previousFilename) {
+        this.userId = userId;
+        this.seq = seq;
+        this.type = type;
+        this.fileId = file.getId();
+        this.filename = file.getFilename();
+        this.previousFilename = previousFilename;
+        this.size = file.getSize();
+        this.sha256 = file.getSha256();
+        this.createdAt = LocalDateTime.now();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Long getFileId() {
+        return fileId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getPreviousFilename() {
+        return previousFilename;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -0,0 +1,154 @@
+package ru.netology.filestorage.entity;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
+import java.time.LocalDateTime;
+
+/**
+ * Сохраненная предыдущая версия файла. Данные версии не копируются: обычный файл остается
+ * под жесткой ссылкой storage/.versions/{userId}/{id}, упакованный - записью в томе, на которую
+ * указывают volumeId и volumeOffset.
+ */
+@Entity
+@Table(name = "file_versions", indexes = {
+        @Index(name = "idx_file_versions_file", columnList = "file_id, replaced_at DESC, id DESC"),
+        @Index(name = "idx_file_versions_user", columnList = "user_id"),
+        @Index(name = "idx_file_versions_volume", columnList = "volume_id, volume_offset")
+})
+public class FileVersion {
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "file_versions_seq")
+    @SequenceGenerator(name = "file_versions_seq", sequenceName = "file_versions_id_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(name = "file_id", nullable = false)
+    private Long fileId;
+
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    @Column(nullable = false)
+    private Long size;
+
+    @Column(nullable = false)
+    private String contentType;
+
+    @Column(length = 64)
+    private String sha256;
+
+    private LocalDateTime uploadedAt;
+
+    @Column(name = "replaced_at", nullable = false)
+    private LocalDateTime replacedAt;
+
+    private Long volumeId;
+
+    private Long volumeOffset;
+
+    @Column(nullable = false)
+    @ColumnDefault("false")
+    private boolean encrypted;
+
+    public FileVersion() {}
+
+    /**
+     * Версия с текущим содержимым file, которое сейчас будет заменено.
+     */
+    public FileVersion(File file) {
+        this.fileId = file.getId();
+        this.userId = file.getUser().getId();
+        this.size = file.getSize();
+        this.contentType = file.getContentType();
+        this.sha256 = file.getSha256();
+        this.uploadedAt = file.getUploadedAt();
+        this.volumeId = file.getVolumeId();
+        this.volumeOffset = file.getVolumeOffset();
+        this.encrypted = file.isEncrypted();
+        this.replacedAt = LocalDateTime.now();
+    }
+
+    /**
+     * Несохраненная копия: операции GroupCommitWriter при повторе должны создавать сущности заново.
+     */
+    public FileVersion copy() {
+        FileVersion copy = new FileVersion();
+        copy.fileId = fileId;
+        copy.userId = userId;
+        copy.size = size;
+        copy.contentType = contentType;
+        copy.sha256 = sha256;
+        copy.uploadedAt = uploadedAt;
+        copy.replacedAt = replacedAt;
+        copy.volumeId = volumeId;
+        copy.volumeOffset = volumeOffset;
+        copy.encrypted = encrypted;
+        return copy;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getFileId() {
+        return fileId;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public LocalDateTime getUploadedAt() {
+        return uploadedAt;
+    }
+
+    public LocalDateTime getReplacedAt() {
+        return replacedAt;
+    }
+
+    public void setReplacedAt(LocalDateTime replacedAt) {
+        this.replacedAt = replacedAt;
+    }
+
+    public Long getVolumeId() {
+        return volumeId;
+    }
+
+    public Long getVolumeOffset() {
+        return volumeOffset;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public boolean isPacked() {
+        return volumeId != null;
+    }
+
+    @Override
+    public String toString() {
+        return "FileVersion{" +
+               "id=" + id +
+               ", fileId=" + fileId +
+               ", size=" + size +
+               ", uploadedAt=" + uploadedAt +
+               ", replacedAt=" + replacedAt +
+               '}';
+    }
+}
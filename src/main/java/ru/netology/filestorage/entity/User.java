@@ -1,13 +1,15 @@
 package ru.netology.filestorage.entity;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "users")
+@Table(name = "users", indexes = @Index(name = "idx_users_node", columnList = "node_id, id"))
 public class User {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "users_seq")
+    @SequenceGenerator(name = "users_seq", sequenceName = "users_id_seq", allocationSize = 50)
     private Long id;
 
     @Column(unique = true, nullable = false)
@@ -18,6 +20,23 @@ public class User {
 
     private LocalDateTime createdAt;
 
+    @Column(name = "quota_bytes")
+    private Long quotaBytes;
+
+    @Column(name = "used_bytes", nullable = false)
+    @ColumnDefault("0")
+    private long usedBytes;
+
+    @Column(name = "change_seq", nullable = false)
+    @ColumnDefault("0")
+    private long changeSeq;
+
+    /**
+     * Узел кластера, на диске которого лежат файлы пользователя; null, пока пользователь ничего не хранит.
+     */
+    @Column(name = "node_id", length = 64)
+    private String nodeId;
+
     public User() {}
 
     public User(String username, String password) {
@@ -58,12 +77,45 @@ public class User {
         this.createdAt = createdAt;
     }
 
+    public Long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    public void setQuotaBytes(Long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public void setUsedBytes(long usedBytes) {
+        this.usedBytes = usedBytes;
+    }
+
+    public long getChangeSeq() {
+        return changeSeq;
+    }
+
+    public void setChangeSeq(long changeSeq) {
+        this.changeSeq = changeSeq;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
     @Override
     public String toString() {
         return "User{" +
                "id=" + id +
                ", username='" + username + '\'' +
                ", createdAt=" + createdAt +
+               ", usedBytes=" + usedBytes +
                '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,7 @@
+package ru.netology.filestorage.exception;
+
+public class ChecksumMismatchException extends RuntimeException {
+    public ChecksumMismatchException(String message) {
+        super(message);
+    }
+}
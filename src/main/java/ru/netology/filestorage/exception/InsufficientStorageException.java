@@ -0,0 +1,7 @@
+package ru.netology.filestorage.exception;
+
+public class InsufficientStorageException extends RuntimeException {
+    public InsufficientStorageException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package ru.netology.filestorage.exception;
+
+public class LinkExpiredException extends RuntimeException {
+    public LinkExpiredException(String message) {
+        super(message);
+    }
+}
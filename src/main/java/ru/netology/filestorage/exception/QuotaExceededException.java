@@ -0,0 +1,7 @@
+package ru.netology.filestorage.exception;
+
+public class QuotaExceededException extends RuntimeException {
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
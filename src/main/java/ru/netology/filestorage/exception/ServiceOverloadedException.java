@@ -0,0 +1,7 @@
+package ru.netology.filestorage.exception;
+
+public class ServiceOverloadedException extends RuntimeException {
+    public ServiceOverloadedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package ru.netology.filestorage.exception;
+
+public class ThumbnailNotAvailableException extends RuntimeException {
+    public ThumbnailNotAvailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,17 @@
+package ru.netology.filestorage.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import ru.netology.filestorage.entity.ClusterNode;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface ClusterNodeRepository extends JpaRepository<ClusterNode, String> {
+
+    @Query("SELECT n FROM ClusterNode n WHERE n.heartbeatAt > :cutoff ORDER BY n.id")
+    List<ClusterNode> findAlive(@Param("cutoff") LocalDateTime cutoff);
+}
@@ -0,0 +1,32 @@
+package ru.netology.filestorage.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import ru.netology.filestorage.entity.FileChange;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface FileChangeRepository extends JpaRepository<FileChange, Long> {
+
+    @Query("SELECT c FROM FileChange c WHERE c.userId = :userId AND c.seq > :seq ORDER BY c.seq")
+    List<FileChange> findAfter(@Param("userId") Long userId, @Param("seq") long seq, Pageable pageable);
+
+    @Modifying
+    @Query("DELETE FROM FileChange c WHERE c.userId = :userId AND c.seq <= :seq")
+    int deleteUpTo(@Param("userId") Long userId, @Param("seq") long seq);
+
+    @Query("SELECT c.id FROM FileChange c WHERE c.id > :afterId AND c.createdAt < :cutoff ORDER BY c.id")
+    List<Long> findExpiredIds(@Param("afterId") Long afterId,
+                              @Param("cutoff") LocalDateTime cutoff,
+                              Pageable pageable);
+
+    @Modifying
+    @Query("DELETE FROM FileChange c WHERE c.id IN :ids")
+    int deleteByIdIn(@Param("ids") List<Long> ids);
+}
@@ -1,27 +1,134 @@
 package ru.netology.filestorage.repository;
 
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import ru.netology.filestorage.dto.FileSummary;
+import ru.netology.filestorage.dto.VolumeEntry;
+import ru.netology.filestorage.dto.VolumeUsage;
 import ru.netology.filestorage.entity.File;
 import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.service.EncryptionService;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
+/**
+ * Удаленные файлы остаются в таблице с заполненным deleted_at до фоновой очистки,
+ * поэтому все выборки живых файлов явно исключают такие строки.
+ * Выборки фоновых задач с параметром nodeId ограничены пользователями, чьи данные лежат на этом узле
+ * кластера; пользователи без узла (однонодовый режим) относятся к любому узлу.
+ */
 @Repository
-public interface FileRepository extends JpaRepository<File, Long> {
-    List<File> findByUserOrderByUploadedAtDesc(User user);
-    Optional<File> findByUserAndFilename(User user, String filename);
-    boolean existsByUserAndFilename(User user, String filename);
+public interface FileRepository extends JpaRepository<File, Long>, JpaSpecificationExecutor<File> {
+    @Query("SELECT f FROM File f WHERE f.user = :user AND f.deletedAt IS NULL ORDER BY f.uploadedAt DESC")
+    List<File> findByUserOrderByUploadedAtDesc(@Param("user") User user);
+
+    @Query("SELECT f FROM File f WHERE f.user = :user AND f.filename = :filename AND f.deletedAt IS NULL")
+    Optional<File> findByUserAndFilename(@Param("user") User user, @Param("filename") String filename);
+
+    /**
+     * Строка под блокировкой до конца транзакции (SELECT ... FOR UPDATE): замены содержимого одного файла
+     * проверяют, что строка не изменилась, и применяются по очереди.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT f FROM File f WHERE f.id = :id")
+    Optional<File> findByIdForUpdate(@Param("id") Long id);
+
+    @Query("SELECT CASE WHEN COUNT(f) > 0 THEN true ELSE false END FROM File f " +
+            "WHERE f.user = :user AND f.filename = :filename AND f.deletedAt IS NULL")
+    boolean existsByUserAndFilename(@Param("user") User user, @Param("filename") String filename);
 
     @Modifying
     @Query("DELETE FROM File f WHERE f.user = :user AND f.filename = :filename")
     void deleteByUserAndFilename(@Param("user") User user, @Param("filename") String filename);
 
 
-    @Query("SELECT f FROM File f WHERE f.user = :user ORDER BY f.uploadedAt DESC")
+    @Query("SELECT new ru.netology.filestorage.dto.FileSummary(f.id, f.filename, f.size, f.uploadedAt) " +
+            "FROM File f WHERE f.user = :user AND f.deletedAt IS NULL ORDER BY f.uploadedAt DESC, f.id DESC")
+    List<FileSummary> findSummariesByUser(@Param("user") User user, org.springframework.data.domain.Pageable pageable);
+
+    @Query("SELECT new ru.netology.filestorage.dto.FileSummary(f.id, f.filename, f.size, f.uploadedAt) " +
+            "FROM File f WHERE f.user.id = :userId AND f.id > :afterId AND f.deletedAt IS NULL AND f.volumeId IS NULL " +
+            "ORDER BY f.id")
+    List<FileSummary> findSummariesByUserIdAfter(@Param("userId") Long userId,
+                                                 @Param("afterId") Long afterId,
+                                                 org.springframework.data.domain.Pageable pageable);
+
+    @Query("SELECT COALESCE(SUM(f.size), 0) FROM File f WHERE f.user.id = :userId AND f.deletedAt IS NULL")
+    long sumSizeByUserId(@Param("userId") Long userId);
+
+    @Query("SELECT COUNT(f) FROM File f WHERE f.deletedAt IS NULL AND (f.user.nodeId IS NULL OR f.user.nodeId = :nodeId)")
+    long countLive(@Param("nodeId") String nodeId);
+
+    @Query("SELECT f FROM File f JOIN FETCH f.user u WHERE f.id > :afterId AND f.deletedAt IS NULL " +
+            "AND (u.nodeId IS NULL OR u.nodeId = :nodeId) ORDER BY f.id")
+    List<File> findBatchAfter(@Param("nodeId") String nodeId,
+                              @Param("afterId") Long afterId,
+                              org.springframework.data.domain.Pageable pageable);
+
+    @Modifying
+    @Query("UPDATE File f SET f.sha256 = :sha256 WHERE f.id = :id AND f.sha256 IS NULL")
+    int setSha256IfMissing(@Param("id") Long id, @Param("sha256") String sha256);
+
+    @Query("SELECT f FROM File f WHERE f.user = :user AND f.deletedAt IS NULL ORDER BY f.uploadedAt DESC")
     List<File> findUserFilesWithPagination(@Param("user") User user, org.springframework.data.domain.Pageable pageable);
-}
\ No newline at end of file
+
+    @Query("SELECT f FROM File f WHERE f.user = :user AND f.filename = :filename AND f.deletedAt IS NOT NULL " +
+            "ORDER BY f.deletedAt DESC, f.id DESC")
+    List<File> findDeletedByUserAndFilename(@Param("user") User user,
+                                            @Param("filename") String filename,
+                                            org.springframework.data.domain.Pageable pageable);
+
+    @Query("SELECT f FROM File f JOIN FETCH f.user u " +
+            "WHERE f.deletedAt IS NOT NULL AND f.deletedAt < :cutoff AND f.id > :afterId " +
+            "AND (u.nodeId IS NULL OR u.nodeId = :nodeId) ORDER BY f.id")
+    List<File> findTombstonesBefore(@Param("nodeId") String nodeId,
+                                    @Param("cutoff") LocalDateTime cutoff,
+                                    @Param("afterId") Long afterId,
+                                    org.springframework.data.domain.Pageable pageable);
+
+    @Modifying
+    @Query("DELETE FROM File f WHERE f.id IN :ids AND f.deletedAt IS NOT NULL")
+    int purgeTombstones(@Param("ids") List<Long> ids);
+
+    @Query("SELECT new ru.netology.filestorage.dto.VolumeUsage(f.volumeId, SUM(f.size + " +
+            "CASE WHEN f.encrypted = true THEN " + EncryptionService.BLOB_OVERHEAD + " ELSE 0 END)) " +
+            "FROM File f WHERE f.volumeId IS NOT NULL AND (f.user.nodeId IS NULL OR f.user.nodeId = :nodeId) GROUP BY f.volumeId")
+    List<VolumeUsage> sumSizeByVolume(@Param("nodeId") String nodeId);
+
+    @Query("SELECT DISTINCT new ru.netology.filestorage.dto.VolumeEntry(f.volumeOffset, f.size + " +
+            "CASE WHEN f.encrypted = true THEN " + EncryptionService.BLOB_OVERHEAD + " ELSE 0 END) " +
+            "FROM File f WHERE f.volumeId = :volumeId AND (f.user.nodeId IS NULL OR f.user.nodeId = :nodeId) ORDER BY f.volumeOffset")
+    List<VolumeEntry> findVolumeEntries(@Param("nodeId") String nodeId, @Param("volumeId") Long volumeId);
+
+    @Query("SELECT CASE WHEN COUNT(f) > 0 THEN true ELSE false END FROM File f " +
+            "WHERE f.volumeId = :volumeId AND (f.user.nodeId IS NULL OR f.user.nodeId = :nodeId)")
+    boolean existsByVolumeId(@Param("nodeId") String nodeId, @Param("volumeId") Long volumeId);
+
+    @Modifying
+    @Query("UPDATE File f SET f.volumeId = :targetVolumeId, f.volumeOffset = :targetOffset " +
+            "WHERE f.volumeId = :volumeId AND f.volumeOffset = :offset " +
+            "AND f.user.id IN (SELECT u.id FROM User u WHERE u.nodeId IS NULL OR u.nodeId = :nodeId)")
+    int relocate(@Param("nodeId") String nodeId,
+                 @Param("volumeId") Long volumeId,
+                 @Param("offset") Long offset,
+                 @Param("targetVolumeId") Long targetVolumeId,
+                 @Param("targetOffset") Long targetOffset);
+
+    @Query("SELECT f FROM File f JOIN FETCH f.user WHERE f.id = :id")
+    Optional<File> findWithUserById(@Param("id") Long id);
+
+    @Query("SELECT f FROM File f WHERE f.user.id = :userId ORDER BY f.id")
+    List<File> findAllByUserId(@Param("userId") Long userId);
+
+    @Modifying
+    @Query("UPDATE File f SET f.volumeId = :volumeId, f.volumeOffset = :offset WHERE f.id = :id")
+    int moveToVolume(@Param("id") Long id, @Param("volumeId") Long volumeId, @Param("offset") Long offset);
+}
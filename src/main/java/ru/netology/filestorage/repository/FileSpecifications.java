@@ -0,0 +1,76 @@
+package ru.netology.filestorage.repository;
+
+import jakarta.persistence.criteria.Path;
+import org.springframework.data.jpa.domain.Specification;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+
+import java.time.LocalDateTime;
+
+public final class FileSpecifications {
+
+    public static final char LIKE_ESCAPE = '\\';
+
+    private FileSpecifications() {
+    }
+
+    public static Specification<File> ownedBy(User user) {
+        return (root, query, cb) -> cb.and(cb.equal(root.get("user"), user), cb.isNull(root.get("deletedAt")));
+    }
+
+    public static Specification<File> filenameLike(String lowerCasePattern) {
+        return (root, query, cb) -> cb.like(cb.lower(root.get("filename")), lowerCasePattern, LIKE_ESCAPE);
+    }
+
+    public static Specification<File> contentType(String contentType) {
+        if (contentType.endsWith("/*")) {
+            String prefix = contentType.substring(0, contentType.length() - 1);
+            return (root, query, cb) -> cb.like(root.get("contentType"), escapeLike(prefix) + "%", LIKE_ESCAPE);
+        }
+        return (root, query, cb) -> cb.equal(root.get("contentType"), contentType);
+    }
+
+    public static Specification<File> sizeAtLeast(long minSize) {
+        return (root, query, cb) -> cb.greaterThanOrEqualTo(root.get("size"), minSize);
+    }
+
+    public static Specification<File> sizeAtMost(long maxSize) {
+        return (root, query, cb) -> cb.lessThanOrEqualTo(root.get("size"), maxSize);
+    }
+
+    public static Specification<File> uploadedFrom(LocalDateTime from) {
+        return (root, query, cb) -> cb.greaterThanOrEqualTo(root.get("uploadedAt"), from);
+    }
+
+    public static Specification<File> uploadedBefore(LocalDateTime to) {
+        return (root, query, cb) -> cb.lessThan(root.get("uploadedAt"), to);
+    }
+
+    /**
+     * Условие keyset-пагинации: строки строго после (value, id) в порядке сортировки.
+     */
+    public static <T extends Comparable<? super T>> Specification<File> after(String attribute, T value,
+                                                                             Long id, boolean descending) {
+        return (root, query, cb) -> {
+            Path<T> key = root.get(attribute);
+            Path<Long> rowId = root.get("id");
+            if (descending) {
+                return cb.or(cb.lessThan(key, value),
+                        cb.and(cb.equal(key, value), cb.lessThan(rowId, id)));
+            }
+            return cb.or(cb.greaterThan(key, value),
+                    cb.and(cb.equal(key, value), cb.greaterThan(rowId, id)));
+        };
+    }
+
+    public static String escapeLike(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                escaped.append(LIKE_ESCAPE);
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package ru.netology.filestorage.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import ru.netology.filestorage.dto.VolumeEntry;
+import ru.netology.filestorage.dto.VolumeUsage;
+import ru.netology.filestorage.entity.FileVersion;
+import ru.netology.filestorage.service.EncryptionService;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Версии ссылаются на записи томов так же, как строки files, поэтому уплотнение томов учитывает
+ * обе таблицы. Выборки с nodeId ограничены пользователями этого узла кластера.
+ */
+@Repository
+public interface FileVersionRepository extends JpaRepository<FileVersion, Long> {
+
+    @Query("SELECT v FROM FileVersion v WHERE v.fileId = :fileId ORDER BY v.replacedAt DESC, v.id DESC")
+    List<FileVersion> findByFileId(@Param("fileId") Long fileId);
+
+    @Query("SELECT v FROM FileVersion v WHERE v.id = :id AND v.fileId = :fileId")
+    Optional<FileVersion> findByIdAndFileId(@Param("id") Long id, @Param("fileId") Long fileId);
+
+    @Query("SELECT v FROM FileVersion v WHERE v.fileId IN :fileIds ORDER BY v.id")
+    List<FileVersion> findByFileIdIn(@Param("fileIds") List<Long> fileIds);
+
+    @Query("SELECT v FROM FileVersion v WHERE v.userId = :userId ORDER BY v.replacedAt, v.id")
+    List<FileVersion> findByUserIdOldestFirst(@Param("userId") Long userId);
+
+    @Query("SELECT COALESCE(SUM(v.size), 0) FROM FileVersion v WHERE v.userId = :userId")
+    long sumSizeByUserId(@Param("userId") Long userId);
+
+    @Modifying
+    @Query("UPDATE FileVersion v SET v.volumeId = :volumeId, v.volumeOffset = :offset WHERE v.id = :id")
+    int moveToVolume(@Param("id") Long id, @Param("volumeId") Long volumeId, @Param("offset") Long offset);
+
+    @Modifying
+    @Query("DELETE FROM FileVersion v WHERE v.id IN :ids")
+    int deleteByIdIn(@Param("ids") List<Long> ids);
+
+    @Modifying
+    @Query("DELETE FROM FileVersion v WHERE v.fileId IN :fileIds")
+    int deleteByFileIdIn(@Param("fileIds") List<Long> fileIds);
+
+    @Query("SELECT new ru.netology.filestorage.dto.VolumeUsage(v.volumeId, SUM(v.size + " +
+            "CASE WHEN v.encrypted = true THEN " + EncryptionService.BLOB_OVERHEAD + " ELSE 0 END)) " +
+            "FROM FileVersion v WHERE v.volumeId IS NOT NULL " +
+            "AND v.userId IN (SELECT u.id FROM User u WHERE u.nodeId IS NULL OR u.nodeId = :nodeId) GROUP BY v.volumeId")
+    List<VolumeUsage> sumSizeByVolume(@Param("nodeId") String nodeId);
+
+    @Query("SELECT DISTINCT new ru.netology.filestorage.dto.VolumeEntry(v.volumeOffset, v.size + " +
+            "CASE WHEN v.encrypted = true THEN " + EncryptionService.BLOB_OVERHEAD + " ELSE 0 END) " +
+            "FROM FileVersion v WHERE v.volumeId = :volumeId " +
+            "AND v.userId IN (SELECT u.id FROM User u WHERE u.nodeId IS NULL OR u.nodeId = :nodeId) ORDER BY v.volumeOffset")
+    List<VolumeEntry> findVolumeEntries(@Param("nodeId") String nodeId, @Param("volumeId") Long volumeId);
+
+    @Query("SELECT CASE WHEN COUNT(v) > 0 THEN true ELSE false END FROM FileVersion v " +
+            "WHERE v.volumeId = :volumeId " +
+            "AND v.userId IN (SELECT u.id FROM User u WHERE u.nodeId IS NULL OR u.nodeId = :nodeId)")
+    boolean existsByVolumeId(@Param("nodeId") String nodeId, @Param("volumeId") Long volumeId);
+
+    @Modifying
+    @Query("UPDATE FileVersion v SET v.volumeId = :targetVolumeId, v.volumeOffset = :targetOffset " +
+            "WHERE v.volumeId = :volumeId AND v.volumeOffset = :offset " +
+            "AND v.userId IN (SELECT u.id FROM User u WHERE u.nodeId IS NULL OR u.nodeId = :nodeId)")
+    int relocate(@Param("nodeId") String nodeId,
+                 @Param("volumeId") Long volumeId,
+                 @Param("offset") Long offset,
+                 @Param("targetVolumeId") Long targetVolumeId,
+                 @Param("targetOffset") Long targetOffset);
+}
@@ -1,5 +1,6 @@
 package ru.netology.filestorage.repository;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -7,13 +8,26 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.netology.filestorage.entity.Token;
 
+import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface TokenRepository extends JpaRepository<Token, Long> {
     Optional<Token> findByTokenAndActiveTrue(String token);
 
+    boolean existsByTokenAndActiveTrue(String token);
+
     @Modifying
     @Query("UPDATE Token t SET t.active = false WHERE t.token = :token")
     void deactivateByToken(@Param("token") String token);
-}
\ No newline at end of file
+
+    @Query("SELECT t.id FROM Token t WHERE t.id > :afterId AND (t.active = false OR t.expiresAt < :cutoff) ORDER BY t.id")
+    List<Long> findPurgeableIds(@Param("afterId") Long afterId,
+                                @Param("cutoff") LocalDateTime cutoff,
+                                Pageable pageable);
+
+    @Modifying
+    @Query("DELETE FROM Token t WHERE t.id IN :ids")
+    int deleteByIdIn(@Param("ids") List<Long> ids);
+}
@@ -1,13 +1,72 @@
 package ru.netology.filestorage.repository;
 
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.netology.filestorage.entity.User;
 
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
     Optional<User> findByUsername(String username);
     boolean existsByUsername(String username);
-}
\ No newline at end of file
+
+    @Modifying
+    @Query("UPDATE User u SET u.usedBytes = u.usedBytes + :bytes WHERE u.id = :id AND u.usedBytes + :bytes <= :limit")
+    int increaseUsedBytes(@Param("id") Long id, @Param("bytes") long bytes, @Param("limit") long limit);
+
+    @Modifying
+    @Query("UPDATE User u SET u.usedBytes = CASE WHEN u.usedBytes > :bytes THEN u.usedBytes - :bytes ELSE 0 END WHERE u.id = :id")
+    int decreaseUsedBytes(@Param("id") Long id, @Param("bytes") long bytes);
+
+    @Modifying
+    @Query("UPDATE User u SET u.usedBytes = :usedBytes WHERE u.id = :id")
+    int setUsedBytes(@Param("id") Long id, @Param("usedBytes") long usedBytes);
+
+    /**
+     * Меняет только хеш пароля и только если он не изменился с момента чтения: сохранение всей сущности
+     * затерло бы счетчики (usedBytes, changeSeq) и узел, измененные другими запросами.
+     */
+    @Modifying
+    @Query("UPDATE User u SET u.password = :newPassword WHERE u.id = :id AND u.password = :oldPassword")
+    int updatePassword(@Param("id") Long id, @Param("oldPassword") String oldPassword,
+                       @Param("newPassword") String newPassword);
+
+    @Modifying
+    @Query("UPDATE User u SET u.changeSeq = u.changeSeq + 1 WHERE u.id = :id")
+    int incrementChangeSeq(@Param("id") Long id);
+
+    @Query("SELECT u.changeSeq FROM User u WHERE u.id = :id")
+    long findChangeSeq(@Param("id") Long id);
+
+    @Query("SELECT u.usedBytes FROM User u WHERE u.id = :id")
+    long findUsedBytes(@Param("id") Long id);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT u FROM User u WHERE u.id = :id")
+    Optional<User> findByIdForUpdate(@Param("id") Long id);
+
+    @Query("SELECT u.id FROM User u WHERE u.id > :afterId AND (u.nodeId IS NULL OR u.nodeId = :nodeId) ORDER BY u.id")
+    List<Long> findIdsAfter(@Param("nodeId") String nodeId, @Param("afterId") Long afterId, Pageable pageable);
+
+    @Query("SELECT u.nodeId FROM User u WHERE u.id = :id")
+    Optional<String> findNodeId(@Param("id") Long id);
+
+    @Query("SELECT u FROM User u WHERE u.nodeId = :nodeId AND u.id > :afterId ORDER BY u.id")
+    List<User> findByNodeIdAfter(@Param("nodeId") String nodeId, @Param("afterId") Long afterId, Pageable pageable);
+
+    @Modifying
+    @Query("UPDATE User u SET u.nodeId = :nodeId WHERE u.id = :id AND u.nodeId IS NULL")
+    int claimNode(@Param("id") Long id, @Param("nodeId") String nodeId);
+
+    @Modifying
+    @Query("UPDATE User u SET u.nodeId = :target WHERE u.id = :id AND u.nodeId = :source")
+    int transferNode(@Param("id") Long id, @Param("source") String source, @Param("target") String target);
+}
@@ -2,6 +2,8 @@ package ru.netology.filestorage.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -11,13 +13,22 @@ import ru.netology.filestorage.dto.AuthResponse;
 import ru.netology.filestorage.entity.Token;
 import ru.netology.filestorage.entity.User;
 import ru.netology.filestorage.exception.InvalidCredentialsException;
+import ru.netology.filestorage.exception.ServiceOverloadedException;
 import ru.netology.filestorage.exception.UserNotFoundException;
 import ru.netology.filestorage.repository.TokenRepository;
 import ru.netology.filestorage.repository.UserRepository;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Collections;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 public class AuthService {
@@ -26,29 +37,65 @@ public class AuthService {
     private final UserRepository userRepository;
     private final TokenRepository tokenRepository;
     private final UserService userService;
-
-    public AuthService(UserRepository userRepository, TokenRepository tokenRepository, UserService userService) {
+    private final GroupCommitWriter groupCommitWriter;
+    private final ExecutorService passwordHashingExecutor;
+    private final Duration passwordCheckTimeout;
+
+    public AuthService(UserRepository userRepository,
+                       TokenRepository tokenRepository,
+                       UserService userService,
+                       GroupCommitWriter groupCommitWriter,
+                       @Qualifier("passwordHashingExecutor") ExecutorService passwordHashingExecutor,
+                       @Value("${app.security.password-check.timeout:PT5S}") Duration passwordCheckTimeout) {
         this.userRepository = userRepository;
         this.tokenRepository = tokenRepository;
         this.userService = userService;
+        this.groupCommitWriter = groupCommitWriter;
+        this.passwordHashingExecutor = passwordHashingExecutor;
+        this.passwordCheckTimeout = passwordCheckTimeout;
     }
 
     public AuthResponse login(AuthRequest request) {
         log.debug("Попытка входа пользователя: {}", request.getLogin());
-        User user = userRepository.findByUsername(request.getLogin())
-                .orElseThrow(() -> {
-                    log.warn("Пользователь не найден: {}", request.getLogin());
-                    return new UserNotFoundException("Пользователь не найден");
-                });
-
-        if (!userService.checkPassword(request.getPassword(), user.getPassword())) {
-            log.warn("Неверный пароль для пользователя: {}", request.getLogin());
-            throw new InvalidCredentialsException("Неверный пароль");
+        RequestPhaseEvent event = RequestPhaseEvent.start(RequestPhaseEvent.AUTH, RequestPhaseEvent.USER_RESOLUTION,
+                request.getLogin(), -1);
+        User user;
+        try {
+            user = userRepository.findByUsername(request.getLogin())
+                    .orElseThrow(() -> {
+                        log.warn("Пользователь не найден: {}", request.getLogin());
+                        event.fail("not-found");
+                        return new UserNotFoundException("Пользователь не найден");
+                    });
+            event.succeed();
+        } finally {
+            event.finish();
+        }
+
+        RequestPhaseEvent passwordEvent = RequestPhaseEvent.start(RequestPhaseEvent.AUTH,
+                RequestPhaseEvent.PASSWORD_CHECK, request.getLogin(), -1);
+        try {
+            if (!verifyPassword(request.getPassword(), user.getPassword())) {
+                log.warn("Неверный пароль для пользователя: {}", request.getLogin());
+                passwordEvent.fail("invalid");
+                throw new InvalidCredentialsException("Неверный пароль");
+            }
+            passwordEvent.succeed();
+        } finally {
+            passwordEvent.finish();
         }
+        scheduleRehash(user, request.getPassword());
 
         String token = generateToken();
-        Token tokenEntity = new Token(token, user, LocalDateTime.now().plusDays(1));
-        tokenRepository.save(tokenEntity);
+        LocalDateTime expiresAt = LocalDateTime.now().plusDays(1);
+        RequestPhaseEvent commitEvent = RequestPhaseEvent.start(RequestPhaseEvent.AUTH, RequestPhaseEvent.COMMIT,
+                request.getLogin(), -1);
+        try {
+            groupCommitWriter.run(() -> tokenRepository.save(new Token(token, user, expiresAt)));
+            commitEvent.succeed();
+        } finally {
+            commitEvent.finish();
+        }
 
         log.info("Пользователь {} успешно аутентифицирован. Токен сгенерирован.", request.getLogin());
         return new AuthResponse(token);
@@ -63,7 +110,7 @@ public class AuthService {
 
         tokenRepository.findByTokenAndActiveTrue(token).ifPresent(tokenEntity -> {
             tokenEntity.setActive(false);
-            tokenRepository.save(tokenEntity);
+            groupCommitWriter.run(() -> tokenRepository.save(tokenEntity));
             log.info("Токен недействителен для пользователя: {}", tokenEntity.getUser().getUsername());
         });
     }
@@ -74,7 +121,7 @@ public class AuthService {
             return false;
         }
 
-        boolean isValid = tokenRepository.findByTokenAndActiveTrue(token)
+        boolean isValid = findActiveToken(token)
                 .map(t -> {
                     boolean notExpired = t.getExpiresAt().isAfter(LocalDateTime.now());
                     if (!notExpired) {
@@ -94,7 +141,7 @@ public class AuthService {
             return null;
         }
 
-        return tokenRepository.findByTokenAndActiveTrue(token)
+        return findActiveToken(token)
                 .map(t -> {
                     log.debug("Создание аутентификации для пользователя: {}", t.getUser().getUsername());
                     return new UsernamePasswordAuthenticationToken(
@@ -106,6 +153,65 @@ public class AuthService {
                 .orElse(null);
     }
 
+    /**
+     * Проверка токена - самое частое чтение, поэтому строка токена вместе с пользователем читается с реплики.
+     * Токен, выданный только что, может еще не дойти до реплики: при промахе поиск повторяется на первичном
+     * узле. Отставшая реплика может не знать и о выходе из системы, поэтому найденный на ней токен
+     * подтверждается на первичном узле коротким запросом по флагу active. Срок действия после выдачи
+     * не меняется и берется из строки реплики.
+     */
+    private Optional<Token> findActiveToken(String token) {
+        Optional<Token> found = ReplicaRouter.onReplica(() -> tokenRepository.findByTokenAndActiveTrue(token));
+        if (found.isPresent()) {
+            boolean active = ReplicaRouter.onPrimary(() -> tokenRepository.existsByTokenAndActiveTrue(token));
+            return active ? found : Optional.empty();
+        }
+        return ReplicaRouter.onPrimary(() -> tokenRepository.findByTokenAndActiveTrue(token));
+    }
+
+    private boolean verifyPassword(String rawPassword, String encodedPassword) {
+        Future<Boolean> result;
+        try {
+            result = passwordHashingExecutor.submit(() -> userService.checkPassword(rawPassword, encodedPassword));
+        } catch (RejectedExecutionException e) {
+            log.warn("Очередь проверки паролей переполнена, запрос на вход отклонен");
+            throw new ServiceOverloadedException("Сервис перегружен, повторите попытку позже");
+        }
+
+        try {
+            return result.get(passwordCheckTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            log.warn("Проверка пароля не уложилась в {} мс", passwordCheckTimeout.toMillis());
+            throw new ServiceOverloadedException("Сервис перегружен, повторите попытку позже");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ServiceOverloadedException("Проверка пароля прервана");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Ошибка проверки пароля", e.getCause());
+        }
+    }
+
+    private void scheduleRehash(User user, String rawPassword) {
+        try {
+            passwordHashingExecutor.execute(() -> {
+                try {
+                    if (userService.upgradePasswordEncodingIfNeeded(user, rawPassword)) {
+                        log.info("Хеш пароля пользователя {} пересчитан с новой стоимостью", user.getUsername());
+                    }
+                } catch (Exception e) {
+                    log.warn("Не удалось пересчитать хеш пароля пользователя: {}", user.getUsername(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Пересчет хеша пароля пропущен: очередь переполнена");
+        }
+    }
+
     private String generateToken() {
         return UUID.randomUUID().toString();
     }
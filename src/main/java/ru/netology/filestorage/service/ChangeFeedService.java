@@ -0,0 +1,211 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.netology.filestorage.dto.ChangeFeedResponse;
+import ru.netology.filestorage.dto.FileChangeResponse;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileChange;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileChangeRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Журнал изменений файлов для клиентов синхронизации. Номер изменения берется из счетчика
+ * users.change_seq в той же транзакции, что и изменение метаданных; строка пользователя
+ * при этом заблокирована, поэтому номера идут подряд и фиксируются по порядку.
+ * Ожидающие long-poll запросы не занимают потоков и завершаются после фиксации изменения.
+ */
+@Service
+public class ChangeFeedService {
+
+    private static final int TRIM_INTERVAL = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(ChangeFeedService.class);
+    private final FileChangeRepository changeRepository;
+    private final UserRepository userRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxEntriesPerUser;
+    private final int maxLimit;
+    private final Duration maxWait;
+    private final int maxWaiters;
+    private final Duration retention;
+    private final int purgeBatchSize;
+    private final Map<Long, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final AtomicInteger waiterCount = new AtomicInteger();
+
+    public ChangeFeedService(FileChangeRepository changeRepository,
+                             UserRepository userRepository,
+                             PlatformTransactionManager transactionManager,
+                             MeterRegistry meterRegistry,
+                             @Value("${app.changes.max-entries-per-user:10000}") int maxEntriesPerUser,
+                             @Value("${app.changes.max-limit:1000}") int maxLimit,
+                             @Value("${app.changes.max-wait:PT60S}") Duration maxWait,
+                             @Value("${app.changes.max-waiters:10000}") int maxWaiters,
+                             @Value("${app.changes.retention:P7D}") Duration retention,
+                             @Value("${app.changes.purge.batch-size:1000}") int purgeBatchSize) {
+        this.changeRepository = changeRepository;
+        this.userRepository = userRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxEntriesPerUser = maxEntriesPerUser;
+        this.maxLimit = maxLimit;
+        this.maxWait = maxWait;
+        this.maxWaiters = maxWaiters;
+        this.retention = retention;
+        this.purgeBatchSize = purgeBatchSize;
+        meterRegistry.gauge("filestorage.changes.waiters", waiterCount);
+    }
+
+    /**
+     * Записывает изменение; вызывается внутри транзакции, меняющей метаданные файла.
+     */
+    public void record(User user, FileChange.Type type, File file, String previousFilename) {
+        userRepository.incrementChangeSeq(user.getId());
+        long seq = userRepository.findChangeSeq(user.getId());
+        changeRepository.save(new FileChange(user.getId(), seq, type, file, previousFilename));
+        if (seq % TRIM_INTERVAL == 0 && seq > maxEntriesPerUser) {
+            changeRepository.deleteUpTo(user.getId(), seq - maxEntriesPerUser);
+        }
+    }
+
+    /**
+     * Будит ожидающие запросы пользователя; вызывается после фиксации транзакции.
+     */
+    public void publish(User user) {
+        Set<Waiter> pending = waiters.get(user.getId());
+        if (pending == null) {
+            return;
+        }
+        for (Waiter waiter : pending) {
+            if (!waiter.future().isDone()) {
+                try {
+                    waiter.future().complete(ReplicaRouter.onPrimary(
+                            () -> read(user.getId(), waiter.cursor(), waiter.limit())));
+                } catch (RuntimeException e) {
+                    waiter.future().completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Возвращает изменения после cursor. Если их нет, ответ откладывается до появления
+     * изменения или истечения wait; без cursor возвращается текущая позиция журнала.
+     */
+    public CompletableFuture<ChangeFeedResponse> watch(User user, Long cursor, Integer limit, Duration wait) {
+        int pageSize = limit != null && limit > 0 ? Math.min(limit, maxLimit) : maxLimit;
+        ChangeFeedResponse current = read(user.getId(), cursor, pageSize);
+        Duration timeout = wait == null || wait.isNegative() ? Duration.ZERO
+                : wait.compareTo(maxWait) > 0 ? maxWait : wait;
+        if (cursor == null || !current.changes().isEmpty() || current.resync() || timeout.isZero()
+                || waiterCount.get() >= maxWaiters) {
+            return CompletableFuture.completedFuture(current);
+        }
+
+        CompletableFuture<ChangeFeedResponse> future = new CompletableFuture<ChangeFeedResponse>()
+                .completeOnTimeout(current, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        Waiter waiter = new Waiter(cursor, pageSize, future);
+        waiters.compute(user.getId(), (id, set) -> {
+            Set<Waiter> result = set != null ? set : ConcurrentHashMap.newKeySet();
+            result.add(waiter);
+            return result;
+        });
+        waiterCount.incrementAndGet();
+        future.whenComplete((response, error) -> {
+            waiters.computeIfPresent(user.getId(), (id, set) -> {
+                set.remove(waiter);
+                return set.isEmpty() ? null : set;
+            });
+            waiterCount.decrementAndGet();
+        });
+
+        ChangeFeedResponse recheck = read(user.getId(), cursor, pageSize);
+        if (!recheck.changes().isEmpty() || recheck.resync()) {
+            future.complete(recheck);
+        }
+        return future;
+    }
+
+    ChangeFeedResponse read(Long userId, Long cursor, int limit) {
+        long head = userRepository.findChangeSeq(userId);
+        if (cursor != null && cursor > head && ReplicaRouter.isReplicaReadAllowed()) {
+            // курсор мог быть выдан первичным узлом раньше, чем изменение дошло до реплики
+            return ReplicaRouter.onPrimary(() -> read(userId, cursor, limit));
+        }
+        if (cursor == null || cursor == head) {
+            return new ChangeFeedResponse(List.of(), head, false, false);
+        }
+        if (cursor > head || cursor < 0) {
+            return new ChangeFeedResponse(List.of(), head, false, true);
+        }
+
+        List<FileChange> changes = changeRepository.findAfter(userId, cursor, PageRequest.of(0, limit + 1));
+        if (changes.isEmpty() || changes.get(0).getSeq() != cursor + 1) {
+            log.debug("Курсор журнала изменений устарел для пользователя {}: {}", userId, cursor);
+            return new ChangeFeedResponse(List.of(), head, false, true);
+        }
+        boolean hasMore = changes.size() > limit;
+        List<FileChange> page = hasMore ? changes.subList(0, limit) : changes;
+        return new ChangeFeedResponse(page.stream().map(ChangeFeedService::toResponse).toList(),
+                page.get(page.size() - 1).getSeq(), hasMore, false);
+    }
+
+    @Scheduled(fixedDelayString = "${app.changes.purge.interval:PT1H}",
+            initialDelayString = "${app.changes.purge.initial-delay:PT5M}")
+    public void purgeExpiredChanges() {
+        try {
+            int deleted = purge(LocalDateTime.now());
+            if (deleted > 0) {
+                log.info("Удалено {} устаревших записей журнала изменений", deleted);
+            }
+        } catch (Exception e) {
+            log.error("Ошибка очистки журнала изменений", e);
+        }
+    }
+
+    public int purge(LocalDateTime now) {
+        LocalDateTime cutoff = now.minus(retention);
+        long afterId = 0L;
+        int total = 0;
+
+        while (true) {
+            List<Long> ids = changeRepository.findExpiredIds(afterId, cutoff, PageRequest.of(0, purgeBatchSize));
+            if (ids.isEmpty()) {
+                break;
+            }
+            Integer deleted = transactionTemplate.execute(status -> changeRepository.deleteByIdIn(ids));
+            total += deleted != null ? deleted : 0;
+            afterId = ids.get(ids.size() - 1);
+            if (ids.size() < purgeBatchSize) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    private static FileChangeResponse toResponse(FileChange change) {
+        return new FileChangeResponse(change.getSeq(), change.getType().name(), change.getFileId(),
+                change.getFilename(), change.getPreviousFilename(), change.getSize(), change.getSha256(),
+                change.getCreatedAt());
+    }
+
+    private record Waiter(long cursor, int limit, CompletableFuture<ChangeFeedResponse> future) {
+    }
+}
@@ -0,0 +1,221 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.exception.ChecksumMismatchException;
+import ru.netology.filestorage.repository.FileRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Фоновая проверка целостности: перечитывает сохраненные файлы с ограниченной скоростью
+ * и сравнивает SHA-256 с записанным при загрузке. Файлам, загруженным до появления
+ * контрольных сумм, сумма проставляется при первом проходе.
+ */
+@Service
+@ConditionalOnProperty(name = "app.scrub.enabled", havingValue = "true", matchIfMissing = true)
+public class ChecksumScrubber {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(ChecksumScrubber.class);
+    private final FileRepository fileRepository;
+    private final StorageService storageService;
+    private final VolumeStore volumeStore;
+    private final EncryptionService encryptionService;
+    private final IoScheduler ioScheduler;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    private final String nodeId;
+    private final long bytesPerSecond;
+    private final Counter verified;
+    private final Counter mismatched;
+    private final Counter missing;
+    private final Counter backfilled;
+    private final Counter bytesRead;
+    private final AtomicLong scannedInPass = new AtomicLong();
+    private final AtomicLong totalInPass = new AtomicLong();
+    private final AtomicLong lastPassCompleted = new AtomicLong();
+
+    public ChecksumScrubber(FileRepository fileRepository,
+                            StorageService storageService,
+                            VolumeStore volumeStore,
+                            EncryptionService encryptionService,
+                            IoScheduler ioScheduler,
+                            PlatformTransactionManager transactionManager,
+                            MeterRegistry meterRegistry,
+                            @Value("${app.scrub.batch-size:200}") int batchSize,
+                            @Value("${app.scrub.rate:20MB}") DataSize rate,
+                            @Value("${app.cluster.node-id:local}") String nodeId) {
+        this.fileRepository = fileRepository;
+        this.storageService = storageService;
+        this.volumeStore = volumeStore;
+        this.encryptionService = encryptionService;
+        this.ioScheduler = ioScheduler;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.nodeId = nodeId;
+        this.bytesPerSecond = Math.max(1L, rate.toBytes());
+        this.verified = result(meterRegistry, "ok");
+        this.mismatched = result(meterRegistry, "mismatch");
+        this.missing = result(meterRegistry, "missing");
+        this.backfilled = result(meterRegistry, "backfilled");
+        this.bytesRead = Counter.builder("filestorage.scrub.bytes").baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("filestorage.scrub.progress", this, ChecksumScrubber::progress).register(meterRegistry);
+        Gauge.builder("filestorage.scrub.last_pass_completed", lastPassCompleted, AtomicLong::get)
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.scrub.interval:PT24H}",
+            initialDelayString = "${app.scrub.initial-delay:PT10M}")
+    public void scrubStoredFiles() {
+        try {
+            Report report = scrub();
+            log.info("Проверка целостности завершена: проверено {}, расхождений {}, отсутствует {}, суммы проставлены {}",
+                    report.verified(), report.mismatched(), report.missing(), report.backfilled());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("Проверка целостности прервана");
+        } catch (Exception e) {
+            log.error("Ошибка проверки целостности файлов", e);
+        }
+    }
+
+    public Report scrub() throws InterruptedException {
+        Throttle throttle = new Throttle(bytesPerSecond);
+        scannedInPass.set(0);
+        totalInPass.set(fileRepository.countLive(nodeId));
+        int ok = 0;
+        int bad = 0;
+        int absent = 0;
+        int filled = 0;
+        long afterId = 0L;
+
+        while (true) {
+            List<File> files = fileRepository.findBatchAfter(nodeId, afterId, PageRequest.of(0, batchSize));
+            for (File file : files) {
+                switch (verify(file, throttle)) {
+                    case OK -> ok++;
+                    case MISMATCH -> bad++;
+                    case MISSING -> absent++;
+                    case BACKFILLED -> filled++;
+                    case SKIPPED -> { }
+                }
+                scannedInPass.incrementAndGet();
+            }
+            if (files.size() < batchSize) {
+                break;
+            }
+            afterId = files.get(files.size() - 1).getId();
+        }
+
+        lastPassCompleted.set(Instant.now().getEpochSecond());
+        return new Report(ok, bad, absent, filled);
+    }
+
+    private Outcome verify(File file, Throttle throttle) throws InterruptedException {
+        String actual;
+        try {
+            InputStream content = file.isPacked()
+                    ? new ByteArrayInputStream(encryptionService.decrypt(file, ioScheduler.call(IoScheduler.BACKGROUND,
+                            IoScheduler.Direction.READ, file.getSize(), () -> volumeStore.read(file))))
+                    : ioScheduler.input(IoScheduler.BACKGROUND, file.getSize(),
+                            encryptionService.openStream(file, storageService.resolve(file.getUser(), file.getFilename())));
+            actual = digest(content, throttle);
+        } catch (ChecksumMismatchException e) {
+            // блок зашифрованного файла не прошел проверку подлинности GCM
+            if (!stillPresent(file)) {
+                return Outcome.SKIPPED;
+            }
+            mismatched.increment();
+            log.error("Зашифрованный файл поврежден: {} (id {}, пользователь {}): {}",
+                    file.getFilename(), file.getId(), file.getUser().getId(), e.getMessage());
+            return Outcome.MISMATCH;
+        } catch (NoSuchFileException e) {
+            if (!stillPresent(file)) {
+                return Outcome.SKIPPED;
+            }
+            missing.increment();
+            log.error("Файл отсутствует на диске: {} (id {}, пользователь {})",
+                    file.getFilename(), file.getId(), file.getUser().getId());
+            return Outcome.MISSING;
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать файл при проверке: {} (id {})", file.getFilename(), file.getId(), e);
+            return Outcome.SKIPPED;
+        }
+
+        if (file.getSha256() == null) {
+            transactionTemplate.execute(status -> fileRepository.setSha256IfMissing(file.getId(), actual));
+            backfilled.increment();
+            return Outcome.BACKFILLED;
+        }
+        if (file.getSha256().equals(actual)) {
+            verified.increment();
+            return Outcome.OK;
+        }
+        if (!stillPresent(file)) {
+            return Outcome.SKIPPED;
+        }
+        mismatched.increment();
+        log.error("Контрольная сумма файла не совпадает: {} (id {}, пользователь {}): ожидалось {}, получено {}",
+                file.getFilename(), file.getId(), file.getUser().getId(), file.getSha256(), actual);
+        return Outcome.MISMATCH;
+    }
+
+    private boolean stillPresent(File file) {
+        return fileRepository.findById(file.getId())
+                .filter(current -> current.getDeletedAt() == null
+                        && Objects.equals(current.getFilename(), file.getFilename()))
+                .isPresent();
+    }
+
+    private String digest(InputStream content, Throttle throttle) throws IOException, InterruptedException {
+        MessageDigest digest = StorageService.newSha256();
+        try (InputStream in = content) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                bytesRead.increment(read);
+                throttle.acquire(read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private double progress() {
+        long total = totalInPass.get();
+        return total == 0 ? 1.0 : Math.min(1.0, (double) scannedInPass.get() / total);
+    }
+
+    private static Counter result(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("filestorage.scrub.files").tag("result", result).register(meterRegistry);
+    }
+
+    private enum Outcome { OK, MISMATCH, MISSING, BACKFILLED, SKIPPED }
+
+    public record Report(int verified, int mismatched, int missing, int backfilled) {
+    }
+}
@@ -0,0 +1,355 @@
+package ru.netology.filestorage.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+import ru.netology.filestorage.config.ClusterProperties;
+import ru.netology.filestorage.dto.ClusterTransferResponse;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileVersion;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.exception.ChecksumMismatchException;
+import ru.netology.filestorage.exception.FileNotFoundException;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Фоновая перебалансировка кластера: пользователи этого узла, которых кольцо теперь относит к другому
+ * живому узлу, переносятся на него. Файлы пользователя передаются владельцу по HTTP под блокировкой
+ * переноса (меняющие запросы пользователя в это время получают 503), затем users.node_id переключается
+ * в одной транзакции с новыми положениями упакованных файлов, подписанные ссылки пользователя,
+ * выданные этим узлом, отзываются, и локальные данные удаляются.
+ * Сохраненные версии файлов переносятся так же, как сами файлы.
+ */
+@Service
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "true")
+public class ClusterRebalancer {
+
+    public static final String SECRET_HEADER = "X-Cluster-Secret";
+    private static final Logger log = LoggerFactory.getLogger(ClusterRebalancer.class);
+    private final ClusterService clusterService;
+    private final UserRepository userRepository;
+    private final FileRepository fileRepository;
+    private final StorageService storageService;
+    private final FileVersionService fileVersionService;
+    private final VolumeStore volumeStore;
+    private final EncryptionService encryptionService;
+    private final ThumbnailService thumbnailService;
+    private final FileListingCache fileListingCache;
+    private final PresignedUrlService presignedUrlService;
+    private final TransactionTemplate transactionTemplate;
+    private final ClusterProperties properties;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final HttpClient httpClient;
+    private final Counter migratedUsers;
+    private final Counter migratedFiles;
+    private final Counter migratedBytes;
+    private final Counter failures;
+
+    public ClusterRebalancer(ClusterService clusterService,
+                             UserRepository userRepository,
+                             FileRepository fileRepository,
+                             StorageService storageService,
+                             FileVersionService fileVersionService,
+                             VolumeStore volumeStore,
+                             EncryptionService encryptionService,
+                             ThumbnailService thumbnailService,
+                             FileListingCache fileListingCache,
+                             PresignedUrlService presignedUrlService,
+                             PlatformTransactionManager transactionManager,
+                             ClusterProperties properties,
+                             ObjectMapper objectMapper,
+                             MeterRegistry meterRegistry,
+                             @Value("${app.cluster.rebalance.batch-size:100}") int batchSize) {
+        this.clusterService = clusterService;
+        this.userRepository = userRepository;
+        this.fileRepository = fileRepository;
+        this.storageService = storageService;
+        this.fileVersionService = fileVersionService;
+        this.volumeStore = volumeStore;
+        this.encryptionService = encryptionService;
+        this.thumbnailService = thumbnailService;
+        this.fileListingCache = fileListingCache;
+        this.presignedUrlService = presignedUrlService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(properties.getConnectTimeout())
+                .build();
+        this.migratedUsers = Counter.builder("filestorage.cluster.rebalance.users").register(meterRegistry);
+        this.migratedFiles = Counter.builder("filestorage.cluster.rebalance.files").register(meterRegistry);
+        this.migratedBytes = Counter.builder("filestorage.cluster.rebalance.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.failures = Counter.builder("filestorage.cluster.rebalance.failures").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.cluster.rebalance.interval:PT1M}",
+            initialDelayString = "${app.cluster.rebalance.initial-delay:PT1M}")
+    public void rebalanceUsers() {
+        try {
+            int migrated = rebalance();
+            if (migrated > 0) {
+                log.info("Перебалансировка завершена: перенесено пользователей {}", migrated);
+            }
+        } catch (Exception e) {
+            log.error("Ошибка перебалансировки кластера", e);
+        }
+    }
+
+    public int rebalance() {
+        clusterService.refresh();
+        int migrated = 0;
+        long afterId = 0;
+        List<User> batch;
+        do {
+            batch = userRepository.findByNodeIdAfter(clusterService.nodeId(), afterId, PageRequest.of(0, batchSize));
+            for (User user : batch) {
+                afterId = user.getId();
+                String target = clusterService.placementOf(user.getUsername());
+                if (target == null || target.equals(clusterService.nodeId()) || !clusterService.isAlive(target)) {
+                    continue;
+                }
+                try {
+                    if (migrate(user, target)) {
+                        migrated++;
+                    }
+                } catch (Exception e) {
+                    failures.increment();
+                    log.error("Не удалось перенести пользователя {} на узел {}", user.getUsername(), target, e);
+                }
+            }
+        } while (batch.size() == batchSize);
+        return migrated;
+    }
+
+    /**
+     * Переносит файлы пользователя на узел target. Возвращает false, если перенос не состоялся:
+     * блокировку не удалось получить или пользователь уже принадлежит другому узлу.
+     */
+    public boolean migrate(User user, String target) throws IOException, InterruptedException {
+        Lock lock = clusterService.migrationLock(user.getUsername());
+        if (!lock.tryLock(properties.getMigrationLockTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("Перенос пользователя {} отложен: идут изменения данных", user.getUsername());
+            return false;
+        }
+        try {
+            String baseUrl = clusterService.urlOf(target);
+            if (baseUrl == null) {
+                return false;
+            }
+            log.info("Перенос пользователя {} на узел {}", user.getUsername(), target);
+            List<File> files = fileRepository.findAllByUserId(user.getId());
+            Map<Long, ClusterTransferResponse> relocations = new HashMap<>();
+            for (File file : files) {
+                ClusterTransferResponse location = send(baseUrl, user, file);
+                if (location != null && location.volumeId() != null) {
+                    relocations.put(file.getId(), location);
+                }
+            }
+            List<FileVersion> versions = fileVersionService.listByUser(user.getId());
+            Map<Long, ClusterTransferResponse> versionRelocations = new HashMap<>();
+            for (FileVersion version : versions) {
+                ClusterTransferResponse location = send(baseUrl, version);
+                if (location != null && location.volumeId() != null) {
+                    versionRelocations.put(version.getId(), location);
+                }
+            }
+
+            Boolean transferred = transactionTemplate.execute(status -> {
+                if (userRepository.transferNode(user.getId(), clusterService.nodeId(), target) == 0) {
+                    status.setRollbackOnly();
+                    return false;
+                }
+                relocations.forEach((fileId, location) ->
+                        fileRepository.moveToVolume(fileId, location.volumeId(), location.volumeOffset()));
+                versionRelocations.forEach((versionId, location) ->
+                        fileVersionService.moveToVolume(versionId, location.volumeId(), location.volumeOffset()));
+                return true;
+            });
+            if (!Boolean.TRUE.equals(transferred)) {
+                log.warn("Пользователь {} уже не принадлежит узлу {}", user.getUsername(), clusterService.nodeId());
+                return false;
+            }
+
+            // ссылки этого узла указывают на локальные данные, которые сейчас будут удалены
+            presignedUrlService.revokeUser(user.getId());
+            for (File file : files) {
+                thumbnailService.delete(file);
+            }
+            FileSystemUtils.deleteRecursively(storageService.getRoot().resolve(user.getId().toString()));
+            FileSystemUtils.deleteRecursively(
+                    storageService.getRoot().resolve(StorageService.TRASH_DIR).resolve(user.getId().toString()));
+            fileVersionService.deleteUserData(user.getId());
+            fileListingCache.invalidate(user.getUsername());
+            migratedUsers.increment();
+            log.info("Пользователь {} перенесен на узел {}, файлов {}, версий {}",
+                    user.getUsername(), target, files.size(), versions.size());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Принимает содержимое файла, переносимого на этот узел. Для упакованного файла возвращает
+     * его новое положение в томе, для обычного - пустой ответ. Зашифрованные данные передаются
+     * как есть: мастер-ключ у узлов кластера общий.
+     */
+    public ClusterTransferResponse accept(Long fileId, InputStream content) throws IOException {
+        File file = fileRepository.findWithUserById(fileId)
+                .orElseThrow(() -> new FileNotFoundException("Файл не найден: " + fileId));
+        Path target = null;
+        if (!file.isPacked()) {
+            target = file.getDeletedAt() != null
+                    ? storageService.resolveTrash(file.getUser(), file.getId())
+                    : storageService.resolve(file.getUser(), file.getFilename());
+        }
+        ClusterTransferResponse response = receive(fileId, file.isEncrypted(), file.getSize(), file.getSha256(),
+                target, content);
+        if (target != null && file.getDeletedAt() == null && thumbnailService.supports(file.getContentType())) {
+            thumbnailService.enqueue(file, target);
+        }
+        return response;
+    }
+
+    /**
+     * Принимает данные сохраненной версии файла, переносимой на этот узел; ответ - как у accept.
+     */
+    public ClusterTransferResponse acceptVersion(Long versionId, InputStream content) throws IOException {
+        FileVersion version = fileVersionService.findById(versionId)
+                .orElseThrow(() -> new FileNotFoundException("Версия файла не найдена: " + versionId));
+        return receive(versionId, version.isEncrypted(), version.getSize(), version.getSha256(),
+                version.isPacked() ? null : fileVersionService.path(version), content);
+    }
+
+    /**
+     * Записывает принятое содержимое в том (target == null) или в target и сверяет его размер
+     * и контрольную сумму с метаданными.
+     */
+    private ClusterTransferResponse receive(Long id, boolean encrypted, long size, String sha256, Path target,
+                                            InputStream content) throws IOException {
+        if (target == null) {
+            long length = encrypted ? size + EncryptionService.BLOB_OVERHEAD : size;
+            byte[] bytes;
+            try (InputStream in = content) {
+                bytes = in.readNBytes(Math.toIntExact(length));
+                if (bytes.length != length || in.read() != -1) {
+                    throw new ChecksumMismatchException("Размер содержимого не совпадает: " + id);
+                }
+            }
+            byte[] plain = encrypted ? encryptionService.decrypt(bytes) : bytes;
+            verify(id, sha256, HexFormat.of().formatHex(StorageService.newSha256().digest(plain)));
+            VolumeStore.Location location = volumeStore.append(bytes);
+            return new ClusterTransferResponse(location.volumeId(), location.offset());
+        }
+
+        StorageService.StoredContent stored = storageService.write(target, content, Long.MAX_VALUE);
+        try {
+            if (encrypted) {
+                try (InputStream plain = encryptionService.openStream(target)) {
+                    stored = StorageService.digest(plain);
+                }
+            }
+            if (stored.size() != size) {
+                throw new ChecksumMismatchException("Размер содержимого не совпадает: " + id);
+            }
+            verify(id, sha256, stored.sha256());
+        } catch (ChecksumMismatchException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        return new ClusterTransferResponse(null, null);
+    }
+
+    private ClusterTransferResponse send(String baseUrl, User user, File file) throws IOException, InterruptedException {
+        HttpRequest.BodyPublisher body;
+        if (file.isPacked()) {
+            body = HttpRequest.BodyPublishers.ofByteArray(volumeStore.read(file));
+        } else {
+            Path source = file.getDeletedAt() != null
+                    ? storageService.resolveTrash(user, file.getId())
+                    : storageService.resolve(user, file.getFilename());
+            if (!Files.exists(source)) {
+                log.warn("Данные файла {} пользователя {} отсутствуют, перенос без содержимого",
+                        file.getId(), user.getUsername());
+                return null;
+            }
+            body = HttpRequest.BodyPublishers.ofFile(source);
+        }
+        ClusterTransferResponse location = transfer(baseUrl + "/cluster/files/" + file.getId(), body, "файл " + file.getId());
+        migratedFiles.increment();
+        migratedBytes.increment(file.getSize());
+        return location;
+    }
+
+    private ClusterTransferResponse send(String baseUrl, FileVersion version) throws IOException, InterruptedException {
+        HttpRequest.BodyPublisher body;
+        if (version.isPacked()) {
+            long length = version.isEncrypted() ? version.getSize() + EncryptionService.BLOB_OVERHEAD : version.getSize();
+            body = HttpRequest.BodyPublishers.ofByteArray(
+                    volumeStore.read(version.getVolumeId(), version.getVolumeOffset(), Math.toIntExact(length)));
+        } else {
+            Path source = fileVersionService.path(version);
+            if (!Files.exists(source)) {
+                log.warn("Данные версии {} файла {} отсутствуют, перенос без содержимого",
+                        version.getId(), version.getFileId());
+                return null;
+            }
+            body = HttpRequest.BodyPublishers.ofFile(source);
+        }
+        ClusterTransferResponse location = transfer(baseUrl + "/cluster/versions/" + version.getId(), body,
+                "версию " + version.getId());
+        migratedBytes.increment(version.getSize());
+        return location;
+    }
+
+    private ClusterTransferResponse transfer(String url, HttpRequest.BodyPublisher body, String subject)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(properties.getForwardTimeout())
+                .header(SECRET_HEADER, properties.getSecret())
+                .PUT(body)
+                .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Узел отклонил " + subject + ": " + response.statusCode() + " " + response.body());
+        }
+        return objectMapper.readValue(response.body(), ClusterTransferResponse.class);
+    }
+
+    private static void verify(Long id, String expected, String sha256) {
+        if (expected != null && !expected.equalsIgnoreCase(sha256)) {
+            throw new ChecksumMismatchException("Контрольная сумма не совпадает: " + id);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ru.netology.filestorage.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
+import ru.netology.filestorage.config.ClusterProperties;
+import ru.netology.filestorage.entity.ClusterNode;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.ClusterNodeRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Состав кластера и размещение пользователей. Узлы регистрируются в общей БД метаданных (cluster_nodes)
+ * и подтверждают себя heartbeat; живые узлы без флага leaving образуют кольцо согласованного хеширования.
+ * Пользователя обслуживает узел из users.node_id, где лежат его файлы. Новый пользователь закрепляется
+ * за владельцем по кольцу при первом обращении к этому узлу; перенос к новому владельцу после изменения
+ * состава кластера выполняет ClusterRebalancer.
+ */
+@Service
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "true")
+public class ClusterService {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterService.class);
+    private final ClusterNodeRepository nodeRepository;
+    private final UserRepository userRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ClusterProperties properties;
+    private final Map<String, ReentrantReadWriteLock> userLocks = new ConcurrentHashMap<>();
+    private volatile HashRing ring = new HashRing(List.of(), 0);
+    private volatile Map<String, String> urls = Map.of();
+
+    public ClusterService(ClusterNodeRepository nodeRepository,
+                          UserRepository userRepository,
+                          PlatformTransactionManager transactionManager,
+                          ClusterProperties properties) {
+        if (!StringUtils.hasText(properties.getUrl()) || !StringUtils.hasText(properties.getSecret())) {
+            throw new IllegalStateException("В кластерном режиме обязательны app.cluster.url и app.cluster.secret");
+        }
+        this.nodeRepository = nodeRepository;
+        this.userRepository = userRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.properties = properties;
+    }
+
+    @Scheduled(fixedDelayString = "${app.cluster.heartbeat-interval:PT5S}")
+    public void heartbeat() {
+        try {
+            transactionTemplate.executeWithoutResult(status -> nodeRepository.save(new ClusterNode(
+                    properties.getNodeId(), properties.getUrl(), LocalDateTime.now(), properties.isLeaving())));
+            refresh();
+        } catch (Exception e) {
+            log.error("Ошибка обновления состава кластера", e);
+        }
+    }
+
+    public void refresh() {
+        List<ClusterNode> alive = nodeRepository.findAlive(LocalDateTime.now().minus(properties.getNodeTimeout()));
+        Map<String, String> aliveUrls = new HashMap<>();
+        for (ClusterNode node : alive) {
+            aliveUrls.put(node.getId(), node.getUrl());
+        }
+        List<String> members = alive.stream().filter(node -> !node.isLeaving()).map(ClusterNode::getId).toList();
+        Set<String> previous = ring.nodes();
+        urls = Map.copyOf(aliveUrls);
+        if (!previous.equals(Set.copyOf(members))) {
+            ring = new HashRing(members, properties.getVirtualNodes());
+            log.info("Состав кластера изменился: {} -> {}", previous, ring.nodes());
+        }
+    }
+
+    public String nodeId() {
+        return properties.getNodeId();
+    }
+
+    public boolean isAlive(String node) {
+        return urls.containsKey(node);
+    }
+
+    public String urlOf(String node) {
+        return urls.get(node);
+    }
+
+    /**
+     * Владелец пользователя по кольцу - узел, на котором должны лежать его файлы.
+     */
+    public String placementOf(String username) {
+        if (ring.isEmpty()) {
+            heartbeat();
+        }
+        return ring.ownerOf(username);
+    }
+
+    /**
+     * Узел, который обслуживает запросы пользователя сейчас.
+     */
+    public String ownerOf(User user) {
+        String assigned = userRepository.findNodeId(user.getId()).orElse(null);
+        if (assigned != null) {
+            return assigned;
+        }
+        String placement = placementOf(user.getUsername());
+        if (!nodeId().equals(placement)) {
+            return placement;
+        }
+        Integer claimed = transactionTemplate.execute(status -> userRepository.claimNode(user.getId(), nodeId()));
+        if (claimed != null && claimed > 0) {
+            log.info("Пользователь {} закреплен за узлом {}", user.getUsername(), nodeId());
+            return nodeId();
+        }
+        return userRepository.findNodeId(user.getId()).orElse(nodeId());
+    }
+
+    /**
+     * Блокировка, которую держит каждый меняющий данные запрос пользователя; перенос берет ее на запись.
+     */
+    public Lock mutationLock(String username) {
+        return lock(username).readLock();
+    }
+
+    public Lock migrationLock(String username) {
+        return lock(username).writeLock();
+    }
+
+    public boolean isTrusted(String secret) {
+        return secret != null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                properties.getSecret().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private ReentrantReadWriteLock lock(String username) {
+        return userLocks.computeIfAbsent(username, key -> new ReentrantReadWriteLock());
+    }
+}
@@ -0,0 +1,229 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Фоновая очистка удаленных файлов. Строки с deleted_at старше grace-period читаются пачками по id,
+ * данные из корзины удаляются с ограничением скорости, затем строки удаляются одной короткой транзакцией.
+ * Строка удаляется, только если она все еще помечена, поэтому восстановленный файл не пострадает.
+ * Вместе с файлом удаляется его история версий. Данные, корзины, версии и превью пользователей,
+ * удаленных каскадом вместе со строками files, удаляются целиком с тем же ограничением скорости.
+ */
+@Service
+@ConditionalOnProperty(name = "app.deletion.reclaim.enabled", havingValue = "true", matchIfMissing = true)
+public class DeletionReclaimer {
+
+    private static final Logger log = LoggerFactory.getLogger(DeletionReclaimer.class);
+    private final FileRepository fileRepository;
+    private final UserRepository userRepository;
+    private final StorageService storageService;
+    private final FileVersionService fileVersionService;
+    private final ThumbnailService thumbnailService;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration gracePeriod;
+    private final int batchSize;
+    private final long maxFilesPerSecond;
+    private final String nodeId;
+    private final Counter reclaimedFiles;
+    private final Counter reclaimedBytes;
+    private final Counter failures;
+
+    public DeletionReclaimer(FileRepository fileRepository,
+                             UserRepository userRepository,
+                             StorageService storageService,
+                             FileVersionService fileVersionService,
+                             ThumbnailService thumbnailService,
+                             PlatformTransactionManager transactionManager,
+                             MeterRegistry meterRegistry,
+                             @Value("${app.deletion.grace-period:PT0S}") Duration gracePeriod,
+                             @Value("${app.deletion.reclaim.batch-size:500}") int batchSize,
+                             @Value("${app.deletion.reclaim.max-files-per-second:1000}") long maxFilesPerSecond,
+                             @Value("${app.cluster.node-id:local}") String nodeId) {
+        this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
+        this.storageService = storageService;
+        this.fileVersionService = fileVersionService;
+        this.thumbnailService = thumbnailService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.gracePeriod = gracePeriod;
+        this.batchSize = batchSize;
+        this.maxFilesPerSecond = maxFilesPerSecond;
+        this.nodeId = nodeId;
+        this.reclaimedFiles = Counter.builder("filestorage.deletion.reclaimed.files").register(meterRegistry);
+        this.reclaimedBytes = Counter.builder("filestorage.deletion.reclaimed.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.failures = Counter.builder("filestorage.deletion.reclaim.failures").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.deletion.reclaim.interval:PT1M}",
+            initialDelayString = "${app.deletion.reclaim.initial-delay:PT1M}")
+    public void reclaimDeletedFiles() {
+        try {
+            Result result = reclaim(LocalDateTime.now());
+            if (result.files() > 0) {
+                log.info("Очищено удаленных файлов: {} ({} байт)", result.files(), result.bytes());
+            }
+        } catch (Exception e) {
+            log.error("Ошибка очистки удаленных файлов", e);
+        }
+    }
+
+    public Result reclaim(LocalDateTime now) throws IOException {
+        LocalDateTime cutoff = now.minus(gracePeriod);
+        Throttle throttle = new Throttle(maxFilesPerSecond);
+        long afterId = 0L;
+        int files = 0;
+        long bytes = 0;
+
+        while (true) {
+            List<File> batch = fileRepository.findTombstonesBefore(nodeId, cutoff, afterId, PageRequest.of(0, batchSize));
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            List<Long> ids = new ArrayList<>(batch.size());
+            long batchBytes = 0;
+            for (File file : batch) {
+                acquire(throttle);
+                try {
+                    batchBytes += unlink(file);
+                    ids.add(file.getId());
+                } catch (IOException e) {
+                    failures.increment();
+                    log.warn("Не удалось удалить данные файла {} (id {}), повтор при следующем проходе",
+                            file.getFilename(), file.getId(), e);
+                }
+            }
+
+            if (!ids.isEmpty()) {
+                try {
+                    batchBytes += fileVersionService.deleteData(ids);
+                } catch (IOException e) {
+                    failures.increment();
+                    log.warn("Не удалось удалить данные версий удаленных файлов, повтор при следующем проходе", e);
+                    ids.clear();
+                }
+            }
+            if (!ids.isEmpty()) {
+                Integer purged = transactionTemplate.execute(status -> {
+                    fileVersionService.deleteRows(ids);
+                    return fileRepository.purgeTombstones(ids);
+                });
+                int count = purged != null ? purged : 0;
+                files += count;
+                bytes += batchBytes;
+                reclaimedFiles.increment(count);
+                reclaimedBytes.increment(batchBytes);
+            }
+            afterId = batch.get(batch.size() - 1).getId();
+            log.debug("Очищена пачка удаленных файлов: {} шт., последний id: {}", ids.size(), afterId);
+
+            if (batch.size() < batchSize) {
+                break;
+            }
+        }
+
+        sweepRemovedAccounts(throttle);
+        return new Result(files, bytes);
+    }
+
+    /**
+     * Данные мелких файлов остаются в томе до уплотнения (VolumeCompactor), здесь удаляются только превью.
+     */
+    private long unlink(File file) throws IOException {
+        if (file.isPacked()) {
+            thumbnailService.delete(file);
+            return 0;
+        }
+        Path path = storageService.resolveTrash(file.getUser(), file.getId());
+        long size = 0;
+        try {
+            size = Files.size(path);
+            Files.delete(path);
+        } catch (NoSuchFileException e) {
+            log.debug("Данные удаленного файла отсутствуют в корзине: {}", path);
+        }
+        thumbnailService.delete(file);
+        return size;
+    }
+
+    private void sweepRemovedAccounts(Throttle throttle) throws IOException {
+        for (String parent : List.of("", StorageService.TRASH_DIR, StorageService.VERSIONS_DIR,
+                ThumbnailService.THUMBNAILS_DIR)) {
+            Path root = storageService.getRoot().resolve(parent);
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path directory : directories) {
+                    String name = directory.getFileName().toString();
+                    if (name.chars().allMatch(Character::isDigit) && !userRepository.existsById(Long.parseLong(name))) {
+                        deleteTree(directory, throttle);
+                        log.info("Удален каталог {} удаленного пользователя: {}",
+                                parent.isEmpty() ? "данных" : parent, name);
+                    }
+                }
+            }
+        }
+    }
+
+    private void deleteTree(Path directory, Throttle throttle) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                acquire(throttle);
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void acquire(Throttle throttle) throws InterruptedIOException {
+        try {
+            throttle.acquire(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Очистка удаленных файлов прервана");
+        }
+    }
+
+    public record Result(int files, long bytes) {
+    }
+}
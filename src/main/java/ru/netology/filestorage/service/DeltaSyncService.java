@@ -0,0 +1,209 @@
+package ru.netology.filestorage.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.netology.filestorage.dto.BlockSignature;
+import ru.netology.filestorage.dto.DeltaInstruction;
+import ru.netology.filestorage.dto.FileSignatureResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Дельта-синхронизация в стиле rsync: сервер отдает сигнатуры блоков файла (скользящая и сильная суммы),
+ * клиент присылает только измененные данные и ссылки на совпавшие блоки, а новая версия собирается
+ * на сервере одним последовательным проходом.
+ */
+@Service
+public class DeltaSyncService {
+
+    private static final int STRONG_HASH_BYTES = 16;
+
+    private final int minBlockSize;
+    private final int maxBlockSize;
+
+    public DeltaSyncService(@Value("${app.delta.min-block-size:2048}") int minBlockSize,
+                            @Value("${app.delta.max-block-size:131072}") int maxBlockSize) {
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * Размер блока по умолчанию - около sqrt(size), что балансирует объем сигнатур и передаваемых данных.
+     */
+    public int resolveBlockSize(Integer requested, long fileSize) {
+        if (requested != null) {
+            if (requested < minBlockSize || requested > maxBlockSize) {
+                throw new IllegalArgumentException("Размер блока должен быть от " + minBlockSize + " до " + maxBlockSize);
+            }
+            return requested;
+        }
+        int sqrt = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(fileSize)));
+        return Math.max(minBlockSize, Math.min(maxBlockSize, sqrt));
+    }
+
+    public FileSignatureResponse signature(Path source, int blockSize) throws IOException {
+        return signature(Files.newInputStream(source), blockSize);
+    }
+
+    /**
+     * Считает сигнатуру по потоку и закрывает его.
+     */
+    public FileSignatureResponse signature(InputStream source, int blockSize) throws IOException {
+        MessageDigest fileDigest = StorageService.newSha256();
+        List<BlockSignature> blocks = new ArrayList<>();
+        byte[] block = new byte[blockSize];
+        long size = 0;
+
+        try (InputStream in = source) {
+            int length;
+            while ((length = in.readNBytes(block, 0, blockSize)) > 0) {
+                fileDigest.update(block, 0, length);
+                blocks.add(new BlockSignature(blocks.size(), RollingChecksum.compute(block, 0, length),
+                        strongHash(block, 0, length)));
+                size += length;
+            }
+        }
+        return new FileSignatureResponse(blockSize, size, HexFormat.of().formatHex(fileDigest.digest()), blocks);
+    }
+
+    public static String strongHash(byte[] data, int offset, int length) {
+        MessageDigest digest = StorageService.newSha256();
+        digest.update(data, offset, length);
+        return HexFormat.of().formatHex(Arrays.copyOf(digest.digest(), STRONG_HASH_BYTES));
+    }
+
+    /**
+     * Поток с содержимым новой версии: блоки читаются из base, литералы - из data.
+     * Поток закрывает base и data.
+     */
+    public InputStream reconstruct(Path base, int blockSize, List<DeltaInstruction> instructions,
+                                   InputStream data) throws IOException {
+        return reconstruct(FileChannel.open(base, StandardOpenOption.READ), blockSize, instructions, data);
+    }
+
+    /**
+     * Вариант для base с произвольным доступом, например расшифровывающего канала зашифрованного файла.
+     */
+    public InputStream reconstruct(SeekableByteChannel channel, int blockSize, List<DeltaInstruction> instructions,
+                                   InputStream data) throws IOException {
+        try {
+            return new DeltaInputStream(channel, channel.size(), blockSize, validate(instructions), data);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static List<DeltaInstruction> validate(List<DeltaInstruction> instructions) {
+        if (instructions == null || instructions.isEmpty()) {
+            throw new IllegalArgumentException("Список операций пуст");
+        }
+        for (DeltaInstruction instruction : instructions) {
+            boolean copy = instruction.block() != null;
+            boolean literal = instruction.length() != null;
+            if (copy == literal) {
+                throw new IllegalArgumentException("Операция должна ссылаться либо на блок, либо на данные");
+            }
+            if (copy && (instruction.block() < 0 || (instruction.count() != null && instruction.count() < 1))) {
+                throw new IllegalArgumentException("Некорректная ссылка на блок: " + instruction.block());
+            }
+            if (literal && instruction.length() < 0) {
+                throw new IllegalArgumentException("Некорректная длина данных: " + instruction.length());
+            }
+        }
+        return instructions;
+    }
+
+    private static final class DeltaInputStream extends InputStream {
+        private final SeekableByteChannel base;
+        private final long baseSize;
+        private final int blockSize;
+        private final Iterator<DeltaInstruction> instructions;
+        private final InputStream data;
+        private DeltaInstruction current;
+        private long position;
+        private long remaining;
+
+        DeltaInputStream(SeekableByteChannel base, long baseSize, int blockSize,
+                         List<DeltaInstruction> instructions, InputStream data) {
+            this.base = base;
+            this.baseSize = baseSize;
+            this.blockSize = blockSize;
+            this.instructions = instructions.iterator();
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (remaining == 0) {
+                if (!instructions.hasNext()) {
+                    if (data.read() != -1) {
+                        throw new IllegalArgumentException("Переданы лишние данные");
+                    }
+                    return -1;
+                }
+                next();
+            }
+
+            int chunk = (int) Math.min(length, remaining);
+            int read;
+            if (current.block() != null) {
+                read = base.position(position).read(ByteBuffer.wrap(buffer, offset, chunk));
+                if (read <= 0) {
+                    throw new IllegalArgumentException("Ссылка за пределы исходного файла");
+                }
+                position += read;
+            } else {
+                read = data.read(buffer, offset, chunk);
+                if (read == -1) {
+                    throw new IllegalArgumentException("Недостаточно данных для сборки файла");
+                }
+            }
+            remaining -= read;
+            return read;
+        }
+
+        private void next() {
+            current = instructions.next();
+            if (current.block() != null) {
+                int count = current.count() != null ? current.count() : 1;
+                position = current.block() * blockSize;
+                if (position >= baseSize) {
+                    throw new IllegalArgumentException("Ссылка за пределы исходного файла: блок " + current.block());
+                }
+                remaining = Math.min((long) count * blockSize, baseSize - position);
+            } else {
+                remaining = current.length();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                base.close();
+            } finally {
+                data.close();
+            }
+        }
+    }
+}
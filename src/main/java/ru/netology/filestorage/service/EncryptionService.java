@@ -0,0 +1,595 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.UrlResource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.exception.ChecksumMismatchException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Шифрование файлов на диске блоками фиксированного размера (AES-GCM, аппаратное ускорение JDK).
+ * Каждый файл шифруется своим случайным ключом данных, который хранится в заголовке файла
+ * зашифрованным мастер-ключом. Блок шифруется независимо (nonce - номер блока, в AAD - номер
+ * и признак последнего блока), поэтому чтение диапазона расшифровывает только затронутые блоки,
+ * а перестановка или усечение блоков обнаруживаются.
+ * Формат: FSE1 | id мастер-ключа | размер блока | IV ключа | ключ данных + тег | блоки (данные + тег).
+ * Мелкие файлы в томах хранятся одним блоком, поэтому их размер на диске равен size + BLOB_OVERHEAD.
+ */
+@Service
+public class EncryptionService {
+
+    public static final int TAG_SIZE = 16;
+    public static final int HEADER_SIZE = 4 + 4 + 4 + 12 + 32 + TAG_SIZE;
+    public static final int BLOB_OVERHEAD = HEADER_SIZE + TAG_SIZE;
+    private static final byte[] MAGIC = {'F', 'S', 'E', '1'};
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_SIZE = 12;
+    private static final int DATA_KEY_SIZE = 32;
+    private static final int KEY_AAD_SIZE = 12;
+
+    private static final Logger log = LoggerFactory.getLogger(EncryptionService.class);
+    private final boolean enabled;
+    private final int chunkSize;
+    private final SecretKey masterKey;
+    private final int masterKeyId;
+    private final Map<Integer, SecretKey> masterKeys = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final Counter encryptedChunks;
+    private final Counter decryptedChunks;
+
+    public EncryptionService(@Value("${app.encryption.enabled:false}") boolean enabled,
+                             @Value("${app.encryption.master-key:}") String masterKey,
+                             @Value("${app.encryption.previous-master-keys:}") List<String> previousMasterKeys,
+                             @Value("${app.encryption.chunk-size:64KB}") DataSize chunkSize,
+                             MeterRegistry meterRegistry) {
+        if (chunkSize.toBytes() <= 0 || chunkSize.toBytes() > Integer.MAX_VALUE - TAG_SIZE) {
+            throw new IllegalArgumentException("Некорректный размер блока шифрования: " + chunkSize);
+        }
+        this.enabled = enabled;
+        this.chunkSize = (int) chunkSize.toBytes();
+        this.masterKey = masterKey == null || masterKey.isBlank() ? null : parseKey(masterKey);
+        this.masterKeyId = this.masterKey != null ? keyId(this.masterKey) : 0;
+        if (this.masterKey != null) {
+            masterKeys.put(masterKeyId, this.masterKey);
+        }
+        for (String previous : previousMasterKeys) {
+            if (!previous.isBlank()) {
+                SecretKey key = parseKey(previous);
+                masterKeys.putIfAbsent(keyId(key), key);
+            }
+        }
+        if (enabled && this.masterKey == null) {
+            throw new IllegalStateException("Для шифрования нужен app.encryption.master-key");
+        }
+        this.encryptedChunks = Counter.builder("filestorage.encryption.chunks")
+                .tag("operation", "encrypt")
+                .register(meterRegistry);
+        this.decryptedChunks = Counter.builder("filestorage.encryption.chunks")
+                .tag("operation", "decrypt")
+                .register(meterRegistry);
+        if (enabled) {
+            log.info("Шифрование файлов включено: блоки по {} байт", this.chunkSize);
+        }
+    }
+
+    /**
+     * Шифруются ли новые файлы. Уже зашифрованные файлы читаются и при выключенном шифровании,
+     * пока задан их мастер-ключ.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Обертка потока записи на диск для StorageService.write: шифрует, если шифрование включено.
+     */
+    public UnaryOperator<OutputStream> encoder() {
+        return enabled ? this::encrypt : UnaryOperator.identity();
+    }
+
+    /**
+     * Поток, записывающий в target зашифрованное содержимое; последний блок дописывается при close.
+     */
+    public OutputStream encrypt(OutputStream target) {
+        return new EncryptingOutputStream(target, newDataKey(chunkSize));
+    }
+
+    /**
+     * Шифрует содержимое мелкого файла одним блоком.
+     */
+    public byte[] encrypt(byte[] content) {
+        DataKey key = newDataKey(Math.max(1, content.length));
+        byte[] blob = Arrays.copyOf(key.header(), content.length + BLOB_OVERHEAD);
+        ByteBuffer output = ByteBuffer.wrap(blob, HEADER_SIZE, content.length + TAG_SIZE);
+        crypt(newCipher(), Cipher.ENCRYPT_MODE, key.key(), 0, true, ByteBuffer.wrap(content), output);
+        encryptedChunks.increment();
+        return blob;
+    }
+
+    public byte[] decrypt(byte[] blob) throws IOException {
+        try (SeekableByteChannel channel = new DecryptingChannel(new ByteArrayChannel(blob))) {
+            ByteBuffer content = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+            while (content.hasRemaining() && channel.read(content) > 0) {
+                // читаем до конца
+            }
+            return content.array();
+        }
+    }
+
+    /**
+     * Содержимое файла из тома: расшифровывается, если файл зашифрован.
+     */
+    public byte[] decrypt(File file, byte[] stored) throws IOException {
+        return file.isEncrypted() ? decrypt(stored) : stored;
+    }
+
+    /**
+     * Канал чтения расшифрованного содержимого с произвольным позиционированием.
+     */
+    public SeekableByteChannel openChannel(Path path) throws IOException {
+        FileChannel source = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new DecryptingChannel(source);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    public SeekableByteChannel openChannel(File file, Path path) throws IOException {
+        return file.isEncrypted() ? openChannel(path) : FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * Поток расшифрованного содержимого; skip переходит к нужному блоку без расшифровки пропущенных.
+     */
+    public InputStream openStream(Path path) throws IOException {
+        return new ChannelInputStream(openChannel(path));
+    }
+
+    public InputStream openStream(File file, Path path) throws IOException {
+        return file.isEncrypted() ? openStream(path) : Files.newInputStream(path);
+    }
+
+    /**
+     * Ресурс для скачивания. Spring MVC отдает Range-запросы через skip потока ресурса,
+     * поэтому для зашифрованного файла расшифровываются только блоки запрошенного диапазона.
+     */
+    public Resource resource(File file, Path path) throws IOException {
+        return file.isEncrypted() ? new DecryptedResource(path, file.getSize()) : new UrlResource(path.toUri());
+    }
+
+    private DataKey newDataKey(int chunkSize) {
+        if (masterKey == null) {
+            throw new IllegalStateException("Не задан мастер-ключ шифрования");
+        }
+        byte[] dataKey = new byte[DATA_KEY_SIZE];
+        byte[] iv = new byte[IV_SIZE];
+        random.nextBytes(dataKey);
+        random.nextBytes(iv);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putInt(masterKeyId).putInt(chunkSize).put(iv);
+        try {
+            Cipher cipher = newCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_SIZE * 8, iv));
+            cipher.updateAAD(header.array(), 0, KEY_AAD_SIZE);
+            header.put(cipher.doFinal(dataKey));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Не удалось создать ключ файла", e);
+        }
+        return new DataKey(new SecretKeySpec(dataKey, "AES"), chunkSize, header.array());
+    }
+
+    private DataKey readDataKey(ByteBuffer header) {
+        byte[] bytes = header.array();
+        if (!Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new ChecksumMismatchException("Файл не зашифрован или поврежден заголовок");
+        }
+        int keyId = header.getInt(4);
+        int fileChunkSize = header.getInt(8);
+        SecretKey key = masterKeys.get(keyId);
+        if (key == null) {
+            throw new IllegalStateException("Не найден мастер-ключ файла: " + Integer.toHexString(keyId));
+        }
+        if (fileChunkSize <= 0) {
+            throw new ChecksumMismatchException("Поврежден заголовок зашифрованного файла");
+        }
+        try {
+            Cipher cipher = newCipher();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, bytes, KEY_AAD_SIZE, IV_SIZE));
+            cipher.updateAAD(bytes, 0, KEY_AAD_SIZE);
+            byte[] dataKey = cipher.doFinal(bytes, KEY_AAD_SIZE + IV_SIZE, DATA_KEY_SIZE + TAG_SIZE);
+            return new DataKey(new SecretKeySpec(dataKey, "AES"), fileChunkSize, bytes);
+        } catch (AEADBadTagException e) {
+            throw new ChecksumMismatchException("Не удалось расшифровать ключ файла");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Не удалось расшифровать ключ файла", e);
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM недоступен", e);
+        }
+    }
+
+    private static void crypt(Cipher cipher, int mode, SecretKey key, long chunk, boolean last,
+                              ByteBuffer input, ByteBuffer output) {
+        byte[] nonce = new byte[IV_SIZE];
+        ByteBuffer.wrap(nonce).putLong(4, chunk);
+        byte[] aad = new byte[9];
+        ByteBuffer.wrap(aad).putLong(chunk).put(last ? (byte) 1 : 0);
+        try {
+            cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            cipher.updateAAD(aad);
+            cipher.doFinal(input, output);
+        } catch (AEADBadTagException e) {
+            throw new ChecksumMismatchException("Нарушена целостность зашифрованного блока " + chunk);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Ошибка шифрования блока " + chunk, e);
+        }
+    }
+
+    private static SecretKey parseKey(String encoded) {
+        byte[] key = Base64.getDecoder().decode(encoded.trim());
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("Мастер-ключ должен быть 128, 192 или 256 бит в Base64");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static int keyId(SecretKey key) {
+        return ByteBuffer.wrap(StorageService.newSha256().digest(key.getEncoded())).getInt();
+    }
+
+    private record DataKey(SecretKey key, int chunkSize, byte[] header) {
+    }
+
+    private final class EncryptingOutputStream extends FilterOutputStream {
+        private final DataKey key;
+        private final ByteBuffer buffer;
+        private final ByteBuffer encrypted;
+        private final Cipher cipher = newCipher();
+        private long chunk;
+        private boolean headerWritten;
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream target, DataKey key) {
+            super(target);
+            this.key = key;
+            this.buffer = ByteBuffer.allocate(key.chunkSize());
+            this.encrypted = ByteBuffer.allocate(key.chunkSize() + TAG_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                // полный блок шифруется только когда известно, что он не последний
+                if (!buffer.hasRemaining()) {
+                    flushChunk(false);
+                }
+                int n = Math.min(length, buffer.remaining());
+                buffer.put(data, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try (OutputStream target = out) {
+                flushChunk(true);
+                target.flush();
+            }
+        }
+
+        private void flushChunk(boolean last) throws IOException {
+            if (!headerWritten) {
+                out.write(key.header());
+                headerWritten = true;
+            }
+            buffer.flip();
+            encrypted.clear();
+            crypt(cipher, Cipher.ENCRYPT_MODE, key.key(), chunk++, last, buffer, encrypted);
+            out.write(encrypted.array(), 0, encrypted.position());
+            buffer.clear();
+            encryptedChunks.increment();
+        }
+    }
+
+    /**
+     * Расшифровывающий канал поверх зашифрованного источника. Держит в памяти один расшифрованный блок.
+     */
+    private final class DecryptingChannel implements SeekableByteChannel {
+        private final SeekableByteChannel source;
+        private final DataKey key;
+        private final long chunks;
+        private final long size;
+        private final ByteBuffer encrypted;
+        private final ByteBuffer plain;
+        private final Cipher cipher = newCipher();
+        private long loadedChunk = -1;
+        private long position;
+
+        DecryptingChannel(SeekableByteChannel source) throws IOException {
+            this.source = source;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(0, header);
+            this.key = readDataKey(header);
+            long stored = source.size() - HEADER_SIZE;
+            long storedChunk = (long) key.chunkSize() + TAG_SIZE;
+            this.chunks = (stored + storedChunk - 1) / storedChunk;
+            if (chunks == 0 || stored - (chunks - 1) * storedChunk < TAG_SIZE) {
+                throw new ChecksumMismatchException("Зашифрованный файл усечен");
+            }
+            this.size = stored - chunks * TAG_SIZE;
+            this.encrypted = ByteBuffer.allocate((int) Math.min(storedChunk, stored));
+            this.plain = ByteBuffer.allocate((int) Math.min(key.chunkSize(), Math.max(size, 1)));
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            if (position >= size) {
+                return -1;
+            }
+            long chunk = position / key.chunkSize();
+            if (chunk != loadedChunk) {
+                load(chunk);
+            }
+            int offset = (int) (position - chunk * key.chunkSize());
+            int n = Math.min(target.remaining(), plain.limit() - offset);
+            target.put(plain.array(), offset, n);
+            position += n;
+            return n;
+        }
+
+        private void load(long chunk) throws IOException {
+            long storedChunk = (long) key.chunkSize() + TAG_SIZE;
+            long start = HEADER_SIZE + chunk * storedChunk;
+            encrypted.clear();
+            encrypted.limit((int) Math.min(storedChunk, source.size() - start));
+            readFully(start, encrypted);
+            encrypted.flip();
+            plain.clear();
+            loadedChunk = -1;
+            crypt(cipher, Cipher.DECRYPT_MODE, key.key(), chunk, chunk == chunks - 1, encrypted, plain);
+            plain.flip();
+            loadedChunk = chunk;
+            decryptedChunks.increment();
+        }
+
+        private void readFully(long offset, ByteBuffer target) throws IOException {
+            source.position(offset);
+            while (target.hasRemaining()) {
+                if (source.read(target) < 0) {
+                    throw new ChecksumMismatchException("Зашифрованный файл усечен");
+                }
+            }
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Отрицательная позиция: " + newPosition);
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    private static final class ByteArrayChannel implements SeekableByteChannel {
+        private final byte[] content;
+        private int position;
+        private boolean open = true;
+
+        ByteArrayChannel(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(ByteBuffer target) {
+            if (position >= content.length) {
+                return -1;
+            }
+            int n = Math.min(target.remaining(), content.length - position);
+            target.put(content, position, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            position = (int) Math.min(newPosition, content.length);
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return content.length;
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    private static final class ChannelInputStream extends InputStream {
+        private final SeekableByteChannel channel;
+
+        ChannelInputStream(SeekableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(buffer, offset, length));
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long position = channel.position();
+            long target = Math.min(channel.size(), position + Math.max(0, n));
+            channel.position(target);
+            return target - position;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, channel.size() - channel.position()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private final class DecryptedResource extends AbstractResource {
+        private final Path path;
+        private final long size;
+
+        DecryptedResource(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        @Override
+        public boolean exists() {
+            return Files.exists(path);
+        }
+
+        @Override
+        public boolean isReadable() {
+            return Files.isReadable(path);
+        }
+
+        @Override
+        public long contentLength() {
+            return size;
+        }
+
+        @Override
+        public String getFilename() {
+            return path.getFileName().toString();
+        }
+
+        @Override
+        public String getDescription() {
+            return "encrypted file [" + path + "]";
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return openStream(path);
+        }
+    }
+}
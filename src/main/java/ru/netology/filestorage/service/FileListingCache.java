@@ -0,0 +1,216 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.dto.FileSummary;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Кеш последних файлов пользователя для /list. Хранит компактные проекции, а не сущности.
+ * Изменения файлов патчат запись на месте; загрузка из БД устанавливается только если
+ * за время запроса не было изменений (счетчик поколений по пользователю).
+ */
+@Component
+public class FileListingCache {
+
+    private static final int GENERATION_STRIPES = 256;
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+    // порядок выборки findSummariesByUser: uploaded_at DESC (NULL первыми), id DESC
+    private static final Comparator<FileSummary> LISTING_ORDER = Comparator
+            .comparing(FileSummary::uploadedAt, Comparator.nullsLast(Comparator.<LocalDateTime>naturalOrder()))
+            .thenComparing(FileSummary::id)
+            .reversed();
+
+    private final int maxEntriesPerUser;
+    private final long maxTotalBytes;
+    private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<>(64, 0.75f, true);
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final Counter hits;
+    private final Counter misses;
+    private long totalBytes;
+
+    public FileListingCache(MeterRegistry meterRegistry,
+                            @Value("${app.listing-cache.max-entries-per-user:1000}") int maxEntriesPerUser,
+                            @Value("${app.listing-cache.max-total-size:64MB}") DataSize maxTotalSize) {
+        this.maxEntriesPerUser = maxEntriesPerUser;
+        this.maxTotalBytes = maxTotalSize.toBytes();
+        this.hits = Counter.builder("filestorage.listing_cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("filestorage.listing_cache.requests").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("filestorage.listing_cache.users", this, FileListingCache::size).register(meterRegistry);
+        Gauge.builder("filestorage.listing_cache.bytes", this, FileListingCache::estimatedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public int getMaxEntriesPerUser() {
+        return maxEntriesPerUser;
+    }
+
+    /**
+     * Возвращает не более limit последних файлов или null, если кеш не может ответить на запрос.
+     */
+    public List<FileSummary> get(String username, Integer limit) {
+        Listing listing;
+        synchronized (this) {
+            listing = listings.get(username);
+        }
+        int requested = limit != null && limit > 0 ? limit : Integer.MAX_VALUE;
+        if (listing == null || (!listing.complete() && requested > listing.files().size())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        List<FileSummary> files = listing.files();
+        return requested >= files.size() ? files : files.subList(0, requested);
+    }
+
+    public long generation(String username) {
+        return generations.get(stripe(username));
+    }
+
+    public synchronized void put(String username, long generation, List<FileSummary> files, boolean complete) {
+        if (generations.get(stripe(username)) != generation) {
+            return;
+        }
+        replace(username, new Listing(List.copyOf(files), complete, estimate(files)));
+    }
+
+    public synchronized void onFileAdded(String username, FileSummary file) {
+        bumpGeneration(username);
+        Listing listing = listings.get(username);
+        if (listing == null) {
+            return;
+        }
+        List<FileSummary> files = new ArrayList<>(listing.files().size() + 1);
+        files.add(file);
+        for (FileSummary existing : listing.files()) {
+            if (!Objects.equals(existing.id(), file.id())) {
+                files.add(existing);
+            }
+        }
+        boolean complete = listing.complete();
+        if (files.size() > maxEntriesPerUser) {
+            files = files.subList(0, maxEntriesPerUser);
+            complete = false;
+        }
+        replace(username, new Listing(List.copyOf(files), complete, estimate(files)));
+    }
+
+    /**
+     * Файл вернулся в список со своим прежним временем загрузки (восстановление из корзины):
+     * запись встает на свое место по порядку списка, а не в начало. Если кешировано только
+     * начало списка и файл старше последней записи, он за пределами окна и не добавляется.
+     */
+    public synchronized void onFileRestored(String username, FileSummary file) {
+        bumpGeneration(username);
+        Listing listing = listings.get(username);
+        if (listing == null) {
+            return;
+        }
+        List<FileSummary> files = new ArrayList<>(listing.files().size() + 1);
+        for (FileSummary existing : listing.files()) {
+            if (!Objects.equals(existing.id(), file.id())) {
+                files.add(existing);
+            }
+        }
+        int position = 0;
+        while (position < files.size() && LISTING_ORDER.compare(files.get(position), file) < 0) {
+            position++;
+        }
+        boolean complete = listing.complete();
+        if (position < files.size() || complete) {
+            files.add(position, file);
+        }
+        if (files.size() > maxEntriesPerUser) {
+            files = files.subList(0, maxEntriesPerUser);
+            complete = false;
+        }
+        replace(username, new Listing(List.copyOf(files), complete, estimate(files)));
+    }
+
+    public synchronized void onFileRemoved(String username, Long fileId) {
+        bumpGeneration(username);
+        Listing listing = listings.get(username);
+        if (listing == null) {
+            return;
+        }
+        List<FileSummary> files = listing.files().stream()
+                .filter(f -> !Objects.equals(f.id(), fileId))
+                .toList();
+        replace(username, new Listing(files, listing.complete(), estimate(files)));
+    }
+
+    public synchronized void onFileRenamed(String username, Long fileId, String newFilename) {
+        bumpGeneration(username);
+        Listing listing = listings.get(username);
+        if (listing == null) {
+            return;
+        }
+        List<FileSummary> files = listing.files().stream()
+                .map(f -> Objects.equals(f.id(), fileId) ? new FileSummary(f.id(), newFilename, f.size(), f.uploadedAt()) : f)
+                .toList();
+        replace(username, new Listing(files, listing.complete(), estimate(files)));
+    }
+
+    public synchronized void invalidate(String username) {
+        bumpGeneration(username);
+        Listing removed = listings.remove(username);
+        if (removed != null) {
+            totalBytes -= removed.bytes();
+        }
+    }
+
+    public synchronized int size() {
+        return listings.size();
+    }
+
+    public synchronized long estimatedBytes() {
+        return totalBytes;
+    }
+
+    private void replace(String username, Listing listing) {
+        Listing previous = listings.put(username, listing);
+        totalBytes += listing.bytes() - (previous != null ? previous.bytes() : 0);
+        evictOverflow();
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Listing>> eldest = listings.entrySet().iterator();
+        while (totalBytes > maxTotalBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().bytes();
+            eldest.remove();
+        }
+    }
+
+    private void bumpGeneration(String username) {
+        generations.incrementAndGet(stripe(username));
+    }
+
+    private static int stripe(String username) {
+        return (username.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+    }
+
+    private static long estimate(List<FileSummary> files) {
+        long bytes = ENTRY_OVERHEAD_BYTES;
+        for (FileSummary file : files) {
+            bytes += ENTRY_OVERHEAD_BYTES + 2L * file.filename().length();
+        }
+        return bytes;
+    }
+
+    private record Listing(List<FileSummary> files, boolean complete, long bytes) {
+    }
+}
@@ -0,0 +1,145 @@
+package ru.netology.filestorage.service;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Блокировки файлов пользователя по имени в пределах узла (в кластере файлы пользователя обслуживает
+ * один узел). Замена содержимого, переименование и удаление берут блокировку записи на время от чтения
+ * строки до переименования данных на диске; чтение метаданных вместе с данными - блокировку чтения.
+ * Так читатель не видит новые метаданные поверх прежних данных между фиксацией и переименованием,
+ * а две замены одного файла не перемешиваются. Блокировки разбиты на полосы по хешу имени.
+ */
+@Component
+public class FileLocks {
+
+    private static final int STRIPES = 1024;
+
+    private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+
+    public FileLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public Held read(Long userId, String filename) {
+        Lock lock = locks[stripe(userId, filename)].readLock();
+        lock.lock();
+        return lock::unlock;
+    }
+
+    /**
+     * Блокировка записи на несколько имен (переименование, копирование); полосы берутся по возрастанию
+     * номера, чтобы встречные операции не ждали друг друга.
+     */
+    public Held write(Long userId, String... filenames) {
+        int[] stripes = Arrays.stream(filenames).mapToInt(filename -> stripe(userId, filename))
+                .distinct()
+                .sorted()
+                .toArray();
+        Lock[] held = new Lock[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            held[i] = locks[stripes[i]].writeLock();
+            held[i].lock();
+        }
+        return () -> {
+            for (int i = held.length - 1; i >= 0; i--) {
+                held[i].unlock();
+            }
+        };
+    }
+
+    /**
+     * Ресурс обычного файла, прочитанного под блокировкой чтения вместе с метаданными: данные открываются
+     * позже, при отдаче ответа, и только если по пути лежит тот же файл. Если файл успел замениться,
+     * открытие завершается ошибкой, а не отдает новое содержимое с прежними размером и контрольной суммой.
+     */
+    public Resource pinned(Long userId, String filename, Path path, long size, Resource resource) throws IOException {
+        return new PinnedResource(userId, filename, path, fileKey(path), size, resource);
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    private static int stripe(Long userId, String filename) {
+        return Math.floorMod(31 * Objects.hashCode(userId) + filename.hashCode(), STRIPES);
+    }
+
+    @FunctionalInterface
+    public interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final class PinnedResource extends AbstractResource {
+        private final Long userId;
+        private final String filename;
+        private final Path path;
+        private final Object fileKey;
+        private final long size;
+        private final Resource delegate;
+
+        PinnedResource(Long userId, String filename, Path path, Object fileKey, long size, Resource delegate) {
+            this.userId = userId;
+            this.filename = filename;
+            this.path = path;
+            this.fileKey = fileKey;
+            this.size = size;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+
+        @Override
+        public boolean isReadable() {
+            return delegate.isReadable();
+        }
+
+        @Override
+        public long contentLength() {
+            return size;
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return delegate.lastModified();
+        }
+
+        @Override
+        public String getFilename() {
+            return delegate.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return delegate.getDescription();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            try (Held held = read(userId, filename)) {
+                if (!Objects.equals(fileKey, fileKey(path))) {
+                    throw new IOException("Файл заменен после чтения метаданных: " + path);
+                }
+                return delegate.getInputStream();
+            }
+        }
+    }
+}
@@ -3,45 +3,112 @@ package ru.netology.filestorage.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import ru.netology.filestorage.dto.ChangeFeedResponse;
+import ru.netology.filestorage.dto.DeltaRequest;
+import ru.netology.filestorage.dto.FileDownload;
+import ru.netology.filestorage.dto.FileListResponse;
+import ru.netology.filestorage.dto.FileResponse;
+import ru.netology.filestorage.dto.FileSearchRequest;
+import ru.netology.filestorage.dto.FileSearchResponse;
+import ru.netology.filestorage.dto.FileSignatureResponse;
+import ru.netology.filestorage.dto.FileSummary;
+import ru.netology.filestorage.dto.FileVersionResponse;
+import ru.netology.filestorage.dto.PresignedUrlResponse;
 import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileChange;
+import ru.netology.filestorage.entity.FileVersion;
 import ru.netology.filestorage.entity.User;
 import ru.netology.filestorage.exception.*;
 import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.FileSpecifications;
 import ru.netology.filestorage.repository.UserRepository;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class FileService {
 
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+    private static final int MAX_SEARCH_LIMIT = 1000;
+    private static final Set<String> SORT_ATTRIBUTES = Set.of("uploadedAt", "size", "filename", "contentType");
+
     private static final Logger log = LoggerFactory.getLogger(FileService.class);
     private final FileRepository fileRepository;
     private final UserRepository userRepository;
-    private final String storagePath;
+    private final GroupCommitWriter groupCommitWriter;
+    private final StorageService storageService;
+    private final QuotaService quotaService;
+    private final FileListingCache fileListingCache;
+    private final ThumbnailService thumbnailService;
+    private final DeltaSyncService deltaSyncService;
+    private final ChangeFeedService changeFeedService;
+    private final VolumeStore volumeStore;
+    private final EncryptionService encryptionService;
+    private final PresignedUrlService presignedUrlService;
+    private final IoScheduler ioScheduler;
+    private final FileVersionService fileVersionService;
+    private final FileLocks fileLocks;
+    private final Duration deletionGracePeriod;
 
     public FileService(FileRepository fileRepository,
                        UserRepository userRepository,
-                       @Value("${app.storage.path:./storage}") String storagePath) {
+                       GroupCommitWriter groupCommitWriter,
+                       StorageService storageService,
+                       QuotaService quotaService,
+                       FileListingCache fileListingCache,
+                       ThumbnailService thumbnailService,
+                       DeltaSyncService deltaSyncService,
+                       ChangeFeedService changeFeedService,
+                       VolumeStore volumeStore,
+                       EncryptionService encryptionService,
+                       PresignedUrlService presignedUrlService,
+                       IoScheduler ioScheduler,
+                       FileVersionService fileVersionService,
+                       FileLocks fileLocks,
+                       @Value("${app.deletion.grace-period:PT0S}") Duration deletionGracePeriod) {
         this.fileRepository = fileRepository;
         this.userRepository = userRepository;
-        this.storagePath = storagePath;
-
-        try {
-            Files.createDirectories(Paths.get(storagePath));
-            log.info("Каталог хранения инициализирован: {}", storagePath);
-        } catch (IOException e) {
-            log.error("Не удалось создать каталог хранения: {}", storagePath, e);
-            throw new RuntimeException("Не удалось создать каталог хранения", e);
-        }
+        this.groupCommitWriter = groupCommitWriter;
+        this.storageService = storageService;
+        this.quotaService = quotaService;
+        this.fileListingCache = fileListingCache;
+        this.thumbnailService = thumbnailService;
+        this.deltaSyncService = deltaSyncService;
+        this.changeFeedService = changeFeedService;
+        this.volumeStore = volumeStore;
+        this.encryptionService = encryptionService;
+        this.presignedUrlService = presignedUrlService;
+        this.ioScheduler = ioScheduler;
+        this.fileVersionService = fileVersionService;
+        this.fileLocks = fileLocks;
+        this.deletionGracePeriod = deletionGracePeriod;
     }
 
     public List<File> getUserFiles(Integer limit) {
@@ -58,11 +125,161 @@ public class FileService {
         return files;
     }
 
-    public void uploadFile(String filename, MultipartFile file) throws IOException {
+    public List<FileListResponse> listFiles(Integer limit) {
+        String username = getCurrentUsername();
+        List<FileSummary> files = fileListingCache.get(username, limit);
+
+        if (files == null) {
+            User user = getCurrentUser();
+            long generation = fileListingCache.generation(username);
+            int window = fileListingCache.getMaxEntriesPerUser();
+            List<FileSummary> loaded = fileRepository.findSummariesByUser(user, PageRequest.of(0, window + 1));
+            boolean complete = loaded.size() <= window;
+            List<FileSummary> cached = complete ? loaded : loaded.subList(0, window);
+            fileListingCache.put(username, generation, cached, complete);
+
+            boolean unlimited = limit == null || limit <= 0;
+            if (complete || (!unlimited && limit <= cached.size())) {
+                files = unlimited ? cached : cached.subList(0, Math.min(limit, cached.size()));
+            } else {
+                Pageable page = unlimited ? Pageable.unpaged() : PageRequest.of(0, limit);
+                files = fileRepository.findSummariesByUser(user, page);
+            }
+        }
+
+        log.debug("Получено {} файлов для пользователя: {}", files.size(), username);
+        return files.stream()
+                .map(f -> new FileListResponse(f.filename(), f.size()))
+                .toList();
+    }
+
+    public FileSearchResponse searchFiles(FileSearchRequest request) {
         User user = getCurrentUser();
+        log.debug("Поиск файлов пользователя: {} по запросу: {}", user.getUsername(), request);
+
+        String sortAttribute = request.getSort() != null ? request.getSort() : "uploadedAt";
+        if (!SORT_ATTRIBUTES.contains(sortAttribute)) {
+            throw new IllegalArgumentException("Неизвестное поле сортировки: " + sortAttribute);
+        }
+        boolean descending = !"asc".equalsIgnoreCase(request.getDirection());
+        int limit = request.getLimit() != null && request.getLimit() > 0
+                ? Math.min(request.getLimit(), MAX_SEARCH_LIMIT) : DEFAULT_SEARCH_LIMIT;
+
+        List<Specification<File>> conditions = new ArrayList<>();
+        conditions.add(FileSpecifications.ownedBy(user));
+        if (request.getQuery() != null && !request.getQuery().isBlank()) {
+            conditions.add(FileSpecifications.filenameLike(toLikePattern(request.getQuery(), request.getMatch())));
+        }
+        if (request.getContentType() != null && !request.getContentType().isBlank()) {
+            conditions.add(FileSpecifications.contentType(request.getContentType()));
+        }
+        if (request.getMinSize() != null) {
+            conditions.add(FileSpecifications.sizeAtLeast(request.getMinSize()));
+        }
+        if (request.getMaxSize() != null) {
+            conditions.add(FileSpecifications.sizeAtMost(request.getMaxSize()));
+        }
+        if (request.getUploadedFrom() != null) {
+            conditions.add(FileSpecifications.uploadedFrom(request.getUploadedFrom()));
+        }
+        if (request.getUploadedTo() != null) {
+            conditions.add(FileSpecifications.uploadedBefore(request.getUploadedTo()));
+        }
+        if (request.getCursor() != null && !request.getCursor().isBlank()) {
+            conditions.add(afterCursor(sortAttribute, request.getCursor(), descending));
+        }
+
+        Sort.Direction direction = descending ? Sort.Direction.DESC : Sort.Direction.ASC;
+        Sort sort = Sort.by(direction, sortAttribute).and(Sort.by(direction, "id"));
+        List<File> found = fileRepository.findBy(Specification.allOf(conditions),
+                query -> query.sortBy(sort).limit(limit + 1).all());
+
+        boolean hasMore = found.size() > limit;
+        List<File> page = hasMore ? found.subList(0, limit) : found;
+        String nextCursor = hasMore ? encodeCursor(page.get(page.size() - 1), sortAttribute) : null;
+
+        List<FileResponse> files = page.stream()
+                .map(f -> new FileResponse(f.getFilename(), f.getSize(), f.getContentType(), f.getUploadedAt()))
+                .toList();
+        log.info("Найдено {} файлов для пользователя: {}", files.size(), user.getUsername());
+        return new FileSearchResponse(files, nextCursor);
+    }
+
+    static String toLikePattern(String query, String match) {
+        String mode = match != null ? match.toLowerCase(Locale.ROOT) : "substring";
+        String escaped = FileSpecifications.escapeLike(query.toLowerCase(Locale.ROOT));
+        return switch (mode) {
+            case "prefix" -> escaped + "%";
+            case "substring" -> "%" + escaped + "%";
+            case "glob" -> escaped.replace('*', '%').replace('?', '_');
+            default -> throw new IllegalArgumentException("Неизвестный тип совпадения: " + match);
+        };
+    }
+
+    private static String encodeCursor(File last, String sortAttribute) {
+        Object value = switch (sortAttribute) {
+            case "size" -> last.getSize();
+            case "filename" -> last.getFilename();
+            case "contentType" -> last.getContentType();
+            default -> last.getUploadedAt();
+        };
+        String raw = last.getId() + ":" + value;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Specification<File> afterCursor(String sortAttribute, String cursor, boolean descending) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = raw.indexOf(':');
+            Long id = Long.parseLong(raw.substring(0, separator));
+            String value = raw.substring(separator + 1);
+            return switch (sortAttribute) {
+                case "size" -> FileSpecifications.after(sortAttribute, Long.parseLong(value), id, descending);
+                case "filename", "contentType" -> FileSpecifications.after(sortAttribute, value, id, descending);
+                default -> FileSpecifications.after(sortAttribute, LocalDateTime.parse(value), id, descending);
+            };
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Некорректный курсор", e);
+        }
+    }
+
+    public void uploadFile(String filename, MultipartFile file) throws IOException {
+        uploadFile(filename, file, null);
+    }
+
+    public void uploadFile(String filename, MultipartFile file, String expectedSha256) throws IOException {
+        uploadFile(filename, file, expectedSha256, false);
+    }
+
+    /**
+     * Загружает файл; если клиент передал ожидаемый SHA-256 (hex), файл сохраняется только при совпадении.
+     * Данные всегда пишутся рядом во временный файл и встают на место только после фиксации метаданных
+     * под блокировкой записи имени, поэтому одноименные загрузки, переименования и копирования не затирают
+     * данные друг друга. С overwrite существующий файл заменяется за один запрос, а прежняя версия остается
+     * в истории версий.
+     */
+    public void uploadFile(String filename, MultipartFile file, String expectedSha256, boolean overwrite)
+            throws IOException {
+        User user = currentUser(RequestPhaseEvent.UPLOAD, file.getSize());
+        String expected = normalizeSha256(expectedSha256);
         log.debug("Загрузка файла: {} для пользователя: {}", filename, user.getUsername());
 
-        if (fileRepository.existsByUserAndFilename(user, filename)) {
+        RequestPhaseEvent metadataEvent = RequestPhaseEvent.start(RequestPhaseEvent.UPLOAD,
+                RequestPhaseEvent.METADATA_QUERY, user.getUsername(), file.getSize());
+        File current = null;
+        boolean exists;
+        try {
+            if (overwrite) {
+                current = fileRepository.findByUserAndFilename(user, filename).orElse(null);
+                exists = current != null;
+            } else {
+                exists = fileRepository.existsByUserAndFilename(user, filename);
+            }
+            metadataEvent.succeed();
+        } finally {
+            metadataEvent.finish();
+        }
+        if (exists && !overwrite) {
             log.warn("Файл уже существует: {} для пользователя: {}", filename, user.getUsername());
             throw new FileAlreadyExistsException("Файл уже существует: " + filename);
         }
@@ -72,16 +289,113 @@ public class FileService {
             throw new EmptyFileException("Файл пуст: " + filename);
         }
 
+        // заменяемая версия уходит из квоты
+        long remaining = quotaService.getRemaining(user) + (current != null ? current.getSize() : 0);
+        if (file.getSize() > remaining) {
+            log.warn("Файл {} не помещается в квоту пользователя: {}", filename, user.getUsername());
+            throw new QuotaExceededException("Превышена квота хранилища");
+        }
+
+        Path filePath = getFilePath(user, filename);
+        Path target = filePath.resolveSibling(StorageService.TEMP_PREFIX + UUID.randomUUID());
         try {
-            Path filePath = getFilePath(user, filename);
-            Files.createDirectories(filePath.getParent());
-            Files.write(filePath, file.getBytes());
+            byte[] packed;
+            StorageService.StoredContent stored;
+            boolean encrypted = encryptionService.isEnabled();
+            VolumeStore.Location location;
+            RequestPhaseEvent writeEvent = RequestPhaseEvent.start(RequestPhaseEvent.UPLOAD,
+                    RequestPhaseEvent.DISK_WRITE, user.getUsername(), file.getSize());
+            try {
+                packed = volumeStore.accepts(file.getSize()) ? file.getBytes() : null;
+                if (packed != null) {
+                    if (packed.length > remaining) {
+                        throw new QuotaExceededException("Превышена квота хранилища");
+                    }
+                    stored = new StorageService.StoredContent(packed.length, sha256(packed));
+                } else {
+                    storageService.ensureFreeSpace(file.getSize());
+                    stored = storageService.write(target, file.getInputStream(), remaining,
+                            ioScheduler.output(user.getId(), file.getSize(), encryptionService.encoder()));
+                }
+                if (expected != null && !expected.equals(stored.sha256())) {
+                    if (packed == null) {
+                        Files.deleteIfExists(target);
+                    }
+                    log.warn("Контрольная сумма файла {} не совпала: ожидалось {}, получено {}",
+                            filename, expected, stored.sha256());
+                    writeEvent.fail("checksum-mismatch");
+                    throw new ChecksumMismatchException("Контрольная сумма не совпадает: " + filename);
+                }
+                location = packed != null
+                        ? appendPacked(user, encrypted ? encryptionService.encrypt(packed) : packed) : null;
+                writeEvent.succeed(stored.size());
+            } finally {
+                writeEvent.finish();
+            }
+            long size = stored.size();
+            if (current != null) {
+                replaceContent(user, current, file.getContentType(), stored, encrypted, location,
+                        packed == null ? target : null, packed, null, null);
+                log.info("Файл {} перезаписан для пользователя: {} (size: {} bytes)", filename, user.getUsername(), size);
+                return;
+            }
 
-            File fileEntity = new File(filename, file.getSize(), file.getContentType(), user);
-            fileRepository.save(fileEntity);
+            File saved;
+            try (FileLocks.Held held = fileLocks.write(user.getId(), filename)) {
+                // пока писались данные, файл с тем же именем мог появиться: проверка повторяется под блокировкой
+                File appeared = fileRepository.findByUserAndFilename(user, filename).orElse(null);
+                if (appeared != null) {
+                    if (overwrite) {
+                        replaceContent(user, appeared, file.getContentType(), stored, encrypted, location,
+                                packed == null ? target : null, packed, null, null);
+                        log.info("Файл {} перезаписан для пользователя: {} (size: {} bytes)",
+                                filename, user.getUsername(), size);
+                        return;
+                    }
+                    if (packed == null) {
+                        Files.deleteIfExists(target);
+                    }
+                    log.warn("Файл уже существует: {} для пользователя: {}", filename, user.getUsername());
+                    throw new FileAlreadyExistsException("Файл уже существует: " + filename);
+                }
+
+                RequestPhaseEvent commitEvent = RequestPhaseEvent.start(RequestPhaseEvent.UPLOAD,
+                        RequestPhaseEvent.COMMIT, user.getUsername(), size);
+                try {
+                    saved = groupCommitWriter.execute(() -> {
+                        quotaService.reserve(user, size);
+                        File fileEntity = new File(filename, size, file.getContentType(), user);
+                        fileEntity.setSha256(stored.sha256());
+                        fileEntity.setEncrypted(encrypted);
+                        place(fileEntity, location);
+                        fileRepository.save(fileEntity);
+                        changeFeedService.record(user, FileChange.Type.UPLOAD, fileEntity, null);
+                        return fileEntity;
+                    });
+                    commitEvent.succeed();
+                } catch (RuntimeException e) {
+                    if (packed == null) {
+                        Files.deleteIfExists(target);
+                    }
+                    throw e;
+                } finally {
+                    commitEvent.finish();
+                }
+                if (packed == null) {
+                    storageService.move(target, filePath);
+                }
+            }
+            changeFeedService.publish(user);
+            fileListingCache.onFileAdded(user.getUsername(),
+                    new FileSummary(saved.getId(), saved.getFilename(), saved.getSize(), saved.getUploadedAt()));
+            if (packed != null) {
+                thumbnailService.enqueue(saved, packed);
+            } else {
+                thumbnailService.enqueue(saved, filePath);
+            }
 
             log.info("Файл {} успешно загружен для пользователя: {} (size: {} bytes)",
-                    filename, user.getUsername(), file.getSize());
+                    filename, user.getUsername(), size);
         } catch (IOException e) {
             log.error("Ошибка хранения при загрузке файла: {} для пользователя: {}", filename, user.getUsername(), e);
             throw new StorageException("Не удалось загрузить файл: " + filename, e);
@@ -89,82 +403,642 @@ public class FileService {
     }
 
     public Resource downloadFile(String filename) throws IOException {
-        User user = getCurrentUser();
+        return openFile(filename).resource();
+    }
+
+    public FileDownload openFile(String filename) throws IOException {
+        User user = currentUser(RequestPhaseEvent.DOWNLOAD, -1);
         log.debug("Загрузка файла: {} пользователем: {}", filename, user.getUsername());
 
-        File file = fileRepository.findByUserAndFilename(user, filename)
-                .orElseThrow(() -> {
-                    log.warn("Файл не найден для загрузки: {} для пользователя: {}", filename, user.getUsername());
-                    return new FileNotFoundException("Файл не найден: " + filename);
-                });
+        // замена фиксирует строку и переименовывает данные под блокировкой записи, поэтому под блокировкой
+        // чтения метаданные согласованы с файлом на диске
+        File file;
+        Resource pinned = null;
+        try (FileLocks.Held held = fileLocks.read(user.getId(), filename)) {
+            RequestPhaseEvent metadataEvent = RequestPhaseEvent.start(RequestPhaseEvent.DOWNLOAD,
+                    RequestPhaseEvent.METADATA_QUERY, user.getUsername(), -1);
+            try {
+                file = fileRepository.findByUserAndFilename(user, filename)
+                        .orElseThrow(() -> {
+                            log.warn("Файл не найден для загрузки: {} для пользователя: {}", filename, user.getUsername());
+                            metadataEvent.fail("not-found");
+                            return new FileNotFoundException("Файл не найден: " + filename);
+                        });
+                metadataEvent.succeed();
+            } finally {
+                metadataEvent.finish();
+            }
+            if (!file.isPacked()) {
+                Path filePath = getFilePath(user, filename);
+                try {
+                    pinned = fileLocks.pinned(user.getId(), filename, filePath, file.getSize(),
+                            encryptionService.resource(file, filePath));
+                } catch (NoSuchFileException e) {
+                    log.error("Файл существует в базе данных, но не найден на диске: {} для пользователя: {}",
+                            filename, user.getUsername());
+                    throw new StorageException("Не удалось прочитать файл: " + filename, e);
+                }
+            }
+        }
 
-        Path filePath = getFilePath(user, filename);
-        Resource resource = new UrlResource(filePath.toUri());
+        if (file.isPacked()) {
+            RequestPhaseEvent readEvent = RequestPhaseEvent.start(RequestPhaseEvent.DOWNLOAD,
+                    RequestPhaseEvent.DISK_READ, user.getUsername(), file.getSize());
+            try {
+                byte[] content = encryptionService.decrypt(file, readPacked(user, file));
+                readEvent.succeed(content.length);
+                return new FileDownload(new ByteArrayResource(content), file.getSha256());
+            } catch (IOException e) {
+                log.error("Не удалось прочитать файл из тома {}: {} для пользователя: {}",
+                        file.getVolumeId(), filename, user.getUsername(), e);
+                throw new StorageException("Не удалось прочитать файл: " + filename, e);
+            } finally {
+                readEvent.finish();
+            }
+        }
+
+        Resource resource = RequestPhaseEvent.recordReads(ioScheduler.resource(user.getId(), file.getSize(), pinned),
+                RequestPhaseEvent.DOWNLOAD, user.getUsername(), file.getSize());
 
         if (resource.exists() && resource.isReadable()) {
             log.info("Файл {} подготовлен для загрузки пользователем: {}", filename, user.getUsername());
-            return resource;
+            return new FileDownload(resource, file.getSha256());
         } else {
             log.error("Файл существует в базе данных, но не найден на диске: {} для пользователя: {}", filename, user.getUsername());
             throw new StorageException("Не удалось прочитать файл: " + filename);
         }
     }
 
-    public void deleteFile(String filename) throws IOException {
+    /**
+     * Подписанная ссылка на текущую версию файла, по которой его можно скачать без токена до истечения ttl.
+     */
+    public PresignedUrlResponse createPresignedUrl(String filename, Duration ttl) {
         User user = getCurrentUser();
-        log.debug("Удаление файла: {} для пользователя: {}", filename, user.getUsername());
+        File file = findFile(user, filename);
+        try {
+            PresignedUrlResponse response = presignedUrlService.sign(file, ttl);
+            log.info("Выдана ссылка на файл {} пользователя {} до {}", filename, user.getUsername(), response.expiresAt());
+            return response;
+        } catch (NoSuchFileException e) {
+            log.error("Файл существует в базе данных, но не найден на диске: {} для пользователя: {}", filename, user.getUsername());
+            throw new StorageException("Не удалось прочитать файл: " + filename, e);
+        } catch (IOException e) {
+            log.error("Ошибка выдачи ссылки на файл: {} для пользователя: {}", filename, user.getUsername(), e);
+            throw new StorageException("Не удалось прочитать файл: " + filename, e);
+        }
+    }
+
+    public ThumbnailService.Thumbnail getThumbnail(String filename, Integer size) {
+        User user = getCurrentUser();
+        log.debug("Запрос превью файла: {} размера {} для пользователя: {}", filename, size, user.getUsername());
 
         File file = fileRepository.findByUserAndFilename(user, filename)
+                .orElseThrow(() -> new FileNotFoundException("Файл не найден: " + filename));
+
+        if (!thumbnailService.supports(file.getContentType())) {
+            throw new ThumbnailNotAvailableException("Превью не поддерживается для файла: " + filename);
+        }
+        return thumbnailService.find(file, thumbnailService.resolveSize(size))
+                .orElseThrow(() -> new ThumbnailNotAvailableException("Превью еще не готово: " + filename));
+    }
+
+    public FileSignatureResponse getSignature(String filename, Integer blockSize) {
+        User user = getCurrentUser();
+        File file = findFile(user, filename);
+        int resolvedBlockSize = deltaSyncService.resolveBlockSize(blockSize, file.getSize());
+
+        try {
+            FileSignatureResponse signature = file.isPacked()
+                    ? deltaSyncService.signature(new ByteArrayInputStream(
+                            encryptionService.decrypt(file, readPacked(user, file))), resolvedBlockSize)
+                    : deltaSyncService.signature(ioScheduler.input(user.getId(), file.getSize(),
+                            encryptionService.openStream(file, getFilePath(user, filename))), resolvedBlockSize);
+            if (file.getSha256() == null) {
+                groupCommitWriter.run(() -> fileRepository.setSha256IfMissing(file.getId(), signature.sha256()));
+            }
+            log.info("Сигнатура файла {} для пользователя {}: {} блоков по {} байт",
+                    filename, user.getUsername(), signature.blocks().size(), resolvedBlockSize);
+            return signature;
+        } catch (IOException e) {
+            log.error("Ошибка чтения файла для сигнатуры: {} для пользователя: {}", filename, user.getUsername(), e);
+            throw new StorageException("Не удалось прочитать файл: " + filename, e);
+        }
+    }
+
+    /**
+     * Собирает новую версию файла из блоков текущей версии и присланных данных. Версия собирается
+     * во временный файл и заменяет текущую атомарным переименованием после фиксации метаданных.
+     */
+    public void applyDelta(String filename, DeltaRequest delta, InputStream data) {
+        User user = getCurrentUser();
+        File file = findFile(user, filename);
+        String base = normalizeSha256(delta.baseSha256());
+        String expected = normalizeSha256(delta.sha256());
+        if (base == null) {
+            throw new IllegalArgumentException("Не указана контрольная сумма исходной версии");
+        }
+        if (file.getSha256() != null && !file.getSha256().equals(base)) {
+            log.warn("Дельта для файла {} построена по устаревшей версии", filename);
+            throw new ChecksumMismatchException("Файл изменился с момента получения сигнатуры: " + filename);
+        }
+
+        int blockSize = deltaSyncService.resolveBlockSize(delta.blockSize(), file.getSize());
+
+        Path filePath = getFilePath(user, filename);
+        Path staging = filePath.resolveSibling(StorageService.TEMP_PREFIX + UUID.randomUUID());
+        boolean wasPacked = file.isPacked();
+        Path basePath = wasPacked ? filePath.resolveSibling(StorageService.TEMP_PREFIX + UUID.randomUUID()) : filePath;
+        long previousSize = file.getSize();
+        try {
+            if (wasPacked) {
+                Files.createDirectories(basePath.getParent());
+                Files.write(basePath, readPacked(user, file), StandardOpenOption.CREATE_NEW);
+            }
+            StorageService.StoredContent stored;
+            try {
+                stored = storageService.write(staging,
+                        deltaSyncService.reconstruct(encryptionService.openChannel(file, basePath), blockSize,
+                                delta.instructions(), data),
+                        previousSize + quotaService.getRemaining(user),
+                        ioScheduler.output(user.getId(), previousSize, encryptionService.encoder()));
+            } finally {
+                if (wasPacked) {
+                    Files.deleteIfExists(basePath);
+                }
+            }
+            if (expected != null && !expected.equals(stored.sha256())) {
+                Files.deleteIfExists(staging);
+                log.warn("Контрольная сумма собранного файла {} не совпала", filename);
+                throw new ChecksumMismatchException("Контрольная сумма не совпадает: " + filename);
+            }
+            boolean encrypted = encryptionService.isEnabled();
+            byte[] packed = null;
+            if (volumeStore.accepts(stored.size())) {
+                try (InputStream content = encrypted ? encryptionService.openStream(staging) : Files.newInputStream(staging)) {
+                    packed = content.readAllBytes();
+                }
+            }
+            VolumeStore.Location location;
+            try {
+                location = packed != null
+                        ? appendPacked(user, encrypted ? encryptionService.encrypt(packed) : packed) : null;
+            } finally {
+                if (packed != null) {
+                    Files.deleteIfExists(staging);
+                }
+            }
+            replaceContent(user, file, file.getContentType(), stored, encrypted, location,
+                    packed == null ? staging : null, packed, null, base);
+            log.info("Файл {} обновлен по дельте для пользователя: {} ({} -> {} bytes)",
+                    filename, user.getUsername(), previousSize, stored.size());
+        } catch (IOException e) {
+            log.error("Ошибка сборки файла по дельте: {} для пользователя: {}", filename, user.getUsername(), e);
+            throw new StorageException("Не удалось обновить файл: " + filename, e);
+        }
+    }
+
+    public List<FileVersionResponse> listVersions(String filename) {
+        User user = getCurrentUser();
+        File file = findFile(user, filename);
+        return fileVersionService.list(file).stream()
+                .map(version -> new FileVersionResponse(version.getId(), version.getSize(), version.getSha256(),
+                        version.getUploadedAt(), version.getReplacedAt()))
+                .toList();
+    }
+
+    /**
+     * Делает сохраненную версию текущей. Данные не копируются: упакованная версия меняет только
+     * метаданные, обычная встает на место файла переименованием; текущее содержимое уходит в историю.
+     */
+    public void restoreVersion(String filename, Long versionId) {
+        User user = getCurrentUser();
+        log.debug("Восстановление версии {} файла: {} для пользователя: {}", versionId, filename, user.getUsername());
+        File file = findFile(user, filename);
+        FileVersion version = fileVersionService.find(file, versionId)
                 .orElseThrow(() -> {
-                    log.warn("Файл не найден для удаления: {} для пользователя: {}", filename, user.getUsername());
-                    return new FileNotFoundException("Файл не найден: " + filename);
+                    log.warn("Версия {} файла {} не найдена для пользователя: {}", versionId, filename, user.getUsername());
+                    return new FileNotFoundException("Версия файла не найдена: " + versionId);
                 });
 
-        Path filePath = getFilePath(user, filename);
-        Files.deleteIfExists(filePath);
-        fileRepository.delete(file);
+        if (version.getSize() - file.getSize() > quotaService.getRemaining(user)) {
+            log.warn("Версия файла {} не помещается в квоту пользователя: {}", filename, user.getUsername());
+            throw new QuotaExceededException("Превышена квота хранилища");
+        }
+
+        Path source = version.isPacked() ? null : fileVersionService.path(version);
+        if (source != null && Files.notExists(source)) {
+            log.error("Данные версии {} файла {} отсутствуют на диске", versionId, filename);
+            throw new StorageException("Данные версии файла не найдены: " + filename);
+        }
+        try {
+            replaceContent(user, file, version.getContentType(),
+                    new StorageService.StoredContent(version.getSize(), version.getSha256()), version.isEncrypted(),
+                    version.isPacked() ? new VolumeStore.Location(version.getVolumeId(), version.getVolumeOffset()) : null,
+                    source, null, version, null);
+            log.info("Версия {} файла {} восстановлена для пользователя: {}", versionId, filename, user.getUsername());
+        } catch (IOException e) {
+            log.error("Ошибка восстановления версии файла: {} для пользователя: {}", filename, user.getUsername(), e);
+            throw new StorageException("Не удалось восстановить версию файла: " + filename, e);
+        }
+    }
+
+    /**
+     * Заменяет содержимое file: новое лежит в source (обычный файл) или в томе (location).
+     * Прежнее содержимое сохраняется в истории версий, restored - версия, которая становится текущей.
+     * Замена идет под блокировкой записи файла: фиксация метаданных и переименование данных на диске
+     * для читателей (openFile, снимки) происходят одновременно, а замены одного файла - по очереди.
+     * В транзакции строка перечитывается под блокировкой и должна совпадать с file, иначе файл за это
+     * время заменил другой запрос и замена отклоняется. baseSha256 - контрольная сумма версии, по которой
+     * построена дельта: замена отклоняется, если текущее содержимое уже другое.
+     */
+    private void replaceContent(User user, File file, String contentType, StorageService.StoredContent stored,
+                                boolean encrypted, VolumeStore.Location location, Path source, byte[] packed,
+                                FileVersion restored, String baseSha256) throws IOException {
+        Path filePath = getFilePath(user, file.getFilename());
+        boolean wasPacked = file.isPacked();
+        LocalDateTime uploadedAt = LocalDateTime.now();
+        try (FileLocks.Held held = fileLocks.write(user.getId(), file.getFilename())) {
+            FileVersionService.Pending pending;
+            try {
+                pending = fileVersionService.prepare(file, filePath);
+            } catch (IOException e) {
+                if (source != null && restored == null) {
+                    Files.deleteIfExists(source);
+                }
+                throw e;
+            }
+
+            FileVersionService.Retained retained;
+            RequestPhaseEvent commitEvent = RequestPhaseEvent.start(RequestPhaseEvent.UPLOAD, RequestPhaseEvent.COMMIT,
+                    user.getUsername(), stored.size());
+            try {
+                retained = groupCommitWriter.execute(() -> {
+                    File locked = fileRepository.findByIdForUpdate(file.getId()).orElse(null);
+                    if (baseSha256 != null && locked != null && locked.getSha256() != null
+                            && !locked.getSha256().equals(baseSha256)) {
+                        log.warn("Дельта для файла {} построена по версии, замененной другим запросом", file.getFilename());
+                        throw new ChecksumMismatchException("Файл изменился с момента получения сигнатуры: "
+                                + file.getFilename());
+                    }
+                    if (locked == null || !sameContent(locked, file)) {
+                        log.warn("Файл {} изменен другим запросом во время замены", file.getFilename());
+                        throw new ChecksumMismatchException("Файл изменен другим запросом: " + file.getFilename());
+                    }
+                    long difference = stored.size() - locked.getSize();
+                    if (difference > 0) {
+                        quotaService.reserve(user, difference);
+                    } else if (difference < 0) {
+                        quotaService.release(user, -difference);
+                    }
+                    if (restored != null && !fileVersionService.remove(restored)) {
+                        throw new FileNotFoundException("Версия файла не найдена: " + restored.getId());
+                    }
+                    FileVersionService.Retained result = fileVersionService.retain(pending,
+                            quotaService.getCurrentRemaining(user));
+                    applyContent(locked, contentType, stored, encrypted, location, uploadedAt);
+                    fileRepository.save(locked);
+                    changeFeedService.record(user, FileChange.Type.UPDATE, locked, null);
+                    return result;
+                });
+                commitEvent.succeed();
+            } catch (RuntimeException e) {
+                if (source != null && restored == null) {
+                    Files.deleteIfExists(source);
+                }
+                fileVersionService.discard(pending);
+                throw e;
+            } finally {
+                commitEvent.finish();
+            }
+            applyContent(file, contentType, stored, encrypted, location, uploadedAt);
+
+            fileVersionService.complete(pending, retained);
+            // ссылки на прежнюю версию перестают действовать раньше, чем на диске появится новая
+            presignedUrlService.revoke(file.getId());
+            if (source != null) {
+                storageService.move(source, filePath);
+            } else if (!wasPacked) {
+                Files.deleteIfExists(filePath);
+            }
+        }
+        changeFeedService.publish(user);
+        fileListingCache.onFileAdded(user.getUsername(),
+                new FileSummary(file.getId(), file.getFilename(), file.getSize(), file.getUploadedAt()));
+        thumbnailService.delete(file);
+        if (packed != null) {
+            thumbnailService.enqueue(file, packed);
+        } else {
+            enqueueThumbnails(file, filePath);
+        }
+    }
+
+    private static boolean sameContent(File current, File expected) {
+        return current.getDeletedAt() == null
+                && current.getFilename().equals(expected.getFilename())
+                && current.getSize().equals(expected.getSize())
+                && Objects.equals(current.getSha256(), expected.getSha256())
+                && Objects.equals(current.getUploadedAt(), expected.getUploadedAt())
+                && Objects.equals(current.getVolumeId(), expected.getVolumeId())
+                && Objects.equals(current.getVolumeOffset(), expected.getVolumeOffset())
+                && current.isEncrypted() == expected.isEncrypted();
+    }
+
+    private static void applyContent(File file, String contentType, StorageService.StoredContent stored,
+                                     boolean encrypted, VolumeStore.Location location, LocalDateTime uploadedAt) {
+        file.setSize(stored.size());
+        file.setSha256(stored.sha256());
+        file.setContentType(contentType);
+        file.setUploadedAt(uploadedAt);
+        file.setEncrypted(encrypted);
+        place(file, location);
+    }
+
+    public CompletableFuture<ChangeFeedResponse> watchChanges(Long cursor, Integer limit, Duration wait) {
+        User user = getCurrentUser();
+        log.debug("Запрос журнала изменений пользователя: {} с позиции {}", user.getUsername(), cursor);
+        return changeFeedService.watch(user, cursor, limit, wait);
+    }
+
+    /**
+     * Удаление только помечает строку (tombstone) и переносит данные в корзину переименованием,
+     * поэтому не зависит от размера файла. Байты освобождает DeletionReclaimer после grace-period;
+     * до этого файл можно восстановить через restoreFile.
+     */
+    public void deleteFile(String filename) throws IOException {
+        User user = getCurrentUser();
+        log.debug("Удаление файла: {} для пользователя: {}", filename, user.getUsername());
+        try (FileLocks.Held held = fileLocks.write(user.getId(), filename)) {
+            File file = fileRepository.findByUserAndFilename(user, filename)
+                    .orElseThrow(() -> {
+                        log.warn("Файл не найден для удаления: {} для пользователя: {}", filename, user.getUsername());
+                        return new FileNotFoundException("Файл не найден: " + filename);
+                    });
+
+            Path filePath = getFilePath(user, filename);
+            Path trashPath = storageService.resolveTrash(user, file.getId());
+            boolean moved = !file.isPacked() && storageService.move(filePath, trashPath);
+            LocalDateTime deletedAt = LocalDateTime.now();
+            try {
+                groupCommitWriter.run(() -> {
+                    file.setDeletedAt(deletedAt);
+                    fileRepository.save(file);
+                    quotaService.release(user, file.getSize());
+                    changeFeedService.record(user, FileChange.Type.DELETE, file, null);
+                });
+            } catch (RuntimeException e) {
+                file.setDeletedAt(null);
+                if (moved) {
+                    storageService.move(trashPath, filePath);
+                }
+                throw e;
+            }
+            presignedUrlService.revoke(file.getId());
+            changeFeedService.publish(user);
+            fileListingCache.onFileRemoved(user.getUsername(), file.getId());
+
+            log.info("Файл {} успешно удален для пользователя: {}", filename, user.getUsername());
+        }
+    }
+
+    /**
+     * Восстанавливает последний удаленный файл с этим именем, пока не истек grace-period.
+     */
+    public void restoreFile(String filename) {
+        User user = getCurrentUser();
+        log.debug("Восстановление файла: {} для пользователя: {}", filename, user.getUsername());
+        try (FileLocks.Held held = fileLocks.write(user.getId(), filename)) {
+            LocalDateTime restorableAfter = LocalDateTime.now().minus(deletionGracePeriod);
+            File file = fileRepository.findDeletedByUserAndFilename(user, filename, PageRequest.of(0, 1)).stream()
+                    .findFirst()
+                    .filter(f -> f.getDeletedAt().isAfter(restorableAfter))
+                    .orElseThrow(() -> {
+                        log.warn("Удаленный файл не найден для восстановления: {} для пользователя: {}",
+                                filename, user.getUsername());
+                        return new FileNotFoundException("Удаленный файл не найден: " + filename);
+                    });
+
+            if (fileRepository.existsByUserAndFilename(user, filename)) {
+                log.warn("Файл с таким именем уже существует: {} для пользователя: {}", filename, user.getUsername());
+                throw new FileAlreadyExistsException("Файл уже существует: " + filename);
+            }
 
-        log.info("Файл {} успешно удален для пользователя: {}", filename, user.getUsername());
+            if (file.getSize() > quotaService.getRemaining(user)) {
+                log.warn("Восстановленный файл {} не помещается в квоту пользователя: {}", filename, user.getUsername());
+                throw new QuotaExceededException("Превышена квота хранилища");
+            }
+
+            Path filePath = getFilePath(user, filename);
+            Path trashPath = storageService.resolveTrash(user, file.getId());
+            LocalDateTime deletedAt = file.getDeletedAt();
+            try {
+                if (!file.isPacked() && !storageService.move(trashPath, filePath)) {
+                    log.error("Данные удаленного файла уже очищены: {} для пользователя: {}", filename, user.getUsername());
+                    throw new FileNotFoundException("Удаленный файл не найден: " + filename);
+                }
+                try {
+                    groupCommitWriter.run(() -> {
+                        quotaService.reserve(user, file.getSize());
+                        file.setDeletedAt(null);
+                        fileRepository.save(file);
+                        changeFeedService.record(user, FileChange.Type.UPLOAD, file, null);
+                    });
+                } catch (RuntimeException e) {
+                    file.setDeletedAt(deletedAt);
+                    if (!file.isPacked()) {
+                        storageService.move(filePath, trashPath);
+                    }
+                    throw e;
+                }
+                changeFeedService.publish(user);
+                fileListingCache.onFileRestored(user.getUsername(),
+                        new FileSummary(file.getId(), file.getFilename(), file.getSize(), file.getUploadedAt()));
+
+                log.info("Файл {} восстановлен для пользователя: {}", filename, user.getUsername());
+            } catch (IOException e) {
+                log.error("Ошибка восстановления файла: {} для пользователя: {}", filename, user.getUsername(), e);
+                throw new StorageException("Не удалось восстановить файл: " + filename, e);
+            }
+        }
+    }
+
+    /**
+     * Копирует файл без передачи данных через клиента: новая запись указывает на те же байты
+     * (жесткая ссылка), поэтому копирование не зависит от размера. Квота учитывает логический размер копии.
+     */
+    public void copyFile(String filename, String newFilename) {
+        User user = getCurrentUser();
+        log.debug("Копирование файла: {} в {} для пользователя: {}", filename, newFilename, user.getUsername());
+        try (FileLocks.Held held = fileLocks.write(user.getId(), filename, newFilename)) {
+            File source = fileRepository.findByUserAndFilename(user, filename)
+                    .orElseThrow(() -> {
+                        log.warn("Файл не найден для копирования: {} для пользователя: {}", filename, user.getUsername());
+                        return new FileNotFoundException("Файл не найден: " + filename);
+                    });
+
+            if (fileRepository.existsByUserAndFilename(user, newFilename)) {
+                log.warn("Файл с именем копии уже существует: {} для пользователя: {}", newFilename, user.getUsername());
+                throw new FileAlreadyExistsException("Файл уже существует: " + newFilename);
+            }
+
+            if (source.getSize() > quotaService.getRemaining(user)) {
+                log.warn("Копия файла {} не помещается в квоту пользователя: {}", filename, user.getUsername());
+                throw new QuotaExceededException("Превышена квота хранилища");
+            }
+
+            Path sourcePath = getFilePath(user, filename);
+            Path targetPath = getFilePath(user, newFilename);
+            try {
+                boolean shared = source.isPacked() || storageService.link(sourcePath, targetPath);
+
+                File saved;
+                try {
+                    saved = groupCommitWriter.execute(() -> {
+                        quotaService.reserve(user, source.getSize());
+                        File copy = new File(newFilename, source.getSize(), source.getContentType(), user);
+                        copy.setSha256(source.getSha256());
+                        copy.setVolumeId(source.getVolumeId());
+                        copy.setVolumeOffset(source.getVolumeOffset());
+                        copy.setEncrypted(source.isEncrypted());
+                        fileRepository.save(copy);
+                        changeFeedService.record(user, FileChange.Type.UPLOAD, copy, null);
+                        return copy;
+                    });
+                } catch (RuntimeException e) {
+                    if (!source.isPacked()) {
+                        Files.deleteIfExists(targetPath);
+                    }
+                    throw e;
+                }
+                changeFeedService.publish(user);
+                fileListingCache.onFileAdded(user.getUsername(),
+                        new FileSummary(saved.getId(), saved.getFilename(), saved.getSize(), saved.getUploadedAt()));
+                thumbnailService.copy(source, saved, () -> enqueueThumbnails(saved, targetPath));
+
+                log.info("Файл {} скопирован в {} для пользователя: {} ({})", filename, newFilename, user.getUsername(),
+                        shared ? "общие данные" : "полная копия");
+            } catch (IOException e) {
+                log.error("Ошибка копирования файла: {} в {} для пользователя: {}", filename, newFilename, user.getUsername(), e);
+                throw new StorageException("Не удалось скопировать файл: " + filename, e);
+            }
+        }
     }
 
     public void renameFile(String filename, String newFilename) {
         User user = getCurrentUser();
         log.debug("Переименование файла: {} в {} для пользователя: {}", filename, newFilename, user.getUsername());
+        try (FileLocks.Held held = fileLocks.write(user.getId(), filename, newFilename)) {
+            File file = fileRepository.findByUserAndFilename(user, filename)
+                    .orElseThrow(() -> {
+                        log.warn("Файл не найден для переименования: {} для пользователя: {}", filename, user.getUsername());
+                        return new FileNotFoundException("Файл не найден: " + filename);
+                    });
 
-        File file = fileRepository.findByUserAndFilename(user, filename)
+            if (fileRepository.existsByUserAndFilename(user, newFilename)) {
+                log.warn("Файл с новым именем уже существует: {} для пользователя: {}", newFilename, user.getUsername());
+                throw new FileAlreadyExistsException("Файл с новым именем уже существует: " + newFilename);
+            }
+
+            try {
+                Path oldPath = getFilePath(user, filename);
+                Path newPath = getFilePath(user, newFilename);
+
+                if (!file.isPacked() && Files.exists(oldPath)) {
+                    Files.move(oldPath, newPath);
+                }
+
+                file.setFilename(newFilename);
+                groupCommitWriter.run(() -> {
+                    fileRepository.save(file);
+                    changeFeedService.record(user, FileChange.Type.RENAME, file, filename);
+                });
+                presignedUrlService.revoke(file.getId());
+                changeFeedService.publish(user);
+                fileListingCache.onFileRenamed(user.getUsername(), file.getId(), newFilename);
+                log.info("Файл {} успешно переименован в {} для пользователя: {}", filename, newFilename, user.getUsername());
+            } catch (IOException e) {
+                log.error("Ошибка переименования файла: {} в {} для пользователя: {}", filename, newFilename, user.getUsername(), e);
+                throw new StorageException("Не удалось переименовать файл: " + filename, e);
+            }
+        }
+    }
+
+    private File findFile(User user, String filename) {
+        return fileRepository.findByUserAndFilename(user, filename)
                 .orElseThrow(() -> {
-                    log.warn("Файл не найден для переименования: {} для пользователя: {}", filename, user.getUsername());
+                    log.warn("Файл не найден: {} для пользователя: {}", filename, user.getUsername());
                     return new FileNotFoundException("Файл не найден: " + filename);
                 });
+    }
 
-        if (fileRepository.existsByUserAndFilename(user, newFilename)) {
-            log.warn("Файл с новым именем уже существует: {} для пользователя: {}", newFilename, user.getUsername());
-            throw new FileAlreadyExistsException("Файл с новым именем уже существует: " + newFilename);
+    private void enqueueThumbnails(File file, Path path) {
+        if (!file.isPacked()) {
+            thumbnailService.enqueue(file, path);
+            return;
+        }
+        if (!thumbnailService.supports(file.getContentType())) {
+            return;
         }
-
         try {
-            Path oldPath = getFilePath(user, filename);
-            Path newPath = getFilePath(user, newFilename);
+            thumbnailService.enqueue(file, encryptionService.decrypt(file, readPacked(file.getUser(), file)));
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать файл из тома для превью: {}", file.getFilename(), e);
+        }
+    }
 
-            if (Files.exists(oldPath)) {
-                Files.move(oldPath, newPath);
-            }
+    private byte[] readPacked(User user, File file) throws IOException {
+        return ioScheduler.call(user.getId(), IoScheduler.Direction.READ, file.getSize(), () -> volumeStore.read(file));
+    }
 
-            file.setFilename(newFilename);
-            fileRepository.save(file);
-            log.info("Файл {} успешно переименован в {} для пользователя: {}", filename, newFilename, user.getUsername());
-        } catch (IOException e) {
-            log.error("Ошибка переименования файла: {} в {} для пользователя: {}", filename, newFilename, user.getUsername(), e);
-            throw new StorageException("Не удалось переименовать файл: " + filename, e);
+    private VolumeStore.Location appendPacked(User user, byte[] content) throws IOException {
+        return ioScheduler.call(user.getId(), IoScheduler.Direction.WRITE, content.length,
+                () -> volumeStore.append(content));
+    }
+
+    private static void place(File file, VolumeStore.Location location) {
+        file.setVolumeId(location != null ? location.volumeId() : null);
+        file.setVolumeOffset(location != null ? location.offset() : null);
+    }
+
+    private static String sha256(byte[] content) {
+        return HexFormat.of().formatHex(StorageService.newSha256().digest(content));
+    }
+
+    static String normalizeSha256(String sha256) {
+        if (sha256 == null || sha256.isBlank()) {
+            return null;
+        }
+        String normalized = sha256.trim().toLowerCase(Locale.ROOT);
+        if (!normalized.matches("[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("Некорректная контрольная сумма SHA-256");
         }
+        return normalized;
     }
 
     private Path getFilePath(User user, String filename) {
-        return Paths.get(storagePath, user.getId().toString(), filename);
+        return storageService.resolve(user, filename);
+    }
+
+    private String getCurrentUsername() {
+        return SecurityContextHolder.getContext().getAuthentication().getName();
+    }
+
+    /**
+     * Текущий пользователь с событием JFR этапа USER_RESOLUTION.
+     */
+    private User currentUser(String operation, long size) {
+        RequestPhaseEvent event = RequestPhaseEvent.start(operation, RequestPhaseEvent.USER_RESOLUTION,
+                getCurrentUsername(), size);
+        try {
+            User user = getCurrentUser();
+            event.succeed();
+            return user;
+        } finally {
+            event.finish();
+        }
     }
 
     private User getCurrentUser() {
-        String username = SecurityContextHolder.getContext().getAuthentication().getName();
+        String username = getCurrentUsername();
         log.debug("Получение текущего пользователя: {}", username);
         return userRepository.findByUsername(username)
                 .orElseThrow(() -> {
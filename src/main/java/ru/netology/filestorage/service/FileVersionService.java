@@ -0,0 +1,242 @@
+package ru.netology.filestorage.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileVersion;
+import ru.netology.filestorage.repository.FileVersionRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * История версий файла. При замене содержимого прежняя версия не копируется: данные обычного файла
+ * до фиксации метаданных получают жесткую ссылку рядом с файлом, а после фиксации она переносится
+ * в storage/.versions/{userId}/{versionId}; упакованная версия продолжает ссылаться на свою запись тома.
+ * Хранится не больше app.versions.keep версий на файл (0 - без истории), более старые удаляются
+ * при следующей замене. Версии занимают только свободное место квоты пользователя: если вместе
+ * с файлами они в нее не помещаются, самые старые версии пользователя удаляются (fit).
+ */
+@Service
+public class FileVersionService {
+
+    private static final Logger log = LoggerFactory.getLogger(FileVersionService.class);
+    private final FileVersionRepository fileVersionRepository;
+    private final StorageService storageService;
+    private final int keep;
+
+    public FileVersionService(FileVersionRepository fileVersionRepository,
+                              StorageService storageService,
+                              @Value("${app.versions.keep:5}") int keep) {
+        this.fileVersionRepository = fileVersionRepository;
+        this.storageService = storageService;
+        this.keep = Math.max(0, keep);
+    }
+
+    public List<FileVersion> list(File file) {
+        return fileVersionRepository.findByFileId(file.getId());
+    }
+
+    public Optional<FileVersion> find(File file, Long versionId) {
+        return fileVersionRepository.findByIdAndFileId(versionId, file.getId());
+    }
+
+    public Optional<FileVersion> findById(Long versionId) {
+        return fileVersionRepository.findById(versionId);
+    }
+
+    public List<FileVersion> listByUser(Long userId) {
+        return fileVersionRepository.findByUserIdOldestFirst(userId);
+    }
+
+    /**
+     * Перенос пользователя на другой узел: данные версии записаны в том узла-получателя.
+     */
+    public void moveToVolume(Long versionId, Long volumeId, Long offset) {
+        fileVersionRepository.moveToVolume(versionId, volumeId, offset);
+    }
+
+    public Path path(FileVersion version) {
+        return storageService.resolveVersion(version.getUserId(), version.getId());
+    }
+
+    /**
+     * Вызывается до замены содержимого current, лежащего по path: запоминает его метаданные
+     * и для обычного файла сохраняет данные под временной жесткой ссылкой.
+     */
+    public Pending prepare(File current, Path path) throws IOException {
+        if (keep == 0) {
+            return new Pending(null, null);
+        }
+        FileVersion previous = new FileVersion(current);
+        if (current.isPacked()) {
+            return new Pending(previous, null);
+        }
+        Path link = path.resolveSibling(StorageService.TEMP_PREFIX + UUID.randomUUID());
+        try {
+            storageService.link(path, link);
+        } catch (NoSuchFileException e) {
+            log.warn("Данные заменяемого файла отсутствуют на диске, версия не сохраняется: {}", path);
+            return new Pending(null, null);
+        }
+        return new Pending(previous, link);
+    }
+
+    /**
+     * В транзакции замены: строка прежней версии и удаление строк сверх keep, а также самых старых
+     * версий пользователя, не помещающихся в свободное место квоты available. Если не поместилась
+     * и сама прежняя версия, в результате ее нет.
+     */
+    public Retained retain(Pending pending, long available) {
+        if (pending.previous() == null) {
+            return new Retained(null, List.of());
+        }
+        FileVersion version = fileVersionRepository.save(pending.previous().copy());
+        List<FileVersion> versions = fileVersionRepository.findByFileId(version.getFileId());
+        List<FileVersion> pruned = new ArrayList<>();
+        if (versions.size() > keep) {
+            pruned.addAll(versions.subList(keep, versions.size()));
+            fileVersionRepository.deleteByIdIn(pruned.stream().map(FileVersion::getId).toList());
+        }
+        pruned.addAll(fit(version.getUserId(), available));
+        boolean kept = pruned.stream().noneMatch(prunedVersion -> prunedVersion.getId().equals(version.getId()));
+        return new Retained(kept ? version : null, List.copyOf(pruned));
+    }
+
+    /**
+     * В транзакции: удаляет самые старые версии пользователя, пока их общий размер больше available.
+     * Возвращает удаленные версии, данные которых нужно удалить после фиксации (deleteVersionData).
+     * Строки удаляются по одной, и в результат попадают только действительно удаленные: версию,
+     * которую одновременно восстановил другой запрос, трогать нельзя - ее данные уже стали файлом.
+     */
+    public List<FileVersion> fit(Long userId, long available) {
+        long excess = fileVersionRepository.sumSizeByUserId(userId) - available;
+        if (excess <= 0) {
+            return List.of();
+        }
+        List<FileVersion> pruned = new ArrayList<>();
+        for (FileVersion version : fileVersionRepository.findByUserIdOldestFirst(userId)) {
+            if (excess <= 0) {
+                break;
+            }
+            if (fileVersionRepository.deleteByIdIn(List.of(version.getId())) > 0) {
+                pruned.add(version);
+                excess -= version.getSize();
+            }
+        }
+        log.info("Версии пользователя {} не помещаются в квоту, удалено: {}", userId, pruned.size());
+        return pruned;
+    }
+
+    /**
+     * В транзакции восстановления: версия становится текущим содержимым и уходит из истории.
+     * false - версию уже восстановил или вытеснил другой запрос.
+     */
+    public boolean remove(FileVersion version) {
+        return fileVersionRepository.deleteByIdIn(List.of(version.getId())) > 0;
+    }
+
+    /**
+     * После фиксации: данные прежней версии переносятся на постоянное место, данные вытесненных удаляются.
+     * Ошибки только журналируются - метаданные уже зафиксированы, а временную ссылку уберет сверка хранилища.
+     */
+    public void complete(Pending pending, Retained retained) {
+        try {
+            if (pending.link() != null) {
+                if (retained.version() != null) {
+                    storageService.move(pending.link(), path(retained.version()));
+                } else {
+                    Files.deleteIfExists(pending.link());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Не удалось сохранить данные версии файла: {}", pending.link(), e);
+        }
+        deleteVersionData(retained.pruned());
+    }
+
+    /**
+     * После фиксации: удаляет данные версий, строки которых удалены. Ошибки только журналируются.
+     */
+    public void deleteVersionData(List<FileVersion> versions) {
+        for (FileVersion version : versions) {
+            try {
+                deleteData(version);
+            } catch (IOException e) {
+                log.warn("Не удалось удалить данные версии {} файла (id {})", version.getId(), version.getFileId(), e);
+            }
+        }
+    }
+
+    /**
+     * Замена не зафиксирована: временная ссылка больше не нужна.
+     */
+    public void discard(Pending pending) {
+        if (pending.link() == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(pending.link());
+        } catch (IOException e) {
+            log.warn("Не удалось удалить временную ссылку версии: {}", pending.link(), e);
+        }
+    }
+
+    /**
+     * Удаляет данные всех версий файлов перед удалением их строк (очистка удаленных файлов).
+     * Возвращает число освобожденных байт.
+     */
+    public long deleteData(List<Long> fileIds) throws IOException {
+        long bytes = 0;
+        for (FileVersion version : fileVersionRepository.findByFileIdIn(fileIds)) {
+            bytes += deleteData(version);
+        }
+        return bytes;
+    }
+
+    public int deleteRows(List<Long> fileIds) {
+        return fileVersionRepository.deleteByFileIdIn(fileIds);
+    }
+
+    /**
+     * Пользователь перенесен на другой узел кластера: данные его версий на этом узле больше не нужны.
+     */
+    public void deleteUserData(Long userId) throws IOException {
+        FileSystemUtils.deleteRecursively(storageService.getRoot().resolve(StorageService.VERSIONS_DIR)
+                .resolve(userId.toString()));
+    }
+
+    private long deleteData(FileVersion version) throws IOException {
+        if (version.isPacked()) {
+            // запись тома освободит VolumeCompactor, когда на нее не останется ссылок
+            return 0;
+        }
+        Path path = path(version);
+        try {
+            long size = Files.size(path);
+            Files.delete(path);
+            return size;
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Подготовленная замена: метаданные прежней версии (null, если история отключена)
+     * и временная ссылка на ее данные (null для упакованного файла).
+     */
+    public record Pending(FileVersion previous, Path link) {
+    }
+
+    public record Retained(FileVersion version, List<FileVersion> pruned) {
+    }
+}
@@ -0,0 +1,197 @@
+package ru.netology.filestorage.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.netology.filestorage.exception.StorageException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Объединяет записи метаданных от параллельных запросов в короткие пакетные транзакции.
+ * Вызывающий поток блокируется до фиксации транзакции, в которую попала его операция.
+ * Если транзакция группы откатывается, операции повторяются по одной, поэтому
+ * операция должна создавать новые сущности внутри себя и быть безопасной для повтора.
+ */
+@Component
+public class GroupCommitWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitWriter.class);
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<PendingWrite<?>> queue;
+    private volatile boolean running;
+    private Thread worker;
+
+    public GroupCommitWriter(PlatformTransactionManager transactionManager,
+                             @Value("${app.metadata.group-commit.enabled:true}") boolean enabled,
+                             @Value("${app.metadata.group-commit.max-batch-size:64}") int maxBatchSize,
+                             @Value("${app.metadata.group-commit.max-delay:PT0.002S}") Duration maxDelay,
+                             @Value("${app.metadata.group-commit.queue-capacity:1024}") int queueCapacity) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            log.info("Групповая фиксация метаданных отключена");
+            return;
+        }
+        running = true;
+        worker = new Thread(this::processLoop, "metadata-group-commit");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        List<PendingWrite<?>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.forEach(this::commitSingle);
+    }
+
+    public void run(Runnable operation) {
+        execute(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    public <T> T execute(Supplier<T> operation) {
+        if (!running) {
+            return transactionTemplate.execute(status -> operation.get());
+        }
+
+        PendingWrite<T> write = new PendingWrite<>(operation);
+        if (!queue.offer(write)) {
+            log.debug("Очередь групповой фиксации переполнена, запись выполняется в текущем потоке");
+            return transactionTemplate.execute(status -> operation.get());
+        }
+        return write.await();
+    }
+
+    private void processLoop() {
+        List<PendingWrite<?>> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                PendingWrite<?> first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collectBatch(batch);
+                commitBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Ошибка групповой фиксации метаданных", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void collectBatch(List<PendingWrite<?>> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+            if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            PendingWrite<?> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void commitBatch(List<PendingWrite<?>> batch) {
+        if (batch.size() == 1) {
+            commitSingle(batch.get(0));
+            return;
+        }
+
+        try {
+            transactionTemplate.executeWithoutResult(status -> batch.forEach(PendingWrite::apply));
+            batch.forEach(PendingWrite::complete);
+            log.debug("Зафиксирована группа из {} записей метаданных", batch.size());
+        } catch (Exception e) {
+            log.warn("Откат группы из {} записей, повтор по одной: {}", batch.size(), e.getMessage());
+            batch.forEach(this::commitSingle);
+        }
+    }
+
+    private void commitSingle(PendingWrite<?> write) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> write.apply());
+            write.complete();
+        } catch (Exception e) {
+            write.fail(e);
+        }
+    }
+
+    private static final class PendingWrite<T> {
+        private final Supplier<T> operation;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result;
+
+        private PendingWrite(Supplier<T> operation) {
+            this.operation = operation;
+        }
+
+        private void apply() {
+            result = operation.get();
+        }
+
+        private void complete() {
+            future.complete(result);
+        }
+
+        private void fail(Throwable e) {
+            future.completeExceptionally(e);
+        }
+
+        private T await() {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Ожидание фиксации метаданных прервано", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw new StorageException("Не удалось сохранить метаданные", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import ru.netology.filestorage.config.IoSchedulerProperties;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * Планировщик дискового ввода-вывода. Чтение и запись идут порциями не больше quantum, и каждая
+ * порция ждет разрешения: одновременно выполняется не больше max-in-flight порций, а общая скорость
+ * ограничена max-throughput. Очередь ожидающих порций разбирается по пользователям взвешенным
+ * deficit round-robin: за свою очередь пользователь получает quantum * вес байт, сколько бы потоков
+ * у него ни было, поэтому многогигабайтная загрузка одного пользователя не вытесняет остальных.
+ * Операции не больше interactive-threshold (скачивание мелких файлов, превью, сигнатуры) обслуживаются
+ * раньше крупных, фоновые задачи - отдельным пользователем BACKGROUND с весом background-weight.
+ */
+@Service
+public class IoScheduler {
+
+    public static final Long BACKGROUND = 0L;
+    /**
+     * Сколько пользователь без ожидающих порций сохраняет место в очереди и остаток дефицита:
+     * поток, который читает порцию за порцией, успевает запросить следующую и не теряет свою очередь.
+     */
+    private static final long IDLE_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    public enum Direction { READ, WRITE }
+
+    private final IoSchedulerProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final int maxInFlight;
+    private final int quantum;
+    private final long interactiveThreshold;
+    private final double bytesPerNano;
+    private final double burst;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Lane interactive = new Lane();
+    private final Lane bulk = new Lane();
+    private final Map<Long, Counter[]> transferred = new ConcurrentHashMap<>();
+    private final Timer interactiveWait;
+    private final Timer bulkWait;
+    private int inFlight;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    public IoScheduler(IoSchedulerProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.enabled = properties.isEnabled();
+        this.maxInFlight = Math.max(1, properties.getMaxInFlight());
+        this.quantum = Math.toIntExact(Math.max(1L, properties.getQuantum().toBytes()));
+        this.interactiveThreshold = properties.getInteractiveThreshold().toBytes();
+        long bytesPerSecond = Math.max(0L, properties.getMaxThroughput().toBytes());
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.burst = Math.max(quantum, bytesPerSecond / 20.0);
+        this.tokens = burst;
+        this.interactiveWait = waitTimer(meterRegistry, "interactive");
+        this.bulkWait = waitTimer(meterRegistry, "bulk");
+        Gauge.builder("filestorage.io.queued", this, IoScheduler::queued).register(meterRegistry);
+        Gauge.builder("filestorage.io.in_flight", this, IoScheduler::inFlight).register(meterRegistry);
+    }
+
+    /**
+     * Поток чтения, каждая порция которого проходит через планировщик. size - ожидаемый объем операции,
+     * по нему операция относится к мелким или крупным.
+     */
+    public InputStream input(Long userId, long size, InputStream in) {
+        return enabled ? new ScheduledInputStream(in, userId, small(userId, size)) : in;
+    }
+
+    /**
+     * Обертка потока записи для StorageService.write: планировщик учитывает байты, уходящие на диск
+     * (после шифрования encoder).
+     */
+    public UnaryOperator<OutputStream> output(Long userId, long size, UnaryOperator<OutputStream> encoder) {
+        if (!enabled) {
+            return encoder;
+        }
+        boolean small = small(userId, size);
+        return out -> encoder.apply(new ScheduledOutputStream(out, userId, small));
+    }
+
+    /**
+     * Ресурс для скачивания, содержимое которого читается через планировщик.
+     */
+    public Resource resource(Long userId, long size, Resource resource) {
+        return enabled ? new ScheduledResource(resource, userId, size) : resource;
+    }
+
+    /**
+     * Одна операция с известным объемом: чтение или запись записи тома.
+     */
+    public <T> T call(Long userId, Direction direction, long bytes, IoCall<T> call) throws IOException {
+        if (!enabled) {
+            return call.call();
+        }
+        Grant grant = acquireInterruptibly(userId, direction, (int) Math.min(bytes, Integer.MAX_VALUE),
+                small(userId, bytes));
+        try {
+            return call.call();
+        } finally {
+            release(grant, bytes);
+        }
+    }
+
+    /**
+     * Ждет разрешения на порцию cost байт. Без очереди и при свободном месте разрешение выдается сразу.
+     */
+    Grant acquire(Long userId, Direction direction, int cost, boolean small) throws InterruptedException {
+        long started = System.nanoTime();
+        Lane lane = small ? interactive : bulk;
+        Flow flow = null;
+        lock.lock();
+        try {
+            if (inFlight < maxInFlight && interactive.queued == 0 && bulk.queued == 0 && takeTokens(cost, started) == 0) {
+                inFlight++;
+            } else {
+                Ticket ticket = lane.enqueue(userId, cost, lock.newCondition(), started);
+                await(ticket, lane);
+                flow = ticket.flow;
+            }
+        } finally {
+            lock.unlock();
+        }
+        (small ? interactiveWait : bulkWait).record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        return new Grant(userId, direction, flow);
+    }
+
+    void release(Grant grant, long bytes) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (grant.flow() != null) {
+                grant.flow().inFlight--;
+                grant.flow().idleSince = System.nanoTime();
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        if (bytes > 0) {
+            counters(grant.userId())[grant.direction().ordinal()].increment(bytes);
+        }
+    }
+
+    int queued() {
+        lock.lock();
+        try {
+            return interactive.queued + bulk.queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean small(Long userId, long size) {
+        return size <= interactiveThreshold && !BACKGROUND.equals(userId);
+    }
+
+    private Grant acquireInterruptibly(Long userId, Direction direction, int cost, boolean small)
+            throws InterruptedIOException {
+        try {
+            return acquire(userId, direction, cost, small);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Ожидание дисковой операции прервано");
+        }
+    }
+
+    private void await(Ticket ticket, Lane lane) throws InterruptedException {
+        try {
+            while (!ticket.granted) {
+                long waitNanos = dispatch();
+                if (ticket.granted) {
+                    break;
+                }
+                if (waitNanos > 0) {
+                    ticket.condition.awaitNanos(waitNanos);
+                } else {
+                    ticket.condition.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            if (ticket.granted) {
+                inFlight--;
+                ticket.flow.inFlight--;
+            } else {
+                lane.cancel(ticket, System.nanoTime());
+            }
+            dispatch();
+            throw e;
+        }
+    }
+
+    /**
+     * Выдает разрешения ожидающим порциям, пока есть свободные места и байты в корзине.
+     * Возвращает время до пополнения корзины, если выдача остановилась из-за ограничения скорости.
+     */
+    private long dispatch() {
+        long now = System.nanoTime();
+        while (inFlight < maxInFlight && (interactive.queued > 0 || bulk.queued > 0)) {
+            Lane lane = interactive.queued > 0 ? interactive : bulk;
+            Ticket next = lane.select(now);
+            long waitNanos = takeTokens(next.cost, now);
+            if (waitNanos > 0) {
+                // выдача могла начаться из release, пока все ожидающие спят без таймаута: первая в очереди
+                // порция просыпается и ждет пополнения корзины сама
+                next.condition.signal();
+                return waitNanos;
+            }
+            lane.grant(next);
+            inFlight++;
+            next.granted = true;
+            next.condition.signal();
+        }
+        return 0;
+    }
+
+    /**
+     * Списывает cost байт из корзины max-throughput. Корзина может уйти в минус на одну порцию:
+     * следующая порция ждет, пока долг не будет погашен.
+     */
+    private long takeTokens(int cost, long now) {
+        if (bytesPerNano == 0) {
+            return 0;
+        }
+        tokens = Math.min(burst, tokens + (now - refilledAt) * bytesPerNano);
+        refilledAt = now;
+        if (tokens > 0) {
+            tokens -= cost;
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / bytesPerNano) + 1;
+    }
+
+    private Counter[] counters(Long userId) {
+        return transferred.computeIfAbsent(userId, id -> {
+            String user = BACKGROUND.equals(id) ? "background" : id.toString();
+            Counter[] counters = new Counter[Direction.values().length];
+            for (Direction direction : Direction.values()) {
+                counters[direction.ordinal()] = Counter.builder("filestorage.io.bytes")
+                        .baseUnit("bytes")
+                        .tag("user", user)
+                        .tag("direction", direction.name().toLowerCase())
+                        .register(meterRegistry);
+            }
+            return counters;
+        });
+    }
+
+    private static Timer waitTimer(MeterRegistry meterRegistry, String priority) {
+        return Timer.builder("filestorage.io.wait")
+                .tag("priority", priority)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    @FunctionalInterface
+    public interface IoCall<T> {
+        T call() throws IOException;
+    }
+
+    record Grant(Long userId, Direction direction, Flow flow) {
+    }
+
+    private static final class Ticket {
+        final Flow flow;
+        final int cost;
+        final Condition condition;
+        boolean granted;
+
+        Ticket(Flow flow, int cost, Condition condition) {
+            this.flow = flow;
+            this.cost = cost;
+            this.condition = condition;
+        }
+    }
+
+    static final class Flow {
+        final Long userId;
+        final double weight;
+        final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+        double deficit;
+        boolean inTurn;
+        int inFlight;
+        long idleSince;
+
+        Flow(Long userId, double weight) {
+            this.userId = userId;
+            this.weight = weight;
+        }
+
+        boolean idle(long now) {
+            return queue.isEmpty() && inFlight == 0 && now - idleSince > IDLE_GRACE_NANOS;
+        }
+    }
+
+    /**
+     * Очередь одного класса приоритета: пользователи по кругу, у каждого своя очередь порций и дефицит.
+     */
+    private final class Lane {
+        final Map<Long, Flow> flows = new HashMap<>();
+        final ArrayDeque<Flow> active = new ArrayDeque<>();
+        int queued;
+
+        Ticket enqueue(Long userId, int cost, Condition condition, long now) {
+            Flow flow = flows.get(userId);
+            if (flow == null) {
+                flow = new Flow(userId, BACKGROUND.equals(userId)
+                        ? properties.getBackgroundWeight() : properties.weightOf(userId));
+                flows.put(userId, flow);
+                active.addLast(flow);
+            } else if (flow.idle(now)) {
+                flow.deficit = 0;
+                flow.inTurn = false;
+            }
+            Ticket ticket = new Ticket(flow, cost, condition);
+            flow.queue.addLast(ticket);
+            queued++;
+            return ticket;
+        }
+
+        /**
+         * Следующая порция по deficit round-robin: пользователь в начале своей очереди получает
+         * quantum * вес байт дефицита и обслуживается, пока дефицита хватает на его первую порцию;
+         * затем переходит в конец круга. Пользователь, чья следующая порция еще не пришла, пропускается,
+         * но сохраняет свою очередь в течение IDLE_GRACE_NANOS.
+         */
+        Ticket select(long now) {
+            while (true) {
+                List<Flow> exhausted = null;
+                Ticket chosen = null;
+                Iterator<Flow> flowIterator = active.iterator();
+                while (flowIterator.hasNext()) {
+                    Flow flow = flowIterator.next();
+                    Ticket head = flow.queue.peekFirst();
+                    if (head == null) {
+                        if (flow.idle(now)) {
+                            flowIterator.remove();
+                            flows.remove(flow.userId);
+                        }
+                        continue;
+                    }
+                    if (!flow.inTurn) {
+                        flow.deficit += quantum * flow.weight;
+                        flow.inTurn = true;
+                    }
+                    if (head.cost <= flow.deficit) {
+                        chosen = head;
+                        break;
+                    }
+                    flow.inTurn = false;
+                    flowIterator.remove();
+                    if (exhausted == null) {
+                        exhausted = new ArrayList<>();
+                    }
+                    exhausted.add(flow);
+                }
+                if (exhausted != null) {
+                    active.addAll(exhausted);
+                }
+                if (chosen != null) {
+                    return chosen;
+                }
+            }
+        }
+
+        void grant(Ticket ticket) {
+            Flow flow = ticket.flow;
+            flow.queue.remove(ticket);
+            flow.deficit -= ticket.cost;
+            flow.inFlight++;
+            queued--;
+        }
+
+        void cancel(Ticket ticket, long now) {
+            ticket.flow.queue.remove(ticket);
+            ticket.flow.idleSince = now;
+            queued--;
+        }
+    }
+
+    private final class ScheduledInputStream extends FilterInputStream {
+        private final Long userId;
+        private final boolean small;
+
+        ScheduledInputStream(InputStream in, Long userId, boolean small) {
+            super(in);
+            this.userId = userId;
+            this.small = small;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int chunk = Math.min(length, quantum);
+            Grant grant = acquireInterruptibly(userId, Direction.READ, chunk, small);
+            int read = 0;
+            try {
+                read = in.read(buffer, offset, chunk);
+                return read;
+            } finally {
+                release(grant, Math.max(read, 0));
+            }
+        }
+    }
+
+    private final class ScheduledOutputStream extends FilterOutputStream {
+        private final Long userId;
+        private final boolean small;
+
+        ScheduledOutputStream(OutputStream out, Long userId, boolean small) {
+            super(out);
+            this.userId = userId;
+            this.small = small;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                int chunk = Math.min(length, quantum);
+                Grant grant = acquireInterruptibly(userId, Direction.WRITE, chunk, small);
+                try {
+                    out.write(buffer, offset, chunk);
+                } finally {
+                    release(grant, chunk);
+                }
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+    }
+
+    private final class ScheduledResource extends AbstractResource {
+        private final Resource delegate;
+        private final Long userId;
+        private final long size;
+
+        ScheduledResource(Resource delegate, Long userId, long size) {
+            this.delegate = delegate;
+            this.userId = userId;
+            this.size = size;
+        }
+
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+
+        @Override
+        public boolean isReadable() {
+            return delegate.isReadable();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return delegate.lastModified();
+        }
+
+        @Override
+        public String getFilename() {
+            return delegate.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return delegate.getDescription();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return input(userId, size, delegate.getInputStream());
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import ru.netology.filestorage.dto.PresignedUrlResponse;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.exception.FileNotFoundException;
+import ru.netology.filestorage.exception.LinkExpiredException;
+import ru.netology.filestorage.exception.TokenValidationException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Подписанные ссылки на скачивание без токена. Все, что нужно для отдачи файла (владелец, имя,
+ * положение данных, размер, версия), записано в саму ссылку и подписано HMAC-SHA256, поэтому
+ * проверка ссылки не обращается к БД. Версия файла - время изменения его данных на диске; для
+ * упакованных файлов, у которых нет своего файла на диске, удаление и изменение отмечаются
+ * в памяти (revoke), а ссылки, выданные до запуска приложения, не принимаются. Тома, на которые
+ * выданы действующие ссылки, уплотнение не удаляет до истечения последней из них (linkedUntil):
+ * ссылка читает данные по старому положению, которое после переписывания тома не меняется.
+ * При переносе пользователя на другой узел все его ссылки, выданные этим узлом, отзываются (revokeUser).
+ * Без app.presigned.secret ссылки подписываются общим app.cluster.secret, чтобы любой узел
+ * кластера мог проверить ссылку и переслать запрос выдавшему ее узлу.
+ */
+@Service
+public class PresignedUrlService {
+
+    public static final String PATH_PREFIX = "/cloud/shared/";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte FORMAT_VERSION = 1;
+    private static final int REVOCATION_PURGE_INTERVAL = 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(PresignedUrlService.class);
+    private final StorageService storageService;
+    private final VolumeStore volumeStore;
+    private final EncryptionService encryptionService;
+    private final IoScheduler ioScheduler;
+    private final SecretKeySpec key;
+    private final Duration defaultTtl;
+    private final Duration maxTtl;
+    private final String nodeId;
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<Long, Long> revoked = new ConcurrentHashMap<>();
+    private final Map<Long, Long> revokedUsers = new ConcurrentHashMap<>();
+    private final Map<Long, Long> linkedVolumes = new ConcurrentHashMap<>();
+    private final AtomicLong revocations = new AtomicLong();
+    private final Counter issued;
+    private final Counter served;
+    private final Counter invalid;
+    private final Counter expired;
+    private final Counter missing;
+
+    public PresignedUrlService(StorageService storageService,
+                               VolumeStore volumeStore,
+                               EncryptionService encryptionService,
+                               IoScheduler ioScheduler,
+                               MeterRegistry meterRegistry,
+                               @Value("${app.presigned.secret:${app.cluster.secret:}}") String secret,
+                               @Value("${app.presigned.default-ttl:PT1H}") Duration defaultTtl,
+                               @Value("${app.presigned.max-ttl:P7D}") Duration maxTtl,
+                               @Value("${app.cluster.node-id:local}") String nodeId) {
+        this.storageService = storageService;
+        this.volumeStore = volumeStore;
+        this.encryptionService = encryptionService;
+        this.ioScheduler = ioScheduler;
+        byte[] keyBytes;
+        if (secret == null || secret.isBlank()) {
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+            log.info("Ключ подписи ссылок не задан (app.presigned.secret), ссылки действуют до перезапуска");
+        } else {
+            keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+        this.defaultTtl = defaultTtl;
+        this.maxTtl = maxTtl;
+        this.nodeId = nodeId;
+        this.issued = Counter.builder("filestorage.presigned.issued").register(meterRegistry);
+        this.served = downloads(meterRegistry, "ok");
+        this.invalid = downloads(meterRegistry, "invalid");
+        this.expired = downloads(meterRegistry, "expired");
+        this.missing = downloads(meterRegistry, "missing");
+    }
+
+    /**
+     * Подписывает ссылку на текущую версию файла. ttl по умолчанию - app.presigned.default-ttl,
+     * не больше app.presigned.max-ttl.
+     */
+    public PresignedUrlResponse sign(File file, Duration ttl) throws IOException {
+        Duration resolved = ttl != null ? ttl : defaultTtl;
+        if (resolved.isNegative() || resolved.isZero() || resolved.compareTo(maxTtl) > 0) {
+            throw new IllegalArgumentException("Срок действия ссылки должен быть больше нуля и не больше " + maxTtl);
+        }
+        long now = System.currentTimeMillis();
+        long modified = file.isPacked() ? 0 : modifiedNanos(storageService.resolve(file.getUser().getId(), file.getFilename()));
+        Link link = new Link(nodeId, file.getUser().getId(), file.getId(), file.getFilename(),
+                file.getContentType() != null ? file.getContentType() : "", file.getSize(), file.isEncrypted(),
+                file.isPacked() ? file.getVolumeId() : -1, file.isPacked() ? file.getVolumeOffset() : -1,
+                modified, file.getSha256() != null ? file.getSha256() : "", now, now + resolved.toMillis());
+        if (file.isPacked()) {
+            linkedVolumes.merge(file.getVolumeId(), link.expiresAt(), Math::max);
+        }
+        byte[] payload = link.encode();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String token = encoder.encodeToString(payload) + "." + encoder.encodeToString(mac(payload));
+        issued.increment();
+        return new PresignedUrlResponse(PATH_PREFIX + token, Instant.ofEpochMilli(link.expiresAt()));
+    }
+
+    /**
+     * Проверяет ссылку и открывает файл. Подпись неверна - TokenValidationException, срок истек
+     * или файл с тех пор изменен - LinkExpiredException, данных больше нет - FileNotFoundException.
+     */
+    public SharedFile open(String token) throws IOException {
+        Link link = verify(token);
+        long now = System.currentTimeMillis();
+        if (now >= link.expiresAt()) {
+            expired.increment();
+            throw new LinkExpiredException("Срок действия ссылки истек");
+        }
+        Long revokedAt = revoked.get(link.fileId());
+        Long userRevokedAt = revokedUsers.get(link.userId());
+        if ((revokedAt != null && revokedAt >= link.issuedAt()) || (userRevokedAt != null && userRevokedAt >= link.issuedAt())
+                || (link.volumeId() >= 0 && link.issuedAt() < startedAt)) {
+            expired.increment();
+            throw new LinkExpiredException("Файл изменен или удален после выдачи ссылки");
+        }
+
+        File file = new File(link.filename(), link.size(), link.contentType(), null);
+        file.setId(link.fileId());
+        file.setEncrypted(link.encrypted());
+        Resource resource;
+        try {
+            if (link.volumeId() >= 0) {
+                file.setVolumeId(link.volumeId());
+                file.setVolumeOffset(link.volumeOffset());
+                resource = new ByteArrayResource(encryptionService.decrypt(file,
+                        ioScheduler.call(link.userId(), IoScheduler.Direction.READ, link.size(), () -> volumeStore.read(file))));
+            } else {
+                Path path = storageService.resolve(link.userId(), link.filename());
+                if (modifiedNanos(path) != link.modified()) {
+                    expired.increment();
+                    throw new LinkExpiredException("Файл изменен после выдачи ссылки");
+                }
+                resource = ioScheduler.resource(link.userId(), link.size(), encryptionService.resource(file, path));
+            }
+        } catch (NoSuchFileException e) {
+            missing.increment();
+            throw new FileNotFoundException("Файл не найден: " + link.filename());
+        }
+        served.increment();
+        return new SharedFile(resource, link.filename(), link.contentType().isEmpty() ? null : link.contentType(),
+                link.sha256().isEmpty() ? null : link.sha256(), Instant.ofEpochMilli(link.expiresAt()));
+    }
+
+    /**
+     * Узел кластера, выдавший ссылку и хранящий файл; null, если подпись неверна.
+     */
+    public String nodeOf(String token) {
+        try {
+            return verify(token).node();
+        } catch (TokenValidationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Отзывает ссылки, выданные до этого момента: файл удален, изменен или переименован.
+     */
+    public void revoke(Long fileId) {
+        if (fileId == null) {
+            return;
+        }
+        revoked.put(fileId, System.currentTimeMillis());
+        purgeRevocations();
+    }
+
+    /**
+     * Отзывает все ссылки пользователя, выданные до этого момента: пользователь перенесен на другой узел,
+     * и данные этого узла больше не актуальны.
+     */
+    public void revokeUser(Long userId) {
+        revokedUsers.put(userId, System.currentTimeMillis());
+        purgeRevocations();
+    }
+
+    /**
+     * Момент (мс), до которого действуют выданные ссылки на данные тома; 0, если таких ссылок нет.
+     */
+    public long linkedUntil(Long volumeId) {
+        Long expiresAt = linkedVolumes.get(volumeId);
+        if (expiresAt == null) {
+            return 0;
+        }
+        if (expiresAt <= System.currentTimeMillis()) {
+            linkedVolumes.remove(volumeId, expiresAt);
+        }
+        return expiresAt;
+    }
+
+    private void purgeRevocations() {
+        if (revocations.incrementAndGet() % REVOCATION_PURGE_INTERVAL == 0) {
+            long now = System.currentTimeMillis();
+            long horizon = now - maxTtl.toMillis();
+            revoked.values().removeIf(revokedAt -> revokedAt < horizon);
+            revokedUsers.values().removeIf(revokedAt -> revokedAt < horizon);
+            linkedVolumes.values().removeIf(expiresAt -> expiresAt <= now);
+        }
+    }
+
+    private Link verify(String token) {
+        int separator = token != null ? token.indexOf('.') : -1;
+        if (separator < 0) {
+            invalid.increment();
+            throw new TokenValidationException("Некорректная ссылка");
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(0, separator));
+            signature = Base64.getUrlDecoder().decode(token.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            invalid.increment();
+            throw new TokenValidationException("Некорректная ссылка");
+        }
+        if (!MessageDigest.isEqual(mac(payload), signature)) {
+            invalid.increment();
+            throw new TokenValidationException("Неверная подпись ссылки");
+        }
+        try {
+            return Link.decode(payload);
+        } catch (IOException e) {
+            invalid.increment();
+            throw new TokenValidationException("Некорректная ссылка");
+        }
+    }
+
+    private byte[] mac(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 недоступен", e);
+        }
+    }
+
+    private static long modifiedNanos(Path path) throws IOException {
+        return Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS);
+    }
+
+    private static Counter downloads(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("filestorage.presigned.downloads")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    public record SharedFile(Resource resource, String filename, String contentType, String sha256, Instant expiresAt) {
+    }
+
+    private record Link(String node, long userId, long fileId, String filename, String contentType, long size,
+                        boolean encrypted, long volumeId, long volumeOffset, long modified, String sha256,
+                        long issuedAt, long expiresAt) {
+
+        byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeByte(FORMAT_VERSION);
+                out.writeUTF(node);
+                out.writeLong(userId);
+                out.writeLong(fileId);
+                out.writeUTF(filename);
+                out.writeUTF(contentType);
+                out.writeLong(size);
+                out.writeBoolean(encrypted);
+                out.writeLong(volumeId);
+                out.writeLong(volumeOffset);
+                out.writeLong(modified);
+                out.writeUTF(sha256);
+                out.writeLong(issuedAt);
+                out.writeLong(expiresAt);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        static Link decode(byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readByte() != FORMAT_VERSION) {
+                throw new IOException("Неизвестный формат ссылки");
+            }
+            return new Link(in.readUTF(), in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readLong(),
+                    in.readBoolean(), in.readLong(), in.readLong(), in.readLong(), in.readUTF(),
+                    in.readLong(), in.readLong());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package ru.netology.filestorage.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.entity.FileVersion;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.exception.QuotaExceededException;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Учет занятого пользователем места. Счетчик used_bytes меняется в той же транзакции,
+ * что и запись метаданных файла, а периодическая сверка с SUM(size) исправляет расхождения.
+ * Версии файлов в счетчик не входят, но занимают только свободное место квоты: лишние удаляются
+ * при замене файла и при сверке.
+ */
+@Service
+public class QuotaService {
+
+    private static final Logger log = LoggerFactory.getLogger(QuotaService.class);
+    private final UserRepository userRepository;
+    private final FileRepository fileRepository;
+    private final FileVersionService fileVersionService;
+    private final TransactionTemplate transactionTemplate;
+    private final long defaultQuotaBytes;
+    private final int reconcileBatchSize;
+    private final String nodeId;
+
+    public QuotaService(UserRepository userRepository,
+                        FileRepository fileRepository,
+                        FileVersionService fileVersionService,
+                        PlatformTransactionManager transactionManager,
+                        @Value("${app.quota.default:10GB}") DataSize defaultQuota,
+                        @Value("${app.quota.reconcile.batch-size:100}") int reconcileBatchSize,
+                        @Value("${app.cluster.node-id:local}") String nodeId) {
+        this.userRepository = userRepository;
+        this.fileRepository = fileRepository;
+        this.fileVersionService = fileVersionService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.defaultQuotaBytes = defaultQuota.toBytes();
+        this.reconcileBatchSize = reconcileBatchSize;
+        this.nodeId = nodeId;
+    }
+
+    public long getQuota(User user) {
+        return user.getQuotaBytes() != null ? user.getQuotaBytes() : defaultQuotaBytes;
+    }
+
+    public long getRemaining(User user) {
+        return Math.max(0L, getQuota(user) - user.getUsedBytes());
+    }
+
+    /**
+     * Свободное место по счетчику в БД, а не по возможно устаревшей сущности; для вызова в транзакции.
+     */
+    public long getCurrentRemaining(User user) {
+        return Math.max(0L, getQuota(user) - userRepository.findUsedBytes(user.getId()));
+    }
+
+    public void reserve(User user, long bytes) {
+        if (userRepository.increaseUsedBytes(user.getId(), bytes, getQuota(user)) == 0) {
+            log.warn("Превышена квота пользователя: {} (запрошено {} байт)", user.getUsername(), bytes);
+            throw new QuotaExceededException("Превышена квота хранилища");
+        }
+    }
+
+    public void release(User user, long bytes) {
+        userRepository.decreaseUsedBytes(user.getId(), bytes);
+    }
+
+    @Scheduled(fixedDelayString = "${app.quota.reconcile.interval:PT1H}",
+            initialDelayString = "${app.quota.reconcile.initial-delay:PT5M}")
+    public void reconcileUsage() {
+        try {
+            int corrected = reconcile();
+            log.info("Сверка квот завершена, исправлено счетчиков: {}", corrected);
+        } catch (Exception e) {
+            log.error("Ошибка сверки квот", e);
+        }
+    }
+
+    public int reconcile() {
+        long afterId = 0L;
+        int corrected = 0;
+
+        while (true) {
+            List<Long> ids = userRepository.findIdsAfter(nodeId, afterId, PageRequest.of(0, reconcileBatchSize));
+            for (Long id : ids) {
+                List<FileVersion> pruned = new ArrayList<>();
+                Boolean changed = transactionTemplate.execute(status -> reconcileUser(id, pruned));
+                if (Boolean.TRUE.equals(changed)) {
+                    corrected++;
+                }
+                fileVersionService.deleteVersionData(pruned);
+            }
+            if (ids.size() < reconcileBatchSize) {
+                break;
+            }
+            afterId = ids.get(ids.size() - 1);
+        }
+        return corrected;
+    }
+
+    private boolean reconcileUser(Long userId, List<FileVersion> pruned) {
+        return userRepository.findByIdForUpdate(userId)
+                .map(user -> {
+                    long actual = fileRepository.sumSizeByUserId(userId);
+                    pruned.addAll(fileVersionService.fit(userId, Math.max(0L, getQuota(user) - actual)));
+                    if (actual == user.getUsedBytes()) {
+                        return false;
+                    }
+                    log.warn("Счетчик занятого места пользователя {} расходится: {} вместо {}",
+                            user.getUsername(), user.getUsedBytes(), actual);
+                    userRepository.setUsedBytes(userId, actual);
+                    return true;
+                })
+                .orElse(false);
+    }
+}
@@ -0,0 +1,146 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.netology.filestorage.config.RateLimitProperties;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Ограничение частоты запросов по пользователю и эндпоинту.
+ * Каждая корзина хранит единственное значение (GCRA, эквивалент token bucket),
+ * которое обновляется через CAS без блокировок. Корзины хранятся по эндпоинту, затем по пользователю,
+ * поэтому проверка уже существующей корзины не создает объектов.
+ */
+@Service
+public class RateLimitService {
+
+    private static final String API_PREFIX = "/cloud/";
+    private static final String SHARED = "shared";
+    private static final String OTHER = "other";
+    private static final Map<String, String> ENDPOINTS = Stream.of("login", "logout", "list", "search", "changes",
+                    "thumbnail", "file", "file/link", "file/signature", "file/delta", "file/restore", "file/copy",
+                    "file/versions", "file/versions/restore")
+            .collect(Collectors.toUnmodifiableMap(endpoint -> API_PREFIX + endpoint, Function.identity()));
+
+    private static final Logger log = LoggerFactory.getLogger(RateLimitService.class);
+    private final RateLimitProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Map<String, TokenBucket>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Counter> rejectionCounters = new ConcurrentHashMap<>();
+
+    public RateLimitService(RateLimitProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        meterRegistry.gauge("filestorage.rate_limit.buckets", Tags.empty(), this, RateLimitService::bucketCount);
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    /**
+     * Эндпоинт запроса для ключа корзины и тега метрики: путь после /cloud/ для известных эндпоинтов,
+     * shared для скачивания по ссылке и other для остальных путей, чтобы произвольные пути
+     * не создавали новые корзины и значения тега.
+     */
+    public String endpointOf(String servletPath) {
+        String endpoint = ENDPOINTS.get(servletPath);
+        if (endpoint != null) {
+            return endpoint;
+        }
+        return servletPath.startsWith(API_PREFIX + SHARED + "/") ? SHARED : OTHER;
+    }
+
+    /**
+     * Возвращает 0, если запрос разрешен, иначе время в наносекундах до появления свободного токена.
+     */
+    public long tryAcquire(String username, String endpoint) {
+        return tryAcquire(username, endpoint, System.nanoTime());
+    }
+
+    long tryAcquire(String username, String endpoint, long now) {
+        Map<String, TokenBucket> endpointBuckets = buckets.get(endpoint);
+        if (endpointBuckets == null) {
+            endpointBuckets = buckets.computeIfAbsent(endpoint, e -> new ConcurrentHashMap<>());
+        }
+        TokenBucket bucket = endpointBuckets.get(username);
+        if (bucket == null) {
+            bucket = endpointBuckets.computeIfAbsent(username, key -> new TokenBucket(properties.limitFor(endpoint), now));
+        }
+        long waitNanos = bucket.tryAcquire(now);
+        if (waitNanos > 0) {
+            rejectionCounters.computeIfAbsent(endpoint, e -> Counter.builder("filestorage.rate_limit.rejected")
+                            .tag("endpoint", e)
+                            .register(meterRegistry))
+                    .increment();
+        }
+        return waitNanos;
+    }
+
+    @Scheduled(fixedDelayString = "${app.rate-limit.eviction-interval:PT1M}")
+    public void evictIdleBuckets() {
+        evictIdleBuckets(System.nanoTime());
+    }
+
+    int evictIdleBuckets(long now) {
+        long idleNanos = properties.getIdleTimeout().toNanos();
+        int before = bucketCount();
+        for (Map<String, TokenBucket> endpointBuckets : buckets.values()) {
+            endpointBuckets.values().removeIf(bucket -> bucket.isIdle(now, idleNanos));
+        }
+        int evicted = before - bucketCount();
+        if (evicted > 0) {
+            log.debug("Удалено неактивных корзин ограничения запросов: {}", evicted);
+        }
+        return evicted;
+    }
+
+    int bucketCount() {
+        int count = 0;
+        for (Map<String, TokenBucket> endpointBuckets : buckets.values()) {
+            count += endpointBuckets.size();
+        }
+        return count;
+    }
+
+    static final class TokenBucket {
+        private final long emissionIntervalNanos;
+        private final long burstNanos;
+        private final AtomicLong theoreticalArrival;
+
+        TokenBucket(RateLimitProperties.Limit limit, long now) {
+            this.emissionIntervalNanos = Math.max(1L, (long) (1_000_000_000L / limit.getRefillPerSecond()));
+            this.burstNanos = emissionIntervalNanos * Math.max(1L, limit.getCapacity());
+            this.theoreticalArrival = new AtomicLong(now);
+        }
+
+        long tryAcquire(long now) {
+            while (true) {
+                long tat = theoreticalArrival.get();
+                long newTat = Math.max(tat, now) + emissionIntervalNanos;
+                long excess = newTat - now - burstNanos;
+                if (excess > 0) {
+                    return excess;
+                }
+                if (theoreticalArrival.compareAndSet(tat, newTat)) {
+                    return 0L;
+                }
+            }
+        }
+
+        boolean isIdle(long now, long idleNanos) {
+            return now - theoreticalArrival.get() > idleNanos;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ru.netology.filestorage.service;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.netology.filestorage.dto.RecordingInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Записи Java Flight Recorder на работающем экземпляре без подключения внешних инструментов.
+ * Запись идет с настройками JDK (default или profile) и событиями RequestPhaseEvent; при остановке
+ * или по истечении длительности она сохраняется в app.jfr.dump-dir. Одновременно идет не больше
+ * app.jfr.max-recordings записей.
+ */
+@Service
+public class RecordingService {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private static final Logger log = LoggerFactory.getLogger(RecordingService.class);
+    private final Map<Long, Recording> recordings = new ConcurrentHashMap<>();
+    private final Path dumpDir;
+    private final int maxRecordings;
+    private final Duration maxDuration;
+
+    public RecordingService(@Value("${app.jfr.dump-dir:./recordings}") String dumpDir,
+                            @Value("${app.jfr.max-recordings:2}") int maxRecordings,
+                            @Value("${app.jfr.max-duration:PT1H}") Duration maxDuration) {
+        this.dumpDir = Paths.get(dumpDir).toAbsolutePath().normalize();
+        this.maxRecordings = Math.max(1, maxRecordings);
+        this.maxDuration = maxDuration;
+    }
+
+    public List<RecordingInfo> list() {
+        return recordings.values().stream()
+                .sorted(Comparator.comparingLong(Recording::getId))
+                .map(RecordingService::info)
+                .toList();
+    }
+
+    /**
+     * Начинает запись. settings - встроенная конфигурация JDK (default - около 1% накладных расходов,
+     * profile - подробнее); duration ограничивает запись сверху значением app.jfr.max-duration,
+     * после чего она сохраняется сама. name входит в имя файла записи, поэтому допускает только
+     * латинские буквы, цифры, '_' и '-'.
+     */
+    public synchronized RecordingInfo start(String name, String settings, Duration duration) throws IOException {
+        String resolvedName = name == null || name.isBlank() ? "filestorage" : name;
+        if (!NAME.matcher(resolvedName).matches()) {
+            throw new IllegalArgumentException("Недопустимое имя записи: " + name);
+        }
+        purgeClosed();
+        if (recordings.size() >= maxRecordings) {
+            throw new IllegalStateException("Уже идет записей: " + recordings.size());
+        }
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration(settings == null || settings.isBlank() ? "default" : settings);
+        } catch (ParseException | IOException e) {
+            throw new IllegalArgumentException("Неизвестные настройки записи: " + settings, e);
+        }
+        Files.createDirectories(dumpDir);
+
+        Recording recording = new Recording(configuration);
+        recording.setName(resolvedName);
+        recording.enable(RequestPhaseEvent.class).withoutStackTrace().withThreshold(Duration.ZERO);
+        recording.setDuration(duration == null || duration.compareTo(maxDuration) > 0 ? maxDuration : duration);
+        Path destination = dumpDir.resolve(resolvedName + "-" + recording.getId() + ".jfr").normalize();
+        if (!destination.getParent().equals(dumpDir)) {
+            recording.close();
+            throw new IllegalArgumentException("Недопустимое имя записи: " + name);
+        }
+        recording.setDestination(destination);
+        recording.setToDisk(true);
+        recording.start();
+        recordings.put(recording.getId(), recording);
+        log.info("Запись JFR {} начата: настройки {}, длительность до {}", recording.getId(),
+                configuration.getName(), recording.getDuration());
+        return info(recording);
+    }
+
+    /**
+     * Останавливает запись и возвращает путь к сохраненному файлу.
+     */
+    public RecordingInfo stop(long id) {
+        Recording recording = recordings.remove(id);
+        if (recording == null) {
+            throw new IllegalArgumentException("Запись не найдена: " + id);
+        }
+        if (recording.getState() == RecordingState.RUNNING) {
+            // при остановке запись с destination сохраняется в файл
+            recording.stop();
+        }
+        RecordingInfo info = info(recording);
+        recording.close();
+        log.info("Запись JFR {} остановлена: {}", id, info.destination());
+        return info;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Long id : List.copyOf(recordings.keySet())) {
+            stop(id);
+        }
+    }
+
+    /**
+     * Записи, завершенные по длительности, уже сохранены JFR и только закрываются.
+     */
+    private void purgeClosed() {
+        recordings.values().removeIf(recording -> {
+            if (recording.getState() == RecordingState.STOPPED || recording.getState() == RecordingState.CLOSED) {
+                recording.close();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private static RecordingInfo info(Recording recording) {
+        Path destination = recording.getDestination();
+        return new RecordingInfo(recording.getId(), recording.getName(), recording.getState().name(),
+                recording.getStartTime(), recording.getDuration(), recording.getSize(),
+                destination != null ? destination.toString() : null);
+    }
+}
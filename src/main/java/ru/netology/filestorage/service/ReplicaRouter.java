@@ -0,0 +1,233 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Маршрутизация соединений между первичным узлом и репликами. Оборачивается в LazyConnectionDataSourceProxy,
+ * поэтому узел выбирается при первом запросе к БД, когда транзакция уже начата и помечена readOnly.
+ * На реплику уходит только чтение (транзакция readOnly или запрос вне транзакции) из потока, которому
+ * это разрешено через readFromReplicas/onReplica; все остальное, включая фоновые задачи, идет на первичный узел.
+ * При отсутствии исправной реплики чтение тоже уходит на первичный узел. Реплика считается исправной
+ * после успешной проверки, если ее отставание не больше max-lag; до первой проверки она не используется.
+ */
+public class ReplicaRouter extends AbstractDataSource implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRouter.class);
+    private static final ThreadLocal<Boolean> REPLICA_READS = new ThreadLocal<>();
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final DataSource primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final Duration readYourWritesWindow;
+    private final Duration maxLag;
+    private final String lagQuery;
+    private final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Counter replicaReads;
+    private final Counter primaryReads;
+
+    public ReplicaRouter(DataSource primary,
+                         Map<String, DataSource> replicas,
+                         Duration readYourWritesWindow,
+                         Duration maxLag,
+                         String lagQuery,
+                         MeterRegistry meterRegistry) {
+        this.primary = primary;
+        replicas.forEach((name, dataSource) -> this.replicas.add(new Replica(name, dataSource)));
+        this.readYourWritesWindow = readYourWritesWindow;
+        this.maxLag = maxLag;
+        this.lagQuery = lagQuery;
+        this.replicaReads = Counter.builder("filestorage.datasource.reads")
+                .tag("target", "replica")
+                .register(meterRegistry);
+        this.primaryReads = Counter.builder("filestorage.datasource.reads")
+                .tag("target", "primary")
+                .register(meterRegistry);
+        Gauge.builder("filestorage.datasource.replicas.healthy", this.replicas,
+                        list -> list.stream().filter(replica -> replica.healthy).count())
+                .register(meterRegistry);
+    }
+
+    /**
+     * Разрешает чтение с реплик в текущем потоке до закрытия возвращенной области.
+     */
+    public static Scope readFromReplicas() {
+        return scope(Boolean.TRUE);
+    }
+
+    /**
+     * Закрепляет текущий поток за первичным узлом до закрытия возвращенной области.
+     */
+    public static Scope pinToPrimary() {
+        return scope(Boolean.FALSE);
+    }
+
+    public static boolean isReplicaReadAllowed() {
+        return Boolean.TRUE.equals(REPLICA_READS.get());
+    }
+
+    public static <T> T onReplica(Supplier<T> action) {
+        try (Scope ignored = readFromReplicas()) {
+            return action.get();
+        }
+    }
+
+    public static <T> T onPrimary(Supplier<T> action) {
+        try (Scope ignored = pinToPrimary()) {
+            return action.get();
+        }
+    }
+
+    private static Scope scope(Boolean replicaReads) {
+        Boolean previous = REPLICA_READS.get();
+        REPLICA_READS.set(replicaReads);
+        return new Scope(previous);
+    }
+
+    public void markWrite(String username) {
+        lastWrites.put(username, System.nanoTime());
+    }
+
+    public boolean requiresPrimary(String username) {
+        Long writtenAt = lastWrites.get(username);
+        return writtenAt != null && System.nanoTime() - writtenAt < readYourWritesWindow.toNanos();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (!isReplicaReadAllowed()) {
+            return primary.getConnection();
+        }
+        if (TransactionSynchronizationManager.isActualTransactionActive()
+                && !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return primary.getConnection();
+        }
+        for (int attempt = 0; attempt < replicas.size(); attempt++) {
+            Replica replica = replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+            if (!replica.healthy) {
+                continue;
+            }
+            try {
+                Connection connection = replica.dataSource.getConnection();
+                replicaReads.increment();
+                return connection;
+            } catch (SQLException e) {
+                markUnhealthy(replica, e.getMessage());
+            }
+        }
+        primaryReads.increment();
+        return primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        throw new UnsupportedOperationException("Маршрутизатор реплик не принимает учетные данные соединения");
+    }
+
+    /**
+     * Проверяет доступность и отставание реплик, а также забывает пользователей,
+     * чье read-your-writes окно уже истекло.
+     */
+    @Scheduled(fixedDelayString = "${app.datasource.routing.health-check-interval:PT5S}")
+    public void checkReplicas() {
+        for (Replica replica : replicas) {
+            try (Connection connection = replica.dataSource.getConnection()) {
+                Duration lag = lag(connection);
+                if (lag.compareTo(maxLag) > 0) {
+                    markUnhealthy(replica, "отставание " + lag.toMillis() + " мс");
+                } else if (!replica.healthy) {
+                    replica.healthy = true;
+                    log.info("Реплика {} доступна для чтения, отставание {} мс", replica.name, lag.toMillis());
+                }
+            } catch (SQLException e) {
+                markUnhealthy(replica, e.getMessage());
+            }
+        }
+
+        long cutoff = System.nanoTime() - readYourWritesWindow.toNanos();
+        lastWrites.values().removeIf(writtenAt -> writtenAt - cutoff < 0);
+    }
+
+    public long healthyReplicas() {
+        return replicas.stream().filter(replica -> replica.healthy).count();
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (Replica replica : replicas) {
+            if (replica.dataSource instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+    private Duration lag(Connection connection) throws SQLException {
+        if (!StringUtils.hasText(lagQuery)) {
+            if (!connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                throw new SQLException("Соединение с репликой не прошло проверку");
+            }
+            return Duration.ZERO;
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(lagQuery)) {
+            double seconds = resultSet.next() ? resultSet.getDouble(1) : 0;
+            return Duration.ofMillis(Math.round(seconds * 1000));
+        }
+    }
+
+    private void markUnhealthy(Replica replica, String reason) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            log.warn("Реплика {} исключена из чтения: {}", replica.name, reason);
+        }
+    }
+
+    private static final class Replica {
+        private final String name;
+        private final DataSource dataSource;
+        private volatile boolean healthy;
+
+        private Replica(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+    }
+
+    public static final class Scope implements AutoCloseable {
+        private final Boolean previous;
+
+        private Scope(Boolean previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                REPLICA_READS.remove();
+            } else {
+                REPLICA_READS.set(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package ru.netology.filestorage.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Событие JFR для одного этапа обработки запроса: проверка токена, поиск пользователя, запрос метаданных,
+ * чтение или запись на диск, фиксация транзакции. Длительность этапа - длительность события.
+ * Имя файла в событие не попадает, только класс размера. Пока запись JFR не идет, start не заполняет поля,
+ * а finish ничего не фиксирует, поэтому события можно не отключать.
+ */
+@Name("ru.netology.filestorage.RequestPhase")
+@Label("Request Phase")
+@Description("Этап обработки запроса к хранилищу")
+@Category({"File Storage", "Requests"})
+@StackTrace(false)
+public final class RequestPhaseEvent extends Event {
+
+    public static final String AUTH = "auth";
+    public static final String UPLOAD = "upload";
+    public static final String DOWNLOAD = "download";
+
+    public static final String TOKEN_VALIDATION = "token-validation";
+    public static final String USER_RESOLUTION = "user-resolution";
+    public static final String PASSWORD_CHECK = "password-check";
+    public static final String METADATA_QUERY = "metadata-query";
+    public static final String DISK_WRITE = "disk-write";
+    public static final String DISK_READ = "disk-read";
+    public static final String COMMIT = "commit";
+
+    public static final String OK = "ok";
+    public static final String FAILED = "failed";
+
+    private static final long[] SIZE_BOUNDS = {64L << 10, 1L << 20, 16L << 20, 256L << 20};
+    private static final String[] SIZE_BUCKETS = {"<64KB", "<1MB", "<16MB", "<256MB", ">=256MB"};
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("User")
+    String username;
+
+    @Label("Size Bucket")
+    String sizeBucket;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Outcome")
+    String outcome = FAILED;
+
+    /**
+     * Начинает этап. size - размер файла для класса размера (отрицательный, если не известен).
+     * Этап считается неудачным, пока не вызван succeed или fail.
+     */
+    public static RequestPhaseEvent start(String operation, String phase, String username, long size) {
+        RequestPhaseEvent event = new RequestPhaseEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.phase = phase;
+            event.username = username;
+            event.sizeBucket = sizeBucket(size);
+            event.begin();
+        }
+        return event;
+    }
+
+    public void succeed() {
+        outcome = OK;
+    }
+
+    public void succeed(long bytes) {
+        this.bytes = bytes;
+        outcome = OK;
+    }
+
+    public void fail(String outcome) {
+        this.outcome = outcome;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public void finish() {
+        end();
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+
+    static String sizeBucket(long size) {
+        if (size < 0) {
+            return null;
+        }
+        for (int i = 0; i < SIZE_BOUNDS.length; i++) {
+            if (size < SIZE_BOUNDS[i]) {
+                return SIZE_BUCKETS[i];
+            }
+        }
+        return SIZE_BUCKETS[SIZE_BUCKETS.length - 1];
+    }
+
+    /**
+     * Ресурс, чтение которого (от getInputStream до close) записывается этапом DISK_READ: содержимое
+     * отдается клиенту уже после выхода из сервиса.
+     */
+    static Resource recordReads(Resource resource, String operation, String username, long size) {
+        if (!new RequestPhaseEvent().isEnabled()) {
+            return resource;
+        }
+        return new RecordedResource(resource, operation, username, size);
+    }
+
+    private static final class RecordedResource extends AbstractResource {
+        private final Resource delegate;
+        private final String operation;
+        private final String username;
+        private final long size;
+
+        RecordedResource(Resource delegate, String operation, String username, long size) {
+            this.delegate = delegate;
+            this.operation = operation;
+            this.username = username;
+            this.size = size;
+        }
+
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+
+        @Override
+        public boolean isReadable() {
+            return delegate.isReadable();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return delegate.lastModified();
+        }
+
+        @Override
+        public String getFilename() {
+            return delegate.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return delegate.getDescription();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            RequestPhaseEvent event = start(operation, DISK_READ, username, size);
+            try {
+                return new RecordedInputStream(delegate.getInputStream(), event);
+            } catch (IOException | RuntimeException e) {
+                event.finish();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Считает отданные байты; чтение без ошибок считается успешным, даже если клиент закрыл поток раньше
+     * (запросы диапазонов читают только часть файла).
+     */
+    private static final class RecordedInputStream extends FilterInputStream {
+        private final RequestPhaseEvent event;
+        private long read;
+        private boolean failed;
+        private boolean finished;
+
+        RecordedInputStream(InputStream in, RequestPhaseEvent event) {
+            super(in);
+            this.event = event;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int b = in.read();
+                if (b != -1) {
+                    read++;
+                }
+                return b;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                int n = in.read(buffer, offset, length);
+                if (n > 0) {
+                    read += n;
+                }
+                return n;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                if (!finished) {
+                    finished = true;
+                    if (failed) {
+                        event.bytes = read;
+                    } else {
+                        event.succeed(read);
+                    }
+                    event.finish();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package ru.netology.filestorage.service;
+
+/**
+ * Слабая скользящая контрольная сумма блока (как в rsync): пересчитывается за O(1)
+ * при сдвиге окна на один байт, что позволяет клиенту искать совпадающие блоки на любом смещении.
+ */
+public final class RollingChecksum {
+
+    private static final int MOD = 1 << 16;
+
+    private final int blockLength;
+    private int a;
+    private int b;
+
+    private RollingChecksum(int blockLength, int a, int b) {
+        this.blockLength = blockLength;
+        this.a = a;
+        this.b = b;
+    }
+
+    public static RollingChecksum of(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        return new RollingChecksum(length, a % MOD, b % MOD);
+    }
+
+    public static long compute(byte[] data, int offset, int length) {
+        return of(data, offset, length).value();
+    }
+
+    /**
+     * Сдвигает окно: байт out выходит слева, байт in входит справа.
+     */
+    public void roll(byte out, byte in) {
+        int outValue = out & 0xff;
+        a = Math.floorMod(a - outValue + (in & 0xff), MOD);
+        b = Math.floorMod(b - blockLength * outValue + a, MOD);
+    }
+
+    public long value() {
+        return ((long) b << 16) | a;
+    }
+}
@@ -0,0 +1,282 @@
+package ru.netology.filestorage.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.netology.filestorage.dto.SnapshotManifest;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileChange;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.exception.ChecksumMismatchException;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Восстановление из архивов SnapshotService: полный архив и следующие за ним инкрементальные.
+ * Метаданные берутся из последнего архива цепочки, данные каждого файла - из самого нового архива,
+ * где они есть. Файлы восстанавливаются параллельно (app.snapshots.restore.parallelism потоков);
+ * пользователи находятся по имени или создаются, файлы с уже занятыми именами пропускаются,
+ * поэтому восстановление можно повторить после сбоя.
+ */
+@Service
+public class SnapshotRestorer implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotRestorer.class);
+    private final UserRepository userRepository;
+    private final FileRepository fileRepository;
+    private final StorageService storageService;
+    private final VolumeStore volumeStore;
+    private final EncryptionService encryptionService;
+    private final ChangeFeedService changeFeedService;
+    private final FileListingCache fileListingCache;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final int parallelism;
+    private final String restoreFrom;
+    private final String nodeId;
+    private final boolean clusterEnabled;
+
+    public SnapshotRestorer(UserRepository userRepository,
+                            FileRepository fileRepository,
+                            StorageService storageService,
+                            VolumeStore volumeStore,
+                            EncryptionService encryptionService,
+                            ChangeFeedService changeFeedService,
+                            FileListingCache fileListingCache,
+                            ObjectMapper objectMapper,
+                            PlatformTransactionManager transactionManager,
+                            @Value("${app.snapshots.restore.parallelism:4}") int parallelism,
+                            @Value("${app.snapshots.restore.from:}") String restoreFrom,
+                            @Value("${app.cluster.node-id:local}") String nodeId,
+                            @Value("${app.cluster.enabled:false}") boolean clusterEnabled) {
+        this.userRepository = userRepository;
+        this.fileRepository = fileRepository;
+        this.storageService = storageService;
+        this.volumeStore = volumeStore;
+        this.encryptionService = encryptionService;
+        this.changeFeedService = changeFeedService;
+        this.fileListingCache = fileListingCache;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.parallelism = Math.max(1, parallelism);
+        this.restoreFrom = restoreFrom;
+        this.nodeId = nodeId;
+        this.clusterEnabled = clusterEnabled;
+    }
+
+    /**
+     * Восстановление при запуске из архивов app.snapshots.restore.from (через запятую, от полного).
+     */
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (restoreFrom == null || restoreFrom.isBlank()) {
+            return;
+        }
+        List<Path> archives = Arrays.stream(restoreFrom.split(","))
+                .map(String::trim)
+                .filter(path -> !path.isEmpty())
+                .map(Paths::get)
+                .toList();
+        Report report = restore(archives);
+        log.info("Восстановление из архивов завершено: пользователей {}, файлов восстановлено {}, пропущено {}, " +
+                        "без данных {}, с ошибками {}",
+                report.users(), report.restored(), report.skipped(), report.missing(), report.failed());
+    }
+
+    public Report restore(List<Path> archives) throws IOException, InterruptedException {
+        if (archives.isEmpty()) {
+            throw new IllegalArgumentException("Не указаны архивы для восстановления");
+        }
+        List<ZipFile> zips = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            SnapshotManifest manifest = null;
+            for (Path archive : archives) {
+                ZipFile zip = new ZipFile(archive.toFile());
+                zips.add(zip);
+                SnapshotManifest next = readManifest(zip, archive);
+                String expectedBase = manifest != null ? manifest.id() : null;
+                if (!Objects.equals(next.base(), expectedBase)) {
+                    throw new IllegalArgumentException("Архив " + archive + " выгружен относительно снимка " +
+                            next.base() + ", а не " + expectedBase);
+                }
+                manifest = next;
+            }
+            log.info("Восстановление снимка {}: пользователей {}, файлов {}",
+                    manifest.id(), manifest.users().size(), manifest.files().size());
+
+            Map<Long, User> users = new ConcurrentHashMap<>();
+            for (SnapshotManifest.Owner owner : manifest.users()) {
+                users.put(owner.id(), restoreUser(owner));
+            }
+
+            List<Future<Outcome>> results = new ArrayList<>();
+            for (SnapshotManifest.Entry entry : manifest.files()) {
+                User user = users.get(entry.userId());
+                if (user != null) {
+                    results.add(executor.submit(() -> restoreFile(entry, user, zips)));
+                }
+            }
+            int restored = 0;
+            int skipped = 0;
+            int missing = 0;
+            int failed = 0;
+            for (Future<Outcome> result : results) {
+                Outcome outcome;
+                try {
+                    outcome = result.get();
+                } catch (ExecutionException e) {
+                    log.error("Ошибка восстановления файла", e.getCause());
+                    outcome = Outcome.FAILED;
+                }
+                switch (outcome) {
+                    case RESTORED -> restored++;
+                    case SKIPPED -> skipped++;
+                    case MISSING -> missing++;
+                    case FAILED -> failed++;
+                }
+            }
+
+            for (User user : users.values()) {
+                changeFeedService.publish(user);
+                fileListingCache.invalidate(user.getUsername());
+            }
+            return new Report(users.size(), restored, skipped, missing, failed);
+        } finally {
+            executor.shutdownNow();
+            for (ZipFile zip : zips) {
+                zip.close();
+            }
+        }
+    }
+
+    private SnapshotManifest readManifest(ZipFile zip, Path archive) throws IOException {
+        ZipEntry entry = zip.getEntry(SnapshotService.MANIFEST);
+        if (entry == null) {
+            throw new IllegalArgumentException("В архиве нет " + SnapshotService.MANIFEST + ": " + archive);
+        }
+        try (InputStream in = zip.getInputStream(entry)) {
+            return objectMapper.readValue(in, SnapshotManifest.class);
+        }
+    }
+
+    private User restoreUser(SnapshotManifest.Owner owner) {
+        return transactionTemplate.execute(status -> userRepository.findByUsername(owner.username())
+                .orElseGet(() -> {
+                    User user = new User(owner.username(), owner.password());
+                    user.setQuotaBytes(owner.quotaBytes());
+                    if (clusterEnabled) {
+                        user.setNodeId(nodeId);
+                    }
+                    log.info("Пользователь восстановлен: {}", owner.username());
+                    return userRepository.save(user);
+                }));
+    }
+
+    private Outcome restoreFile(SnapshotManifest.Entry entry, User user, List<ZipFile> zips) throws IOException {
+        if (fileRepository.existsByUserAndFilename(user, entry.filename())) {
+            return Outcome.SKIPPED;
+        }
+        ZipFile source = null;
+        ZipEntry data = null;
+        for (int i = zips.size() - 1; i >= 0 && data == null; i--) {
+            source = zips.get(i);
+            data = source.getEntry(SnapshotService.DATA_PREFIX + entry.id());
+        }
+        if (data == null) {
+            log.warn("В архивах нет данных файла {} пользователя {}", entry.filename(), user.getUsername());
+            return Outcome.MISSING;
+        }
+
+        VolumeStore.Location location = null;
+        Path target = null;
+        String sha256;
+        try (InputStream in = source.getInputStream(data)) {
+            if (entry.packed()) {
+                byte[] stored = in.readAllBytes();
+                if (stored.length != entry.storedSize()) {
+                    throw new ChecksumMismatchException("Размер содержимого не совпадает: " + entry.filename());
+                }
+                byte[] plain = entry.encrypted() ? encryptionService.decrypt(stored) : stored;
+                sha256 = verify(entry, plain.length, HexFormat.of().formatHex(StorageService.newSha256().digest(plain)));
+                location = volumeStore.append(stored);
+            } else {
+                target = storageService.resolve(user, entry.filename());
+                StorageService.StoredContent stored = storageService.write(target, in, Long.MAX_VALUE);
+                try {
+                    if (entry.encrypted()) {
+                        try (InputStream plain = encryptionService.openStream(target)) {
+                            stored = StorageService.digest(plain);
+                        }
+                    }
+                    sha256 = verify(entry, stored.size(), stored.sha256());
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(target);
+                    throw e;
+                }
+            }
+        } catch (ChecksumMismatchException e) {
+            log.error("Файл {} пользователя {} не восстановлен: {}", entry.filename(), user.getUsername(), e.getMessage());
+            return Outcome.FAILED;
+        }
+
+        File file = new File(entry.filename(), entry.size(), entry.contentType(), user);
+        file.setSha256(sha256);
+        file.setUploadedAt(entry.uploadedAt());
+        file.setEncrypted(entry.encrypted());
+        if (location != null) {
+            file.setVolumeId(location.volumeId());
+            file.setVolumeOffset(location.offset());
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                userRepository.increaseUsedBytes(user.getId(), entry.size(), Long.MAX_VALUE);
+                fileRepository.save(file);
+                changeFeedService.record(user, FileChange.Type.UPLOAD, file, null);
+            });
+        } catch (RuntimeException e) {
+            if (target != null) {
+                Files.deleteIfExists(target);
+            }
+            throw e;
+        }
+        return Outcome.RESTORED;
+    }
+
+    private static String verify(SnapshotManifest.Entry entry, long size, String sha256) {
+        if (size != entry.size() || (entry.sha256() != null && !entry.sha256().equalsIgnoreCase(sha256))) {
+            throw new ChecksumMismatchException("Контрольная сумма не совпадает: " + entry.filename());
+        }
+        return sha256;
+    }
+
+    private enum Outcome { RESTORED, SKIPPED, MISSING, FAILED }
+
+    public record Report(int users, int restored, int skipped, int missing, int failed) {
+    }
+}
@@ -0,0 +1,522 @@
+package ru.netology.filestorage.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.dto.SnapshotInfo;
+import ru.netology.filestorage.dto.SnapshotManifest;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Снимки хранилища в storage/.snapshots/{id}: manifest.json с метаданными на момент снимка
+ * и жесткие ссылки на данные (data/{fileId} для обычных файлов, volumes/{volumeId}.dat для томов).
+ * Данные файлов никогда не меняются на месте, поэтому ссылка сохраняет содержимое на момент снимка
+ * и почти не занимает места, пока файл не удален или не заменен.
+ * Согласованность метаданных и данных проверяется по пользователям: change_seq до и после снятия
+ * должен совпасть, иначе пользователь снимается заново; ссылка на файл создается под блокировкой
+ * чтения файла, поэтому не попадает между фиксацией замены и переименованием ее данных. Пользователи без изменений с прошлого снимка
+ * переносятся из него без обращения к таблице files.
+ * Архив выгрузки содержит manifest.json и данные в том виде, в каком они лежат на диске (зашифрованные
+ * остаются зашифрованными); инкрементальный архив - только файлы, новые или измененные относительно base.
+ */
+@Service
+public class SnapshotService {
+
+    public static final String SNAPSHOTS_DIR = ".snapshots";
+    public static final String MANIFEST = "manifest.json";
+    public static final String DATA_PREFIX = "data/";
+    public static final String FULL_SUFFIX = ".full.zip";
+    public static final String INCREMENTAL_SUFFIX = ".incr.zip";
+    private static final String INFO = "info.json";
+    private static final String DATA_DIR = "data";
+    private static final String VOLUMES_DIR = "volumes";
+    private static final String BUILDING_PREFIX = ".building-";
+    private static final DateTimeFormatter ID_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotService.class);
+    private final UserRepository userRepository;
+    private final FileRepository fileRepository;
+    private final StorageService storageService;
+    private final VolumeStore volumeStore;
+    private final EncryptionService encryptionService;
+    private final IoScheduler ioScheduler;
+    private final FileLocks fileLocks;
+    private final ObjectMapper objectMapper;
+    private final Path root;
+    private final Path exportDir;
+    private final int keep;
+    private final int fullEvery;
+    private final int batchSize;
+    private final long bytesPerSecond;
+    private final String nodeId;
+    private final Timer created;
+    private final Counter retries;
+    private final Counter exportedBytes;
+    private final AtomicLong lastCompleted = new AtomicLong();
+
+    public SnapshotService(UserRepository userRepository,
+                           FileRepository fileRepository,
+                           StorageService storageService,
+                           VolumeStore volumeStore,
+                           EncryptionService encryptionService,
+                           IoScheduler ioScheduler,
+                           FileLocks fileLocks,
+                           ObjectMapper objectMapper,
+                           MeterRegistry meterRegistry,
+                           @Value("${app.snapshots.keep:7}") int keep,
+                           @Value("${app.snapshots.export-dir:}") String exportDir,
+                           @Value("${app.snapshots.full-every:7}") int fullEvery,
+                           @Value("${app.snapshots.batch-size:100}") int batchSize,
+                           @Value("${app.snapshots.export-rate:50MB}") DataSize exportRate,
+                           @Value("${app.cluster.node-id:local}") String nodeId) {
+        this.userRepository = userRepository;
+        this.fileRepository = fileRepository;
+        this.storageService = storageService;
+        this.volumeStore = volumeStore;
+        this.encryptionService = encryptionService;
+        this.ioScheduler = ioScheduler;
+        this.fileLocks = fileLocks;
+        this.objectMapper = objectMapper;
+        this.root = storageService.getRoot().resolve(SNAPSHOTS_DIR);
+        this.exportDir = exportDir == null || exportDir.isBlank() ? null : Paths.get(exportDir);
+        this.keep = Math.max(1, keep);
+        this.fullEvery = Math.max(1, fullEvery);
+        this.batchSize = batchSize;
+        this.bytesPerSecond = Math.max(1L, exportRate.toBytes());
+        this.nodeId = nodeId;
+        this.created = Timer.builder("filestorage.snapshots.create").register(meterRegistry);
+        this.retries = Counter.builder("filestorage.snapshots.retries").register(meterRegistry);
+        this.exportedBytes = Counter.builder("filestorage.snapshots.export.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("filestorage.snapshots.last_completed", lastCompleted, AtomicLong::get)
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Ночная копия: снимок, выгрузка архива в export-dir (если задан) и удаление старых снимков.
+     * Полный архив выгружается раз в full-every копий, остальные - инкрементальные от предыдущего снимка.
+     */
+    @Scheduled(cron = "${app.snapshots.cron:-}")
+    public void backup() {
+        try {
+            List<SnapshotInfo> existing = list();
+            SnapshotInfo snapshot = create();
+            if (exportDir != null) {
+                String base = existing.isEmpty() ? null : incrementalBase(existing.get(existing.size() - 1).id());
+                Path archive = exportTo(snapshot.id(), base);
+                log.info("Архив снимка выгружен: {}", archive);
+            }
+            prune();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("Резервное копирование прервано");
+        } catch (Exception e) {
+            log.error("Ошибка резервного копирования", e);
+        }
+    }
+
+    /**
+     * Создает снимок. Снимок собирается во временном каталоге и появляется под своим id
+     * только целиком.
+     */
+    public synchronized SnapshotInfo create() throws IOException {
+        long started = System.nanoTime();
+        Files.createDirectories(root);
+        discardUnfinished();
+
+        List<SnapshotInfo> existing = list();
+        String parentId = existing.isEmpty() ? null : existing.get(existing.size() - 1).id();
+        Instant createdAt = Instant.now();
+        String id = ID_FORMAT.format(createdAt);
+        if (parentId != null && id.compareTo(parentId) <= 0) {
+            throw new IllegalStateException("Снимок " + id + " уже существует");
+        }
+
+        Path building = root.resolve(BUILDING_PREFIX + id);
+        try {
+            Files.createDirectories(building.resolve(DATA_DIR));
+            Files.createDirectories(building.resolve(VOLUMES_DIR));
+            Parent parent = parentId != null ? new Parent(directory(parentId), manifest(parentId)) : null;
+
+            List<SnapshotManifest.Owner> owners = new ArrayList<>();
+            List<SnapshotManifest.Entry> entries = new ArrayList<>();
+            long afterId = 0L;
+            List<Long> ids;
+            do {
+                ids = userRepository.findIdsAfter(nodeId, afterId, PageRequest.of(0, batchSize));
+                for (Long userId : ids) {
+                    Captured captured = capture(userId, parent, building);
+                    if (captured != null) {
+                        owners.add(captured.owner());
+                        entries.addAll(captured.entries());
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    afterId = ids.get(ids.size() - 1);
+                }
+            } while (ids.size() == batchSize);
+
+            SnapshotManifest manifest = new SnapshotManifest(id, null, createdAt, owners, entries);
+            SnapshotInfo info = new SnapshotInfo(id, createdAt, owners.size(), entries.size(),
+                    entries.stream().mapToLong(SnapshotManifest.Entry::size).sum());
+            objectMapper.writeValue(building.resolve(MANIFEST).toFile(), manifest);
+            objectMapper.writeValue(building.resolve(INFO).toFile(), info);
+            Files.move(building, directory(id), StandardCopyOption.ATOMIC_MOVE);
+
+            lastCompleted.set(Instant.now().getEpochSecond());
+            created.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            log.info("Снимок {} создан: пользователей {}, файлов {}, {} байт",
+                    id, info.users(), info.files(), info.bytes());
+            return info;
+        } catch (IOException | RuntimeException e) {
+            FileSystemUtils.deleteRecursively(building);
+            throw e;
+        }
+    }
+
+    /**
+     * Снимки по возрастанию времени создания.
+     */
+    public List<SnapshotInfo> list() throws IOException {
+        List<SnapshotInfo> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return snapshots;
+        }
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root)) {
+            for (Path directory : directories) {
+                Path info = directory.resolve(INFO);
+                if (!directory.getFileName().toString().startsWith(".") && Files.exists(info)) {
+                    snapshots.add(objectMapper.readValue(info.toFile(), SnapshotInfo.class));
+                }
+            }
+        }
+        snapshots.sort((a, b) -> a.id().compareTo(b.id()));
+        return snapshots;
+    }
+
+    public SnapshotManifest manifest(String id) throws IOException {
+        Path manifest = directory(id).resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+            throw new IllegalArgumentException("Снимок не найден: " + id);
+        }
+        return objectMapper.readValue(manifest.toFile(), SnapshotManifest.class);
+    }
+
+    /**
+     * Удаляет снимки сверх app.snapshots.keep, начиная со старых. Возвращает число удаленных.
+     */
+    public synchronized int prune() throws IOException {
+        List<SnapshotInfo> snapshots = list();
+        int removed = 0;
+        for (int i = 0; i < snapshots.size() - keep; i++) {
+            FileSystemUtils.deleteRecursively(directory(snapshots.get(i).id()));
+            log.info("Снимок удален: {}", snapshots.get(i).id());
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Пишет архив снимка id в out (zip). С baseId в архив попадают только данные файлов, новых
+     * или измененных относительно снимка baseId; восстановление применяет архивы цепочкой от полного.
+     * Скорость чтения ограничена app.snapshots.export-rate, чтобы не мешать обслуживанию запросов.
+     */
+    public void export(String id, String baseId, OutputStream out) throws IOException, InterruptedException {
+        SnapshotManifest manifest = manifest(id);
+        Map<Long, SnapshotManifest.Entry> base = baseId == null ? Map.of() : manifest(baseId).files().stream()
+                .collect(Collectors.toMap(SnapshotManifest.Entry::id, Function.identity()));
+        Path directory = directory(id);
+        Throttle throttle = new Throttle(bytesPerSecond);
+        Map<Long, FileChannel> volumes = new HashMap<>();
+
+        try {
+            ZipOutputStream zip = new ZipOutputStream(out);
+            zip.setLevel(Deflater.BEST_SPEED);
+            zip.putNextEntry(new ZipEntry(MANIFEST));
+            zip.write(objectMapper.writeValueAsBytes(new SnapshotManifest(manifest.id(), baseId,
+                    manifest.createdAt(), manifest.users(), manifest.files())));
+            zip.closeEntry();
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (SnapshotManifest.Entry entry : manifest.files()) {
+                if (unchanged(base.get(entry.id()), entry)) {
+                    continue;
+                }
+                zip.putNextEntry(new ZipEntry(DATA_PREFIX + entry.id()));
+                try (InputStream in = ioScheduler.input(IoScheduler.BACKGROUND, entry.storedSize(),
+                        open(directory, entry, volumes))) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        zip.write(buffer, 0, read);
+                        exportedBytes.increment(read);
+                        throttle.acquire(read);
+                    }
+                }
+                zip.closeEntry();
+            }
+            zip.finish();
+        } finally {
+            for (FileChannel channel : volumes.values()) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Выгружает архив в export-dir как {id}.full.zip или {id}.incr.zip; файл появляется только целиком.
+     */
+    public Path exportTo(String id, String baseId) throws IOException, InterruptedException {
+        if (exportDir == null) {
+            throw new IllegalStateException("Не задан каталог выгрузки app.snapshots.export-dir");
+        }
+        Files.createDirectories(exportDir);
+        Path target = exportDir.resolve(id + (baseId == null ? FULL_SUFFIX : INCREMENTAL_SUFFIX));
+        Path temp = exportDir.resolve("." + target.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            export(id, baseId, out);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    private Captured capture(Long userId, Parent parent, Path building) throws IOException {
+        boolean fromParent = parent != null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            User user = userRepository.findById(userId).orElse(null);
+            if (user == null || (user.getNodeId() != null && !user.getNodeId().equals(nodeId))) {
+                return null;
+            }
+            long before = user.getChangeSeq();
+            SnapshotManifest.Owner owner = new SnapshotManifest.Owner(user.getId(), user.getUsername(),
+                    user.getPassword(), user.getQuotaBytes(), before);
+            List<SnapshotManifest.Entry> entries = fromParent ? parent.unchanged(owner) : null;
+            Path source = entries != null ? parent.directory() : null;
+            if (entries == null) {
+                entries = new ArrayList<>();
+                for (File file : fileRepository.findAllByUserId(userId)) {
+                    if (file.getDeletedAt() == null) {
+                        entries.add(entry(file));
+                    }
+                }
+            }
+
+            List<Path> linked = new ArrayList<>();
+            try {
+                for (SnapshotManifest.Entry entry : entries) {
+                    link(entry, source, building, linked);
+                }
+                if (userRepository.findChangeSeq(userId) == before) {
+                    return new Captured(owner, entries);
+                }
+            } catch (NoSuchFileException | InconsistentException e) {
+                log.debug("Данные пользователя {} изменились во время снимка: {}", userId, e.getMessage());
+            }
+            for (Path path : linked) {
+                Files.deleteIfExists(path);
+            }
+            // следующая попытка снимает текущие данные, даже если в предыдущем снимке чего-то не хватило
+            fromParent = false;
+            retries.increment();
+        }
+        log.warn("Пользователь {} не попал в снимок: данные менялись в течение {} попыток", userId, MAX_ATTEMPTS);
+        return null;
+    }
+
+    /**
+     * Ссылка на данные файла в снимке building. source - каталог предыдущего снимка, из которого
+     * переносится неизмененный пользователь, или null для текущих данных хранилища.
+     */
+    private void link(SnapshotManifest.Entry entry, Path source, Path building, List<Path> linked) throws IOException {
+        if (entry.packed()) {
+            Path target = building.resolve(VOLUMES_DIR).resolve(entry.volumeId() + ".dat");
+            Path volume = source != null
+                    ? source.resolve(VOLUMES_DIR).resolve(entry.volumeId() + ".dat")
+                    : volumeStore.path(entry.volumeId());
+            if (Files.exists(target)) {
+                // после перезапуска номер удаленного тома может достаться новому тому
+                if (!Files.isSameFile(target, volume)) {
+                    throw new InconsistentException("Том " + entry.volumeId() + " заменен");
+                }
+            } else {
+                storageService.link(volume, target);
+            }
+            return;
+        }
+
+        Path target = building.resolve(DATA_DIR).resolve(entry.id().toString());
+        if (source != null) {
+            storageService.link(source.resolve(DATA_DIR).resolve(entry.id().toString()), target);
+        } else {
+            try (FileLocks.Held held = fileLocks.read(entry.userId(), entry.filename())) {
+                storageService.link(storageService.resolve(entry.userId(), entry.filename()), target);
+            }
+        }
+        linked.add(target);
+        if (source == null && size(entry, target) != entry.size()) {
+            throw new InconsistentException("Размер файла " + entry.id() + " не совпадает с метаданными");
+        }
+    }
+
+    private long size(SnapshotManifest.Entry entry, Path path) throws IOException {
+        if (!entry.encrypted()) {
+            return Files.size(path);
+        }
+        try (SeekableByteChannel channel = encryptionService.openChannel(path)) {
+            return channel.size();
+        }
+    }
+
+    private InputStream open(Path directory, SnapshotManifest.Entry entry, Map<Long, FileChannel> volumes)
+            throws IOException {
+        if (!entry.packed()) {
+            return Files.newInputStream(directory.resolve(DATA_DIR).resolve(entry.id().toString()));
+        }
+        FileChannel volume = volumes.get(entry.volumeId());
+        if (volume == null) {
+            volume = FileChannel.open(directory.resolve(VOLUMES_DIR).resolve(entry.volumeId() + ".dat"),
+                    StandardOpenOption.READ);
+            volumes.put(entry.volumeId(), volume);
+        }
+        byte[] content = new byte[Math.toIntExact(entry.storedSize())];
+        InputStream in = Channels.newInputStream(volume.position(entry.volumeOffset()));
+        if (in.readNBytes(content, 0, content.length) != content.length) {
+            throw new IOException("Запись выходит за конец тома " + entry.volumeId());
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Снимок, относительно которого выгружать следующий архив: предыдущий, если его архив последний
+     * в export-dir и после последнего полного архива меньше full-every - 1 инкрементальных.
+     */
+    private String incrementalBase(String previousId) throws IOException {
+        List<String> archives = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(exportDir, "*.zip")) {
+            for (Path file : files) {
+                archives.add(file.getFileName().toString());
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        archives.sort(null);
+        if (archives.isEmpty() || !archives.get(archives.size() - 1).startsWith(previousId + ".")) {
+            return null;
+        }
+        int incremental = 0;
+        for (int i = archives.size() - 1; i >= 0 && archives.get(i).endsWith(INCREMENTAL_SUFFIX); i--) {
+            incremental++;
+        }
+        return incremental + 1 < fullEvery ? previousId : null;
+    }
+
+    private void discardUnfinished() throws IOException {
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, BUILDING_PREFIX + "*")) {
+            for (Path directory : directories) {
+                log.warn("Удаление незавершенного снимка: {}", directory.getFileName());
+                FileSystemUtils.deleteRecursively(directory);
+            }
+        }
+    }
+
+    private Path directory(String id) {
+        if (id == null || id.startsWith(".") || id.contains("/") || id.contains("\\")) {
+            throw new IllegalArgumentException("Некорректный идентификатор снимка: " + id);
+        }
+        return root.resolve(id);
+    }
+
+    private static boolean unchanged(SnapshotManifest.Entry previous, SnapshotManifest.Entry entry) {
+        return previous != null
+                && Objects.equals(previous.size(), entry.size())
+                && Objects.equals(previous.sha256(), entry.sha256())
+                && Objects.equals(previous.uploadedAt(), entry.uploadedAt())
+                && previous.encrypted() == entry.encrypted();
+    }
+
+    private static SnapshotManifest.Entry entry(File file) {
+        return new SnapshotManifest.Entry(file.getId(), file.getUser().getId(), file.getFilename(), file.getSize(),
+                file.getContentType(), file.getSha256(), file.getUploadedAt(), file.isEncrypted(),
+                file.getVolumeId(), file.getVolumeOffset());
+    }
+
+    private record Captured(SnapshotManifest.Owner owner, List<SnapshotManifest.Entry> entries) {
+    }
+
+    private record Parent(Path directory, Map<Long, SnapshotManifest.Owner> owners,
+                          Map<Long, List<SnapshotManifest.Entry>> entries) {
+
+        Parent(Path directory, SnapshotManifest manifest) {
+            this(directory,
+                    manifest.users().stream().collect(Collectors.toMap(SnapshotManifest.Owner::id, Function.identity())),
+                    manifest.files().stream().collect(Collectors.groupingBy(SnapshotManifest.Entry::userId)));
+        }
+
+        /**
+         * Файлы пользователя из предыдущего снимка, если с тех пор у него не было изменений.
+         */
+        List<SnapshotManifest.Entry> unchanged(SnapshotManifest.Owner owner) {
+            SnapshotManifest.Owner previous = owners.get(owner.id());
+            if (previous == null || previous.changeSeq() != owner.changeSeq()) {
+                return null;
+            }
+            return entries.getOrDefault(owner.id(), List.of());
+        }
+    }
+
+    private static class InconsistentException extends IOException {
+        InconsistentException(String message) {
+            super(message);
+        }
+    }
+}
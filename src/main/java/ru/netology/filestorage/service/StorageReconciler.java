@@ -0,0 +1,353 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.netology.filestorage.dto.FileSummary;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileChange;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сверка каталога хранения с метаданными. Пользователи обрабатываются параллельно (fork/join),
+ * для каждого содержимое каталога сопоставляется с потоком строк files, прочитанных пачками по id.
+ * Файлы без строк перемещаются в карантин, строки без файлов удаляются с возвратом квоты.
+ * Объекты моложе grace-period не трогаются: это могут быть загрузки и удаления, которые еще выполняются.
+ */
+@Service
+@ConditionalOnProperty(name = "app.reconcile.enabled", havingValue = "true", matchIfMissing = true)
+public class StorageReconciler {
+
+    public static final String QUARANTINE_DIR = ".quarantine";
+    private static final int USERS_PER_TASK = 1;
+    private static final int THROTTLE_BATCH = 256;
+
+    private static final Logger log = LoggerFactory.getLogger(StorageReconciler.class);
+    private final StorageService storageService;
+    private final FileRepository fileRepository;
+    private final UserRepository userRepository;
+    private final QuotaService quotaService;
+    private final ChangeFeedService changeFeedService;
+    private final FileListingCache fileListingCache;
+    private final ThumbnailService thumbnailService;
+    private final TransactionTemplate transactionTemplate;
+    private final int parallelism;
+    private final int batchSize;
+    private final Duration gracePeriod;
+    private final String nodeId;
+    private final boolean repair;
+    private final long maxEntriesPerSecond;
+    private final FileLocks fileLocks;
+    private final Counter scanned;
+    private final Counter orphans;
+    private final Counter dangling;
+    private final Counter staleTemp;
+    private final AtomicLong lastRunMillis = new AtomicLong();
+
+    public StorageReconciler(StorageService storageService,
+                             FileRepository fileRepository,
+                             UserRepository userRepository,
+                             QuotaService quotaService,
+                             ChangeFeedService changeFeedService,
+                             FileListingCache fileListingCache,
+                             ThumbnailService thumbnailService,
+                             FileLocks fileLocks,
+                             PlatformTransactionManager transactionManager,
+                             MeterRegistry meterRegistry,
+                             @Value("${app.reconcile.parallelism:4}") int parallelism,
+                             @Value("${app.reconcile.batch-size:5000}") int batchSize,
+                             @Value("${app.reconcile.grace-period:PT1H}") Duration gracePeriod,
+                             @Value("${app.reconcile.repair:false}") boolean repair,
+                             @Value("${app.reconcile.max-entries-per-second:50000}") long maxEntriesPerSecond,
+                             @Value("${app.cluster.node-id:local}") String nodeId) {
+        this.storageService = storageService;
+        this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
+        this.quotaService = quotaService;
+        this.changeFeedService = changeFeedService;
+        this.fileListingCache = fileListingCache;
+        this.thumbnailService = thumbnailService;
+        this.fileLocks = fileLocks;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.gracePeriod = gracePeriod;
+        this.nodeId = nodeId;
+        this.repair = repair;
+        this.maxEntriesPerSecond = maxEntriesPerSecond;
+        this.scanned = Counter.builder("filestorage.reconcile.entries").register(meterRegistry);
+        this.orphans = issue(meterRegistry, "orphan_file");
+        this.dangling = issue(meterRegistry, "dangling_row");
+        this.staleTemp = issue(meterRegistry, "stale_temp");
+        meterRegistry.more().timeGauge("filestorage.reconcile.last_run_duration", List.of(), lastRunMillis,
+                TimeUnit.MILLISECONDS, AtomicLong::get);
+    }
+
+    @Scheduled(fixedDelayString = "${app.reconcile.interval:PT24H}",
+            initialDelayString = "${app.reconcile.initial-delay:PT30M}")
+    public void reconcileStorage() {
+        try {
+            Report report = reconcile();
+            log.info("Сверка хранилища завершена: пользователей {}, записей {}, файлов без метаданных {}, " +
+                            "строк без файлов {}, временных файлов {}, исправлено {}",
+                    report.users(), report.entries(), report.orphanFiles(), report.danglingRows(),
+                    report.staleTempFiles(), report.repaired());
+        } catch (Exception e) {
+            log.error("Ошибка сверки хранилища", e);
+        }
+    }
+
+    public Report reconcile() throws IOException {
+        long started = System.currentTimeMillis();
+        List<Long> userIds = new ArrayList<>(collectUserIds());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Report report = pool.invoke(new UsersTask(userIds, 0, userIds.size(), new Throttle(maxEntriesPerSecond)));
+            lastRunMillis.set(System.currentTimeMillis() - started);
+            return report;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Объединение пользователей из БД и каталогов на диске: каталог без пользователя тоже подлежит сверке.
+     */
+    private Set<Long> collectUserIds() throws IOException {
+        Set<Long> ids = new TreeSet<>();
+        long afterId = 0L;
+        while (true) {
+            List<Long> batch = userRepository.findIdsAfter(nodeId, afterId, PageRequest.of(0, batchSize));
+            ids.addAll(batch);
+            if (batch.size() < batchSize) {
+                break;
+            }
+            afterId = batch.get(batch.size() - 1);
+        }
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(storageService.getRoot(), Files::isDirectory)) {
+            for (Path directory : directories) {
+                String name = directory.getFileName().toString();
+                if (name.chars().allMatch(Character::isDigit) && !name.isEmpty()) {
+                    ids.add(Long.parseLong(name));
+                }
+            }
+        }
+        return ids;
+    }
+
+    Report reconcileUser(Long userId, Throttle throttle) {
+        // каталог пользователя, перенесенного на другой узел кластера, сверяется как каталог без пользователя
+        User user = userRepository.findById(userId)
+                .filter(u -> u.getNodeId() == null || u.getNodeId().equals(nodeId))
+                .orElse(null);
+        Path directory = storageService.getRoot().resolve(userId.toString());
+        Instant threshold = Instant.now().minus(gracePeriod);
+        Map<String, Instant> onDisk = new HashMap<>();
+        long entryCount = 0;
+        int stale = 0;
+        int repaired = 0;
+
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (++entryCount % THROTTLE_BATCH == 0) {
+                        acquire(throttle);
+                        scanned.increment(THROTTLE_BATCH);
+                    }
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile()) {
+                        continue;
+                    }
+                    String name = entry.getFileName().toString();
+                    Instant modified = attributes.lastModifiedTime().toInstant();
+                    if (name.startsWith(StorageService.TEMP_PREFIX)) {
+                        if (modified.isBefore(threshold)) {
+                            stale++;
+                            staleTemp.increment();
+                            if (repair && Files.deleteIfExists(entry)) {
+                                repaired++;
+                            }
+                        }
+                        continue;
+                    }
+                    onDisk.put(name, modified);
+                }
+            } catch (IOException e) {
+                log.warn("Не удалось прочитать каталог пользователя {}", userId, e);
+                return Report.EMPTY;
+            }
+        }
+
+        scanned.increment(entryCount % THROTTLE_BATCH);
+
+        List<FileSummary> danglingRows = new ArrayList<>();
+        long afterId = 0L;
+        while (user != null) {
+            List<FileSummary> rows = fileRepository.findSummariesByUserIdAfter(userId, afterId, PageRequest.of(0, batchSize));
+            for (FileSummary row : rows) {
+                if (onDisk.remove(row.filename()) == null && isOlderThan(row.uploadedAt(), threshold)) {
+                    danglingRows.add(row);
+                }
+            }
+            if (rows.size() < batchSize) {
+                break;
+            }
+            afterId = rows.get(rows.size() - 1).id();
+        }
+
+        List<String> orphanFiles = onDisk.entrySet().stream()
+                .filter(e -> e.getValue().isBefore(threshold))
+                .map(Map.Entry::getKey)
+                .sorted()
+                .toList();
+
+        for (String filename : orphanFiles) {
+            orphans.increment();
+            log.warn("Файл без метаданных: пользователь {}, {}", userId, filename);
+            if (repair && quarantine(user, userId, filename)) {
+                repaired++;
+            }
+        }
+        for (FileSummary row : danglingRows) {
+            dangling.increment();
+            log.warn("Строка без файла: пользователь {}, {} (id {})", userId, row.filename(), row.id());
+            if (repair && removeDanglingRow(user, row)) {
+                repaired++;
+            }
+        }
+        return new Report(1, entryCount, orphanFiles.size(), danglingRows.size(), stale, repaired);
+    }
+
+    /**
+     * Проверка строки и перенос идут под блокировкой записи имени: копия через жесткую ссылку, восстановление
+     * из корзины или версии создают файл со старым mtime до фиксации строки, и grace-period их не защищает.
+     */
+    private boolean quarantine(User user, Long userId, String filename) {
+        Path source = storageService.getRoot().resolve(userId.toString()).resolve(filename);
+        Path target = storageService.getRoot().resolve(QUARANTINE_DIR).resolve(userId.toString())
+                .resolve(System.currentTimeMillis() + "-" + filename);
+        try (FileLocks.Held held = fileLocks.write(userId, filename)) {
+            if (user != null && fileRepository.existsByUserAndFilename(user, filename)) {
+                return false;
+            }
+            Files.createDirectories(target.getParent());
+            Files.move(source, target);
+            log.info("Файл перемещен в карантин: {}", target);
+            return true;
+        } catch (IOException e) {
+            log.warn("Не удалось переместить файл в карантин: {}", source, e);
+            return false;
+        }
+    }
+
+    private boolean removeDanglingRow(User user, FileSummary row) {
+        Path path = storageService.resolve(user, row.filename());
+        File removed;
+        try (FileLocks.Held held = fileLocks.write(user.getId(), row.filename())) {
+            removed = transactionTemplate.execute(status -> fileRepository.findById(row.id())
+                    .filter(file -> file.getDeletedAt() == null && !file.isPacked()
+                            && file.getFilename().equals(row.filename())
+                            && Files.notExists(path))
+                    .map(file -> {
+                        fileRepository.delete(file);
+                        quotaService.release(user, file.getSize());
+                        changeFeedService.record(user, FileChange.Type.DELETE, file, null);
+                        return file;
+                    })
+                    .orElse(null));
+        }
+        if (removed == null) {
+            return false;
+        }
+        changeFeedService.publish(user);
+        fileListingCache.onFileRemoved(user.getUsername(), removed.getId());
+        thumbnailService.delete(removed);
+        return true;
+    }
+
+    private static void acquire(Throttle throttle) throws InterruptedIOException {
+        try {
+            throttle.acquire(THROTTLE_BATCH);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Сверка хранилища прервана");
+        }
+    }
+
+    private static boolean isOlderThan(LocalDateTime uploadedAt, Instant threshold) {
+        return uploadedAt == null || uploadedAt.atZone(ZoneId.systemDefault()).toInstant().isBefore(threshold);
+    }
+
+    private static Counter issue(MeterRegistry meterRegistry, String type) {
+        return Counter.builder("filestorage.reconcile.issues").tag("type", type).register(meterRegistry);
+    }
+
+    public record Report(int users, long entries, int orphanFiles, int danglingRows, int staleTempFiles, int repaired) {
+        static final Report EMPTY = new Report(0, 0, 0, 0, 0, 0);
+
+        Report plus(Report other) {
+            return new Report(users + other.users, entries + other.entries, orphanFiles + other.orphanFiles,
+                    danglingRows + other.danglingRows, staleTempFiles + other.staleTempFiles, repaired + other.repaired);
+        }
+    }
+
+    private final class UsersTask extends RecursiveTask<Report> {
+        private final List<Long> userIds;
+        private final int from;
+        private final int to;
+        private final Throttle throttle;
+
+        UsersTask(List<Long> userIds, int from, int to, Throttle throttle) {
+            this.userIds = userIds;
+            this.from = from;
+            this.to = to;
+            this.throttle = throttle;
+        }
+
+        @Override
+        protected Report compute() {
+            if (to - from <= USERS_PER_TASK) {
+                Report report = Report.EMPTY;
+                for (int i = from; i < to; i++) {
+                    report = report.plus(reconcileUser(userIds.get(i), throttle));
+                }
+                return report;
+            }
+            int middle = (from + to) >>> 1;
+            UsersTask left = new UsersTask(userIds, from, middle, throttle);
+            left.fork();
+            Report right = new UsersTask(userIds, middle, to, throttle).compute();
+            return right.plus(left.join());
+        }
+    }}
@@ -0,0 +1,209 @@
+package ru.netology.filestorage.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.exception.InsufficientStorageException;
+import ru.netology.filestorage.exception.QuotaExceededException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.function.UnaryOperator;
+
+/**
+ * Работа с файлами на диске: раскладка storage/{userId}/{filename} и потоковая запись
+ * через временный файл с контролем квоты и свободного места на томе.
+ * Содержимое существующего файла никогда не меняется на месте (только замена через rename),
+ * поэтому копии могут разделять данные через жесткие ссылки.
+ * SHA-256 содержимого считается по ходу записи, без второго прохода по файлу.
+ * Данные удаленных файлов до фоновой очистки лежат в storage/.trash/{userId}/{fileId},
+ * сохраненные предыдущие версии - в storage/.versions/{userId}/{versionId}.
+ */
+@Service
+public class StorageService {
+
+    public static final String TEMP_PREFIX = ".upload-";
+    public static final String TRASH_DIR = ".trash";
+    public static final String VERSIONS_DIR = ".versions";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FREE_SPACE_CHECK_INTERVAL = 8L * 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(StorageService.class);
+    private final Path root;
+    private final FileStore fileStore;
+    private final long minFreeSpaceBytes;
+
+    public StorageService(@Value("${app.storage.path:./storage}") String storagePath,
+                          @Value("${app.storage.min-free-space:100MB}") DataSize minFreeSpace) {
+        this.root = Paths.get(storagePath);
+        this.minFreeSpaceBytes = minFreeSpace.toBytes();
+
+        try {
+            Files.createDirectories(root);
+            this.fileStore = Files.getFileStore(root);
+            log.info("Каталог хранения инициализирован: {}", storagePath);
+        } catch (IOException e) {
+            log.error("Не удалось создать каталог хранения: {}", storagePath, e);
+            throw new RuntimeException("Не удалось создать каталог хранения", e);
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path resolve(User user, String filename) {
+        return resolve(user.getId(), filename);
+    }
+
+    public Path resolve(Long userId, String filename) {
+        return root.resolve(userId.toString()).resolve(filename);
+    }
+
+    public Path resolveTrash(User user, Long fileId) {
+        return root.resolve(TRASH_DIR).resolve(user.getId().toString()).resolve(fileId.toString());
+    }
+
+    public Path resolveVersion(Long userId, Long versionId) {
+        return root.resolve(VERSIONS_DIR).resolve(userId.toString()).resolve(versionId.toString());
+    }
+
+    /**
+     * Переносит файл атомарным переименованием в пределах тома. Возвращает false, если source не существует.
+     */
+    public boolean move(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Копирует поток в target и возвращает размер и SHA-256 записанного содержимого. Запись прерывается,
+     * как только объем превысит maxBytes или на томе останется меньше min-free-space.
+     */
+    public StoredContent write(Path target, InputStream content, long maxBytes) throws IOException {
+        return write(target, content, maxBytes, UnaryOperator.identity());
+    }
+
+    /**
+     * Вариант с encoder, который оборачивает поток записи на диск (шифрование). Размер, квота
+     * и SHA-256 по-прежнему считаются по исходному содержимому.
+     */
+    public StoredContent write(Path target, InputStream content, long maxBytes,
+                               UnaryOperator<OutputStream> encoder) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(TEMP_PREFIX + UUID.randomUUID());
+        MessageDigest digest = newSha256();
+        long written = 0;
+
+        try (InputStream in = content;
+             OutputStream out = encoder.apply(
+                     Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long nextFreeSpaceCheck = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                written += read;
+                if (written > maxBytes) {
+                    throw new QuotaExceededException("Превышена квота хранилища");
+                }
+                if (written >= nextFreeSpaceCheck) {
+                    ensureFreeSpace(FREE_SPACE_CHECK_INTERVAL);
+                    nextFreeSpaceCheck = written + FREE_SPACE_CHECK_INTERVAL;
+                }
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        return new StoredContent(written, HexFormat.of().formatHex(digest.digest()));
+    }
+
+    /**
+     * Создает target с тем же содержимым, что и source. Возвращает true, если данные разделены
+     * через жесткую ссылку, и false, если файловая система ее не поддерживает и байты скопированы.
+     */
+    public boolean link(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(TEMP_PREFIX + UUID.randomUUID());
+        boolean shared;
+
+        try {
+            try {
+                Files.createLink(temp, source);
+                shared = true;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                if (Files.notExists(source)) {
+                    throw e;
+                }
+                log.debug("Жесткая ссылка недоступна, файл будет скопирован: {} ({})", source, e.getMessage());
+                ensureFreeSpace(Files.size(source));
+                Files.copy(source, temp);
+                shared = false;
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return shared;
+    }
+
+    /**
+     * Размер и SHA-256 содержимого потока без записи на диск.
+     */
+    public static StoredContent digest(InputStream content) throws IOException {
+        MessageDigest digest = newSha256();
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            size += read;
+        }
+        return new StoredContent(size, HexFormat.of().formatHex(digest.digest()));
+    }
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+
+    public void ensureFreeSpace(long bytes) throws IOException {
+        long usable = fileStore.getUsableSpace();
+        if (usable - bytes < minFreeSpaceBytes) {
+            log.error("Недостаточно места на томе хранилища: доступно {} байт", usable);
+            throw new InsufficientStorageException("Недостаточно места в хранилище");
+        }
+    }
+
+    public record StoredContent(long size, String sha256) {
+    }
+}
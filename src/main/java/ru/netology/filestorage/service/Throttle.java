@@ -0,0 +1,33 @@
+package ru.netology.filestorage.service;
+
+/**
+ * Ограничивает среднюю скорость прохода (байты, записи каталога, файлы): после каждой порции ждет,
+ * пока обработанный объем не станет соответствовать заданной скорости с начала прохода.
+ * Один экземпляр можно делить между потоками; скорость 0 и меньше - без ограничения.
+ */
+final class Throttle {
+    private final long unitsPerSecond;
+    private final long startNanos = System.nanoTime();
+    private long units;
+
+    Throttle(long unitsPerSecond) {
+        this.unitsPerSecond = unitsPerSecond;
+    }
+
+    void acquire(int count) throws InterruptedException {
+        if (unitsPerSecond <= 0) {
+            return;
+        }
+        long total;
+        synchronized (this) {
+            units += count;
+            total = units;
+        }
+        // в double: units * 10^9 в long переполняется уже после ~9.2 ГБ за проход
+        long dueNanos = (long) (total * 1e9 / unitsPerSecond);
+        long aheadMillis = (dueNanos - (System.nanoTime() - startNanos)) / 1_000_000L;
+        if (aheadMillis > 0) {
+            Thread.sleep(aheadMillis);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package ru.netology.filestorage.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import ru.netology.filestorage.entity.File;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Фоновая генерация уменьшенных копий изображений. Превью хранятся по id файла
+ * в storage/.thumbnails/{userId}/{fileId}/{size}.{png|jpg}, поэтому переименование их не затрагивает.
+ */
+@Service
+public class ThumbnailService {
+
+    public static final String THUMBNAILS_DIR = ".thumbnails";
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+    private final Path root;
+    private final EncryptionService encryptionService;
+    private final ExecutorService thumbnailExecutor;
+    private final boolean enabled;
+    private final List<Integer> sizes;
+    private final long maxSourceBytes;
+    private final long maxSourcePixels;
+
+    public ThumbnailService(StorageService storageService,
+                            EncryptionService encryptionService,
+                            @Qualifier("thumbnailExecutor") ExecutorService thumbnailExecutor,
+                            @Value("${app.thumbnails.enabled:true}") boolean enabled,
+                            @Value("${app.thumbnails.sizes:128,512}") List<Integer> sizes,
+                            @Value("${app.thumbnails.max-source-bytes:52428800}") long maxSourceBytes,
+                            @Value("${app.thumbnails.max-source-pixels:50000000}") long maxSourcePixels) {
+        this.root = storageService.getRoot().resolve(THUMBNAILS_DIR);
+        this.encryptionService = encryptionService;
+        this.thumbnailExecutor = thumbnailExecutor;
+        this.enabled = enabled;
+        this.sizes = sizes.stream().sorted().toList();
+        this.maxSourceBytes = maxSourceBytes;
+        this.maxSourcePixels = maxSourcePixels;
+    }
+
+    public boolean supports(String contentType) {
+        return enabled && contentType != null && contentType.startsWith("image/");
+    }
+
+    public void enqueue(File file, Path source) {
+        enqueue(file, new ImageSource() {
+            @Override
+            public ImageInputStream open() throws IOException {
+                if (!file.isEncrypted()) {
+                    return ImageIO.createImageInputStream(source.toFile());
+                }
+                InputStream content = encryptionService.openStream(source);
+                return new MemoryCacheImageInputStream(content) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            content.close();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public boolean exists() {
+                return Files.exists(source);
+            }
+        });
+    }
+
+    /**
+     * Вариант для мелких файлов, упакованных в тома: содержимое уже прочитано в память.
+     */
+    public void enqueue(File file, byte[] content) {
+        enqueue(file, new ImageSource() {
+            @Override
+            public ImageInputStream open() {
+                return new MemoryCacheImageInputStream(new ByteArrayInputStream(content));
+            }
+
+            @Override
+            public boolean exists() {
+                return true;
+            }
+        });
+    }
+
+    private void enqueue(File file, ImageSource source) {
+        if (!supports(file.getContentType()) || file.getSize() > maxSourceBytes) {
+            return;
+        }
+        try {
+            thumbnailExecutor.execute(() -> generate(file, source));
+        } catch (RejectedExecutionException e) {
+            log.warn("Очередь генерации превью переполнена, пропущен файл: {}", file.getFilename());
+        }
+    }
+
+    public int resolveSize(Integer requested) {
+        if (requested != null) {
+            for (Integer size : sizes) {
+                if (size >= requested) {
+                    return size;
+                }
+            }
+            return sizes.get(sizes.size() - 1);
+        }
+        return sizes.get(0);
+    }
+
+    public Optional<Thumbnail> find(File file, int size) {
+        Path directory = directoryFor(file);
+        for (String extension : List.of("jpg", "png")) {
+            Path candidate = directory.resolve(size + "." + extension);
+            if (Files.isReadable(candidate)) {
+                String contentType = "png".equals(extension) ? "image/png" : "image/jpeg";
+                return Optional.of(new Thumbnail(candidate, contentType, version(file, size)));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Переносит готовые превью на копию файла жесткими ссылками; если их еще нет, вызывает regenerate.
+     */
+    public void copy(File source, File target, Runnable regenerate) {
+        if (!supports(target.getContentType())) {
+            return;
+        }
+        Path from = directoryFor(source);
+        Path to = directoryFor(target);
+        try (var derivatives = Files.list(from)) {
+            Files.createDirectories(to);
+            for (Path derivative : derivatives.toList()) {
+                if (!derivative.getFileName().toString().startsWith(StorageService.TEMP_PREFIX)) {
+                    Files.createLink(to.resolve(derivative.getFileName()), derivative);
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Превью не скопированы для файла {}, будут созданы заново", target.getFilename());
+            delete(target);
+            regenerate.run();
+        }
+    }
+
+    public void delete(File file) {
+        if (file.getId() == null) {
+            return;
+        }
+        try {
+            FileSystemUtils.deleteRecursively(directoryFor(file));
+        } catch (IOException e) {
+            log.warn("Не удалось удалить превью файла: {}", file.getFilename(), e);
+        }
+    }
+
+    private void generate(File file, ImageSource source) {
+        try {
+            BufferedImage image = read(source, sizes.get(sizes.size() - 1));
+            if (image == null) {
+                log.debug("Формат изображения не поддерживается: {}", file.getFilename());
+                return;
+            }
+
+            Path directory = directoryFor(file);
+            Files.createDirectories(directory);
+            boolean alpha = image.getColorModel().hasAlpha();
+            String format = alpha ? "png" : "jpg";
+            for (Integer size : sizes) {
+                BufferedImage scaled = scale(image, size, alpha);
+                Path temp = directory.resolve(StorageService.TEMP_PREFIX + UUID.randomUUID());
+                ImageIO.write(scaled, format, temp.toFile());
+                Files.move(temp, directory.resolve(size + "." + format), StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            if (!source.exists()) {
+                delete(file);
+                return;
+            }
+            log.debug("Превью созданы для файла: {}", file.getFilename());
+        } catch (Exception e) {
+            log.warn("Не удалось создать превью файла: {}", file.getFilename(), e);
+        }
+    }
+
+    private BufferedImage read(ImageSource source, int largestSize) throws IOException {
+        try (ImageInputStream input = source.open()) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > maxSourcePixels) {
+                    log.warn("Изображение слишком большое для превью: {}x{}", width, height);
+                    return null;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.min(width, height) / (largestSize * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage image, int size, boolean alpha) {
+        double ratio = Math.min(1.0, Math.min((double) size / image.getWidth(), (double) size / image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        BufferedImage scaled = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Версия превью меняется вместе с содержимым файла, поэтому ее можно кешировать как неизменяемую.
+     */
+    private static String version(File file, int size) {
+        String content = file.getSha256() != null ? file.getSha256().substring(0, 16) : file.getId().toString();
+        return content + "-" + size;
+    }
+
+    public record Thumbnail(Path path, String contentType, String version) {
+    }
+
+    private interface ImageSource {
+        ImageInputStream open() throws IOException;
+
+        boolean exists();
+    }
+
+    private Path directoryFor(File file) {
+        return root.resolve(file.getUser().getId().toString()).resolve(file.getId().toString());
+    }
+}
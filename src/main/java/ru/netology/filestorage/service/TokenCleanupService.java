@@ -0,0 +1,78 @@
+package ru.netology.filestorage.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.netology.filestorage.repository.TokenRepository;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Периодически удаляет просроченные и деактивированные токены.
+ * Удаление идет небольшими пачками по возрастанию id (keyset), каждая пачка
+ * в отдельной короткой транзакции, чтобы не держать долгих блокировок на таблице tokens.
+ */
+@Service
+@ConditionalOnProperty(name = "app.tokens.purge.enabled", havingValue = "true", matchIfMissing = true)
+public class TokenCleanupService {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenCleanupService.class);
+    private final TokenRepository tokenRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    private final Duration retention;
+
+    public TokenCleanupService(TokenRepository tokenRepository,
+                               PlatformTransactionManager transactionManager,
+                               @Value("${app.tokens.purge.batch-size:500}") int batchSize,
+                               @Value("${app.tokens.purge.retention:PT24H}") Duration retention) {
+        this.tokenRepository = tokenRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.retention = retention;
+    }
+
+    @Scheduled(fixedDelayString = "${app.tokens.purge.interval:PT10M}",
+            initialDelayString = "${app.tokens.purge.initial-delay:PT1M}")
+    public void purgeExpiredTokens() {
+        try {
+            int deleted = purge(LocalDateTime.now());
+            if (deleted > 0) {
+                log.info("Удалено {} просроченных или неактивных токенов", deleted);
+            }
+        } catch (Exception e) {
+            log.error("Ошибка при очистке токенов", e);
+        }
+    }
+
+    public int purge(LocalDateTime now) {
+        LocalDateTime cutoff = now.minus(retention);
+        long afterId = 0L;
+        int total = 0;
+
+        while (true) {
+            List<Long> ids = tokenRepository.findPurgeableIds(afterId, cutoff, PageRequest.of(0, batchSize));
+            if (ids.isEmpty()) {
+                break;
+            }
+
+            Integer deleted = transactionTemplate.execute(status -> tokenRepository.deleteByIdIn(ids));
+            total += deleted != null ? deleted : 0;
+            afterId = ids.get(ids.size() - 1);
+            log.debug("Удалена пачка токенов: {} шт., последний id: {}", ids.size(), afterId);
+
+            if (ids.size() < batchSize) {
+                break;
+            }
+        }
+        return total;
+    }
+}
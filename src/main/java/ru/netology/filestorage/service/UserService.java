@@ -1,26 +1,35 @@
 package ru.netology.filestorage.service;
 
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.netology.filestorage.entity.User;
 import ru.netology.filestorage.exception.UserAlreadyExistsException;
 import ru.netology.filestorage.exception.UserNotFoundException;
 import ru.netology.filestorage.repository.UserRepository;
 
-import jakarta.annotation.PostConstruct;
-
 @Service
 public class UserService {
 
     private final UserRepository userRepository;
     private final PasswordEncoder passwordEncoder;
+    private final TransactionTemplate transactionTemplate;
 
-    public UserService(UserRepository userRepository, PasswordEncoder passwordEncoder) {
+    public UserService(UserRepository userRepository, PasswordEncoder passwordEncoder,
+                       PlatformTransactionManager transactionManager) {
         this.userRepository = userRepository;
         this.passwordEncoder = passwordEncoder;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
-    @PostConstruct
+    /**
+     * Выполняется после старта веб-сервера, чтобы хеширование BCrypt и запросы к БД
+     * не задерживали готовность приложения принимать запросы.
+     */
+    @EventListener(ApplicationReadyEvent.class)
     public void initDefaultUsers() {
         createUserIfNotExists("user@example.com", "password");
         createUserIfNotExists("admin@example.com", "admin");
@@ -38,6 +47,25 @@ public class UserService {
         return passwordEncoder.matches(rawPassword, encodedPassword);
     }
 
+    /**
+     * Вызывается в фоне с копией пользователя, прочитанной при входе, поэтому обновляет только хеш пароля
+     * и только если его никто не сменил за это время.
+     */
+    public boolean upgradePasswordEncodingIfNeeded(User user, String rawPassword) {
+        String oldPassword = user.getPassword();
+        if (!passwordEncoder.upgradeEncoding(oldPassword)) {
+            return false;
+        }
+        String newPassword = passwordEncoder.encode(rawPassword);
+        Integer updated = transactionTemplate.execute(status ->
+                userRepository.updatePassword(user.getId(), oldPassword, newPassword));
+        if (updated == null || updated == 0) {
+            return false;
+        }
+        user.setPassword(newPassword);
+        return true;
+    }
+
     public User createUser(String username, String password) {
         if (userRepository.existsByUsername(username)) {
             throw new UserAlreadyExistsException("Пользователь уже существует: " + username);
@@ -0,0 +1,190 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.netology.filestorage.dto.VolumeEntry;
+import ru.netology.filestorage.dto.VolumeUsage;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.FileVersionRepository;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Уплотнение томов мелких файлов. Том, в котором доля мертвых байт (удаленные строки, недошедшие
+ * до фиксации загрузки) превысила garbage-threshold, переписывается: живые записи дописываются
+ * в активный том, строки files и file_versions переводятся на новое положение пачками по batch-size.
+ * Освободившийся том удаляется не сразу, а через retire-delay, если на него никто больше не ссылается,
+ * чтобы уже начатые чтения по старому положению успели завершиться, и не раньше, чем истекут
+ * подписанные ссылки, выданные на его записи (они хранят положение данных в томе).
+ */
+@Service
+@ConditionalOnProperty(name = "app.volumes.compaction.enabled", havingValue = "true", matchIfMissing = true)
+public class VolumeCompactor {
+
+    private static final Logger log = LoggerFactory.getLogger(VolumeCompactor.class);
+    private final VolumeStore volumeStore;
+    private final FileRepository fileRepository;
+    private final FileVersionRepository fileVersionRepository;
+    private final PresignedUrlService presignedUrlService;
+    private final TransactionTemplate transactionTemplate;
+    private final double garbageThreshold;
+    private final int batchSize;
+    private final Duration retireDelay;
+    private final String nodeId;
+    private final Map<Long, Instant> retired = new ConcurrentHashMap<>();
+    private final Counter compactedVolumes;
+    private final Counter movedBytes;
+    private final Counter reclaimedBytes;
+
+    public VolumeCompactor(VolumeStore volumeStore,
+                           FileRepository fileRepository,
+                           FileVersionRepository fileVersionRepository,
+                           PresignedUrlService presignedUrlService,
+                           PlatformTransactionManager transactionManager,
+                           MeterRegistry meterRegistry,
+                           @Value("${app.volumes.compaction.garbage-threshold:0.5}") double garbageThreshold,
+                           @Value("${app.volumes.compaction.batch-size:500}") int batchSize,
+                           @Value("${app.volumes.compaction.retire-delay:PT10M}") Duration retireDelay,
+                           @Value("${app.cluster.node-id:local}") String nodeId) {
+        this.volumeStore = volumeStore;
+        this.fileRepository = fileRepository;
+        this.fileVersionRepository = fileVersionRepository;
+        this.presignedUrlService = presignedUrlService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.garbageThreshold = garbageThreshold;
+        this.batchSize = batchSize;
+        this.retireDelay = retireDelay;
+        this.nodeId = nodeId;
+        this.compactedVolumes = Counter.builder("filestorage.volumes.compacted").register(meterRegistry);
+        this.movedBytes = Counter.builder("filestorage.volumes.compaction.moved_bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.reclaimedBytes = Counter.builder("filestorage.volumes.compaction.reclaimed_bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.volumes.compaction.interval:PT1H}",
+            initialDelayString = "${app.volumes.compaction.initial-delay:PT15M}")
+    public void compactVolumes() {
+        try {
+            Report report = compact(Instant.now());
+            if (report.compacted() > 0 || report.deleted() > 0) {
+                log.info("Уплотнение томов завершено: переписано {}, удалено {}, освобождено {} байт",
+                        report.compacted(), report.deleted(), report.reclaimedBytes());
+            }
+        } catch (Exception e) {
+            log.error("Ошибка уплотнения томов", e);
+        }
+    }
+
+    public Report compact(Instant now) throws IOException {
+        Map<Long, Long> sizes = volumeStore.volumeSizes();
+        int deleted = 0;
+        long reclaimed = 0;
+        for (Map.Entry<Long, Instant> entry : List.copyOf(retired.entrySet())) {
+            Long volumeId = entry.getKey();
+            if (entry.getValue().plus(retireDelay).isAfter(now)
+                    || presignedUrlService.linkedUntil(volumeId) > now.toEpochMilli()) {
+                continue;
+            }
+            retired.remove(volumeId);
+            if (!volumeId.equals(volumeStore.activeVolumeId()) && !fileRepository.existsByVolumeId(nodeId, volumeId)
+                    && !fileVersionRepository.existsByVolumeId(nodeId, volumeId)) {
+                volumeStore.delete(volumeId);
+                long size = sizes.getOrDefault(volumeId, 0L);
+                reclaimedBytes.increment(size);
+                reclaimed += size;
+                deleted++;
+            }
+        }
+
+        Map<Long, Long> live = new HashMap<>();
+        for (VolumeUsage usage : fileRepository.sumSizeByVolume(nodeId)) {
+            live.put(usage.volumeId(), usage.liveBytes());
+        }
+        for (VolumeUsage usage : fileVersionRepository.sumSizeByVolume(nodeId)) {
+            live.merge(usage.volumeId(), usage.liveBytes(), Long::sum);
+        }
+
+        int compacted = 0;
+        for (Map.Entry<Long, Long> volume : sizes.entrySet()) {
+            Long volumeId = volume.getKey();
+            long size = volume.getValue();
+            if (volumeId.equals(volumeStore.activeVolumeId()) || retired.containsKey(volumeId)) {
+                continue;
+            }
+            long liveBytes = live.getOrDefault(volumeId, 0L);
+            if (size - liveBytes < size * garbageThreshold) {
+                continue;
+            }
+            if (liveBytes > 0) {
+                rewrite(volumeId);
+                compacted++;
+                compactedVolumes.increment();
+            }
+            retired.put(volumeId, now);
+        }
+        return new Report(compacted, deleted, reclaimed);
+    }
+
+    private void rewrite(Long volumeId) throws IOException {
+        // запись может быть и текущей версией одного файла, и сохраненной версией другого
+        Map<Long, VolumeEntry> byOffset = new TreeMap<>();
+        for (VolumeEntry entry : fileRepository.findVolumeEntries(nodeId, volumeId)) {
+            byOffset.put(entry.offset(), entry);
+        }
+        for (VolumeEntry entry : fileVersionRepository.findVolumeEntries(nodeId, volumeId)) {
+            byOffset.putIfAbsent(entry.offset(), entry);
+        }
+        List<VolumeEntry> entries = List.copyOf(byOffset.values());
+        log.info("Уплотнение тома {}: живых записей {}", volumeId, entries.size());
+        List<Move> moves = new ArrayList<>();
+        for (VolumeEntry entry : entries) {
+            byte[] content = volumeStore.read(volumeId, entry.offset(), Math.toIntExact(entry.size()));
+            VolumeStore.Location target = volumeStore.append(content);
+            moves.add(new Move(entry.offset(), target));
+            movedBytes.increment(content.length);
+            if (moves.size() >= batchSize) {
+                commit(volumeId, moves);
+                moves.clear();
+            }
+        }
+        commit(volumeId, moves);
+    }
+
+    private void commit(Long volumeId, List<Move> moves) {
+        if (moves.isEmpty()) {
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            for (Move move : moves) {
+                fileRepository.relocate(nodeId, volumeId, move.offset(), move.target().volumeId(), move.target().offset());
+                fileVersionRepository.relocate(nodeId, volumeId, move.offset(), move.target().volumeId(),
+                        move.target().offset());
+            }
+        });
+    }
+
+    private record Move(Long offset, VolumeStore.Location target) {
+    }
+
+    public record Report(int compacted, int deleted, long reclaimedBytes) {
+    }
+}
@@ -0,0 +1,183 @@
+package ru.netology.filestorage.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.entity.File;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Хранилище мелких файлов в томах storage/.volumes/{volumeId}.dat (по образцу Haystack).
+ * Содержимое только дописывается в конец активного тома; положение (volume_id, volume_offset)
+ * и длина (size) хранятся в строке files, поэтому чтение - одно позиционное чтение без open/stat.
+ * Место удаленных записей освобождает VolumeCompactor, переписывая живые записи в активный том.
+ */
+@Service
+public class VolumeStore {
+
+    public static final String VOLUMES_DIR = ".volumes";
+    private static final String EXTENSION = ".dat";
+
+    private static final Logger log = LoggerFactory.getLogger(VolumeStore.class);
+    private final StorageService storageService;
+    private final Path directory;
+    private final boolean enabled;
+    private final long maxObjectBytes;
+    private final long maxVolumeBytes;
+    private final Map<Long, FileChannel> readers = new ConcurrentHashMap<>();
+    private long nextVolumeId;
+    private Long activeVolumeId;
+    private FileChannel active;
+    private long activeSize;
+
+    public VolumeStore(StorageService storageService,
+                       @Value("${app.volumes.enabled:true}") boolean enabled,
+                       @Value("${app.volumes.max-object-size:64KB}") DataSize maxObjectSize,
+                       @Value("${app.volumes.max-volume-size:1GB}") DataSize maxVolumeSize) {
+        this.storageService = storageService;
+        this.directory = storageService.getRoot().resolve(VOLUMES_DIR);
+        this.enabled = enabled;
+        this.maxObjectBytes = maxObjectSize.toBytes();
+        this.maxVolumeBytes = maxVolumeSize.toBytes();
+
+        try {
+            Files.createDirectories(directory);
+            this.nextVolumeId = volumeSizes().keySet().stream().mapToLong(Long::longValue).max().orElse(0L) + 1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось открыть каталог томов", e);
+        }
+    }
+
+    public boolean accepts(long size) {
+        return enabled && size > 0 && size <= maxObjectBytes;
+    }
+
+    /**
+     * Дописывает содержимое в активный том. Новый том открывается, когда текущий достиг max-volume-size;
+     * после перезапуска запись всегда идет в новый том, поэтому хвост после сбоя не перезаписывается.
+     */
+    public synchronized Location append(byte[] content) throws IOException {
+        if (active == null || activeSize + content.length > maxVolumeBytes) {
+            rotate();
+        }
+        storageService.ensureFreeSpace(content.length);
+        long offset = activeSize;
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            active.write(buffer, offset + buffer.position());
+        }
+        activeSize += content.length;
+        return new Location(activeVolumeId, offset);
+    }
+
+    /**
+     * Содержимое файла в том виде, в каком оно лежит в томе: зашифрованный файл длиннее на BLOB_OVERHEAD.
+     */
+    public byte[] read(File file) throws IOException {
+        long length = file.isEncrypted() ? file.getSize() + EncryptionService.BLOB_OVERHEAD : file.getSize();
+        return read(file.getVolumeId(), file.getVolumeOffset(), Math.toIntExact(length));
+    }
+
+    public byte[] read(Long volumeId, long offset, int length) throws IOException {
+        FileChannel channel = reader(volumeId);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Запись выходит за конец тома " + volumeId);
+            }
+        }
+        return buffer.array();
+    }
+
+    public synchronized Long activeVolumeId() {
+        return activeVolumeId;
+    }
+
+    public Map<Long, Long> volumeSizes() throws IOException {
+        Map<Long, Long> sizes = new TreeMap<>();
+        try (DirectoryStream<Path> volumes = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path volume : volumes) {
+                String name = volume.getFileName().toString();
+                String id = name.substring(0, name.length() - EXTENSION.length());
+                if (!id.isEmpty() && id.chars().allMatch(Character::isDigit)) {
+                    sizes.put(Long.parseLong(id), Files.size(volume));
+                }
+            }
+        }
+        return sizes;
+    }
+
+    public synchronized void delete(Long volumeId) throws IOException {
+        if (volumeId.equals(activeVolumeId)) {
+            throw new IllegalStateException("Нельзя удалить активный том " + volumeId);
+        }
+        FileChannel reader = readers.remove(volumeId);
+        if (reader != null) {
+            reader.close();
+        }
+        Files.deleteIfExists(path(volumeId));
+        log.info("Том удален: {}", volumeId);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (active != null) {
+            active.close();
+            active = null;
+        }
+        for (FileChannel reader : readers.values()) {
+            reader.close();
+        }
+        readers.clear();
+    }
+
+    private void rotate() throws IOException {
+        if (active != null) {
+            active.close();
+        }
+        long volumeId = nextVolumeId++;
+        active = FileChannel.open(path(volumeId), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        activeVolumeId = volumeId;
+        activeSize = 0;
+        log.info("Открыт новый том для мелких файлов: {}", volumeId);
+    }
+
+    private FileChannel reader(Long volumeId) throws IOException {
+        FileChannel channel = readers.get(volumeId);
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        FileChannel opened = FileChannel.open(path(volumeId), StandardOpenOption.READ);
+        FileChannel existing = readers.putIfAbsent(volumeId, opened);
+        if (existing != null && existing.isOpen()) {
+            opened.close();
+            return existing;
+        }
+        if (existing != null) {
+            readers.put(volumeId, opened);
+        }
+        return opened;
+    }
+
+    public Path path(Long volumeId) {
+        return directory.resolve(volumeId + EXTENSION);
+    }
+
+    public record Location(Long volumeId, long offset) {
+    }
+}
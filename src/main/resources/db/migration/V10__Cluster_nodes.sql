@@ -0,0 +1,10 @@
+CREATE TABLE cluster_nodes (
+    id VARCHAR(64) PRIMARY KEY,
+    url VARCHAR(255) NOT NULL,
+    heartbeat_at TIMESTAMP NOT NULL,
+    leaving BOOLEAN NOT NULL DEFAULT FALSE
+);
+
+ALTER TABLE users ADD COLUMN node_id VARCHAR(64);
+
+CREATE INDEX idx_users_node ON users(node_id, id);
@@ -0,0 +1 @@
+ALTER TABLE files ADD COLUMN encrypted BOOLEAN NOT NULL DEFAULT FALSE;
@@ -0,0 +1,19 @@
+CREATE SEQUENCE file_versions_id_seq INCREMENT BY 50;
+
+CREATE TABLE file_versions (
+                               id BIGINT PRIMARY KEY DEFAULT nextval('file_versions_id_seq'),
+                               file_id BIGINT NOT NULL REFERENCES files(id) ON DELETE CASCADE,
+                               user_id BIGINT NOT NULL REFERENCES users(id) ON DELETE CASCADE,
+                               size BIGINT NOT NULL,
+                               content_type VARCHAR(255) NOT NULL,
+                               sha256 VARCHAR(64),
+                               uploaded_at TIMESTAMP,
+                               replaced_at TIMESTAMP NOT NULL,
+                               volume_id BIGINT,
+                               volume_offset BIGINT,
+                               encrypted BOOLEAN NOT NULL DEFAULT FALSE
+);
+
+CREATE INDEX idx_file_versions_file ON file_versions(file_id, replaced_at DESC, id DESC);
+CREATE INDEX idx_file_versions_user ON file_versions(user_id);
+CREATE INDEX idx_file_versions_volume ON file_versions(volume_id, volume_offset) WHERE volume_id IS NOT NULL;
@@ -0,0 +1 @@
+CREATE INDEX idx_tokens_inactive ON tokens(id) WHERE active = FALSE;
@@ -0,0 +1,3 @@
+ALTER SEQUENCE users_id_seq INCREMENT BY 50;
+ALTER SEQUENCE files_id_seq INCREMENT BY 50;
+ALTER SEQUENCE tokens_id_seq INCREMENT BY 50;
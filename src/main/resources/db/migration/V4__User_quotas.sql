@@ -0,0 +1,4 @@
+ALTER TABLE users ADD COLUMN quota_bytes BIGINT;
+ALTER TABLE users ADD COLUMN used_bytes BIGINT NOT NULL DEFAULT 0;
+
+UPDATE users u SET used_bytes = COALESCE((SELECT SUM(f.size) FROM files f WHERE f.user_id = u.id), 0);
@@ -0,0 +1,8 @@
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE EXTENSION IF NOT EXISTS btree_gin;
+
+CREATE INDEX idx_files_user_filename_trgm ON files USING gin (user_id, lower(filename) gin_trgm_ops);
+CREATE INDEX idx_files_user_uploaded ON files(user_id, uploaded_at DESC, id DESC);
+CREATE INDEX idx_files_user_size ON files(user_id, size, id);
+CREATE INDEX idx_files_user_filename ON files(user_id, filename, id);
+CREATE INDEX idx_files_user_content_type ON files(user_id, content_type, id);
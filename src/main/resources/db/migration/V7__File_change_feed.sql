@@ -0,0 +1,19 @@
+ALTER TABLE users ADD COLUMN change_seq BIGINT NOT NULL DEFAULT 0;
+
+CREATE SEQUENCE file_changes_id_seq INCREMENT BY 50;
+
+CREATE TABLE file_changes (
+                              id BIGINT PRIMARY KEY DEFAULT nextval('file_changes_id_seq'),
+                              user_id BIGINT NOT NULL REFERENCES users(id) ON DELETE CASCADE,
+                              seq BIGINT NOT NULL,
+                              type VARCHAR(16) NOT NULL,
+                              file_id BIGINT,
+                              filename VARCHAR(255),
+                              previous_filename VARCHAR(255),
+                              size BIGINT,
+                              sha256 VARCHAR(64),
+                              created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                              CONSTRAINT uk_file_changes_user_seq UNIQUE (user_id, seq)
+);
+
+CREATE INDEX idx_file_changes_created ON file_changes(created_at, id);
@@ -0,0 +1,3 @@
+ALTER TABLE files ADD COLUMN deleted_at TIMESTAMP;
+
+CREATE INDEX idx_files_deleted ON files(deleted_at, id) WHERE deleted_at IS NOT NULL;
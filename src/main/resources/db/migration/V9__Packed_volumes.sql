@@ -0,0 +1,4 @@
+ALTER TABLE files ADD COLUMN volume_id BIGINT;
+ALTER TABLE files ADD COLUMN volume_offset BIGINT;
+
+CREATE INDEX idx_files_volume ON files(volume_id, volume_offset) WHERE volume_id IS NOT NULL;
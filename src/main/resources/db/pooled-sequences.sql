@@ -0,0 +1,7 @@
+-- Выполняется при каждом запуске до инициализации JPA (spring.sql.init): базы, созданные до перехода
+-- на пуловые последовательности, имеют serial-последовательности с шагом 1, а Hibernate при несовпадении
+-- шага с allocationSize = 50 не запускается. На новой базе последовательностей еще нет, и скрипт ничего
+-- не делает; повторный запуск не меняет уже переведенные последовательности. То же, что V3__Pooled_sequences.
+ALTER SEQUENCE IF EXISTS users_id_seq INCREMENT BY 50;
+ALTER SEQUENCE IF EXISTS files_id_seq INCREMENT BY 50;
+ALTER SEQUENCE IF EXISTS tokens_id_seq INCREMENT BY 50;
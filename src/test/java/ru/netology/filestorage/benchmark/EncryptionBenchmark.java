@@ -0,0 +1,132 @@
+package ru.netology.filestorage.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.service.EncryptionService;
+import ru.netology.filestorage.service.StorageService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+
+/**
+ * Сравнивает пропускную способность записи, полного чтения и чтения диапазонов для обычных
+ * и зашифрованных файлов. Аргументы: размер файла в МБ (по умолчанию 256), число повторов (5),
+ * размер диапазона в КБ (256).
+ */
+public final class EncryptionBenchmark {
+
+    private static final int RANGE_READS = 200;
+
+    private final EncryptionService encryptionService;
+    private final StorageService storageService;
+    private final byte[] content;
+    private final int rangeSize;
+
+    private EncryptionBenchmark(Path root, int fileSize, int rangeSize) {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.encryptionService = new EncryptionService(true, Base64.getEncoder().encodeToString(key), List.of(),
+                DataSize.ofKilobytes(64), new SimpleMeterRegistry());
+        this.storageService = new StorageService(root.toString(), DataSize.ofBytes(0));
+        this.content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        this.rangeSize = rangeSize;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rangeKb = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        Path root = Files.createTempDirectory("encryption-benchmark");
+        try {
+            new EncryptionBenchmark(root, sizeMb * 1024 * 1024, rangeKb * 1024).run(root, iterations);
+        } finally {
+            FileSystemUtils.deleteRecursively(root);
+        }
+    }
+
+    private void run(Path root, int iterations) throws IOException {
+        Path plain = root.resolve("plain.bin");
+        Path encrypted = root.resolve("encrypted.bin");
+        double mb = content.length / (1024.0 * 1024.0);
+        double rangeMb = (double) RANGE_READS * rangeSize / (1024.0 * 1024.0);
+
+        // прогрев JIT и файлового кеша
+        write(plain, UnaryOperator.identity());
+        write(encrypted, encryptionService.encoder());
+        readAll(plain, false);
+        readAll(encrypted, true);
+
+        long[] writeTimes = new long[2];
+        long[] readTimes = new long[2];
+        long[] rangeTimes = new long[2];
+        for (int i = 0; i < iterations; i++) {
+            writeTimes[0] += write(plain, UnaryOperator.identity());
+            writeTimes[1] += write(encrypted, encryptionService.encoder());
+            readTimes[0] += readAll(plain, false);
+            readTimes[1] += readAll(encrypted, true);
+            rangeTimes[0] += readRanges(plain, false, i);
+            rangeTimes[1] += readRanges(encrypted, true, i);
+        }
+
+        System.out.printf("Файл %.0f МБ, повторов %d, блок шифрования 64 КБ, диапазон %d КБ%n",
+                mb, iterations, rangeSize / 1024);
+        System.out.printf("На диске: обычный %d байт, зашифрованный %d байт%n", Files.size(plain), Files.size(encrypted));
+        report("Запись", mb * iterations, writeTimes);
+        report("Полное чтение", mb * iterations, readTimes);
+        report("Чтение диапазонов", rangeMb * iterations, rangeTimes);
+    }
+
+    private long write(Path target, UnaryOperator<OutputStream> encoder) throws IOException {
+        Files.deleteIfExists(target);
+        long start = System.nanoTime();
+        storageService.write(target, new ByteArrayInputStream(content), Long.MAX_VALUE, encoder);
+        return System.nanoTime() - start;
+    }
+
+    private long readAll(Path source, boolean encrypted) throws IOException {
+        byte[] buffer = new byte[8192];
+        long start = System.nanoTime();
+        try (InputStream in = open(source, encrypted)) {
+            while (in.read(buffer) != -1) {
+                // читаем до конца
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long readRanges(Path source, boolean encrypted, int seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] buffer = new byte[rangeSize];
+        long start = System.nanoTime();
+        for (int i = 0; i < RANGE_READS; i++) {
+            long offset = (long) (random.nextDouble() * (content.length - rangeSize));
+            try (InputStream in = open(source, encrypted)) {
+                in.skipNBytes(offset);
+                in.readNBytes(buffer, 0, rangeSize);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private InputStream open(Path source, boolean encrypted) throws IOException {
+        return encrypted ? encryptionService.openStream(source) : Files.newInputStream(source);
+    }
+
+    private static void report(String name, double totalMb, long[] nanos) {
+        double plain = totalMb / (nanos[0] / 1e9);
+        double encrypted = totalMb / (nanos[1] / 1e9);
+        System.out.printf("%-18s обычный %8.1f МБ/с, зашифрованный %8.1f МБ/с, накладные расходы %5.1f%%%n",
+                name, plain, encrypted, (plain / encrypted - 1) * 100);
+    }
+}
@@ -0,0 +1,185 @@
+package ru.netology.filestorage.integration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+import ru.netology.filestorage.FileStorageApplication;
+import ru.netology.filestorage.dto.AuthRequest;
+import ru.netology.filestorage.dto.AuthResponse;
+import ru.netology.filestorage.dto.FileVersionResponse;
+import ru.netology.filestorage.dto.PresignedUrlResponse;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.UserRepository;
+import ru.netology.filestorage.service.ClusterRebalancer;
+import ru.netology.filestorage.service.ClusterService;
+import ru.netology.filestorage.service.HashRing;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterIntegrationTest {
+
+    private static final String USERNAME = "user@example.com";
+    private static final int VIRTUAL_NODES = 16;
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    @TempDir
+    Path storage;
+
+    @Test
+    void requestsAreForwardedToOwnerAndUserMovesToJoinedNode() throws IOException {
+        String secondNode = nodePlacing(USERNAME);
+        byte[] small = "small file".getBytes();
+        byte[] large = new byte[100_000];
+        Arrays.fill(large, (byte) 7);
+        byte[] previousSmall = "previous small file".getBytes();
+        byte[] previousLarge = new byte[90_000];
+        Arrays.fill(previousLarge, (byte) 3);
+
+        try (ConfigurableApplicationContext first = start("node-1")) {
+            String firstUrl = url(first);
+            String token = login(firstUrl);
+            upload(firstUrl, token, "small.txt", previousSmall, false);
+            upload(firstUrl, token, "small.txt", small, true);
+            upload(firstUrl, token, "large.bin", previousLarge, false);
+            upload(firstUrl, token, "large.bin", large, true);
+            User user = first.getBean(UserRepository.class).findByUsername(USERNAME).orElseThrow();
+            assertEquals("node-1", user.getNodeId());
+
+            try (ConfigurableApplicationContext second = start(secondNode)) {
+                String secondUrl = url(second);
+                first.getBean(ClusterService.class).heartbeat();
+                second.getBean(ClusterService.class).heartbeat();
+
+                assertArrayEquals(small, download(secondUrl, token, "small.txt"));
+                assertArrayEquals(large, download(secondUrl, token, "large.bin"));
+                String link = presign(secondUrl, token, "large.bin");
+                assertArrayEquals(large, restTemplate.getForObject(secondUrl + link, byte[].class));
+
+                assertEquals(1, first.getBean(ClusterRebalancer.class).rebalance());
+
+                assertEquals(secondNode, second.getBean(UserRepository.class).findNodeId(user.getId()).orElseThrow());
+                assertFalse(Files.exists(storage.resolve("node-1").resolve(user.getId().toString())));
+                assertTrue(Files.exists(storage.resolve(secondNode).resolve(user.getId().toString()).resolve("large.bin")));
+                assertArrayEquals(small, download(firstUrl, token, "small.txt"));
+                assertArrayEquals(large, download(firstUrl, token, "large.bin"));
+                assertArrayEquals(small, download(secondUrl, token, "small.txt"));
+                HttpStatusCodeException moved = assertThrows(HttpStatusCodeException.class,
+                        () -> restTemplate.getForObject(secondUrl + link, byte[].class));
+                assertEquals(HttpStatus.GONE, moved.getStatusCode());
+
+                restoreVersion(firstUrl, token, "small.txt");
+                restoreVersion(firstUrl, token, "large.bin");
+                assertArrayEquals(previousSmall, download(secondUrl, token, "small.txt"));
+                assertArrayEquals(previousLarge, download(secondUrl, token, "large.bin"));
+            }
+        }
+    }
+
+    private static String nodePlacing(String username) {
+        for (int i = 2; ; i++) {
+            String candidate = "node-" + i;
+            if (new HashRing(List.of("node-1", candidate), VIRTUAL_NODES).ownerOf(username).equals(candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    private ConfigurableApplicationContext start(String nodeId) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        return new SpringApplicationBuilder(FileStorageApplication.class)
+                .profiles("embedded")
+                .run("--app.storage.path=" + storage.resolve(nodeId),
+                        "--spring.datasource.url=jdbc:h2:file:" + storage.resolve("metadata")
+                                + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH;DB_CLOSE_ON_EXIT=FALSE",
+                        "--server.port=" + port,
+                        "--logging.file.name=",
+                        "--app.cluster.enabled=true",
+                        "--app.cluster.node-id=" + nodeId,
+                        "--app.cluster.url=http://localhost:" + port,
+                        "--app.cluster.secret=test-secret",
+                        "--app.cluster.virtual-nodes=" + VIRTUAL_NODES,
+                        "--app.cluster.rebalance.initial-delay=PT1H");
+    }
+
+    private static String url(ConfigurableApplicationContext context) {
+        return "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+    }
+
+    private String login(String baseUrl) {
+        AuthRequest request = new AuthRequest();
+        request.setLogin(USERNAME);
+        request.setPassword("password");
+        return restTemplate.postForObject(baseUrl + "/cloud/login", request, AuthResponse.class).getAuthToken();
+    }
+
+    private void upload(String baseUrl, String token, String filename, byte[] content, boolean overwrite) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("auth-token", token);
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add("file", new ByteArrayResource(content) {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+        });
+        ResponseEntity<String> response = restTemplate.exchange(
+                baseUrl + "/cloud/file?filename=" + filename + "&overwrite=" + overwrite,
+                HttpMethod.POST, new HttpEntity<>(body, headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private void restoreVersion(String baseUrl, String token, String filename) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("auth-token", token);
+        ResponseEntity<FileVersionResponse[]> versions = restTemplate.exchange(
+                baseUrl + "/cloud/file/versions?filename=" + filename, HttpMethod.GET, new HttpEntity<>(headers),
+                FileVersionResponse[].class);
+        assertEquals(1, versions.getBody().length);
+        ResponseEntity<String> response = restTemplate.exchange(
+                baseUrl + "/cloud/file/versions/restore?filename=" + filename + "&version=" + versions.getBody()[0].id(),
+                HttpMethod.POST, new HttpEntity<>(headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private String presign(String baseUrl, String token, String filename) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("auth-token", token);
+        ResponseEntity<PresignedUrlResponse> response = restTemplate.exchange(
+                baseUrl + "/cloud/file/link?filename=" + filename, HttpMethod.POST, new HttpEntity<>(headers),
+                PresignedUrlResponse.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return response.getBody().url();
+    }
+
+    private byte[] download(String baseUrl, String token, String filename) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("auth-token", token);
+        ResponseEntity<byte[]> response = restTemplate.exchange(baseUrl + "/cloud/file?filename=" + filename,
+                HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return response.getBody();
+    }
+}
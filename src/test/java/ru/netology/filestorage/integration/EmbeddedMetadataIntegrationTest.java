@@ -0,0 +1,87 @@
+package ru.netology.filestorage.integration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.netology.filestorage.FileStorageApplication;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbeddedMetadataIntegrationTest {
+
+    @TempDir
+    Path storage;
+
+    @Test
+    void metadataSurvivesRestart() {
+        try (ConfigurableApplicationContext context = start()) {
+            User user = context.getBean(UserRepository.class).findByUsername("user@example.com").orElseThrow();
+            context.getBean(FileRepository.class).save(new File("kept.txt", 7L, "text/plain", user));
+        }
+
+        assertTrue(Files.isDirectory(storage.resolve(".metadata")));
+
+        try (ConfigurableApplicationContext context = start()) {
+            User user = context.getBean(UserRepository.class).findByUsername("user@example.com").orElseThrow();
+            File file = context.getBean(FileRepository.class).findByUserAndFilename(user, "kept.txt").orElseThrow();
+            assertEquals(7L, file.getSize());
+            assertEquals(3, context.getBean(UserRepository.class).count());
+        }
+    }
+
+    @Test
+    void startsOnSequencesCreatedWithIncrementOne() throws SQLException {
+        // база, созданная до перехода на пуловые последовательности
+        try (Connection connection = DriverManager.getConnection(url(), "sa", "");
+             Statement statement = connection.createStatement()) {
+            for (String sequence : List.of("users_id_seq", "files_id_seq", "tokens_id_seq")) {
+                statement.execute("CREATE SEQUENCE " + sequence + " INCREMENT BY 1");
+            }
+        }
+
+        try (ConfigurableApplicationContext context = start()) {
+            User user = context.getBean(UserRepository.class).findByUsername("user@example.com").orElseThrow();
+            assertNotNull(context.getBean(FileRepository.class).save(new File("new.txt", 3L, "text/plain", user)).getId());
+        }
+
+        try (Connection connection = DriverManager.getConnection(url(), "sa", "");
+             Statement statement = connection.createStatement();
+             ResultSet increments = statement.executeQuery("SELECT increment FROM information_schema.sequences "
+                     + "WHERE sequence_name IN ('users_id_seq', 'files_id_seq', 'tokens_id_seq')")) {
+            int count = 0;
+            while (increments.next()) {
+                assertEquals(50, increments.getLong(1));
+                count++;
+            }
+            assertEquals(3, count);
+        }
+    }
+
+    private String url() {
+        return "jdbc:h2:file:" + storage.resolve(".metadata").resolve("filestorage")
+                + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE";
+    }
+
+    private ConfigurableApplicationContext start() {
+        return new SpringApplicationBuilder(FileStorageApplication.class)
+                .profiles("embedded")
+                .run("--app.storage.path=" + storage,
+                        "--server.port=0",
+                        "--logging.file.name=",
+                        "--spring.jpa.show-sql=false");
+    }
+}
@@ -1,22 +1,30 @@
 package ru.netology.filestorage.service;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.support.ExecutorServiceAdapter;
 import org.springframework.security.core.Authentication;
+import org.springframework.transaction.PlatformTransactionManager;
 import ru.netology.filestorage.dto.AuthRequest;
 import ru.netology.filestorage.dto.AuthResponse;
 import ru.netology.filestorage.entity.Token;
 import ru.netology.filestorage.entity.User;
 import ru.netology.filestorage.exception.InvalidCredentialsException;
+import ru.netology.filestorage.exception.ServiceOverloadedException;
 import ru.netology.filestorage.exception.UserNotFoundException;
 import ru.netology.filestorage.repository.TokenRepository;
 import ru.netology.filestorage.repository.UserRepository;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -34,9 +42,20 @@ class AuthServiceTest {
     @Mock
     private UserService userService;
 
-    @InjectMocks
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private GroupCommitWriter groupCommitWriter;
+
     private AuthService authService;
 
+    @BeforeEach
+    void setUp() {
+        groupCommitWriter = new GroupCommitWriter(transactionManager, false, 1, Duration.ZERO, 1);
+        authService = new AuthService(userRepository, tokenRepository, userService, groupCommitWriter,
+                new ExecutorServiceAdapter(new SyncTaskExecutor()), Duration.ofSeconds(5));
+    }
+
     @Test
     void login_Successful() {
         AuthRequest request = new AuthRequest("test@example.com", "password");
@@ -54,6 +73,35 @@ class AuthServiceTest {
         verify(tokenRepository).save(any(Token.class));
     }
 
+    @Test
+    void login_RehashesPasswordAfterSuccess() {
+        AuthRequest request = new AuthRequest("test@example.com", "password");
+        User user = new User("test@example.com", "encodedPassword");
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(user));
+        when(userService.checkPassword("password", "encodedPassword")).thenReturn(true);
+        when(userService.upgradePasswordEncodingIfNeeded(user, "password")).thenReturn(true);
+
+        authService.login(request);
+
+        verify(userService).upgradePasswordEncodingIfNeeded(user, "password");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void login_PasswordCheckQueueFull() {
+        ExecutorService saturatedExecutor = mock(ExecutorService.class);
+        when(saturatedExecutor.submit(any(Callable.class))).thenThrow(new RejectedExecutionException());
+        authService = new AuthService(userRepository, tokenRepository, userService, groupCommitWriter,
+                saturatedExecutor, Duration.ofSeconds(5));
+        AuthRequest request = new AuthRequest("test@example.com", "password");
+        User user = new User("test@example.com", "encodedPassword");
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(user));
+
+        assertThrows(ServiceOverloadedException.class, () -> authService.login(request));
+        verify(userService, never()).checkPassword(any(), any());
+        verify(tokenRepository, never()).save(any());
+    }
+
     @Test
     void login_UserNotFound() {
         AuthRequest request = new AuthRequest("nonexistent@example.com", "password");
@@ -82,6 +130,7 @@ class AuthServiceTest {
         User user = new User("test@example.com", "password");
         Token tokenEntity = new Token(token, user, LocalDateTime.now().plusHours(1));
         when(tokenRepository.findByTokenAndActiveTrue(token)).thenReturn(Optional.of(tokenEntity));
+        when(tokenRepository.existsByTokenAndActiveTrue(token)).thenReturn(true);
 
         boolean isValid = authService.validateToken(token);
 
@@ -95,6 +144,7 @@ class AuthServiceTest {
         User user = new User("test@example.com", "password");
         Token tokenEntity = new Token(token, user, LocalDateTime.now().minusHours(1));
         when(tokenRepository.findByTokenAndActiveTrue(token)).thenReturn(Optional.of(tokenEntity));
+        when(tokenRepository.existsByTokenAndActiveTrue(token)).thenReturn(true);
 
         boolean isValid = authService.validateToken(token);
 
@@ -110,7 +160,34 @@ class AuthServiceTest {
         boolean isValid = authService.validateToken(token);
 
         assertFalse(isValid);
-        verify(tokenRepository).findByTokenAndActiveTrue(token);
+        verify(tokenRepository, times(2)).findByTokenAndActiveTrue(token);
+    }
+
+    @Test
+    void validateToken_RetriesOnPrimaryWhenReplicaMisses() {
+        String token = "fresh-token";
+        User user = new User("test@example.com", "password");
+        Token tokenEntity = new Token(token, user, LocalDateTime.now().plusHours(1));
+        when(tokenRepository.findByTokenAndActiveTrue(token))
+                .thenReturn(Optional.empty())
+                .thenReturn(Optional.of(tokenEntity));
+
+        assertTrue(authService.validateToken(token));
+        assertFalse(ReplicaRouter.isReplicaReadAllowed());
+    }
+
+    @Test
+    void validateToken_RejectsTokenRevokedOnPrimaryButStillActiveOnReplica() {
+        String token = "revoked-token";
+        User user = new User("test@example.com", "password");
+        Token tokenEntity = new Token(token, user, LocalDateTime.now().plusHours(1));
+        when(tokenRepository.findByTokenAndActiveTrue(token)).thenAnswer(invocation ->
+                ReplicaRouter.isReplicaReadAllowed() ? Optional.of(tokenEntity) : Optional.empty());
+        when(tokenRepository.existsByTokenAndActiveTrue(token))
+                .thenAnswer(invocation -> ReplicaRouter.isReplicaReadAllowed());
+
+        assertFalse(authService.validateToken(token));
+        assertNull(authService.getAuthentication(token));
     }
 
     @Test
@@ -127,6 +204,7 @@ class AuthServiceTest {
         User user = new User("test@example.com", "password");
         Token tokenEntity = new Token(token, user, LocalDateTime.now().plusHours(1));
         when(tokenRepository.findByTokenAndActiveTrue(token)).thenReturn(Optional.of(tokenEntity));
+        when(tokenRepository.existsByTokenAndActiveTrue(token)).thenReturn(true);
 
         Authentication authentication = authService.getAuthentication(token);
 
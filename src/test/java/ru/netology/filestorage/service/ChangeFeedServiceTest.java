@@ -0,0 +1,136 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.netology.filestorage.dto.ChangeFeedResponse;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileChange;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileChangeRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ChangeFeedServiceTest {
+
+    @Mock
+    private FileChangeRepository changeRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private SimpleMeterRegistry meterRegistry;
+    private ChangeFeedService changeFeedService;
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        changeFeedService = new ChangeFeedService(changeRepository, userRepository, transactionManager, meterRegistry,
+                150, 2, Duration.ofSeconds(5), 10, Duration.ofDays(1), 100);
+        user = new User("test@example.com", "password");
+        user.setId(1L);
+    }
+
+    @Test
+    void watch_WithoutCursorReturnsHead() {
+        when(userRepository.findChangeSeq(1L)).thenReturn(7L);
+
+        ChangeFeedResponse response = changeFeedService.watch(user, null, null, Duration.ofSeconds(5)).join();
+
+        assertEquals(7L, response.cursor());
+        assertTrue(response.changes().isEmpty());
+        assertFalse(response.resync());
+    }
+
+    @Test
+    void watch_ReturnsPageAndAdvancesCursor() {
+        when(userRepository.findChangeSeq(1L)).thenReturn(5L);
+        when(changeRepository.findAfter(eq(1L), eq(2L), any(Pageable.class)))
+                .thenReturn(List.of(change(3), change(4), change(5)));
+
+        ChangeFeedResponse response = changeFeedService.watch(user, 2L, 2, Duration.ZERO).join();
+
+        assertEquals(List.of(3L, 4L), response.changes().stream().map(c -> c.seq()).toList());
+        assertEquals(4L, response.cursor());
+        assertTrue(response.hasMore());
+    }
+
+    @Test
+    void watch_TrimmedCursorRequiresResync() {
+        when(userRepository.findChangeSeq(1L)).thenReturn(500L);
+        when(changeRepository.findAfter(eq(1L), eq(2L), any(Pageable.class))).thenReturn(List.of(change(350)));
+
+        ChangeFeedResponse response = changeFeedService.watch(user, 2L, null, Duration.ZERO).join();
+
+        assertTrue(response.resync());
+        assertEquals(500L, response.cursor());
+    }
+
+    @Test
+    void watch_WaitsUntilPublish() {
+        when(userRepository.findChangeSeq(1L)).thenReturn(3L, 3L, 4L);
+        when(changeRepository.findAfter(eq(1L), eq(3L), any(Pageable.class))).thenReturn(List.of(change(4)));
+
+        CompletableFuture<ChangeFeedResponse> future = changeFeedService.watch(user, 3L, null, Duration.ofSeconds(5));
+        assertFalse(future.isDone());
+        assertEquals(1.0, meterRegistry.get("filestorage.changes.waiters").gauge().value());
+
+        changeFeedService.publish(user);
+
+        ChangeFeedResponse response = future.join();
+        assertEquals(4L, response.cursor());
+        assertEquals("UPLOAD", response.changes().get(0).type());
+        assertEquals(0.0, meterRegistry.get("filestorage.changes.waiters").gauge().value());
+    }
+
+    @Test
+    void watch_TimesOutWithEmptyPage() throws Exception {
+        when(userRepository.findChangeSeq(1L)).thenReturn(3L);
+
+        ChangeFeedResponse response = changeFeedService.watch(user, 3L, null, Duration.ofMillis(50))
+                .get(5, TimeUnit.SECONDS);
+
+        assertTrue(response.changes().isEmpty());
+        assertEquals(3L, response.cursor());
+    }
+
+    @Test
+    void record_TrimsLogBeyondPerUserLimit() {
+        when(userRepository.findChangeSeq(1L)).thenReturn(200L);
+
+        changeFeedService.record(user, FileChange.Type.DELETE, file(), null);
+
+        verify(userRepository).incrementChangeSeq(1L);
+        verify(changeRepository).save(argThat(c -> c.getSeq() == 200L && c.getType() == FileChange.Type.DELETE));
+        verify(changeRepository).deleteUpTo(1L, 50L);
+    }
+
+    private FileChange change(long seq) {
+        return new FileChange(1L, seq, FileChange.Type.UPLOAD, file(), null);
+    }
+
+    private File file() {
+        File file = new File("a.txt", 1L, "text/plain", user);
+        file.setId(10L);
+        return file;
+    }
+}
@@ -0,0 +1,130 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.config.IoSchedulerProperties;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ChecksumScrubberTest {
+
+    private static final String CONTENT_SHA256 = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path tempDir;
+
+    private SimpleMeterRegistry meterRegistry;
+    private ChecksumScrubber scrubber;
+    private VolumeStore volumeStore;
+    private User user;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        meterRegistry = new SimpleMeterRegistry();
+        StorageService storageService = new StorageService(tempDir.toString(), DataSize.ofBytes(0));
+        volumeStore = new VolumeStore(storageService, true, DataSize.ofKilobytes(64), DataSize.ofMegabytes(1));
+        EncryptionService encryptionService = new EncryptionService(false, "", List.of(),
+                DataSize.ofKilobytes(64), meterRegistry);
+        scrubber = new ChecksumScrubber(fileRepository, storageService, volumeStore, encryptionService,
+                new IoScheduler(new IoSchedulerProperties(), meterRegistry),
+                transactionManager, meterRegistry, 2, DataSize.ofMegabytes(100), "local");
+        user = new User("test@example.com", "password");
+        user.setId(1L);
+        Files.createDirectories(tempDir.resolve("1"));
+    }
+
+    @Test
+    void scrub_ReportsMismatchAndBackfillsMissingChecksums() throws Exception {
+        File intact = file(1L, "intact.txt", CONTENT_SHA256);
+        File corrupted = file(2L, "corrupted.txt", CONTENT_SHA256);
+        File legacy = file(3L, "legacy.txt", null);
+        Files.writeString(tempDir.resolve("1").resolve("intact.txt"), "content");
+        Files.writeString(tempDir.resolve("1").resolve("corrupted.txt"), "c0ntent");
+        Files.writeString(tempDir.resolve("1").resolve("legacy.txt"), "content");
+
+        when(fileRepository.countLive("local")).thenReturn(3L);
+        when(fileRepository.findBatchAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(intact, corrupted));
+        when(fileRepository.findBatchAfter(eq("local"), eq(2L), any(Pageable.class))).thenReturn(List.of(legacy));
+        when(fileRepository.findById(2L)).thenReturn(Optional.of(corrupted));
+
+        ChecksumScrubber.Report report = scrubber.scrub();
+
+        assertEquals(new ChecksumScrubber.Report(1, 1, 0, 1), report);
+        verify(fileRepository).setSha256IfMissing(3L, CONTENT_SHA256);
+        assertEquals(1.0, meterRegistry.counter("filestorage.scrub.files", "result", "mismatch").count());
+        assertEquals(21.0, meterRegistry.counter("filestorage.scrub.bytes").count());
+        assertEquals(1.0, meterRegistry.get("filestorage.scrub.progress").gauge().value());
+    }
+
+    @Test
+    void scrub_IgnoresFilesDeletedDuringPass() throws Exception {
+        File deleted = file(1L, "deleted.txt", CONTENT_SHA256);
+        when(fileRepository.countLive("local")).thenReturn(1L);
+        when(fileRepository.findBatchAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(deleted));
+        when(fileRepository.findById(1L)).thenReturn(Optional.empty());
+
+        ChecksumScrubber.Report report = scrubber.scrub();
+
+        assertEquals(new ChecksumScrubber.Report(0, 0, 0, 0), report);
+    }
+
+    @Test
+    void scrub_ReportsFilesMissingOnDisk() throws Exception {
+        File lost = file(1L, "lost.txt", CONTENT_SHA256);
+        when(fileRepository.countLive("local")).thenReturn(1L);
+        when(fileRepository.findBatchAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(lost));
+        when(fileRepository.findById(1L)).thenReturn(Optional.of(lost));
+
+        ChecksumScrubber.Report report = scrubber.scrub();
+
+        assertEquals(1, report.missing());
+    }
+
+    @Test
+    void scrub_VerifiesPackedFilesFromVolume() throws Exception {
+        VolumeStore.Location location = volumeStore.append("content".getBytes());
+        File packed = file(1L, "packed.txt", CONTENT_SHA256);
+        packed.setVolumeId(location.volumeId());
+        packed.setVolumeOffset(location.offset());
+        when(fileRepository.countLive("local")).thenReturn(1L);
+        when(fileRepository.findBatchAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(packed));
+
+        ChecksumScrubber.Report report = scrubber.scrub();
+
+        assertEquals(new ChecksumScrubber.Report(1, 0, 0, 0), report);
+    }
+
+    private File file(Long id, String filename, String sha256) {
+        File file = new File(filename, 7L, "text/plain", user);
+        file.setId(id);
+        file.setSha256(sha256);
+        return file;
+    }
+}
@@ -0,0 +1,169 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.support.ExecutorServiceAdapter;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileVersion;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.FileVersionRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class DeletionReclaimerTest {
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private FileVersionRepository fileVersionRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path tempDir;
+
+    private User user;
+    private Path trashDir;
+    private DeletionReclaimer reclaimer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        user = new User("test@example.com", "password");
+        user.setId(1L);
+        trashDir = Files.createDirectories(tempDir.resolve(StorageService.TRASH_DIR).resolve("1"));
+
+        StorageService storageService = new StorageService(tempDir.toString(), DataSize.ofBytes(0));
+        EncryptionService encryptionService = new EncryptionService(false, "", List.of(),
+                DataSize.ofKilobytes(64), new SimpleMeterRegistry());
+        ThumbnailService thumbnailService = new ThumbnailService(storageService, encryptionService,
+                new ExecutorServiceAdapter(new SyncTaskExecutor()), true, List.of(64), 1024, 1_000_000);
+        reclaimer = new DeletionReclaimer(fileRepository, userRepository, storageService,
+                new FileVersionService(fileVersionRepository, storageService, 5), thumbnailService,
+                transactionManager, new SimpleMeterRegistry(), Duration.ofHours(1), 2, 0, "local");
+    }
+
+    @Test
+    void reclaim_UnlinksDataAndPurgesTombstonesInBatches() throws IOException {
+        LocalDateTime now = LocalDateTime.now();
+        File first = tombstone(10L, "a.txt", "aaa");
+        File second = tombstone(11L, "b.txt", "bb");
+        File third = tombstone(12L, "c.txt", null);
+        Path thumbnails = Files.createDirectories(tempDir.resolve(ThumbnailService.THUMBNAILS_DIR).resolve("1").resolve("10"));
+        Files.writeString(thumbnails.resolve("64.png"), "png");
+
+        when(fileRepository.findTombstonesBefore(eq("local"), eq(now.minusHours(1)), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(first, second));
+        when(fileRepository.findTombstonesBefore(eq("local"), eq(now.minusHours(1)), eq(11L), any(Pageable.class)))
+                .thenReturn(List.of(third));
+        when(fileRepository.purgeTombstones(List.of(10L, 11L))).thenReturn(2);
+        when(fileRepository.purgeTombstones(List.of(12L))).thenReturn(1);
+        when(userRepository.existsById(1L)).thenReturn(true);
+
+        DeletionReclaimer.Result result = reclaimer.reclaim(now);
+
+        assertEquals(3, result.files());
+        assertEquals(5L, result.bytes());
+        assertFalse(Files.exists(trashDir.resolve("10")));
+        assertFalse(Files.exists(trashDir.resolve("11")));
+        assertFalse(Files.exists(thumbnails));
+    }
+
+    @Test
+    void reclaim_DeletesVersionHistoryWithFile() throws IOException {
+        LocalDateTime now = LocalDateTime.now();
+        File file = tombstone(10L, "a.txt", "aaa");
+        FileVersion version = new FileVersion(file);
+        version.setId(30L);
+        Path versionData = Files.createDirectories(tempDir.resolve(StorageService.VERSIONS_DIR).resolve("1"))
+                .resolve("30");
+        Files.writeString(versionData, "old");
+
+        when(fileRepository.findTombstonesBefore(eq("local"), eq(now.minusHours(1)), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(file));
+        when(fileVersionRepository.findByFileIdIn(List.of(10L))).thenReturn(List.of(version));
+        when(fileRepository.purgeTombstones(List.of(10L))).thenReturn(1);
+        when(userRepository.existsById(1L)).thenReturn(true);
+
+        DeletionReclaimer.Result result = reclaimer.reclaim(now);
+
+        assertEquals(1, result.files());
+        assertEquals(6L, result.bytes());
+        assertFalse(Files.exists(versionData));
+        verify(fileVersionRepository).deleteByFileIdIn(List.of(10L));
+    }
+
+    @Test
+    void reclaim_RemovesTrashOfDeletedAccounts() throws IOException {
+        Path removedAccount = Files.createDirectories(tempDir.resolve(StorageService.TRASH_DIR).resolve("7"));
+        Files.writeString(removedAccount.resolve("20"), "left");
+        when(fileRepository.findTombstonesBefore(eq("local"), any(LocalDateTime.class), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of());
+        when(userRepository.existsById(1L)).thenReturn(true);
+        when(userRepository.existsById(7L)).thenReturn(false);
+
+        DeletionReclaimer.Result result = reclaimer.reclaim(LocalDateTime.now());
+
+        assertEquals(0, result.files());
+        assertFalse(Files.exists(removedAccount));
+        assertTrue(Files.exists(trashDir));
+        verify(fileRepository, never()).purgeTombstones(any());
+    }
+
+    @Test
+    void reclaim_RemovesDataAndThumbnailsOfDeletedAccounts() throws IOException {
+        Path removedData = Files.createDirectories(tempDir.resolve("7").resolve("docs"));
+        Files.writeString(removedData.resolve("a.txt"), "left");
+        Path removedThumbnails = Files.createDirectories(
+                tempDir.resolve(ThumbnailService.THUMBNAILS_DIR).resolve("7").resolve("20"));
+        Files.writeString(removedThumbnails.resolve("64.png"), "png");
+        Path liveData = Files.createDirectories(tempDir.resolve("1"));
+        Files.writeString(liveData.resolve("b.txt"), "kept");
+        when(fileRepository.findTombstonesBefore(eq("local"), any(LocalDateTime.class), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of());
+        when(userRepository.existsById(1L)).thenReturn(true);
+        when(userRepository.existsById(7L)).thenReturn(false);
+
+        reclaimer.reclaim(LocalDateTime.now());
+
+        assertFalse(Files.exists(tempDir.resolve("7")));
+        assertFalse(Files.exists(tempDir.resolve(ThumbnailService.THUMBNAILS_DIR).resolve("7")));
+        assertTrue(Files.exists(liveData.resolve("b.txt")));
+    }
+
+    private File tombstone(Long id, String filename, String content) throws IOException {
+        File file = new File(filename, content != null ? (long) content.length() : 0L, "text/plain", user);
+        file.setId(id);
+        file.setDeletedAt(LocalDateTime.now().minusDays(1));
+        if (content != null) {
+            Files.writeString(trashDir.resolve(id.toString()), content);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,130 @@
+package ru.netology.filestorage.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.netology.filestorage.dto.BlockSignature;
+import ru.netology.filestorage.dto.DeltaInstruction;
+import ru.netology.filestorage.dto.FileSignatureResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSyncServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final DeltaSyncService deltaSyncService = new DeltaSyncService(16, 4096);
+
+    @Test
+    void rollingChecksum_MatchesRecomputedWindow() {
+        byte[] data = new byte[300];
+        new Random(1).nextBytes(data);
+        RollingChecksum checksum = RollingChecksum.of(data, 0, 64);
+
+        for (int offset = 1; offset + 64 <= data.length; offset++) {
+            checksum.roll(data[offset - 1], data[offset + 63]);
+            assertEquals(RollingChecksum.compute(data, offset, 64), checksum.value());
+        }
+    }
+
+    @Test
+    void resolveBlockSize_ClampsSqrtOfSize() {
+        assertEquals(16, deltaSyncService.resolveBlockSize(null, 10));
+        assertEquals(1024, deltaSyncService.resolveBlockSize(null, 1024L * 1024));
+        assertEquals(4096, deltaSyncService.resolveBlockSize(null, 1L << 40));
+        assertThrows(IllegalArgumentException.class, () -> deltaSyncService.resolveBlockSize(8, 100));
+    }
+
+    @Test
+    void reconstruct_InsertionTransfersOnlyChangedBytes() throws IOException {
+        byte[] original = new byte[4096];
+        new Random(2).nextBytes(original);
+        Path base = tempDir.resolve("base.bin");
+        Files.write(base, original);
+
+        ByteArrayOutputStream modified = new ByteArrayOutputStream();
+        modified.write(original, 0, 1000);
+        modified.write("inserted".getBytes());
+        modified.write(original, 1000, original.length - 1000);
+        byte[] target = modified.toByteArray();
+
+        FileSignatureResponse signature = deltaSyncService.signature(base, 64);
+        ByteArrayOutputStream literals = new ByteArrayOutputStream();
+        List<DeltaInstruction> instructions = diff(signature, target, literals);
+
+        assertTrue(literals.size() <= 64 + "inserted".length());
+        try (InputStream rebuilt = deltaSyncService.reconstruct(base, 64, instructions,
+                new ByteArrayInputStream(literals.toByteArray()))) {
+            assertArrayEquals(target, rebuilt.readAllBytes());
+        }
+    }
+
+    @Test
+    void reconstruct_RejectsReferencesOutsideBase() throws IOException {
+        Path base = tempDir.resolve("base.bin");
+        Files.write(base, new byte[32]);
+
+        try (InputStream rebuilt = deltaSyncService.reconstruct(base, 16, List.of(DeltaInstruction.copy(5, 1)),
+                InputStream.nullInputStream())) {
+            assertThrows(IllegalArgumentException.class, rebuilt::readAllBytes);
+        }
+    }
+
+    /**
+     * Упрощенный клиент: ищет блоки сигнатуры в новом содержимом скользящей суммой.
+     */
+    private static List<DeltaInstruction> diff(FileSignatureResponse signature, byte[] target,
+                                               ByteArrayOutputStream literals) {
+        int blockSize = signature.blockSize();
+        Map<Long, List<BlockSignature>> byWeak = new HashMap<>();
+        for (BlockSignature block : signature.blocks()) {
+            byWeak.computeIfAbsent(block.weak(), k -> new ArrayList<>()).add(block);
+        }
+
+        List<DeltaInstruction> instructions = new ArrayList<>();
+        int literalStart = 0;
+        int offset = 0;
+        RollingChecksum checksum = target.length >= blockSize ? RollingChecksum.of(target, 0, blockSize) : null;
+        while (checksum != null && offset + blockSize <= target.length) {
+            BlockSignature match = null;
+            for (BlockSignature candidate : byWeak.getOrDefault(checksum.value(), List.of())) {
+                if (candidate.strong().equals(DeltaSyncService.strongHash(target, offset, blockSize))) {
+                    match = candidate;
+                    break;
+                }
+            }
+            if (match != null) {
+                if (offset > literalStart) {
+                    literals.write(target, literalStart, offset - literalStart);
+                    instructions.add(DeltaInstruction.data(offset - literalStart));
+                }
+                instructions.add(DeltaInstruction.copy(match.index(), 1));
+                offset += blockSize;
+                literalStart = offset;
+                checksum = offset + blockSize <= target.length ? RollingChecksum.of(target, offset, blockSize) : null;
+            } else {
+                if (offset + blockSize < target.length) {
+                    checksum.roll(target[offset], target[offset + blockSize]);
+                }
+                offset++;
+            }
+        }
+        if (literalStart < target.length) {
+            literals.write(target, literalStart, target.length - literalStart);
+            instructions.add(DeltaInstruction.data(target.length - literalStart));
+        }
+        return instructions;
+    }
+}
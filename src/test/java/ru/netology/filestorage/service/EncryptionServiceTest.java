@@ -0,0 +1,169 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.exception.ChecksumMismatchException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncryptionServiceTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final String MASTER_KEY = Base64.getEncoder().encodeToString(new byte[32]);
+    private static final String OTHER_KEY = Base64.getEncoder().encodeToString(filled(32, (byte) 1));
+
+    @TempDir
+    Path tempDir;
+
+    private SimpleMeterRegistry meterRegistry;
+    private EncryptionService encryptionService;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        encryptionService = create(MASTER_KEY, List.of());
+    }
+
+    @Test
+    void streamRoundTripWithPartialLastChunk() throws IOException {
+        byte[] content = random(CHUNK_SIZE * 3 + 100);
+        Path path = write(content);
+
+        assertFalse(Arrays.equals(content, Arrays.copyOf(Files.readAllBytes(path), content.length)));
+        try (InputStream in = encryptionService.openStream(path)) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void streamRoundTripWithExactChunks() throws IOException {
+        byte[] content = random(CHUNK_SIZE * 2);
+        Path path = write(content);
+
+        try (InputStream in = encryptionService.openStream(path)) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void emptyFileRoundTrip() throws IOException {
+        Path path = write(new byte[0]);
+
+        assertEquals(EncryptionService.BLOB_OVERHEAD, Files.size(path));
+        try (InputStream in = encryptionService.openStream(path)) {
+            assertEquals(0, in.readAllBytes().length);
+        }
+    }
+
+    @Test
+    void skipDecryptsOnlyTouchedChunks() throws IOException {
+        byte[] content = random(CHUNK_SIZE * 10);
+        Path path = write(content);
+        double before = decryptedChunks();
+
+        byte[] range = new byte[100];
+        try (InputStream in = encryptionService.openStream(path)) {
+            assertEquals(CHUNK_SIZE * 7L + 1000, in.skip(CHUNK_SIZE * 7L + 1000));
+            assertEquals(100, in.readNBytes(range, 0, 100));
+        }
+
+        assertArrayEquals(Arrays.copyOfRange(content, CHUNK_SIZE * 7 + 1000, CHUNK_SIZE * 7 + 1100), range);
+        assertEquals(2, decryptedChunks() - before);
+    }
+
+    @Test
+    void tamperedChunkIsRejected() throws IOException {
+        Path path = write(random(CHUNK_SIZE * 2));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), EncryptionService.HEADER_SIZE + 10);
+        }
+
+        try (InputStream in = encryptionService.openStream(path)) {
+            assertThrows(ChecksumMismatchException.class, in::readAllBytes);
+        }
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        Path path = write(random(CHUNK_SIZE * 3));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(EncryptionService.HEADER_SIZE + 2L * (CHUNK_SIZE + EncryptionService.TAG_SIZE));
+        }
+
+        try (InputStream in = encryptionService.openStream(path)) {
+            assertThrows(ChecksumMismatchException.class, in::readAllBytes);
+        }
+    }
+
+    @Test
+    void blobHasFixedOverhead() throws IOException {
+        byte[] content = random(500);
+
+        byte[] blob = encryptionService.encrypt(content);
+
+        assertEquals(content.length + EncryptionService.BLOB_OVERHEAD, blob.length);
+        assertArrayEquals(content, encryptionService.decrypt(blob));
+    }
+
+    @Test
+    void previousMasterKeyStillDecrypts() throws IOException {
+        byte[] content = random(CHUNK_SIZE + 1);
+        EncryptionService old = create(OTHER_KEY, List.of());
+        byte[] blob = old.encrypt(content);
+
+        EncryptionService rotated = create(MASTER_KEY, List.of(OTHER_KEY));
+
+        assertArrayEquals(content, rotated.decrypt(blob));
+        assertThrows(IllegalStateException.class, () -> encryptionService.decrypt(blob));
+    }
+
+    @Test
+    void enabledWithoutMasterKeyFails() {
+        assertThrows(IllegalStateException.class, () -> new EncryptionService(true, "", List.of(),
+                DataSize.ofBytes(CHUNK_SIZE), meterRegistry));
+    }
+
+    private EncryptionService create(String masterKey, List<String> previousKeys) {
+        return new EncryptionService(true, masterKey, previousKeys, DataSize.ofBytes(CHUNK_SIZE), meterRegistry);
+    }
+
+    private Path write(byte[] content) throws IOException {
+        Path path = tempDir.resolve("file.bin");
+        try (OutputStream out = encryptionService.encrypt(Files.newOutputStream(path))) {
+            out.write(content);
+        }
+        return path;
+    }
+
+    private double decryptedChunks() {
+        return meterRegistry.get("filestorage.encryption.chunks").tag("operation", "decrypt").counter().count();
+    }
+
+    private static byte[] random(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] filled(int length, byte value) {
+        byte[] content = new byte[length];
+        Arrays.fill(content, value);
+        return content;
+    }
+}
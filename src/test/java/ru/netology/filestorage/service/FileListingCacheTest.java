@@ -0,0 +1,106 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.dto.FileSummary;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileListingCacheTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private FileListingCache cache;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new FileListingCache(meterRegistry, 3, DataSize.ofKilobytes(1));
+    }
+
+    @Test
+    void get_MissThenHit() {
+        assertNull(cache.get("user", null));
+
+        cache.put("user", cache.generation("user"), List.of(summary(1L, "a.txt")), true);
+
+        assertEquals(1, cache.get("user", null).size());
+        assertEquals(1.0, meterRegistry.counter("filestorage.listing_cache.requests", "result", "hit").count());
+        assertEquals(1.0, meterRegistry.counter("filestorage.listing_cache.requests", "result", "miss").count());
+    }
+
+    @Test
+    void put_IgnoredWhenMutationHappenedDuringLoad() {
+        long generation = cache.generation("user");
+        cache.onFileAdded("user", summary(2L, "b.txt"));
+
+        cache.put("user", generation, List.of(summary(1L, "a.txt")), true);
+
+        assertNull(cache.get("user", null));
+    }
+
+    @Test
+    void onFileAdded_KeepsWindowBoundedAndMarksIncomplete() {
+        cache.put("user", cache.generation("user"),
+                List.of(summary(3L, "c"), summary(2L, "b"), summary(1L, "a")), true);
+
+        cache.onFileAdded("user", summary(4L, "d"));
+
+        assertEquals(List.of("d", "c", "b"), cache.get("user", 3).stream().map(FileSummary::filename).toList());
+        assertNull(cache.get("user", null));
+    }
+
+    @Test
+    void onFileRestored_InsertsInListingOrder() {
+        LocalDateTime now = LocalDateTime.now();
+        cache.put("user", cache.generation("user"),
+                List.of(summary(3L, "c", now), summary(1L, "a", now.minusHours(2))), true);
+
+        cache.onFileRestored("user", summary(2L, "b", now.minusHours(1)));
+
+        assertEquals(List.of("c", "b", "a"), cache.get("user", null).stream().map(FileSummary::filename).toList());
+    }
+
+    @Test
+    void onFileRestored_SkipsFileOlderThanTruncatedWindow() {
+        LocalDateTime now = LocalDateTime.now();
+        cache.put("user", cache.generation("user"),
+                List.of(summary(5L, "e", now), summary(4L, "d", now.minusHours(1))), false);
+
+        cache.onFileRestored("user", summary(2L, "b", now.minusHours(3)));
+
+        assertEquals(List.of("e", "d"), cache.get("user", 2).stream().map(FileSummary::filename).toList());
+    }
+
+    @Test
+    void onFileRemoved_RemovesEntry() {
+        cache.put("user", cache.generation("user"), List.of(summary(2L, "b"), summary(1L, "a")), true);
+
+        cache.onFileRemoved("user", 2L);
+
+        assertEquals(List.of("a"), cache.get("user", null).stream().map(FileSummary::filename).toList());
+    }
+
+    @Test
+    void put_EvictsLeastRecentlyUsedWhenOverBudget() {
+        String longName = "x".repeat(200);
+        cache.put("first", cache.generation("first"), List.of(summary(1L, longName)), true);
+        cache.put("second", cache.generation("second"), List.of(summary(2L, longName)), true);
+
+        assertNull(cache.get("first", null));
+        assertNotNull(cache.get("second", null));
+        assertTrue(cache.estimatedBytes() <= 1024);
+    }
+
+    private static FileSummary summary(Long id, String filename) {
+        return new FileSummary(id, filename, 10L, LocalDateTime.now());
+    }
+
+    private static FileSummary summary(Long id, String filename, LocalDateTime uploadedAt) {
+        return new FileSummary(id, filename, 10L, uploadedAt);
+    }
+}
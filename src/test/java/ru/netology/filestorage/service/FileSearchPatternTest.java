@@ -0,0 +1,28 @@
+package ru.netology.filestorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileSearchPatternTest {
+
+    @Test
+    void toLikePattern_Prefix() {
+        assertEquals("rep%", FileService.toLikePattern("Rep", "prefix"));
+    }
+
+    @Test
+    void toLikePattern_SubstringEscapesWildcards() {
+        assertEquals("%50\\%\\_off%", FileService.toLikePattern("50%_off", "substring"));
+    }
+
+    @Test
+    void toLikePattern_Glob() {
+        assertEquals("%.jp_g", FileService.toLikePattern("*.JP?G", "glob"));
+    }
+
+    @Test
+    void toLikePattern_UnknownMode() {
+        assertThrows(IllegalArgumentException.class, () -> FileService.toLikePattern("x", "regex"));
+    }
+}
@@ -1,31 +1,68 @@
 package ru.netology.filestorage.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.core.io.Resource;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.support.ExecutorServiceAdapter;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
+import ru.netology.filestorage.config.IoSchedulerProperties;
+import ru.netology.filestorage.dto.DeltaInstruction;
+import ru.netology.filestorage.dto.DeltaRequest;
+import ru.netology.filestorage.dto.FileDownload;
+import ru.netology.filestorage.dto.FileListResponse;
+import ru.netology.filestorage.dto.FileSearchRequest;
+import ru.netology.filestorage.dto.FileSearchResponse;
+import ru.netology.filestorage.dto.FileSummary;
 import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.FileChange;
+import ru.netology.filestorage.entity.FileVersion;
 import ru.netology.filestorage.entity.User;
 import ru.netology.filestorage.exception.*;
+import ru.netology.filestorage.repository.FileChangeRepository;
 import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.FileVersionRepository;
 import ru.netology.filestorage.repository.UserRepository;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -37,25 +74,37 @@ class FileServiceTest {
     @Mock
     private UserRepository userRepository;
 
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
     @Mock
     private MultipartFile multipartFile;
 
+    @Mock
+    private FileChangeRepository fileChangeRepository;
+
+    @Mock
+    private FileVersionRepository fileVersionRepository;
+
     @Mock
     private SecurityContext securityContext;
 
     @Mock
     private Authentication authentication;
 
+    private static final String CONTENT_SHA256 = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+
     @TempDir
     Path tempDir;
 
     private FileService fileService;
+    private FileListingCache fileListingCache;
+    private PresignedUrlService presignedUrlService;
     private User testUser;
 
     @BeforeEach
     void setUp() {
-        String storagePath = tempDir.toString();
-        fileService = new FileService(fileRepository, userRepository, storagePath);
+        fileService = createFileService(false);
 
         testUser = new User("test@example.com", "password");
         testUser.setId(1L);
@@ -63,6 +112,47 @@ class FileServiceTest {
         setupSecurityContext();
     }
 
+    private FileService createFileService(boolean packSmallFiles) {
+        return createFileService(packSmallFiles, new EncryptionService(false, "", List.of(),
+                DataSize.ofKilobytes(64), new SimpleMeterRegistry()));
+    }
+
+    private static EncryptionService encryptionService() {
+        return new EncryptionService(true, Base64.getEncoder().encodeToString(new byte[32]), List.of(),
+                DataSize.ofKilobytes(64), new SimpleMeterRegistry());
+    }
+
+    private FileService createFileService(boolean packSmallFiles, EncryptionService encryptionService) {
+        String storagePath = tempDir.toString();
+        GroupCommitWriter groupCommitWriter = new GroupCommitWriter(transactionManager, false, 1, Duration.ZERO, 1);
+        StorageService storageService = new StorageService(storagePath, DataSize.ofBytes(0));
+        FileVersionService fileVersionService = new FileVersionService(fileVersionRepository, storageService, 5);
+        QuotaService quotaService = new QuotaService(userRepository, fileRepository, fileVersionService,
+                transactionManager, DataSize.ofKilobytes(1), 100, "local");
+        fileListingCache = new FileListingCache(new SimpleMeterRegistry(), 2, DataSize.ofMegabytes(1));
+        ThumbnailService thumbnailService = new ThumbnailService(storageService, encryptionService,
+                new ExecutorServiceAdapter(new SyncTaskExecutor()), true, List.of(64, 256), 1024 * 1024, 1_000_000);
+        VolumeStore volumeStore = new VolumeStore(storageService, packSmallFiles, DataSize.ofKilobytes(64),
+                DataSize.ofMegabytes(1));
+        IoScheduler ioScheduler = new IoScheduler(new IoSchedulerProperties(), new SimpleMeterRegistry());
+        presignedUrlService = new PresignedUrlService(storageService, volumeStore, encryptionService, ioScheduler,
+                new SimpleMeterRegistry(), "secret", Duration.ofHours(1), Duration.ofDays(7), "local");
+        return new FileService(fileRepository, userRepository, groupCommitWriter, storageService, quotaService,
+                fileListingCache, thumbnailService, new DeltaSyncService(4, 1024),
+                new ChangeFeedService(fileChangeRepository, userRepository, transactionManager, new SimpleMeterRegistry(),
+                        100, 100, Duration.ofSeconds(1), 10, Duration.ofDays(1), 100),
+                volumeStore, encryptionService, presignedUrlService, ioScheduler,
+                fileVersionService, new FileLocks(), Duration.ofHours(1));
+    }
+
+    private void stubVersionSave(Long id) {
+        when(fileVersionRepository.save(any(FileVersion.class))).thenAnswer(invocation -> {
+            FileVersion version = invocation.getArgument(0);
+            version.setId(id);
+            return version;
+        });
+    }
+
     private void setupSecurityContext() {
         when(securityContext.getAuthentication()).thenReturn(authentication);
         when(authentication.getName()).thenReturn("test@example.com");
@@ -112,21 +202,258 @@ class FileServiceTest {
         verify(userRepository).findByUsername("test@example.com");
     }
 
+    @Test
+    void listFiles_SecondCallServedFromCache() {
+        FileSummary summary = new FileSummary(1L, "file1.txt", 100L, LocalDateTime.now());
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findSummariesByUser(eq(testUser), any(Pageable.class))).thenReturn(List.of(summary));
+
+        List<FileListResponse> first = fileService.listFiles(null);
+        List<FileListResponse> second = fileService.listFiles(null);
+
+        assertEquals(1, first.size());
+        assertEquals("file1.txt", second.get(0).getFilename());
+        verify(fileRepository, times(1)).findSummariesByUser(eq(testUser), any(Pageable.class));
+        verify(userRepository, times(1)).findByUsername("test@example.com");
+    }
+
+    @Test
+    void listFiles_LargeListingBeyondCacheWindowGoesToDatabase() {
+        LocalDateTime now = LocalDateTime.now();
+        List<FileSummary> window = List.of(
+                new FileSummary(3L, "c.txt", 1L, now),
+                new FileSummary(2L, "b.txt", 1L, now),
+                new FileSummary(1L, "a.txt", 1L, now));
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findSummariesByUser(eq(testUser), any(Pageable.class))).thenReturn(window);
+
+        assertEquals(2, fileService.listFiles(2).size());
+        assertEquals(2, fileService.listFiles(2).size());
+        assertEquals(3, fileService.listFiles(null).size());
+
+        verify(fileRepository, times(3)).findSummariesByUser(eq(testUser), any(Pageable.class));
+    }
+
+    @Test
+    void renameFile_PatchesCachedListing() {
+        File file = new File("old.txt", 100L, "text/plain", testUser);
+        file.setId(7L);
+        fileListingCache.put("test@example.com", fileListingCache.generation("test@example.com"),
+                List.of(new FileSummary(7L, "old.txt", 100L, file.getUploadedAt())), true);
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "old.txt")).thenReturn(Optional.of(file));
+        when(fileRepository.existsByUserAndFilename(testUser, "new.txt")).thenReturn(false);
+
+        fileService.renameFile("old.txt", "new.txt");
+
+        List<FileListResponse> listing = fileService.listFiles(null);
+        assertEquals("new.txt", listing.get(0).getFilename());
+        verify(fileRepository, never()).findSummariesByUser(any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void searchFiles_ReturnsCursorWhenMoreResults() {
+        File file1 = new File("a.txt", 10L, "text/plain", testUser);
+        file1.setId(3L);
+        File file2 = new File("b.txt", 20L, "text/plain", testUser);
+        file2.setId(2L);
+        File file3 = new File("c.txt", 30L, "text/plain", testUser);
+        file3.setId(1L);
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findBy(any(Specification.class), any())).thenReturn(List.of(file1, file2, file3));
+        FileSearchRequest request = new FileSearchRequest();
+        request.setQuery("txt");
+        request.setSort("size");
+        request.setLimit(2);
+
+        FileSearchResponse response = fileService.searchFiles(request);
+
+        assertEquals(2, response.getFiles().size());
+        assertEquals("a.txt", response.getFiles().get(0).getFilename());
+        assertNotNull(response.getNextCursor());
+
+        request.setCursor(response.getNextCursor());
+        when(fileRepository.findBy(any(Specification.class), any())).thenReturn(List.of(file3));
+
+        FileSearchResponse nextPage = fileService.searchFiles(request);
+
+        assertEquals(1, nextPage.getFiles().size());
+        assertNull(nextPage.getNextCursor());
+    }
+
+    @Test
+    void searchFiles_RejectsUnknownSortField() {
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        FileSearchRequest request = new FileSearchRequest();
+        request.setSort("password");
+
+        assertThrows(IllegalArgumentException.class, () -> fileService.searchFiles(request));
+    }
+
+    @Test
+    void searchFiles_RejectsMalformedCursor() {
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        FileSearchRequest request = new FileSearchRequest();
+        request.setCursor("not-a-cursor");
+
+        assertThrows(IllegalArgumentException.class, () -> fileService.searchFiles(request));
+    }
+
     @Test
     void uploadFile_Successful() throws IOException {
         when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
         when(fileRepository.existsByUserAndFilename(testUser, "test.txt")).thenReturn(false);
         when(multipartFile.isEmpty()).thenReturn(false);
-        when(multipartFile.getBytes()).thenReturn("content".getBytes());
-        when(multipartFile.getSize()).thenReturn(100L);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
+        when(multipartFile.getSize()).thenReturn(7L);
         when(multipartFile.getContentType()).thenReturn("text/plain");
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
 
         fileService.uploadFile("test.txt", multipartFile);
 
         verify(fileRepository).existsByUserAndFilename(testUser, "test.txt");
+        verify(fileRepository).save(argThat(f -> CONTENT_SHA256.equals(f.getSha256())));
+        assertEquals("content", Files.readString(tempDir.resolve("1").resolve("test.txt")));
+    }
+
+    @Test
+    void uploadFile_ExpectedChecksumMatches() throws IOException {
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "test.txt")).thenReturn(false);
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
+        when(multipartFile.getSize()).thenReturn(7L);
+        when(multipartFile.getContentType()).thenReturn("text/plain");
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
+
+        fileService.uploadFile("test.txt", multipartFile, CONTENT_SHA256.toUpperCase());
+
         verify(fileRepository).save(any(File.class));
     }
 
+    @Test
+    void uploadFile_ExpectedChecksumMismatch() throws IOException {
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "test.txt")).thenReturn(false);
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("corrupted".getBytes()));
+        when(multipartFile.getSize()).thenReturn(9L);
+
+        assertThrows(ChecksumMismatchException.class,
+                () -> fileService.uploadFile("test.txt", multipartFile, CONTENT_SHA256));
+        verify(fileRepository, never()).save(any(File.class));
+        assertFalse(Files.exists(tempDir.resolve("1").resolve("test.txt")));
+    }
+
+    @Test
+    void uploadFile_MalformedChecksum() {
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> fileService.uploadFile("test.txt", multipartFile, "not-a-digest"));
+    }
+
+    @Test
+    void uploadFile_DeclaredSizeExceedsQuota() {
+        testUser.setUsedBytes(1000L);
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "big.bin")).thenReturn(false);
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getSize()).thenReturn(100L);
+
+        assertThrows(QuotaExceededException.class, () -> fileService.uploadFile("big.bin", multipartFile));
+        verify(fileRepository, never()).save(any(File.class));
+    }
+
+    @Test
+    void uploadFile_StreamedBytesExceedQuota() throws IOException {
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "big.bin")).thenReturn(false);
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getSize()).thenReturn(10L);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[2048]));
+
+        assertThrows(QuotaExceededException.class, () -> fileService.uploadFile("big.bin", multipartFile));
+        verify(fileRepository, never()).save(any(File.class));
+        try (var files = Files.list(tempDir.resolve("1"))) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void uploadFile_ConcurrentUploadTookQuota() throws IOException {
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "test.txt")).thenReturn(false);
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getSize()).thenReturn(7L);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
+        when(userRepository.increaseUsedBytes(eq(1L), anyLong(), anyLong())).thenReturn(0);
+
+        assertThrows(QuotaExceededException.class, () -> fileService.uploadFile("test.txt", multipartFile));
+        verify(fileRepository, never()).save(any(File.class));
+        assertFalse(Files.exists(tempDir.resolve("1").resolve("test.txt")));
+    }
+
+    @Test
+    void uploadFile_ConcurrentSameNameUploadsKeepOneConsistentFile() throws Exception {
+        MultipartFile other = mock(MultipartFile.class);
+        AtomicReference<File> committed = new AtomicReference<>();
+        CyclicBarrier bothChecked = new CyclicBarrier(2);
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "test.txt")).thenAnswer(invocation -> {
+            bothChecked.await(5, TimeUnit.SECONDS);
+            return false;
+        });
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt"))
+                .thenAnswer(invocation -> Optional.ofNullable(committed.get()));
+        when(fileRepository.save(any(File.class))).thenAnswer(invocation -> {
+            committed.set(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
+        for (MultipartFile upload : List.of(multipartFile, other)) {
+            when(upload.isEmpty()).thenReturn(false);
+            when(upload.getSize()).thenReturn(7L);
+            lenient().when(upload.getContentType()).thenReturn("text/plain");
+        }
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
+        when(other.getInputStream()).thenReturn(new ByteArrayInputStream("another".getBytes()));
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (MultipartFile upload : List.of(multipartFile, other)) {
+                results.add(pool.submit(() -> {
+                    SecurityContextHolder.setContext(securityContext);
+                    fileService.uploadFile("test.txt", upload);
+                    return null;
+                }));
+            }
+            int rejected = 0;
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    assertInstanceOf(FileAlreadyExistsException.class, e.getCause());
+                    rejected++;
+                }
+            }
+            assertEquals(1, rejected);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        verify(fileRepository, times(1)).save(any(File.class));
+        Path userDir = tempDir.resolve("1");
+        byte[] content = Files.readAllBytes(userDir.resolve("test.txt"));
+        assertEquals(committed.get().getSha256(),
+                HexFormat.of().formatHex(StorageService.newSha256().digest(content)));
+        try (var files = Files.list(userDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
     @Test
     void uploadFile_FileAlreadyExists() {
         when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
@@ -194,6 +521,7 @@ class FileServiceTest {
     @Test
     void deleteFile_Successful() throws IOException {
         File file = new File("test.txt", 100L, "text/plain", testUser);
+        file.setId(5L);
 
         when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
         when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(file));
@@ -206,8 +534,72 @@ class FileServiceTest {
         fileService.deleteFile("test.txt");
 
         verify(fileRepository).findByUserAndFilename(testUser, "test.txt");
-        verify(fileRepository).delete(file);
+        verify(fileRepository).save(file);
+        verify(fileRepository, never()).delete(any(File.class));
+        verify(userRepository).decreaseUsedBytes(1L, 100L);
+        assertNotNull(file.getDeletedAt());
         assertFalse(Files.exists(testFile));
+        assertTrue(Files.exists(tempDir.resolve(StorageService.TRASH_DIR).resolve("1").resolve("5")));
+    }
+
+    @Test
+    void createPresignedUrl_LinkStopsWorkingAfterDeleteAndRestore() throws IOException {
+        File file = new File("test.txt", 7L, "text/plain", testUser);
+        file.setId(5L);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(file));
+
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Files.write(userDir.resolve("test.txt"), "content".getBytes());
+
+        String token = fileService.createPresignedUrl("test.txt", Duration.ofMinutes(5)).url()
+                .substring(PresignedUrlService.PATH_PREFIX.length());
+        assertEquals("content", new String(presignedUrlService.open(token).resource().getContentAsByteArray()));
+
+        fileService.deleteFile("test.txt");
+        assertThrows(LinkExpiredException.class, () -> presignedUrlService.open(token));
+
+        Files.move(tempDir.resolve(StorageService.TRASH_DIR).resolve("1").resolve("5"), userDir.resolve("test.txt"));
+        assertThrows(LinkExpiredException.class, () -> presignedUrlService.open(token));
+    }
+
+    @Test
+    void restoreFile_MovesDataBackFromTrash() throws IOException {
+        File file = new File("test.txt", 7L, "text/plain", testUser);
+        file.setId(5L);
+        file.setDeletedAt(LocalDateTime.now().minusMinutes(5));
+        Path trashed = tempDir.resolve(StorageService.TRASH_DIR).resolve("1").resolve("5");
+        Files.createDirectories(trashed.getParent());
+        Files.write(trashed, "content".getBytes());
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findDeletedByUserAndFilename(eq(testUser), eq("test.txt"), any(Pageable.class)))
+                .thenReturn(List.of(file));
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
+
+        fileService.restoreFile("test.txt");
+
+        assertNull(file.getDeletedAt());
+        verify(fileRepository).save(file);
+        assertFalse(Files.exists(trashed));
+        assertEquals("content", Files.readString(tempDir.resolve("1").resolve("test.txt")));
+        verify(fileChangeRepository).save(argThat(change -> change.getType() == FileChange.Type.UPLOAD));
+    }
+
+    @Test
+    void restoreFile_AfterGracePeriod() {
+        File file = new File("test.txt", 7L, "text/plain", testUser);
+        file.setId(5L);
+        file.setDeletedAt(LocalDateTime.now().minusHours(2));
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findDeletedByUserAndFilename(eq(testUser), eq("test.txt"), any(Pageable.class)))
+                .thenReturn(List.of(file));
+
+        assertThrows(FileNotFoundException.class, () -> fileService.restoreFile("test.txt"));
+        verify(fileRepository, never()).save(any(File.class));
     }
 
     @Test
@@ -216,7 +608,7 @@ class FileServiceTest {
         when(fileRepository.findByUserAndFilename(testUser, "nonexistent.txt")).thenReturn(Optional.empty());
 
         assertThrows(FileNotFoundException.class, () -> fileService.deleteFile("nonexistent.txt"));
-        verify(fileRepository, never()).delete(any());
+        verify(fileRepository, never()).delete(any(File.class));
     }
 
     @Test
@@ -236,10 +628,382 @@ class FileServiceTest {
 
         assertEquals("new.txt", file.getFilename());
         verify(fileRepository).save(file);
+        verify(userRepository).incrementChangeSeq(1L);
+        verify(fileChangeRepository).save(argThat(change -> change.getType() == FileChange.Type.RENAME
+                && "new.txt".equals(change.getFilename()) && "old.txt".equals(change.getPreviousFilename())));
         assertFalse(Files.exists(oldFile)); // Old file should not exist
         assertTrue(Files.exists(userDir.resolve("new.txt"))); // New file should exist
     }
 
+    @Test
+    void copyFile_SharesBytesWithSource() throws IOException {
+        File file = new File("old.txt", 7L, "text/plain", testUser);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "old.txt")).thenReturn(Optional.of(file));
+        when(fileRepository.existsByUserAndFilename(testUser, "copy.txt")).thenReturn(false);
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
+
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Path oldFile = userDir.resolve("old.txt");
+        Files.write(oldFile, "content".getBytes());
+
+        fileService.copyFile("old.txt", "copy.txt");
+
+        Path copy = userDir.resolve("copy.txt");
+        assertTrue(Files.isSameFile(oldFile, copy));
+        verify(fileRepository).save(argThat(f -> "copy.txt".equals(f.getFilename()) && f.getSize() == 7L));
+
+        Files.delete(oldFile);
+        assertEquals("content", Files.readString(copy));
+    }
+
+    @Test
+    void uploadFile_PacksSmallFileIntoVolume() throws IOException {
+        FileService packing = createFileService(true);
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "test.txt")).thenReturn(false);
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getBytes()).thenReturn("content".getBytes());
+        when(multipartFile.getSize()).thenReturn(7L);
+        when(multipartFile.getContentType()).thenReturn("text/plain");
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
+
+        packing.uploadFile("test.txt", multipartFile, CONTENT_SHA256);
+
+        ArgumentCaptor<File> saved = ArgumentCaptor.forClass(File.class);
+        verify(fileRepository).save(saved.capture());
+        assertTrue(saved.getValue().isPacked());
+        assertEquals(CONTENT_SHA256, saved.getValue().getSha256());
+        assertFalse(Files.exists(tempDir.resolve("1").resolve("test.txt")));
+
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(saved.getValue()));
+        FileDownload download = packing.openFile("test.txt");
+        assertEquals("content", new String(download.resource().getContentAsByteArray()));
+    }
+
+    @Test
+    void uploadFile_EncryptsContentAtRest() throws IOException {
+        FileService encrypting = createFileService(false, encryptionService());
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "test.txt")).thenReturn(false);
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
+        when(multipartFile.getSize()).thenReturn(7L);
+        when(multipartFile.getContentType()).thenReturn("text/plain");
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
+
+        encrypting.uploadFile("test.txt", multipartFile);
+
+        ArgumentCaptor<File> saved = ArgumentCaptor.forClass(File.class);
+        verify(fileRepository).save(saved.capture());
+        assertTrue(saved.getValue().isEncrypted());
+        assertEquals(CONTENT_SHA256, saved.getValue().getSha256());
+        assertEquals(7L, saved.getValue().getSize());
+        byte[] stored = Files.readAllBytes(tempDir.resolve("1").resolve("test.txt"));
+        assertEquals(7 + EncryptionService.BLOB_OVERHEAD, stored.length);
+        assertFalse(new String(stored).contains("content"));
+
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(saved.getValue()));
+        FileDownload download = encrypting.openFile("test.txt");
+        assertEquals(7L, download.resource().contentLength());
+        assertEquals("content", new String(download.resource().getContentAsByteArray()));
+    }
+
+    @Test
+    void uploadFile_EncryptsPackedContent() throws IOException {
+        FileService encrypting = createFileService(true, encryptionService());
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.existsByUserAndFilename(testUser, "test.txt")).thenReturn(false);
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getBytes()).thenReturn("content".getBytes());
+        when(multipartFile.getSize()).thenReturn(7L);
+        when(multipartFile.getContentType()).thenReturn("text/plain");
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
+
+        encrypting.uploadFile("test.txt", multipartFile, CONTENT_SHA256);
+
+        ArgumentCaptor<File> saved = ArgumentCaptor.forClass(File.class);
+        verify(fileRepository).save(saved.capture());
+        assertTrue(saved.getValue().isPacked());
+        assertTrue(saved.getValue().isEncrypted());
+
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(saved.getValue()));
+        FileDownload download = encrypting.openFile("test.txt");
+        assertEquals("content", new String(download.resource().getContentAsByteArray()));
+    }
+
+    @Test
+    void copyFile_PackedCopySharesVolumeLocation() throws IOException {
+        FileService packing = createFileService(true);
+        File file = new File("old.txt", 7L, "text/plain", testUser);
+        file.setVolumeId(1L);
+        file.setVolumeOffset(0L);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "old.txt")).thenReturn(Optional.of(file));
+        when(fileRepository.existsByUserAndFilename(testUser, "copy.txt")).thenReturn(false);
+        when(userRepository.increaseUsedBytes(1L, 7L, 1024L)).thenReturn(1);
+
+        packing.copyFile("old.txt", "copy.txt");
+
+        verify(fileRepository).save(argThat(f -> "copy.txt".equals(f.getFilename())
+                && Long.valueOf(1L).equals(f.getVolumeId()) && Long.valueOf(0L).equals(f.getVolumeOffset())));
+        assertFalse(Files.exists(tempDir.resolve("1").resolve("copy.txt")));
+    }
+
+    @Test
+    void copyFile_ExceedsQuota() {
+        testUser.setUsedBytes(1000L);
+        File file = new File("old.txt", 100L, "text/plain", testUser);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "old.txt")).thenReturn(Optional.of(file));
+        when(fileRepository.existsByUserAndFilename(testUser, "copy.txt")).thenReturn(false);
+
+        assertThrows(QuotaExceededException.class, () -> fileService.copyFile("old.txt", "copy.txt"));
+        verify(fileRepository, never()).save(any(File.class));
+    }
+
+    @Test
+    void applyDelta_RebuildsFileFromBlocksAndData() throws IOException {
+        File file = new File("doc.txt", 12L, "text/plain", testUser);
+        file.setSha256("ab".repeat(32));
+        stubVersionSave(20L);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "doc.txt")).thenReturn(Optional.of(file));
+        when(fileRepository.findByIdForUpdate(file.getId())).thenReturn(Optional.of(file));
+        when(userRepository.increaseUsedBytes(1L, 1L, 1024L)).thenReturn(1);
+
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Files.writeString(userDir.resolve("doc.txt"), "aaaabbbbcccc");
+
+        DeltaRequest delta = new DeltaRequest(4, "ab".repeat(32), null, List.of(
+                DeltaInstruction.copy(0, 1), DeltaInstruction.data(5), DeltaInstruction.copy(2, 1)));
+        fileService.applyDelta("doc.txt", delta, new ByteArrayInputStream("BBBBB".getBytes()));
+
+        assertEquals("aaaaBBBBBcccc", Files.readString(userDir.resolve("doc.txt")));
+        assertEquals(13L, file.getSize());
+        verify(fileRepository).save(file);
+        try (var files = Files.list(userDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void applyDelta_RejectsStaleBase() {
+        File file = new File("doc.txt", 12L, "text/plain", testUser);
+        file.setSha256("ab".repeat(32));
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "doc.txt")).thenReturn(Optional.of(file));
+
+        DeltaRequest delta = new DeltaRequest(4, "cd".repeat(32), null, List.of(DeltaInstruction.copy(0, 1)));
+        assertThrows(ChecksumMismatchException.class,
+                () -> fileService.applyDelta("doc.txt", delta, InputStream.nullInputStream()));
+        verify(fileRepository, never()).save(any(File.class));
+    }
+
+    @Test
+    void applyDelta_RejectsBaseReplacedBeforeCommit() throws IOException {
+        File file = new File("doc.txt", 12L, "text/plain", testUser);
+        file.setId(10L);
+        file.setSha256("ab".repeat(32));
+        File committed = new File("doc.txt", 13L, "text/plain", testUser);
+        committed.setId(10L);
+        committed.setSha256("ef".repeat(32));
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "doc.txt")).thenReturn(Optional.of(file));
+        when(fileRepository.findByIdForUpdate(10L)).thenReturn(Optional.of(committed));
+
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Files.writeString(userDir.resolve("doc.txt"), "aaaabbbbcccc");
+
+        DeltaRequest delta = new DeltaRequest(4, "ab".repeat(32), null, List.of(
+                DeltaInstruction.copy(0, 1), DeltaInstruction.data(5), DeltaInstruction.copy(2, 1)));
+        ChecksumMismatchException error = assertThrows(ChecksumMismatchException.class,
+                () -> fileService.applyDelta("doc.txt", delta, new ByteArrayInputStream("BBBBB".getBytes())));
+
+        assertTrue(error.getMessage().contains("сигнатуры"));
+        assertEquals("aaaabbbbcccc", Files.readString(userDir.resolve("doc.txt")));
+        verify(fileRepository, never()).save(any(File.class));
+        verify(userRepository, never()).increaseUsedBytes(anyLong(), anyLong(), anyLong());
+        try (var files = Files.list(userDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void uploadFile_OverwriteKeepsPreviousVersion() throws IOException {
+        File current = new File("test.txt", 3L, "text/plain", testUser);
+        current.setId(10L);
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Files.writeString(userDir.resolve("test.txt"), "old");
+        stubVersionSave(20L);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(current));
+        when(fileRepository.findByIdForUpdate(10L)).thenReturn(Optional.of(current));
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
+        when(multipartFile.getSize()).thenReturn(7L);
+        when(multipartFile.getContentType()).thenReturn("text/plain");
+        when(userRepository.increaseUsedBytes(1L, 4L, 1024L)).thenReturn(1);
+
+        fileService.uploadFile("test.txt", multipartFile, null, true);
+
+        assertEquals("content", Files.readString(userDir.resolve("test.txt")));
+        assertEquals(7L, current.getSize());
+        assertEquals(CONTENT_SHA256, current.getSha256());
+        verify(fileRepository).save(current);
+        verify(fileVersionRepository).save(argThat(v -> v.getFileId().equals(10L) && v.getSize() == 3L));
+        assertEquals("old", Files.readString(tempDir.resolve(StorageService.VERSIONS_DIR).resolve("1").resolve("20")));
+        try (var files = Files.list(userDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void uploadFile_OverwriteDropsVersionsNotFittingQuota() throws IOException {
+        File current = new File("test.txt", 3L, "text/plain", testUser);
+        current.setId(10L);
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Files.writeString(userDir.resolve("test.txt"), "old");
+        Path versionsDir = tempDir.resolve(StorageService.VERSIONS_DIR).resolve("1");
+        Files.createDirectories(versionsDir);
+        Files.writeString(versionsDir.resolve("15"), "older");
+        FileVersion older = new FileVersion(new File("other.txt", 5L, "text/plain", testUser));
+        older.setId(15L);
+        stubVersionSave(20L);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(current));
+        when(fileRepository.findByIdForUpdate(10L)).thenReturn(Optional.of(current));
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
+        when(multipartFile.getSize()).thenReturn(7L);
+        when(multipartFile.getContentType()).thenReturn("text/plain");
+        when(userRepository.increaseUsedBytes(1L, 4L, 1024L)).thenReturn(1);
+        when(userRepository.findUsedBytes(1L)).thenReturn(1024L);
+        when(fileVersionRepository.sumSizeByUserId(1L)).thenReturn(8L);
+        when(fileVersionRepository.findByUserIdOldestFirst(1L)).thenAnswer(invocation -> {
+            FileVersion retained = new FileVersion(current);
+            retained.setId(20L);
+            return List.of(older, retained);
+        });
+        when(fileVersionRepository.deleteByIdIn(List.of(15L))).thenReturn(1);
+        when(fileVersionRepository.deleteByIdIn(List.of(20L))).thenReturn(1);
+
+        fileService.uploadFile("test.txt", multipartFile, null, true);
+
+        assertEquals("content", Files.readString(userDir.resolve("test.txt")));
+        assertFalse(Files.exists(versionsDir.resolve("15")));
+        assertFalse(Files.exists(versionsDir.resolve("20")));
+        try (var files = Files.list(userDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void uploadFile_OverwriteRejectedWhenFileChangedMeanwhile() throws IOException {
+        File current = new File("test.txt", 3L, "text/plain", testUser);
+        current.setId(10L);
+        File changed = new File("test.txt", 5L, "text/plain", testUser);
+        changed.setId(10L);
+        changed.setSha256("ab".repeat(32));
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Files.writeString(userDir.resolve("test.txt"), "newer");
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(current));
+        when(fileRepository.findByIdForUpdate(10L)).thenReturn(Optional.of(changed));
+        when(multipartFile.isEmpty()).thenReturn(false);
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("content".getBytes()));
+        when(multipartFile.getSize()).thenReturn(7L);
+
+        assertThrows(ChecksumMismatchException.class,
+                () -> fileService.uploadFile("test.txt", multipartFile, null, true));
+
+        assertEquals("newer", Files.readString(userDir.resolve("test.txt")));
+        verify(fileRepository, never()).save(any(File.class));
+        verify(userRepository, never()).increaseUsedBytes(anyLong(), anyLong(), anyLong());
+        try (var files = Files.list(userDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void openFile_FailsInsteadOfServingContentReplacedAfterMetadataRead() throws IOException {
+        File file = new File("test.txt", 3L, "text/plain", testUser);
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Files.writeString(userDir.resolve("test.txt"), "old");
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(file));
+
+        FileDownload download = fileService.openFile("test.txt");
+        Path replacement = userDir.resolve(StorageService.TEMP_PREFIX + "new");
+        Files.writeString(replacement, "replaced");
+        Files.move(replacement, userDir.resolve("test.txt"), StandardCopyOption.REPLACE_EXISTING);
+
+        assertEquals(3L, download.resource().contentLength());
+        assertThrows(IOException.class, () -> download.resource().getInputStream());
+    }
+
+    @Test
+    void restoreVersion_SwapsContentByRename() throws IOException {
+        File current = new File("test.txt", 4L, "text/plain", testUser);
+        current.setId(10L);
+        Path userDir = tempDir.resolve("1");
+        Files.createDirectories(userDir);
+        Files.writeString(userDir.resolve("test.txt"), "new!");
+        File old = new File("test.txt", 3L, "text/plain", testUser);
+        old.setId(10L);
+        FileVersion version = new FileVersion(old);
+        version.setId(5L);
+        Path versionsDir = tempDir.resolve(StorageService.VERSIONS_DIR).resolve("1");
+        Files.createDirectories(versionsDir);
+        Files.writeString(versionsDir.resolve("5"), "old");
+        stubVersionSave(6L);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(current));
+        when(fileVersionRepository.findByIdAndFileId(5L, 10L)).thenReturn(Optional.of(version));
+        when(fileRepository.findByIdForUpdate(10L)).thenReturn(Optional.of(current));
+        when(fileVersionRepository.deleteByIdIn(List.of(5L))).thenReturn(1);
+
+        fileService.restoreVersion("test.txt", 5L);
+
+        assertEquals("old", Files.readString(userDir.resolve("test.txt")));
+        assertEquals(3L, current.getSize());
+        verify(userRepository).decreaseUsedBytes(1L, 1L);
+        verify(fileVersionRepository).deleteByIdIn(List.of(5L));
+        assertEquals("new!", Files.readString(versionsDir.resolve("6")));
+        assertFalse(Files.exists(versionsDir.resolve("5")));
+    }
+
+    @Test
+    void restoreVersion_UnknownVersion() {
+        File current = new File("test.txt", 4L, "text/plain", testUser);
+        current.setId(10L);
+
+        when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
+        when(fileRepository.findByUserAndFilename(testUser, "test.txt")).thenReturn(Optional.of(current));
+        when(fileVersionRepository.findByIdAndFileId(5L, 10L)).thenReturn(Optional.empty());
+
+        assertThrows(FileNotFoundException.class, () -> fileService.restoreVersion("test.txt", 5L));
+        verify(fileRepository, never()).save(any(File.class));
+    }
+
     @Test
     void renameFile_FileNotFound() {
         when(userRepository.findByUsername("test@example.com")).thenReturn(Optional.of(testUser));
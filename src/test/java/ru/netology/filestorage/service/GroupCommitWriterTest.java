@@ -0,0 +1,100 @@
+package ru.netology.filestorage.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class GroupCommitWriterTest {
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private GroupCommitWriter groupCommitWriter;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (groupCommitWriter != null) {
+            groupCommitWriter.stop();
+        }
+    }
+
+    @Test
+    void execute_Disabled_RunsInlineTransaction() {
+        groupCommitWriter = new GroupCommitWriter(transactionManager, false, 16, Duration.ZERO, 16);
+        groupCommitWriter.start();
+
+        String result = groupCommitWriter.execute(() -> "saved");
+
+        assertEquals("saved", result);
+        verify(transactionManager).commit(any());
+    }
+
+    @Test
+    void execute_ConcurrentWrites_ShareTransactions() throws Exception {
+        groupCommitWriter = new GroupCommitWriter(transactionManager, true, 64, Duration.ofMillis(50), 128);
+        groupCommitWriter.start();
+        int writers = 16;
+        AtomicInteger applied = new AtomicInteger();
+        CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                int value = i;
+                results.add(pool.submit(() -> {
+                    startSignal.await();
+                    return groupCommitWriter.execute(() -> {
+                        applied.incrementAndGet();
+                        return value;
+                    });
+                }));
+            }
+            startSignal.countDown();
+
+            for (int i = 0; i < writers; i++) {
+                assertEquals(i, results.get(i).get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(writers, applied.get());
+        verify(transactionManager, atMost(writers - 1)).commit(any());
+    }
+
+    @Test
+    void execute_FailingWriteInGroup_OnlyFailsItsCaller() throws Exception {
+        groupCommitWriter = new GroupCommitWriter(transactionManager, true, 64, Duration.ofMillis(50), 128);
+        groupCommitWriter.start();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> good = pool.submit(() -> groupCommitWriter.execute(() -> "ok"));
+            Future<String> bad = pool.submit(() -> groupCommitWriter.execute(() -> {
+                throw new IllegalStateException("constraint violation");
+            }));
+
+            assertEquals("ok", good.get());
+            Exception e = assertThrows(Exception.class, bad::get);
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
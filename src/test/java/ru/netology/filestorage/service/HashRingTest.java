@@ -0,0 +1,64 @@
+package ru.netology.filestorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+
+    private static final int KEYS = 10_000;
+
+    @Test
+    void emptyRingHasNoOwner() {
+        HashRing ring = new HashRing(List.of(), 128);
+
+        assertTrue(ring.isEmpty());
+        assertNull(ring.ownerOf("user@example.com"));
+    }
+
+    @Test
+    void keysAreSpreadAcrossNodes() {
+        HashRing ring = new HashRing(List.of("node-1", "node-2", "node-3"), 128);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.ownerOf("user" + i + "@example.com"), 1, Integer::sum);
+        }
+
+        assertEquals(3, counts.size());
+        counts.values().forEach(count -> assertTrue(count > KEYS / 3 * 0.7, "неравномерно: " + counts));
+    }
+
+    @Test
+    void placementDoesNotDependOnNodeOrder() {
+        HashRing first = new HashRing(List.of("node-1", "node-2", "node-3"), 64);
+        HashRing second = new HashRing(List.of("node-3", "node-1", "node-2"), 64);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(first.ownerOf("user" + i), second.ownerOf("user" + i));
+        }
+    }
+
+    @Test
+    void addingNodeMovesOnlyItsShareOfKeys() {
+        HashRing before = new HashRing(List.of("node-1", "node-2", "node-3"), 128);
+        HashRing after = new HashRing(List.of("node-1", "node-2", "node-3", "node-4"), 128);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "user" + i + "@example.com";
+            String previous = before.ownerOf(key);
+            String current = after.ownerOf(key);
+            if (!previous.equals(current)) {
+                assertEquals("node-4", current);
+                moved++;
+            }
+        }
+
+        assertTrue(moved > KEYS / 4 * 0.7 && moved < KEYS / 4 * 1.3, "перенесено ключей: " + moved);
+    }
+}
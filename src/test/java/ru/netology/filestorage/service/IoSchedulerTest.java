@@ -0,0 +1,179 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import jakarta.validation.ValidatorFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.config.IoSchedulerProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IoSchedulerTest {
+
+    private static final int QUANTUM = 64 * 1024;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Long> order = Collections.synchronizedList(new ArrayList<>());
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void acquire_AlternatesUsersInsteadOfServingQueueInOrder() throws Exception {
+        IoScheduler scheduler = scheduler(1, DataSize.ofBytes(0));
+        IoScheduler.Grant held = scheduler.acquire(1L, IoScheduler.Direction.WRITE, QUANTUM, false);
+
+        enqueue(scheduler, 1L, false);
+        enqueue(scheduler, 1L, false);
+        enqueue(scheduler, 1L, false);
+        enqueue(scheduler, 2L, false);
+        scheduler.release(held, QUANTUM);
+        awaitAll();
+
+        assertEquals(List.of(1L, 2L, 1L, 1L), order);
+        assertEquals(0, scheduler.inFlight());
+    }
+
+    @Test
+    void acquire_ServesSmallOperationsBeforeBulk() throws Exception {
+        IoScheduler scheduler = scheduler(1, DataSize.ofBytes(0));
+        IoScheduler.Grant held = scheduler.acquire(1L, IoScheduler.Direction.READ, QUANTUM, false);
+
+        enqueue(scheduler, 1L, false);
+        enqueue(scheduler, 1L, false);
+        enqueue(scheduler, 2L, true);
+        scheduler.release(held, QUANTUM);
+        awaitAll();
+
+        assertEquals(List.of(2L, 1L, 1L), order);
+        assertEquals(3L, meterRegistry.timer("filestorage.io.wait", "priority", "bulk").count());
+        assertEquals(1L, meterRegistry.timer("filestorage.io.wait", "priority", "interactive").count());
+    }
+
+    @Test
+    void input_IsLimitedByMaxThroughput() throws Exception {
+        IoScheduler scheduler = scheduler(16, DataSize.ofMegabytes(1));
+        byte[] content = new byte[4 * QUANTUM];
+
+        long started = System.nanoTime();
+        byte[] read;
+        try (InputStream in = scheduler.input(1L, content.length, new ByteArrayInputStream(content))) {
+            read = in.readAllBytes();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertEquals(content.length, read.length);
+        // первая порция идет из запаса корзины, остальные три - по 64 КБ при 1 МБ/с
+        assertTrue(elapsedMillis >= 150, "elapsed " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void release_WakesWaiterBlockedByThroughputLimit() throws Exception {
+        IoScheduler scheduler = scheduler(2, DataSize.ofMegabytes(1));
+        IoScheduler.Grant first = scheduler.acquire(1L, IoScheduler.Direction.READ, QUANTUM, false);
+        IoScheduler.Grant second = scheduler.acquire(2L, IoScheduler.Direction.READ, QUANTUM, false);
+
+        // все места заняты: третья порция ждет без таймаута, а после release упирается в пустую корзину
+        enqueue(scheduler, 3L, false);
+        scheduler.release(first, QUANTUM);
+        scheduler.release(second, QUANTUM);
+        awaitAll();
+
+        assertEquals(List.of(3L), order);
+        assertEquals(0, scheduler.queued());
+        assertEquals(0, scheduler.inFlight());
+    }
+
+    @Test
+    void properties_RejectNonPositiveWeights() {
+        IoSchedulerProperties properties = new IoSchedulerProperties();
+        properties.setDefaultWeight(0);
+        properties.getWeights().put(42L, -1.0);
+
+        try (ValidatorFactory factory = Validation.buildDefaultValidatorFactory()) {
+            assertEquals(2, factory.getValidator().validate(properties).size());
+        }
+    }
+
+    @Test
+    void output_CountsBytesPerUserAndDirection() throws Exception {
+        IoScheduler scheduler = scheduler(16, DataSize.ofBytes(0));
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        UnaryOperator<OutputStream> encoder = scheduler.output(7L, 100_000, UnaryOperator.identity());
+
+        try (OutputStream out = encoder.apply(target)) {
+            out.write(new byte[100_000]);
+        }
+        String result = scheduler.call(IoScheduler.BACKGROUND, IoScheduler.Direction.READ, 10, () -> "done");
+
+        assertEquals("done", result);
+        assertEquals(100_000, target.size());
+        assertEquals(100_000.0, meterRegistry.counter("filestorage.io.bytes",
+                "user", "7", "direction", "write").count());
+        assertEquals(10.0, meterRegistry.counter("filestorage.io.bytes",
+                "user", "background", "direction", "read").count());
+        assertEquals(0.0, meterRegistry.get("filestorage.io.in_flight").gauge().value());
+    }
+
+    @Test
+    void disabled_ReturnsStreamsUnchanged() {
+        IoSchedulerProperties properties = new IoSchedulerProperties();
+        properties.setEnabled(false);
+        IoScheduler scheduler = new IoScheduler(properties, meterRegistry);
+        InputStream in = new ByteArrayInputStream(new byte[1]);
+
+        assertSame(in, scheduler.input(1L, 1, in));
+    }
+
+    private IoScheduler scheduler(int maxInFlight, DataSize maxThroughput) {
+        IoSchedulerProperties properties = new IoSchedulerProperties();
+        properties.setMaxInFlight(maxInFlight);
+        properties.setMaxThroughput(maxThroughput);
+        properties.setQuantum(DataSize.ofBytes(QUANTUM));
+        return new IoScheduler(properties, meterRegistry);
+    }
+
+    /**
+     * Ставит порцию пользователя в очередь из отдельного потока и ждет, пока она там окажется,
+     * чтобы порядок постановки был детерминированным.
+     */
+    private void enqueue(IoScheduler scheduler, Long userId, boolean small) throws InterruptedException {
+        int queued = scheduler.queued();
+        pending.add(executor.submit(() -> {
+            IoScheduler.Grant grant = scheduler.acquire(userId, IoScheduler.Direction.WRITE, QUANTUM, small);
+            order.add(userId);
+            scheduler.release(grant, QUANTUM);
+            return null;
+        }));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.queued() == queued && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(queued + 1, scheduler.queued());
+    }
+
+    private void awaitAll() throws Exception {
+        for (Future<?> future : pending) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
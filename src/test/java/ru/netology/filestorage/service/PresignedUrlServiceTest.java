@@ -0,0 +1,171 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.config.IoSchedulerProperties;
+import ru.netology.filestorage.dto.PresignedUrlResponse;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.exception.FileNotFoundException;
+import ru.netology.filestorage.exception.LinkExpiredException;
+import ru.netology.filestorage.exception.TokenValidationException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresignedUrlServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private StorageService storageService;
+    private VolumeStore volumeStore;
+    private EncryptionService encryptionService;
+    private PresignedUrlService presignedUrlService;
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        storageService = new StorageService(tempDir.toString(), DataSize.ofBytes(0));
+        volumeStore = new VolumeStore(storageService, true, DataSize.ofKilobytes(64), DataSize.ofMegabytes(1));
+        encryptionService = new EncryptionService(true, Base64.getEncoder().encodeToString(new byte[32]), List.of(),
+                DataSize.ofKilobytes(64), new SimpleMeterRegistry());
+        presignedUrlService = create("secret");
+        user = new User("test@example.com", "password");
+        user.setId(1L);
+    }
+
+    @Test
+    void signedLinkServesFile() throws IOException {
+        File file = storedFile("report.txt", "content");
+
+        PresignedUrlResponse link = presignedUrlService.sign(file, Duration.ofMinutes(5));
+        PresignedUrlService.SharedFile shared = presignedUrlService.open(token(link));
+
+        assertTrue(link.url().startsWith(PresignedUrlService.PATH_PREFIX));
+        assertTrue(link.expiresAt().isAfter(Instant.now()));
+        assertEquals("report.txt", shared.filename());
+        assertEquals("text/plain", shared.contentType());
+        assertEquals("content", new String(shared.resource().getContentAsByteArray()));
+    }
+
+    @Test
+    void packedEncryptedFileIsServed() throws IOException {
+        byte[] blob = encryptionService.encrypt("packed".getBytes());
+        VolumeStore.Location location = volumeStore.append(blob);
+        File file = new File("small.txt", 6L, "text/plain", user);
+        file.setId(2L);
+        file.setVolumeId(location.volumeId());
+        file.setVolumeOffset(location.offset());
+        file.setEncrypted(true);
+
+        PresignedUrlService.SharedFile shared = presignedUrlService.open(token(presignedUrlService.sign(file, null)));
+
+        assertEquals("packed", new String(shared.resource().getContentAsByteArray()));
+    }
+
+    @Test
+    void tamperedLinkIsRejected() throws IOException {
+        String token = token(presignedUrlService.sign(storedFile("report.txt", "content"), null));
+        String forged = token.substring(0, 5) + (token.charAt(5) == 'A' ? 'B' : 'A') + token.substring(6);
+
+        assertThrows(TokenValidationException.class, () -> presignedUrlService.open(forged));
+        assertThrows(TokenValidationException.class, () -> presignedUrlService.open("garbage"));
+        assertThrows(TokenValidationException.class, () -> create("other").open(token));
+        assertNull(presignedUrlService.nodeOf(forged));
+        assertEquals("local", presignedUrlService.nodeOf(token));
+    }
+
+    @Test
+    void expiredLinkIsRejected() throws Exception {
+        String token = token(presignedUrlService.sign(storedFile("report.txt", "content"), Duration.ofMillis(1)));
+        Thread.sleep(5);
+
+        assertThrows(LinkExpiredException.class, () -> presignedUrlService.open(token));
+    }
+
+    @Test
+    void ttlAboveMaximumIsRejected() {
+        File file = new File("report.txt", 7L, "text/plain", user);
+
+        assertThrows(IllegalArgumentException.class, () -> presignedUrlService.sign(file, Duration.ofDays(30)));
+        assertThrows(IllegalArgumentException.class, () -> presignedUrlService.sign(file, Duration.ZERO));
+    }
+
+    @Test
+    void overwrittenFileInvalidatesLink() throws IOException {
+        File file = storedFile("report.txt", "content");
+        String token = token(presignedUrlService.sign(file, null));
+
+        Path path = storageService.resolve(user, "report.txt");
+        Files.writeString(path, "changed");
+        Files.setLastModifiedTime(path, FileTime.from(Instant.now().plusSeconds(10)));
+
+        assertThrows(LinkExpiredException.class, () -> presignedUrlService.open(token));
+    }
+
+    @Test
+    void deletedFileIsNotServed() throws IOException {
+        File file = storedFile("report.txt", "content");
+        String token = token(presignedUrlService.sign(file, null));
+
+        Files.delete(storageService.resolve(user, "report.txt"));
+
+        assertThrows(FileNotFoundException.class, () -> presignedUrlService.open(token));
+    }
+
+    @Test
+    void revokedLinkIsRejected() throws IOException {
+        File file = storedFile("report.txt", "content");
+        String token = token(presignedUrlService.sign(file, null));
+
+        presignedUrlService.revoke(file.getId());
+
+        assertThrows(LinkExpiredException.class, () -> presignedUrlService.open(token));
+    }
+
+    @Test
+    void linksOfTransferredUserAreRejected() throws IOException {
+        VolumeStore.Location location = volumeStore.append("packed".getBytes());
+        File file = new File("small.txt", 6L, "text/plain", user);
+        file.setId(2L);
+        file.setVolumeId(location.volumeId());
+        file.setVolumeOffset(location.offset());
+        String token = token(presignedUrlService.sign(file, null));
+
+        presignedUrlService.revokeUser(user.getId());
+
+        assertThrows(LinkExpiredException.class, () -> presignedUrlService.open(token));
+        assertTrue(presignedUrlService.linkedUntil(location.volumeId()) > System.currentTimeMillis());
+    }
+
+    private PresignedUrlService create(String secret) {
+        return new PresignedUrlService(storageService, volumeStore, encryptionService,
+                new IoScheduler(new IoSchedulerProperties(), new SimpleMeterRegistry()), new SimpleMeterRegistry(),
+                secret, Duration.ofHours(1), Duration.ofDays(7), "local");
+    }
+
+    private File storedFile(String filename, String content) throws IOException {
+        Path path = storageService.resolve(user, filename);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        File file = new File(filename, (long) content.length(), "text/plain", user);
+        file.setId(1L);
+        return file;
+    }
+
+    private static String token(PresignedUrlResponse link) {
+        return link.url().substring(PresignedUrlService.PATH_PREFIX.length());
+    }
+}
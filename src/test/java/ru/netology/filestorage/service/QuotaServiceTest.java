@@ -0,0 +1,95 @@
+package ru.netology.filestorage.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.exception.QuotaExceededException;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class QuotaServiceTest {
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private FileVersionService fileVersionService;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private QuotaService quotaService;
+    private User testUser;
+
+    @BeforeEach
+    void setUp() {
+        quotaService = new QuotaService(userRepository, fileRepository, fileVersionService, transactionManager,
+                DataSize.ofKilobytes(1), 2, "local");
+        testUser = new User("test@example.com", "password");
+        testUser.setId(1L);
+    }
+
+    @Test
+    void getRemaining_UsesDefaultAndPersonalQuota() {
+        testUser.setUsedBytes(24L);
+        assertEquals(1000L, quotaService.getRemaining(testUser));
+
+        testUser.setQuotaBytes(10L);
+        assertEquals(0L, quotaService.getRemaining(testUser));
+    }
+
+    @Test
+    void reserve_WithinQuota() {
+        when(userRepository.increaseUsedBytes(1L, 100L, 1024L)).thenReturn(1);
+
+        assertDoesNotThrow(() -> quotaService.reserve(testUser, 100L));
+    }
+
+    @Test
+    void reserve_QuotaExceeded() {
+        when(userRepository.increaseUsedBytes(1L, 2000L, 1024L)).thenReturn(0);
+
+        assertThrows(QuotaExceededException.class, () -> quotaService.reserve(testUser, 2000L));
+    }
+
+    @Test
+    void reconcile_CorrectsDriftedCounters() {
+        User drifted = new User("drifted@example.com", "password");
+        drifted.setId(2L);
+        drifted.setUsedBytes(500L);
+        testUser.setUsedBytes(300L);
+        when(userRepository.findIdsAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(1L, 2L));
+        when(userRepository.findIdsAfter(eq("local"), eq(2L), any(Pageable.class))).thenReturn(List.of());
+        when(userRepository.findByIdForUpdate(1L)).thenReturn(Optional.of(testUser));
+        when(userRepository.findByIdForUpdate(2L)).thenReturn(Optional.of(drifted));
+        when(fileRepository.sumSizeByUserId(1L)).thenReturn(300L);
+        when(fileRepository.sumSizeByUserId(2L)).thenReturn(120L);
+
+        int corrected = quotaService.reconcile();
+
+        assertEquals(1, corrected);
+        verify(userRepository).setUsedBytes(2L, 120L);
+        verify(userRepository, never()).setUsedBytes(eq(1L), anyLong());
+        verify(fileVersionService).fit(1L, 724L);
+        verify(fileVersionService).fit(2L, 904L);
+    }
+}
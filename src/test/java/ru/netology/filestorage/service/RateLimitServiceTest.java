@@ -0,0 +1,84 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.netology.filestorage.config.RateLimitProperties;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimitServiceTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private RateLimitService rateLimitService;
+
+    @BeforeEach
+    void setUp() {
+        RateLimitProperties properties = new RateLimitProperties();
+        properties.setDefaults(new RateLimitProperties.Limit(3, 1));
+        properties.getEndpoints().put("list", new RateLimitProperties.Limit(1, 10));
+        properties.setIdleTimeout(Duration.ofSeconds(30));
+        meterRegistry = new SimpleMeterRegistry();
+        rateLimitService = new RateLimitService(properties, meterRegistry);
+    }
+
+    @Test
+    void tryAcquire_AllowsBurstThenRejects() {
+        long now = 0L;
+
+        assertEquals(0L, rateLimitService.tryAcquire("user", "file", now));
+        assertEquals(0L, rateLimitService.tryAcquire("user", "file", now));
+        assertEquals(0L, rateLimitService.tryAcquire("user", "file", now));
+        long wait = rateLimitService.tryAcquire("user", "file", now);
+
+        assertEquals(TimeUnit.SECONDS.toNanos(1), wait);
+        assertEquals(1.0, meterRegistry.counter("filestorage.rate_limit.rejected", "endpoint", "file").count());
+    }
+
+    @Test
+    void tryAcquire_RefillsOverTime() {
+        long now = 0L;
+        for (int i = 0; i < 3; i++) {
+            rateLimitService.tryAcquire("user", "file", now);
+        }
+
+        assertTrue(rateLimitService.tryAcquire("user", "file", now) > 0);
+        assertEquals(0L, rateLimitService.tryAcquire("user", "file", now + TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Test
+    void tryAcquire_UsesPerEndpointLimitsAndSeparateUsers() {
+        assertEquals(0L, rateLimitService.tryAcquire("user", "list", 0L));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), rateLimitService.tryAcquire("user", "list", 0L));
+        assertEquals(0L, rateLimitService.tryAcquire("other", "list", 0L));
+    }
+
+    @Test
+    void endpointOf_MapsUnknownPathsToFixedEndpoints() {
+        assertEquals("list", rateLimitService.endpointOf("/cloud/list"));
+        assertEquals("file/versions/restore", rateLimitService.endpointOf("/cloud/file/versions/restore"));
+        assertEquals("shared", rateLimitService.endpointOf("/cloud/shared/abc.def"));
+        assertEquals("other", rateLimitService.endpointOf("/cloud/random-" + System.nanoTime()));
+        assertEquals("other", rateLimitService.endpointOf("/actuator/health"));
+
+        rateLimitService.tryAcquire("user", rateLimitService.endpointOf("/cloud/a"), 0L);
+        rateLimitService.tryAcquire("user", rateLimitService.endpointOf("/cloud/b"), 0L);
+
+        assertEquals(1, rateLimitService.bucketCount());
+    }
+
+    @Test
+    void evictIdleBuckets_RemovesOnlyIdleBuckets() {
+        long now = TimeUnit.SECONDS.toNanos(100);
+        rateLimitService.tryAcquire("idle", "file", 0L);
+        rateLimitService.tryAcquire("active", "file", now);
+
+        int evicted = rateLimitService.evictIdleBuckets(now);
+
+        assertEquals(1, evicted);
+        assertEquals(1, rateLimitService.bucketCount());
+    }
+}
@@ -0,0 +1,120 @@
+package ru.netology.filestorage.service;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import ru.netology.filestorage.dto.RecordingInfo;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordingServiceTest {
+
+    private static final String EVENT = "ru.netology.filestorage.RequestPhase";
+
+    @TempDir
+    Path tempDir;
+
+    private RecordingService recordingService;
+
+    @BeforeEach
+    void setUp() {
+        recordingService = new RecordingService(tempDir.toString(), 1, Duration.ofMinutes(5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        recordingService.shutdown();
+    }
+
+    @Test
+    void stop_DumpsRecordingWithPhaseEvents() throws Exception {
+        RecordingInfo started = recordingService.start("test", null, null);
+
+        RequestPhaseEvent write = RequestPhaseEvent.start(RequestPhaseEvent.UPLOAD, RequestPhaseEvent.DISK_WRITE,
+                "test@example.com", 2_000_000);
+        write.succeed(2_000_000);
+        write.finish();
+        RequestPhaseEvent token = RequestPhaseEvent.start(RequestPhaseEvent.AUTH,
+                RequestPhaseEvent.TOKEN_VALIDATION, null, -1);
+        token.fail("invalid");
+        token.finish();
+        Resource resource = RequestPhaseEvent.recordReads(new ByteArrayResource("content".getBytes()),
+                RequestPhaseEvent.DOWNLOAD, "test@example.com", 7);
+        try (InputStream in = resource.getInputStream()) {
+            in.readAllBytes();
+        }
+
+        assertEquals(List.of(started.id()), recordingService.list().stream().map(RecordingInfo::id).toList());
+        RecordingInfo stopped = recordingService.stop(started.id());
+
+        assertTrue(recordingService.list().isEmpty());
+        Path dump = Path.of(stopped.destination());
+        assertTrue(Files.exists(dump));
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump).stream()
+                .filter(event -> event.getEventType().getName().equals(EVENT))
+                .toList();
+        assertEquals(3, events.size());
+
+        RecordedEvent upload = find(events, RequestPhaseEvent.DISK_WRITE);
+        assertEquals("upload", upload.getString("operation"));
+        assertEquals("test@example.com", upload.getString("username"));
+        assertEquals("<16MB", upload.getString("sizeBucket"));
+        assertEquals(2_000_000L, upload.getLong("bytes"));
+        assertEquals(RequestPhaseEvent.OK, upload.getString("outcome"));
+
+        RecordedEvent validation = find(events, RequestPhaseEvent.TOKEN_VALIDATION);
+        assertNull(validation.getString("sizeBucket"));
+        assertEquals("invalid", validation.getString("outcome"));
+
+        RecordedEvent read = find(events, RequestPhaseEvent.DISK_READ);
+        assertEquals("<64KB", read.getString("sizeBucket"));
+        assertEquals(7L, read.getLong("bytes"));
+        assertEquals(RequestPhaseEvent.OK, read.getString("outcome"));
+    }
+
+    @Test
+    void start_RejectsRecordingsOverLimit() throws Exception {
+        recordingService.start("first", "profile", Duration.ofHours(2));
+
+        assertEquals(Duration.ofMinutes(5), recordingService.list().get(0).maxDuration());
+        assertThrows(IllegalStateException.class, () -> recordingService.start("second", null, null));
+        assertThrows(IllegalArgumentException.class, () -> recordingService.stop(-1));
+    }
+
+    @Test
+    void start_RejectsNamesOutsideDumpDir() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> recordingService.start("../../x", null, null));
+        assertThrows(IllegalArgumentException.class, () -> recordingService.start("a/b", null, null));
+        assertTrue(recordingService.list().isEmpty());
+
+        RecordingInfo started = recordingService.start(null, null, null);
+
+        assertEquals(tempDir.toAbsolutePath().normalize(), Path.of(started.destination()).getParent());
+    }
+
+    @Test
+    void sizeBucket_GroupsSizes() {
+        assertNull(RequestPhaseEvent.sizeBucket(-1));
+        assertEquals("<64KB", RequestPhaseEvent.sizeBucket(0));
+        assertEquals("<1MB", RequestPhaseEvent.sizeBucket(64 * 1024));
+        assertEquals(">=256MB", RequestPhaseEvent.sizeBucket(1L << 30));
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, String phase) {
+        return events.stream()
+                .filter(event -> phase.equals(event.getString("phase")))
+                .findFirst()
+                .orElseThrow();
+    }
+}
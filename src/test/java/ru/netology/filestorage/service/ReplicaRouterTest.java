@@ -0,0 +1,174 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicaRouterTest {
+
+    private static final String LAG_QUERY = "SELECT lag_seconds FROM node";
+
+    private DataSource primary;
+    private DataSource replica;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        String suffix = UUID.randomUUID().toString();
+        primary = database("primary-" + suffix, "primary");
+        replica = database("replica-" + suffix, "replica");
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void readsGoToPrimaryUntilReplicaIsChecked() throws SQLException {
+        ReplicaRouter router = router(Duration.ofSeconds(5));
+
+        assertEquals("primary", replicaRead(router));
+
+        router.checkReplicas();
+
+        assertEquals(1, router.healthyReplicas());
+        assertEquals("replica", replicaRead(router));
+        assertEquals(1.0, meterRegistry.get("filestorage.datasource.reads").tag("target", "replica").counter().count());
+    }
+
+    @Test
+    void readsOutsideReplicaScopeUsePrimary() throws SQLException {
+        ReplicaRouter router = router(Duration.ofSeconds(5));
+        router.checkReplicas();
+
+        assertEquals("primary", node(router));
+        try (ReplicaRouter.Scope ignored = ReplicaRouter.readFromReplicas()) {
+            assertEquals("primary", ReplicaRouter.onPrimary(() -> uncheckedNode(router)));
+            assertTrue(ReplicaRouter.isReplicaReadAllowed());
+        }
+        assertFalse(ReplicaRouter.isReplicaReadAllowed());
+    }
+
+    @Test
+    void onlyReadOnlyTransactionsAreRoutedToReplica() {
+        ReplicaRouter router = router(Duration.ofSeconds(5));
+        router.checkReplicas();
+        DataSource dataSource = new LazyConnectionDataSourceProxy(router);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+        try (ReplicaRouter.Scope ignored = ReplicaRouter.readFromReplicas()) {
+            assertEquals("primary", transactionTemplate.execute(
+                    status -> jdbcTemplate.queryForObject("SELECT name FROM node", String.class)));
+            transactionTemplate.setReadOnly(true);
+            assertEquals("replica", transactionTemplate.execute(
+                    status -> jdbcTemplate.queryForObject("SELECT name FROM node", String.class)));
+        }
+    }
+
+    @Test
+    void userRequiresPrimaryWithinReadYourWritesWindow() {
+        ReplicaRouter router = router(Duration.ofMinutes(1));
+
+        router.markWrite("user@example.com");
+
+        assertTrue(router.requiresPrimary("user@example.com"));
+        assertFalse(router.requiresPrimary("other@example.com"));
+    }
+
+    @Test
+    void readYourWritesWindowExpires() {
+        ReplicaRouter router = router(Duration.ZERO);
+
+        router.markWrite("user@example.com");
+
+        assertFalse(router.requiresPrimary("user@example.com"));
+    }
+
+    @Test
+    void laggingReplicaFallsBackToPrimary() throws SQLException {
+        ReplicaRouter router = router(Duration.ofSeconds(5));
+        router.checkReplicas();
+        new JdbcTemplate(replica).update("UPDATE node SET lag_seconds = 30");
+
+        router.checkReplicas();
+
+        assertEquals(0, router.healthyReplicas());
+        assertEquals("primary", replicaRead(router));
+
+        new JdbcTemplate(replica).update("UPDATE node SET lag_seconds = 0");
+        router.checkReplicas();
+
+        assertEquals("replica", replicaRead(router));
+    }
+
+    @Test
+    void unavailableReplicaFallsBackToPrimary() throws SQLException {
+        String name = "down-" + UUID.randomUUID();
+        DataSource downReplica = database(name, "replica");
+        DataSource existingOnly = new DriverManagerDataSource("jdbc:h2:mem:" + name + ";IFEXISTS=TRUE", "sa", "");
+        ReplicaRouter router = new ReplicaRouter(primary, Map.of("replica-1", existingOnly), Duration.ofSeconds(5),
+                Duration.ofSeconds(5), LAG_QUERY, meterRegistry);
+        router.checkReplicas();
+        assertEquals("replica", replicaRead(router));
+
+        new JdbcTemplate(downReplica).execute("SHUTDOWN");
+
+        assertEquals("primary", replicaRead(router));
+        assertEquals(0, router.healthyReplicas());
+    }
+
+    private ReplicaRouter router(Duration readYourWritesWindow) {
+        return new ReplicaRouter(primary, Map.of("replica-1", replica), readYourWritesWindow,
+                Duration.ofSeconds(5), LAG_QUERY, meterRegistry);
+    }
+
+    private static DataSource database(String name, String node) {
+        DataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE node (name VARCHAR(20), lag_seconds DOUBLE PRECISION)");
+        jdbcTemplate.update("INSERT INTO node VALUES (?, 0)", node);
+        return dataSource;
+    }
+
+    private static String replicaRead(DataSource dataSource) throws SQLException {
+        try (ReplicaRouter.Scope ignored = ReplicaRouter.readFromReplicas()) {
+            return node(dataSource);
+        }
+    }
+
+    private static String uncheckedNode(DataSource dataSource) {
+        try {
+            return node(dataSource);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String node(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return node(connection);
+        }
+    }
+
+    private static String node(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name FROM node")) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+}
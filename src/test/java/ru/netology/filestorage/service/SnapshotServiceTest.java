@@ -0,0 +1,258 @@
+package ru.netology.filestorage.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.config.IoSchedulerProperties;
+import ru.netology.filestorage.dto.SnapshotInfo;
+import ru.netology.filestorage.dto.SnapshotManifest;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class SnapshotServiceTest {
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @TempDir
+    Path tempDir;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private SimpleMeterRegistry meterRegistry;
+    private StorageService storageService;
+    private VolumeStore volumeStore;
+    private EncryptionService encryptionService;
+    private SnapshotService snapshotService;
+    private User user;
+    private final List<File> files = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        storageService = new StorageService(tempDir.resolve("storage").toString(), DataSize.ofBytes(0));
+        volumeStore = new VolumeStore(storageService, true, DataSize.ofKilobytes(64), DataSize.ofMegabytes(1));
+        encryptionService = new EncryptionService(false, "", List.of(), DataSize.ofKilobytes(64), meterRegistry);
+        snapshotService = new SnapshotService(userRepository, fileRepository, storageService, volumeStore,
+                encryptionService, new IoScheduler(new IoSchedulerProperties(), meterRegistry), new FileLocks(), objectMapper,
+                meterRegistry, 2, tempDir.resolve("backups").toString(), 7, 100, DataSize.ofMegabytes(100), "local");
+        user = new User("test@example.com", "password");
+        user.setId(1L);
+
+        when(userRepository.findIdsAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(1L));
+        when(userRepository.findById(1L)).thenAnswer(invocation -> Optional.of(user));
+        when(userRepository.findChangeSeq(1L)).thenAnswer(invocation -> user.getChangeSeq());
+        when(fileRepository.findAllByUserId(1L)).thenAnswer(invocation -> List.copyOf(files));
+    }
+
+    @Test
+    void create_SnapshotKeepsContentAfterFileIsReplaced() throws Exception {
+        looseFile(1L, "report.txt", "original");
+        packedFile(2L, "note.txt", "packed");
+
+        SnapshotInfo info = snapshotService.create();
+        replace("report.txt", "replaced");
+        Path archive = snapshotService.exportTo(info.id(), null);
+
+        assertEquals(new SnapshotInfo(info.id(), info.createdAt(), 1, 2, 14), info);
+        assertEquals(List.of(info), snapshotService.list());
+        assertTrue(archive.getFileName().toString().endsWith(SnapshotService.FULL_SUFFIX));
+        Map<String, String> content = read(archive);
+        assertEquals("original", content.get("data/1"));
+        assertEquals("packed", content.get("data/2"));
+    }
+
+    @Test
+    void create_ReusesUsersUnchangedSincePreviousSnapshot() throws Exception {
+        looseFile(1L, "report.txt", "original");
+
+        snapshotService.create();
+        Thread.sleep(2);
+        SnapshotInfo second = snapshotService.create();
+
+        verify(fileRepository, times(1)).findAllByUserId(1L);
+        assertEquals(1, snapshotService.manifest(second.id()).files().size());
+    }
+
+    @Test
+    void create_RetriesUserChangedDuringSnapshot() throws Exception {
+        looseFile(1L, "report.txt", "original");
+        when(userRepository.findChangeSeq(1L)).thenAnswer(invocation -> {
+            user.setChangeSeq(1L);
+            return 1L;
+        });
+
+        SnapshotInfo info = snapshotService.create();
+
+        assertEquals(1, info.files());
+        assertEquals(1.0, meterRegistry.counter("filestorage.snapshots.retries").count());
+        assertEquals(1L, snapshotService.manifest(info.id()).users().get(0).changeSeq());
+        verify(fileRepository, times(2)).findAllByUserId(1L);
+    }
+
+    @Test
+    void create_RetriesWhenDataDoesNotMatchMetadata() throws Exception {
+        File file = looseFile(1L, "report.txt", "original");
+        file.setSize(100L);
+
+        SnapshotInfo info = snapshotService.create();
+
+        assertEquals(0, info.users());
+        assertEquals(0, info.files());
+        assertEquals(5.0, meterRegistry.counter("filestorage.snapshots.retries").count());
+    }
+
+    @Test
+    void export_IncrementalArchiveContainsOnlyChangedFiles() throws Exception {
+        looseFile(1L, "report.txt", "original");
+        packedFile(2L, "note.txt", "packed");
+        SnapshotInfo first = snapshotService.create();
+
+        File changed = files.get(0);
+        replace("report.txt", "updated!");
+        changed.setSha256(sha256("updated!"));
+        changed.setUploadedAt(LocalDateTime.now().plusSeconds(1));
+        user.setChangeSeq(1L);
+        Thread.sleep(2);
+        SnapshotInfo second = snapshotService.create();
+        Path archive = snapshotService.exportTo(second.id(), first.id());
+
+        assertTrue(archive.getFileName().toString().endsWith(SnapshotService.INCREMENTAL_SUFFIX));
+        Map<String, String> content = read(archive);
+        assertEquals("updated!", content.get("data/1"));
+        assertFalse(content.containsKey("data/2"));
+        SnapshotManifest manifest = objectMapper.readValue(content.get(SnapshotService.MANIFEST), SnapshotManifest.class);
+        assertEquals(first.id(), manifest.base());
+        assertEquals(2, manifest.files().size());
+    }
+
+    @Test
+    void prune_KeepsNewestSnapshots() throws Exception {
+        looseFile(1L, "report.txt", "original");
+        for (int i = 0; i < 3; i++) {
+            snapshotService.create();
+            Thread.sleep(2);
+        }
+
+        assertEquals(1, snapshotService.prune());
+        assertEquals(2, snapshotService.list().size());
+    }
+
+    @Test
+    void restore_AppliesIncrementalChainInParallel() throws Exception {
+        looseFile(1L, "report.txt", "original");
+        packedFile(2L, "note.txt", "packed");
+        SnapshotInfo first = snapshotService.create();
+        Path full = snapshotService.exportTo(first.id(), null);
+        replace("report.txt", "updated!");
+        files.get(0).setSha256(sha256("updated!"));
+        files.get(0).setUploadedAt(LocalDateTime.now().plusSeconds(1));
+        user.setChangeSeq(1L);
+        Thread.sleep(2);
+        Path incremental = snapshotService.exportTo(snapshotService.create().id(), first.id());
+
+        UserRepository targetUsers = mock(UserRepository.class);
+        FileRepository targetFiles = mock(FileRepository.class);
+        when(targetUsers.findByUsername("test@example.com")).thenReturn(Optional.empty());
+        when(targetUsers.save(any(User.class))).thenAnswer(invocation -> {
+            User saved = invocation.getArgument(0);
+            saved.setId(7L);
+            return saved;
+        });
+        StorageService targetStorage = new StorageService(tempDir.resolve("restored").toString(), DataSize.ofBytes(0));
+        VolumeStore targetVolumes = new VolumeStore(targetStorage, true, DataSize.ofKilobytes(64), DataSize.ofMegabytes(1));
+        SnapshotRestorer restorer = new SnapshotRestorer(targetUsers, targetFiles, targetStorage, targetVolumes,
+                encryptionService, mock(ChangeFeedService.class), mock(FileListingCache.class), objectMapper,
+                mock(PlatformTransactionManager.class), 2, "", "local", false);
+
+        SnapshotRestorer.Report report = restorer.restore(List.of(full, incremental));
+
+        assertEquals(new SnapshotRestorer.Report(1, 2, 0, 0, 0), report);
+        assertEquals("updated!", Files.readString(targetStorage.getRoot().resolve("7").resolve("report.txt")));
+        verify(targetUsers, times(2)).increaseUsedBytes(eq(7L), anyLong(), eq(Long.MAX_VALUE));
+        verify(targetFiles).save(argThat(file -> file.getFilename().equals("note.txt") && file.isPacked()));
+        assertThrows(IllegalArgumentException.class, () -> restorer.restore(List.of(incremental)));
+    }
+
+    private File looseFile(Long id, String filename, String content) throws IOException {
+        Path path = storageService.resolve(user, filename);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        return add(id, filename, content);
+    }
+
+    private void replace(String filename, String content) throws IOException {
+        // как StorageService.write: новое содержимое появляется под именем файла через rename
+        Path path = storageService.resolve(user, filename);
+        Path temp = path.resolveSibling(StorageService.TEMP_PREFIX + filename);
+        Files.writeString(temp, content);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File packedFile(Long id, String filename, String content) throws IOException {
+        VolumeStore.Location location = volumeStore.append(content.getBytes());
+        File file = add(id, filename, content);
+        file.setVolumeId(location.volumeId());
+        file.setVolumeOffset(location.offset());
+        return file;
+    }
+
+    private File add(Long id, String filename, String content) {
+        File file = new File(filename, (long) content.length(), "text/plain", user);
+        file.setId(id);
+        file.setSha256(sha256(content));
+        files.add(file);
+        return file;
+    }
+
+    private static Map<String, String> read(Path archive) throws IOException {
+        Map<String, String> content = new HashMap<>();
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                content.put(entry.getName(), new String(zip.getInputStream(entry).readAllBytes()));
+            }
+        }
+        return content;
+    }
+
+    private static String sha256(String content) {
+        return HexFormat.of().formatHex(StorageService.newSha256().digest(content.getBytes()));
+    }
+}
@@ -0,0 +1,182 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.support.ExecutorServiceAdapter;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.dto.FileSummary;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileChangeRepository;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.UserRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class StorageReconcilerTest {
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private FileChangeRepository fileChangeRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path tempDir;
+
+    private User user;
+    private Path userDir;
+    private FileLocks fileLocks;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        user = new User("test@example.com", "password");
+        user.setId(1L);
+        userDir = Files.createDirectories(tempDir.resolve("1"));
+        fileLocks = new FileLocks();
+    }
+
+    @Test
+    void reconcile_ReportsWithoutRepairing() throws IOException {
+        writeOld(userDir.resolve("kept.txt"));
+        writeOld(userDir.resolve("orphan.txt"));
+        when(userRepository.findIdsAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(1L));
+        when(userRepository.findById(1L)).thenReturn(Optional.of(user));
+        when(fileRepository.findSummariesByUserIdAfter(eq(1L), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(summary(10L, "kept.txt"), summary(11L, "lost.txt")));
+
+        StorageReconciler.Report report = reconciler(false).reconcile();
+
+        assertEquals(1, report.orphanFiles());
+        assertEquals(1, report.danglingRows());
+        assertEquals(0, report.repaired());
+        assertTrue(Files.exists(userDir.resolve("orphan.txt")));
+        verify(fileRepository, never()).delete(any(File.class));
+    }
+
+    @Test
+    void reconcile_QuarantinesOrphansAndRemovesDanglingRows() throws IOException {
+        writeOld(userDir.resolve("kept.txt"));
+        writeOld(userDir.resolve("orphan.txt"));
+        Files.writeString(userDir.resolve("uploading.txt"), "fresh");
+        writeOld(userDir.resolve(StorageService.TEMP_PREFIX + "crashed"));
+        Files.createDirectories(tempDir.resolve(ThumbnailService.THUMBNAILS_DIR).resolve("1"));
+        Path strayDir = Files.createDirectories(tempDir.resolve("7"));
+        writeOld(strayDir.resolve("left.txt"));
+
+        File lost = new File("lost.txt", 5L, "text/plain", user);
+        lost.setId(11L);
+        when(userRepository.findIdsAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(1L));
+        when(userRepository.findById(1L)).thenReturn(Optional.of(user));
+        when(userRepository.findById(7L)).thenReturn(Optional.empty());
+        when(fileRepository.findSummariesByUserIdAfter(eq(1L), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(summary(10L, "kept.txt"), summary(11L, "lost.txt")));
+        when(fileRepository.existsByUserAndFilename(user, "orphan.txt")).thenReturn(false);
+        when(fileRepository.findById(11L)).thenReturn(Optional.of(lost));
+
+        StorageReconciler.Report report = reconciler(true).reconcile();
+
+        assertEquals(2, report.users());
+        assertEquals(2, report.orphanFiles());
+        assertEquals(1, report.danglingRows());
+        assertEquals(1, report.staleTempFiles());
+        assertEquals(4, report.repaired());
+        assertTrue(Files.exists(userDir.resolve("kept.txt")));
+        assertTrue(Files.exists(userDir.resolve("uploading.txt")));
+        assertFalse(Files.exists(userDir.resolve("orphan.txt")));
+        assertFalse(Files.exists(userDir.resolve(StorageService.TEMP_PREFIX + "crashed")));
+        assertFalse(Files.exists(strayDir.resolve("left.txt")));
+        try (var quarantined = Files.list(tempDir.resolve(StorageReconciler.QUARANTINE_DIR).resolve("1"))) {
+            assertTrue(quarantined.allMatch(p -> p.getFileName().toString().endsWith("-orphan.txt")));
+        }
+        verify(fileRepository).delete(lost);
+        verify(userRepository).decreaseUsedBytes(1L, 5L);
+    }
+
+    @Test
+    void reconcile_WaitsForOperationHoldingFileLockBeforeQuarantine() throws Exception {
+        writeOld(userDir.resolve("copied.txt"));
+        AtomicBoolean committed = new AtomicBoolean();
+        when(userRepository.findIdsAfter(eq("local"), eq(0L), any(Pageable.class))).thenReturn(List.of(1L));
+        when(userRepository.findById(1L)).thenReturn(Optional.of(user));
+        when(fileRepository.existsByUserAndFilename(user, "copied.txt")).thenAnswer(invocation -> committed.get());
+
+        StorageReconciler reconciler = reconciler(true);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<StorageReconciler.Report> result;
+            // копия со старым mtime уже на диске, строка фиксируется под блокировкой записи имени
+            try (FileLocks.Held held = fileLocks.write(1L, "copied.txt")) {
+                result = pool.submit(reconciler::reconcile);
+                verify(fileRepository, after(200).never()).existsByUserAndFilename(user, "copied.txt");
+                committed.set(true);
+            }
+
+            StorageReconciler.Report report = result.get(5, TimeUnit.SECONDS);
+            assertEquals(1, report.orphanFiles());
+            assertEquals(0, report.repaired());
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(Files.exists(userDir.resolve("copied.txt")));
+    }
+
+    private StorageReconciler reconciler(boolean repair) {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StorageService storageService = new StorageService(tempDir.toString(), DataSize.ofBytes(0));
+        QuotaService quotaService = new QuotaService(userRepository, fileRepository, mock(FileVersionService.class),
+                transactionManager, DataSize.ofKilobytes(1), 100, "local");
+        ChangeFeedService changeFeedService = new ChangeFeedService(fileChangeRepository, userRepository,
+                transactionManager, meterRegistry, 100, 100, Duration.ofSeconds(1), 10, Duration.ofDays(1), 100);
+        EncryptionService encryptionService = new EncryptionService(false, "", List.of(),
+                DataSize.ofKilobytes(64), new SimpleMeterRegistry());
+        ThumbnailService thumbnailService = new ThumbnailService(storageService, encryptionService,
+                new ExecutorServiceAdapter(new SyncTaskExecutor()), true, List.of(64), 1024, 1024);
+        return new StorageReconciler(storageService, fileRepository, userRepository, quotaService, changeFeedService,
+                new FileListingCache(meterRegistry, 10, DataSize.ofMegabytes(1)), thumbnailService, fileLocks,
+                transactionManager,
+                meterRegistry, 2, 100, Duration.ofMinutes(10), repair, 0, "local");
+    }
+
+    private static FileSummary summary(Long id, String filename) {
+        return new FileSummary(id, filename, 5L, LocalDateTime.now().minusDays(1));
+    }
+
+    private static void writeOld(Path path) throws IOException {
+        Files.writeString(path, "data");
+        Files.setLastModifiedTime(path, FileTime.from(Instant.now().minus(Duration.ofDays(1))));
+    }
+}
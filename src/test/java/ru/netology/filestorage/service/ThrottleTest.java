@@ -0,0 +1,56 @@
+package ru.netology.filestorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThrottleTest {
+
+    @Test
+    void acquire_KeepsLimitingAfterTenGigabytes() throws Exception {
+        Throttle throttle = new Throttle(100_000_000_000L);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            throttle.acquire(Integer.MAX_VALUE);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        // ~10.7 ГБ при 100 ГБ/с - не меньше 107 мс
+        assertTrue(elapsedMillis >= 100, "elapsed " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void acquire_SharedBetweenThreadsLimitsCombinedRate() throws Exception {
+        Throttle throttle = new Throttle(1000);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        long started = System.nanoTime();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(pool.submit(() -> {
+                    for (int j = 0; j < 50; j++) {
+                        throttle.acquire(1);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        // 200 записей из четырех потоков при 1000 в секунду - не меньше 200 мс
+        assertTrue(elapsedMillis >= 190, "elapsed " + elapsedMillis + " ms");
+    }
+}
@@ -0,0 +1,99 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.support.ExecutorServiceAdapter;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThumbnailServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private ThumbnailService thumbnailService;
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        StorageService storageService = new StorageService(tempDir.toString(), DataSize.ofBytes(0));
+        EncryptionService encryptionService = new EncryptionService(false, "", List.of(),
+                DataSize.ofKilobytes(64), new SimpleMeterRegistry());
+        thumbnailService = new ThumbnailService(storageService, encryptionService,
+                new ExecutorServiceAdapter(new SyncTaskExecutor()), true, List.of(256, 64), 1024 * 1024, 1_000_000);
+        user = new User("test@example.com", "password");
+        user.setId(1L);
+    }
+
+    @Test
+    void enqueue_GeneratesAllSizesForImage() throws IOException {
+        File file = image("photo.png", 400, 200);
+        Path source = write(file, 400, 200);
+
+        thumbnailService.enqueue(file, source);
+
+        ThumbnailService.Thumbnail small = thumbnailService.find(file, 64).orElseThrow();
+        assertEquals("image/jpeg", small.contentType());
+        assertEquals("10-64", small.version());
+        BufferedImage scaled = ImageIO.read(small.path().toFile());
+        assertEquals(64, scaled.getWidth());
+        assertEquals(32, scaled.getHeight());
+        assertTrue(thumbnailService.find(file, 256).isPresent());
+    }
+
+    @Test
+    void enqueue_SkipsNonImages() throws IOException {
+        File file = image("notes.txt", 1, 1);
+        file.setContentType("text/plain");
+        Path source = write(file, 1, 1);
+
+        thumbnailService.enqueue(file, source);
+
+        assertTrue(thumbnailService.find(file, 64).isEmpty());
+    }
+
+    @Test
+    void resolveSize_PicksSmallestSufficientSize() {
+        assertEquals(64, thumbnailService.resolveSize(null));
+        assertEquals(64, thumbnailService.resolveSize(50));
+        assertEquals(256, thumbnailService.resolveSize(100));
+        assertEquals(256, thumbnailService.resolveSize(1000));
+    }
+
+    @Test
+    void delete_RemovesDerivatives() throws IOException {
+        File file = image("photo.png", 100, 100);
+        thumbnailService.enqueue(file, write(file, 100, 100));
+        assertTrue(thumbnailService.find(file, 64).isPresent());
+
+        thumbnailService.delete(file);
+
+        assertTrue(thumbnailService.find(file, 64).isEmpty());
+    }
+
+    private File image(String filename, int width, int height) {
+        File file = new File(filename, (long) width * height, "image/png", user);
+        file.setId(10L);
+        return file;
+    }
+
+    private Path write(File file, int width, int height) throws IOException {
+        Path source = tempDir.resolve("1").resolve(file.getFilename());
+        Files.createDirectories(source.getParent());
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", source.toFile());
+        return source;
+    }
+}
@@ -0,0 +1,64 @@
+package ru.netology.filestorage.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.netology.filestorage.repository.TokenRepository;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class TokenCleanupServiceTest {
+
+    @Mock
+    private TokenRepository tokenRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private TokenCleanupService tokenCleanupService;
+
+    @BeforeEach
+    void setUp() {
+        tokenCleanupService = new TokenCleanupService(tokenRepository, transactionManager, 2, Duration.ofHours(1));
+    }
+
+    @Test
+    void purge_DeletesInKeysetBatches() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime cutoff = now.minusHours(1);
+        when(tokenRepository.findPurgeableIds(eq(0L), eq(cutoff), any(Pageable.class))).thenReturn(List.of(1L, 5L));
+        when(tokenRepository.findPurgeableIds(eq(5L), eq(cutoff), any(Pageable.class))).thenReturn(List.of(9L));
+        when(tokenRepository.deleteByIdIn(List.of(1L, 5L))).thenReturn(2);
+        when(tokenRepository.deleteByIdIn(List.of(9L))).thenReturn(1);
+
+        int deleted = tokenCleanupService.purge(now);
+
+        assertEquals(3, deleted);
+        verify(tokenRepository).deleteByIdIn(List.of(1L, 5L));
+        verify(tokenRepository).deleteByIdIn(List.of(9L));
+        verify(transactionManager, times(2)).commit(any());
+    }
+
+    @Test
+    void purge_NothingToDelete() {
+        when(tokenRepository.findPurgeableIds(eq(0L), any(LocalDateTime.class), any(Pageable.class))).thenReturn(List.of());
+
+        int deleted = tokenCleanupService.purge(LocalDateTime.now());
+
+        assertEquals(0, deleted);
+        verify(tokenRepository, never()).deleteByIdIn(anyList());
+    }
+}
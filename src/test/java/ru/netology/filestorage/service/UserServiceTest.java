@@ -6,6 +6,7 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.PlatformTransactionManager;
 import ru.netology.filestorage.entity.User;
 import ru.netology.filestorage.repository.UserRepository;
 
@@ -24,6 +25,9 @@ class UserServiceTest {
     @Mock
     private PasswordEncoder passwordEncoder;
 
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
     @InjectMocks
     private UserService userService;
 
@@ -53,6 +57,47 @@ class UserServiceTest {
         verify(passwordEncoder).matches(rawPassword, encodedPassword);
     }
 
+    @Test
+    void upgradePasswordEncodingIfNeeded_WeakHash_Rehashes() {
+        User user = new User("test@example.com", "oldHash");
+        user.setId(1L);
+        when(passwordEncoder.upgradeEncoding("oldHash")).thenReturn(true);
+        when(passwordEncoder.encode("password")).thenReturn("newHash");
+        when(userRepository.updatePassword(1L, "oldHash", "newHash")).thenReturn(1);
+
+        boolean upgraded = userService.upgradePasswordEncodingIfNeeded(user, "password");
+
+        assertTrue(upgraded);
+        assertEquals("newHash", user.getPassword());
+        verify(userRepository, never()).save(any());
+    }
+
+    @Test
+    void upgradePasswordEncodingIfNeeded_PasswordChangedMeanwhile_Skips() {
+        User user = new User("test@example.com", "oldHash");
+        user.setId(1L);
+        when(passwordEncoder.upgradeEncoding("oldHash")).thenReturn(true);
+        when(passwordEncoder.encode("password")).thenReturn("newHash");
+        when(userRepository.updatePassword(1L, "oldHash", "newHash")).thenReturn(0);
+
+        boolean upgraded = userService.upgradePasswordEncodingIfNeeded(user, "password");
+
+        assertFalse(upgraded);
+        assertEquals("oldHash", user.getPassword());
+    }
+
+    @Test
+    void upgradePasswordEncodingIfNeeded_CurrentHash_Skips() {
+        User user = new User("test@example.com", "currentHash");
+        when(passwordEncoder.upgradeEncoding("currentHash")).thenReturn(false);
+
+        boolean upgraded = userService.upgradePasswordEncodingIfNeeded(user, "password");
+
+        assertFalse(upgraded);
+        verify(passwordEncoder, never()).encode(any());
+        verify(userRepository, never()).updatePassword(any(), any(), any());
+    }
+
     @Test
     void createUser_Successful() {
         String username = "newuser@example.com";
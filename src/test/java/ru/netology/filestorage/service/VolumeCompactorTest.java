@@ -0,0 +1,157 @@
+package ru.netology.filestorage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+import ru.netology.filestorage.config.IoSchedulerProperties;
+import ru.netology.filestorage.dto.PresignedUrlResponse;
+import ru.netology.filestorage.dto.VolumeEntry;
+import ru.netology.filestorage.dto.VolumeUsage;
+import ru.netology.filestorage.entity.File;
+import ru.netology.filestorage.entity.User;
+import ru.netology.filestorage.repository.FileRepository;
+import ru.netology.filestorage.repository.FileVersionRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class VolumeCompactorTest {
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private FileVersionRepository fileVersionRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path tempDir;
+
+    private VolumeStore volumeStore;
+    private PresignedUrlService presignedUrlService;
+    private VolumeCompactor compactor;
+
+    @BeforeEach
+    void setUp() {
+        StorageService storageService = new StorageService(tempDir.toString(), DataSize.ofBytes(0));
+        volumeStore = new VolumeStore(storageService, true, DataSize.ofBytes(8), DataSize.ofBytes(8));
+        EncryptionService encryptionService = new EncryptionService(false, Base64.getEncoder().encodeToString(new byte[32]),
+                List.of(), DataSize.ofKilobytes(64), new SimpleMeterRegistry());
+        presignedUrlService = new PresignedUrlService(storageService, volumeStore, encryptionService,
+                new IoScheduler(new IoSchedulerProperties(), new SimpleMeterRegistry()), new SimpleMeterRegistry(),
+                "secret", Duration.ofHours(1), Duration.ofDays(7), "local");
+        compactor = new VolumeCompactor(volumeStore, fileRepository, fileVersionRepository, presignedUrlService,
+                transactionManager, new SimpleMeterRegistry(), 0.5, 100, Duration.ofMinutes(10), "local");
+    }
+
+    @Test
+    void append_ReadsBackByLocation() throws IOException {
+        VolumeStore.Location first = volumeStore.append("aaaa".getBytes());
+        VolumeStore.Location second = volumeStore.append("bbbb".getBytes());
+        VolumeStore.Location third = volumeStore.append("cc".getBytes());
+
+        assertEquals(new VolumeStore.Location(1L, 0), first);
+        assertEquals(new VolumeStore.Location(1L, 4), second);
+        assertEquals(new VolumeStore.Location(2L, 0), third);
+        assertEquals("bbbb", new String(volumeStore.read(1L, 4, 4)));
+        assertEquals("cc", new String(volumeStore.read(2L, 0, 2)));
+    }
+
+    @Test
+    void compact_MovesLiveEntriesAndDeletesVolumeAfterRetireDelay() throws IOException {
+        volumeStore.append("aaaa".getBytes());
+        volumeStore.append("bbbb".getBytes());
+        volumeStore.append("cc".getBytes());
+        when(fileRepository.sumSizeByVolume("local")).thenReturn(List.of(new VolumeUsage(1L, 4L), new VolumeUsage(2L, 2L)));
+        when(fileRepository.findVolumeEntries("local", 1L)).thenReturn(List.of(new VolumeEntry(4L, 4L)));
+        Instant now = Instant.now();
+
+        VolumeCompactor.Report first = compactor.compact(now);
+
+        assertEquals(1, first.compacted());
+        verify(fileRepository).relocate("local", 1L, 4L, 2L, 2L);
+        assertEquals("bbbb", new String(volumeStore.read(2L, 2, 4)));
+        assertTrue(Files.exists(tempDir.resolve(VolumeStore.VOLUMES_DIR).resolve("1.dat")));
+
+        when(fileRepository.existsByVolumeId("local", 1L)).thenReturn(false);
+        when(fileRepository.sumSizeByVolume("local")).thenReturn(List.of(new VolumeUsage(2L, 6L)));
+        VolumeCompactor.Report second = compactor.compact(now.plus(Duration.ofMinutes(11)));
+
+        assertEquals(1, second.deleted());
+        assertEquals(8L, second.reclaimedBytes());
+        assertFalse(Files.exists(tempDir.resolve(VolumeStore.VOLUMES_DIR).resolve("1.dat")));
+    }
+
+    @Test
+    void compact_KeepsVolumeUntilSignedLinksToItExpire() throws IOException {
+        volumeStore.append("aaaa".getBytes());
+        VolumeStore.Location location = volumeStore.append("bbbb".getBytes());
+        volumeStore.append("cc".getBytes());
+        User user = new User("test@example.com", "password");
+        user.setId(1L);
+        File file = new File("small.txt", 4L, "text/plain", user);
+        file.setId(7L);
+        file.setVolumeId(location.volumeId());
+        file.setVolumeOffset(location.offset());
+        PresignedUrlResponse link = presignedUrlService.sign(file, Duration.ofMinutes(30));
+        when(fileRepository.sumSizeByVolume("local")).thenReturn(List.of(new VolumeUsage(1L, 4L), new VolumeUsage(2L, 2L)));
+        when(fileRepository.findVolumeEntries("local", 1L)).thenReturn(List.of(new VolumeEntry(4L, 4L)));
+        Instant now = Instant.now();
+
+        compactor.compact(now);
+        when(fileRepository.sumSizeByVolume("local")).thenReturn(List.of(new VolumeUsage(2L, 6L)));
+        VolumeCompactor.Report report = compactor.compact(now.plus(Duration.ofMinutes(11)));
+
+        assertEquals(0, report.deleted());
+        assertTrue(Files.exists(tempDir.resolve(VolumeStore.VOLUMES_DIR).resolve("1.dat")));
+        PresignedUrlService.SharedFile shared = presignedUrlService.open(
+                link.url().substring(PresignedUrlService.PATH_PREFIX.length()));
+        assertEquals("bbbb", new String(shared.resource().getContentAsByteArray()));
+    }
+
+    @Test
+    void compact_MovesEntriesReferencedOnlyByVersions() throws IOException {
+        volumeStore.append("aaaa".getBytes());
+        volumeStore.append("bbbb".getBytes());
+        volumeStore.append("cc".getBytes());
+        when(fileRepository.sumSizeByVolume("local")).thenReturn(List.of(new VolumeUsage(2L, 2L)));
+        when(fileVersionRepository.sumSizeByVolume("local")).thenReturn(List.of(new VolumeUsage(1L, 4L)));
+        when(fileVersionRepository.findVolumeEntries("local", 1L)).thenReturn(List.of(new VolumeEntry(4L, 4L)));
+
+        VolumeCompactor.Report report = compactor.compact(Instant.now());
+
+        assertEquals(1, report.compacted());
+        verify(fileVersionRepository).relocate("local", 1L, 4L, 2L, 2L);
+        assertEquals("bbbb", new String(volumeStore.read(2L, 2, 4)));
+    }
+
+    @Test
+    void compact_KeepsVolumesWithLittleGarbage() throws IOException {
+        volumeStore.append("aaaa".getBytes());
+        volumeStore.append("bbbb".getBytes());
+        volumeStore.append("cc".getBytes());
+        when(fileRepository.sumSizeByVolume("local")).thenReturn(List.of(new VolumeUsage(1L, 8L)));
+
+        VolumeCompactor.Report report = compactor.compact(Instant.now());
+
+        assertEquals(0, report.compacted());
+        verify(fileRepository, never()).findVolumeEntries("local", 1L);
+    }
+}